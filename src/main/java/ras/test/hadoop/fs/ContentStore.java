@@ -0,0 +1,205 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Creates and keeps track of the file content of one file system context.
+ * <p>
+ * The store counts the bytes held in memory by the content of the context. If
+ * a memory budget is configured with {@link InMemoryFileSystem#BUDGET_KEY} and
+ * an allocation would exceed it, the least recently used content which is not
+ * open is spilled to a memory-mapped file in the scratch directory set by
+ * {@link InMemoryFileSystem#SPILL_DIR_KEY}. Spilled content is faulted back
+ * into memory the next time the file is opened. The budget is soft: content
+ * that is open is never spilled, so it may be exceeded by open files.
+ * <p>
+ * All methods synchronize on the store, which is private to its context and
+ * the forks of the context, see {@link FileSystemContext#fork}. A shared
+ * store counts the content of all of them against the budget.
+ */
+class ContentStore {
+
+	private final StorageBackend backend;
+
+	private final long budget;
+
+	private final File spillRoot;
+
+	/** Created on the first spill. */
+	private File spillDirectory = null;
+
+	/** Bytes held in memory by the content of this store. */
+	private long residentBytes = 0;
+
+	/** The number of open streams. */
+	private int openStreams = 0;
+
+	/** The number of contexts using this store. */
+	private int users = 1;
+
+	/** Resident content in least recently used order. */
+	private final Map<FileContent, Boolean> resident = new LinkedHashMap<FileContent, Boolean>(
+			16, 0.75f, true);
+
+	ContentStore(Configuration conf) {
+		this.backend = StorageBackend.get(conf);
+		long budget = conf.getLong(InMemoryFileSystem.BUDGET_KEY, 0);
+		this.budget = (budget > 0) ? budget : Long.MAX_VALUE;
+		this.spillRoot = new File(conf.get(InMemoryFileSystem.SPILL_DIR_KEY,
+				System.getProperty("java.io.tmpdir")));
+	}
+
+	/**
+	 * @return new, empty content kept by this store.
+	 */
+	FileContent newContent() {
+		FileContent content = backend.newContent();
+		content.setStore(this);
+		return content;
+	}
+
+	/**
+	 * @return the number of bytes held in memory by the content of this store.
+	 */
+	synchronized long getResidentBytes() {
+		return residentBytes;
+	}
+
+	/**
+	 * @return the number of streams open on the content of this store.
+	 */
+	synchronized int getOpenStreams() {
+		return openStreams;
+	}
+
+	/**
+	 * Accounts for <code>bytes</code> about to be allocated by
+	 * <code>content</code>, spilling other content first if the allocation
+	 * would exceed the budget.
+	 */
+	synchronized void allocate(FileContent content, long bytes)
+			throws IOException {
+		if (residentBytes + bytes > budget) {
+			spill(residentBytes + bytes - budget, content);
+		}
+		residentBytes += bytes;
+		resident.put(content, Boolean.TRUE);
+	}
+
+	/**
+	 * Accounts for <code>bytes</code> freed by <code>content</code>.
+	 */
+	synchronized void free(FileContent content, long bytes) {
+		residentBytes -= bytes;
+		resident.remove(content);
+	}
+
+	/**
+	 * Marks <code>content</code> as the most recently used and opens it,
+	 * faulting it back into memory if it was spilled.
+	 */
+	synchronized void open(FileContent content) throws IOException {
+		if (content.isSpilled()) {
+			content.faultIn();
+		} else if (resident.containsKey(content)) {
+			resident.get(content);
+		}
+		content.pin();
+		openStreams++;
+	}
+
+	/**
+	 * Closes a stream on <code>content</code>, making it a candidate for
+	 * spilling once no stream is open on it, or freeing it if it has been
+	 * released in the meantime.
+	 */
+	synchronized void close(FileContent content) {
+		content.unpin();
+		openStreams--;
+	}
+
+	/**
+	 * @return a new file in the scratch directory to hold spilled content.
+	 */
+	synchronized File newSpillFile() throws IOException {
+		if (spillDirectory == null) {
+			spillDirectory = File.createTempFile("memory-fs-", ".spill",
+					spillRoot);
+			if (!spillDirectory.delete() || !spillDirectory.mkdirs()) {
+				throw new IOException("Unable to create spill directory: "
+						+ spillDirectory);
+			}
+		}
+		return File.createTempFile("content-", ".bin", spillDirectory);
+	}
+
+	/**
+	 * Adds a context using this store, which must close it as well.
+	 */
+	synchronized void retain() {
+		users++;
+	}
+
+	/**
+	 * Deletes the scratch directory once the last context using the store
+	 * closes it. The content of the store must have been released.
+	 */
+	synchronized void close() {
+		if (--users > 0) {
+			return;
+		}
+		if (spillDirectory != null) {
+			File[] files = spillDirectory.listFiles();
+			if (files != null) {
+				for (File file : files) {
+					file.delete();
+				}
+			}
+			spillDirectory.delete();
+			spillDirectory = null;
+		}
+	}
+
+	/**
+	 * Spills least recently used content until at least <code>bytes</code>
+	 * have been freed or no more content can be spilled.
+	 */
+	private void spill(long bytes, FileContent exclude) throws IOException {
+		List<FileContent> victims = new ArrayList<FileContent>();
+		long freed = 0;
+		Iterator<FileContent> lru = resident.keySet().iterator();
+		while (freed < bytes && lru.hasNext()) {
+			FileContent candidate = lru.next();
+			if (candidate != exclude && !candidate.isPinned()) {
+				victims.add(candidate);
+				freed += candidate.capacity();
+			}
+		}
+		for (FileContent victim : victims) {
+			victim.spill();
+		}
+	}
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Reclaims file system contexts whose configurations have become unreachable.
+ * <p>
+ * Every configuration which resolves a context is registered as an owner of
+ * that context through a weak reference. File system instances keep their
+ * configuration, and therefore their context, reachable. Once the garbage
+ * collector has cleared the last owner of a context, a daemon thread removes
+ * the context from the static state and releases its content, just as
+ * {@link InMemoryFileSystem#resetFileSystemState(Configuration)} would have.
+ * <p>
+ * A configuration copied from an owner but never used to resolve the context
+ * does not own it. The identifiers of reclaimed contexts are remembered, so
+ * such a copy fails when it is used later instead of silently resolving a new,
+ * empty context.
+ */
+class ContextCleaner {
+
+	/**
+	 * A weak reference from a context to one of its owning configurations.
+	 */
+	private static final class OwnerReference extends
+			WeakReference<Configuration> {
+		private final String context;
+
+		OwnerReference(Configuration conf, String context,
+				ReferenceQueue<Configuration> queue) {
+			super(conf, queue);
+			this.context = context;
+		}
+	}
+
+	private final ConcurrentMap<String, FileSystemContext> contexts;
+
+	private final ReferenceQueue<Configuration> queue = new ReferenceQueue<Configuration>();
+
+	/** The configurations registered so far, compared by identity. */
+	private final Map<Configuration, Boolean> registered = new WeakHashMap<Configuration, Boolean>();
+
+	/** Keeps the references reachable until they are enqueued. */
+	private final Set<OwnerReference> references = new HashSet<OwnerReference>();
+
+	/** The number of live owners of each context. */
+	private final Map<String, Integer> owners = new HashMap<String, Integer>();
+
+	/** The identifiers of the contexts reclaimed so far. */
+	private final Set<String> tombstones = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private long reclaimed = 0;
+
+	private Thread thread = null;
+
+	/**
+	 * @param contexts
+	 *            The static file system state from which reclaimed contexts
+	 *            are removed.
+	 */
+	ContextCleaner(ConcurrentMap<String, FileSystemContext> contexts) {
+		this.contexts = contexts;
+	}
+
+	/**
+	 * Registers <code>conf</code> as an owner of <code>context</code>, unless
+	 * it was registered before.
+	 */
+	synchronized void register(Configuration conf, String context) {
+		expunge();
+		if (registered.containsKey(conf)) {
+			return;
+		}
+		registered.put(conf, Boolean.TRUE);
+		references.add(new OwnerReference(conf, context, queue));
+		Integer count = owners.get(context);
+		owners.put(context, (count == null) ? 1 : count + 1);
+		start();
+	}
+
+	/**
+	 * @return the number of contexts reclaimed so far.
+	 */
+	synchronized long getReclaimedCount() {
+		return reclaimed;
+	}
+
+	/**
+	 * @return <code>true</code> if <code>context</code> has been reclaimed.
+	 *         Does not lock the cleaner.
+	 */
+	boolean isReclaimed(String context) {
+		return tombstones.contains(context);
+	}
+
+	/**
+	 * Handles the references cleared so far without waiting.
+	 */
+	synchronized void expunge() {
+		Reference<? extends Configuration> reference;
+		while ((reference = queue.poll()) != null) {
+			cleared((OwnerReference) reference);
+		}
+	}
+
+	private synchronized void cleared(OwnerReference reference) {
+		if (!references.remove(reference)) {
+			return;
+		}
+		int count = owners.get(reference.context) - 1;
+		if (count > 0) {
+			owners.put(reference.context, count);
+			return;
+		}
+		owners.remove(reference.context);
+		// Bury the context before it is removed, so a lookup which misses it
+		// sees the tombstone...
+		tombstones.add(reference.context);
+		FileSystemContext context = contexts.remove(reference.context);
+		if (context != null) {
+			context.release();
+			reclaimed++;
+		}
+	}
+
+	private void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread("memory-fs-context-cleaner") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						cleared((OwnerReference) queue.remove());
+					}
+				} catch (InterruptedException e) {
+					// Exit...
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
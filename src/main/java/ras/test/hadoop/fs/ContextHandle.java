@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.net.URI;
+
+/**
+ * A file system instance's binding to its context: the context and the
+ * namespace of the instance, resolved once when the configuration is set
+ * rather than looked up in the configuration on every operation.
+ * <p>
+ * A handle is immutable. It becomes stale when its context is released by
+ * {@link InMemoryFileSystem#resetFileSystemState}, after which the file
+ * system binds a new handle.
+ */
+final class ContextHandle {
+
+	private final FileSystemContext context;
+
+	private final Namespace namespace;
+
+	ContextHandle(FileSystemContext context, URI fsName) {
+		this.context = context;
+		this.namespace = context.getNamespace(fsName);
+	}
+
+	FileSystemContext getContext() {
+		return context;
+	}
+
+	Namespace getNamespace() {
+		return namespace;
+	}
+
+	/**
+	 * @return <code>true</code> if the context has been released and the
+	 *         handle must be bound again.
+	 */
+	boolean isStale() {
+		return context.isReleased();
+	}
+}
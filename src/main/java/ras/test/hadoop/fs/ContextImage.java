@@ -0,0 +1,358 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.Path;
+
+import ras.test.hadoop.fs.Namespace.Locks;
+
+/**
+ * Saves the state of a {@link FileSystemContext} to a binary image on local
+ * disk and loads it back, see {@link InMemoryFileSystem#saveImage} and
+ * {@link InMemoryFileSystem#loadImage}.
+ * <p>
+ * An image holds the committed content of all files followed by the
+ * metadata, so content is streamed straight from memory, or transferred from
+ * spill files, without being buffered:
+ * 
+ * <pre>
+ * int     magic, int version
+ * byte[]  the content of each file
+ * ...     the principal names, then each namespace as its URI and a
+ *         pre-order walk of its nodes
+ * long    the position of the metadata, int magic
+ * </pre>
+ * 
+ * Loading reads the metadata only. The content of each file is left in the
+ * image, as if it had been spilled there, and is mapped into memory when the
+ * file is first opened. A context loaded from an image therefore needs the
+ * image for as long as it lives.
+ * <p>
+ * This class is package private since it's only purpose is to support
+ * {@link InMemoryFileSystem}.
+ */
+final class ContextImage {
+
+	private static final int MAGIC = 0x494D4653;
+	private static final int VERSION = 2;
+
+	/** The first version which saves the block size and replication. */
+	private static final int VERSION_BLOCKS = 2;
+	private static final int HEADER_SIZE = 8;
+	private static final int TRAILER_SIZE = 12;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final byte DIRECTORY = 0;
+	private static final byte FILE = 1;
+
+	private static final Path ROOT = new Path("/");
+
+	private ContextImage() {
+	}
+
+	/**
+	 * Saves <code>context</code> to <code>image</code>. The namespaces are
+	 * locked exclusively while they are saved, so the image is a consistent
+	 * snapshot of their committed state. The image is written to a temporary
+	 * file next to <code>image</code> which is then renamed over it, so an
+	 * existing image is left intact if saving fails. Saving onto the image the
+	 * content of <code>context</code> is still read from is refused.
+	 */
+	static void save(FileSystemContext context, File image) throws IOException {
+		// Lock the namespaces in the order of their names...
+		Map<String, URI> names = new TreeMap<String, URI>();
+		for (URI name : context.getNamespaceNames()) {
+			names.put(name.toString(), name);
+		}
+		List<Namespace> namespaces = new ArrayList<Namespace>();
+		List<Locks> locks = new ArrayList<Locks>();
+		try {
+			for (URI name : names.values()) {
+				Namespace namespace = context.getNamespace(name);
+				locks.add(namespace.lock(true, ROOT));
+				namespaces.add(namespace);
+			}
+
+			for (Namespace namespace : namespaces) {
+				for (Node node : namespace.nodes()) {
+					if (node instanceof FileNode
+							&& ((FileNode) node).getContent().isMappedFrom(
+									image)) {
+						throw new IOException("'" + image
+								+ "' is in use by the context!");
+					}
+				}
+			}
+
+			File temp = File.createTempFile(image.getName(), ".tmp", image
+					.getAbsoluteFile().getParentFile());
+			boolean saved = false;
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				FileChannel channel = out.getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.putInt(MAGIC).putInt(VERSION).flip();
+				write(channel, header);
+
+				Map<FileNode, Long> offsets = new IdentityHashMap<FileNode, Long>();
+				for (Namespace namespace : namespaces) {
+					for (Node node : namespace.nodes()) {
+						if (node instanceof FileNode) {
+							offsets.put((FileNode) node, channel.position());
+							((FileNode) node).getContent().saveTo(channel);
+						}
+					}
+				}
+
+				long metadata = channel.position();
+				DataOutputStream data = new DataOutputStream(
+						new BufferedOutputStream(
+								Channels.newOutputStream(channel), BUFFER_SIZE));
+				PrincipalDictionary principals = context.getPrincipals();
+				int count = principals.size();
+				data.writeInt(count);
+				for (int id = 0; id < count; id++) {
+					data.writeUTF(principals.getName(id));
+				}
+				data.writeInt(namespaces.size());
+				for (URI name : names.values()) {
+					data.writeUTF(name.toString());
+					writeNode(data, context.getNamespace(name).getRoot(),
+							offsets);
+				}
+				data.writeLong(metadata);
+				data.writeInt(MAGIC);
+				data.flush();
+				out.close();
+				if (!temp.renameTo(image)
+						&& !(image.delete() && temp.renameTo(image))) {
+					throw new IOException("Could not rename '" + temp
+							+ "' to '" + image + "'!");
+				}
+				saved = true;
+			} finally {
+				out.close();
+				if (!saved) {
+					temp.delete();
+				}
+			}
+		} finally {
+			for (int i = locks.size() - 1; i >= 0; i--) {
+				locks.get(i).release();
+			}
+		}
+	}
+
+	private static void writeNode(DataOutputStream data, Node node,
+			Map<FileNode, Long> offsets) throws IOException {
+		boolean isFile = node instanceof FileNode;
+		data.writeByte(isFile ? FILE : DIRECTORY);
+		data.writeUTF((node.getParent() == null) ? "" : node.getName());
+		data.writeShort(node.getPermission());
+		data.writeInt(node.getOwnerId());
+		data.writeInt(node.getGroupId());
+		if (isFile) {
+			FileNode fnode = (FileNode) node;
+			data.writeLong(offsets.get(node));
+			data.writeLong(fnode.getLength());
+			data.writeLong(fnode.getBlockSize());
+			data.writeShort(fnode.getReplication());
+		} else {
+			DirectoryNode dnode = (DirectoryNode) node;
+			Quota quota = dnode.getQuota();
+			data.writeLong((quota == null) ? Quota.NONE : quota.namespace);
+			data.writeLong((quota == null) ? Quota.NONE : quota.space);
+			List<Node> children = new ArrayList<Node>(dnode.getChildren());
+			data.writeInt(children.size());
+			for (Node child : children) {
+				writeNode(data, child, offsets);
+			}
+		}
+	}
+
+	/**
+	 * Loads <code>image</code> into <code>context</code>, which must be new.
+	 * 
+	 * @throws IOException
+	 *             If <code>image</code> is not a valid image.
+	 */
+	static void load(FileSystemContext context, File image) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(image, "r");
+		try {
+			long size = raf.length();
+			if (size < HEADER_SIZE + TRAILER_SIZE || raf.readInt() != MAGIC) {
+				throw notAnImage(image);
+			}
+			int version = raf.readInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException("Unsupported image version: " + image);
+			}
+			raf.seek(size - TRAILER_SIZE);
+			long metadata = raf.readLong();
+			if (raf.readInt() != MAGIC || metadata < HEADER_SIZE
+					|| metadata > size - TRAILER_SIZE) {
+				throw notAnImage(image);
+			}
+
+			FileChannel channel = raf.getChannel();
+			channel.position(metadata);
+			DataInputStream data = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel), BUFFER_SIZE));
+			int[] ids = new int[data.readInt()];
+			for (int id = 0; id < ids.length; id++) {
+				ids[id] = context.getPrincipals().getId(data.readUTF());
+			}
+			int count = data.readInt();
+			for (int i = 0; i < count; i++) {
+				Namespace namespace = context.getNamespace(URI.create(data
+						.readUTF()));
+				Loader loader = new Loader(data, version, namespace,
+						context.getContentStore(), ids, image, metadata);
+				loader.readNode(null);
+				loader.applyQuotas();
+			}
+		} catch (EOFException e) {
+			throw notAnImage(image);
+		} catch (IndexOutOfBoundsException e) {
+			throw notAnImage(image);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the nodes of one namespace.
+	 */
+	private static final class Loader {
+		private final DataInputStream data;
+		private final int version;
+		private final Namespace namespace;
+		private final ContentStore store;
+		private final int[] ids;
+		private final File image;
+		private final long metadata;
+
+		/** Quotas are set once all nodes are linked, they may be exceeded. */
+		private final Map<DirectoryNode, Quota> quotas = new IdentityHashMap<DirectoryNode, Quota>();
+
+		Loader(DataInputStream data, int version, Namespace namespace,
+				ContentStore store, int[] ids, File image, long metadata) {
+			this.data = data;
+			this.version = version;
+			this.namespace = namespace;
+			this.store = store;
+			this.ids = ids;
+			this.image = image;
+			this.metadata = metadata;
+		}
+
+		/**
+		 * Reads a node and its descendants, the root if <code>parent</code>
+		 * is <code>null</code>.
+		 */
+		void readNode(DirectoryNode parent) throws IOException {
+			byte type = data.readByte();
+			String name = data.readUTF();
+			short permission = data.readShort();
+			int owner = ids[data.readInt()];
+			int group = ids[data.readInt()];
+
+			Node node;
+			if (type == FILE && parent != null) {
+				long offset = data.readLong();
+				long length = data.readLong();
+				if (offset < HEADER_SIZE || length < 0
+						|| offset + length > metadata) {
+					throw notAnImage(image);
+				}
+				FileContent content = store.newContent();
+				content.mapImage(image, offset, length);
+				FileNode fnode = new FileNode(name, null, content);
+				if (version >= VERSION_BLOCKS) {
+					fnode.setBlockSize(data.readLong());
+					fnode.setReplication(data.readShort());
+				}
+				node = fnode;
+			} else if (type == DIRECTORY) {
+				node = (parent == null) ? namespace.getRoot()
+						: new DirectoryNode(name, null);
+			} else {
+				throw notAnImage(image);
+			}
+			node.setPermission(permission);
+			node.setOwnerId(owner);
+			node.setGroupId(group);
+			if (parent != null) {
+				namespace.link(parent, node, name);
+			}
+
+			if (node instanceof DirectoryNode) {
+				Quota quota = new Quota();
+				quota.namespace = data.readLong();
+				quota.space = data.readLong();
+				if (quota.isSet()) {
+					quotas.put((DirectoryNode) node, quota);
+				}
+				int children = data.readInt();
+				for (int i = 0; i < children; i++) {
+					readNode((DirectoryNode) node);
+				}
+			}
+		}
+
+		void applyQuotas() {
+			for (Map.Entry<DirectoryNode, Quota> entry : quotas.entrySet()) {
+				Quota quota = entry.getValue();
+				namespace.setQuota(entry.getKey(), toQuota(quota.namespace),
+						toQuota(quota.space));
+			}
+		}
+	}
+
+	private static long toQuota(long quota) {
+		return (quota == Quota.NONE) ? InMemoryFileSystem.QUOTA_RESET : quota;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static IOException notAnImage(File image) {
+		return new IOException("Not an in-memory file system image: " + image);
+	}
+}
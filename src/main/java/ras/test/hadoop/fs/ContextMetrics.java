@@ -0,0 +1,147 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The metrics of one file system context: the latencies of the
+ * {@link Operation}s, recorded if enabled, and gauges computed from the state
+ * of the context on demand.
+ * <p>
+ * Operations call {@link #start()} and {@link #record(Operation, long)}.
+ * While disabled, these only test a final field, so an operation does not
+ * even read the clock.
+ */
+final class ContextMetrics implements InMemoryFileSystemMXBean {
+
+	private final FileSystemContext context;
+	private final boolean enabled;
+	private final LatencyHistogram[] histograms;
+	private ObjectName name = null;
+
+	ContextMetrics(FileSystemContext context, boolean enabled) {
+		this.context = context;
+		this.enabled = enabled;
+		this.histograms = new LatencyHistogram[Operation.values().length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the start time of an operation, 0 if disabled.
+	 */
+	long start() {
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the latency of an operation which started at
+	 * <code>start</code>.
+	 */
+	void record(Operation operation, long start) {
+		if (enabled) {
+			histograms[operation.ordinal()]
+					.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Registers the JMX bean of the context if metrics are enabled.
+	 */
+	synchronized void register(String contextId) {
+		if (!enabled || name != null) {
+			return;
+		}
+		try {
+			ObjectName objectName = new ObjectName(
+					"ras.test.hadoop.fs:type=InMemoryFileSystem,context="
+							+ ObjectName.quote(contextId));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					objectName);
+			name = objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException(
+					"Unable to register the metrics of context " + contextId,
+					e);
+		}
+	}
+
+	/**
+	 * Unregisters the JMX bean of the context, if registered.
+	 */
+	synchronized void unregister() {
+		if (name == null) {
+			return;
+		}
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		} catch (JMException e) {
+			// Already gone...
+		}
+		name = null;
+	}
+
+	synchronized ObjectName getObjectName() {
+		return name;
+	}
+
+	public int getOpenStreams() {
+		return context.getContentStore().getOpenStreams();
+	}
+
+	public long getInodeCount() {
+		long count = 0;
+		for (Namespace namespace : context.getNamespaces()) {
+			count += namespace.getRoot().getNameCount();
+		}
+		return count;
+	}
+
+	public long getStoredBytes() {
+		long bytes = 0;
+		for (Namespace namespace : context.getNamespaces()) {
+			bytes += namespace.getRoot().getLength();
+		}
+		return bytes;
+	}
+
+	public long getResidentBytes() {
+		return context.getContentStore().getResidentBytes();
+	}
+
+	public List<OperationMetrics> getOperations() {
+		List<OperationMetrics> operations = new ArrayList<OperationMetrics>();
+		for (Operation operation : Operation.values()) {
+			operations.add(histograms[operation.ordinal()].snapshot(operation));
+		}
+		return operations;
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+ * File content whose chunks are direct {@link ByteBuffer}s allocated outside
+ * of the Java heap, so large contexts do not add to the garbage collector's
+ * work.
+ * <p>
+ * The native memory of the chunks is freed explicitly in {@link #freeChunks()}
+ * where the JVM allows it, otherwise it is left to the buffers' cleaner. Since
+ * released memory must never be read again, content is only released once no
+ * stream is open on it.
+ */
+class DirectFileContent extends FileContent {
+
+	private static final ByteBuffer[] NO_CHUNKS = new ByteBuffer[0];
+
+	private volatile ByteBuffer[] chunks = NO_CHUNKS;
+
+	@Override
+	protected void freeChunks() {
+		ByteBuffer[] released = chunks;
+		chunks = NO_CHUNKS;
+		for (ByteBuffer chunk : released) {
+			if (chunk != null) {
+				free(chunk);
+			}
+		}
+	}
+
+	@Override
+	protected int readChunk(int index, int offset) {
+		return chunks[index].get(offset) & 0xff;
+	}
+
+	@Override
+	protected void readChunk(int index, int offset, byte[] b, int off, int len) {
+		// Work on a duplicate so concurrent readers don't share a position...
+		ByteBuffer chunk = chunks[index].duplicate();
+		chunk.position(offset);
+		chunk.get(b, off, len);
+	}
+
+	@Override
+	protected void writeChunk(int index, int offset, int b) {
+		chunks[index].put(offset, (byte) b);
+	}
+
+	@Override
+	protected void writeChunk(int index, int offset, byte[] b, int off,
+			int len) {
+		ByteBuffer chunk = chunks[index].duplicate();
+		chunk.position(offset);
+		chunk.put(b, off, len);
+	}
+
+	@Override
+	protected void allocateChunk(int index, int capacity) {
+		ByteBuffer[] current = chunks;
+		if (index == current.length) {
+			ByteBuffer[] grown = new ByteBuffer[Math.max(4, index * 2)];
+			System.arraycopy(current, 0, grown, 0, index);
+			current = grown;
+		}
+		current[index] = ByteBuffer.allocateDirect(capacity);
+		// Publish the chunk with a volatile write...
+		chunks = current;
+	}
+
+	/**
+	 * The chunk array is copied, so readers see either the old or the grown
+	 * chunk through the volatile reference. The old chunk is not freed here
+	 * since a reader may still be copying from it, its memory is reclaimed
+	 * when it becomes unreachable.
+	 */
+	@Override
+	protected void resizeChunk(int index, int capacity, int used) {
+		ByteBuffer old = chunks[index].duplicate();
+		old.position(0);
+		old.limit(used);
+		ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+		grown.put(old);
+		ByteBuffer[] current = chunks.clone();
+		current[index] = grown;
+		chunks = current;
+	}
+
+	//
+	// Explicit release of direct buffers...
+	//
+
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	private static final Method CLEANER;
+	private static final Method CLEAN;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		Method cleaner = null;
+		Method clean = null;
+		try {
+			// Java 9 and later...
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner",
+					ByteBuffer.class);
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+		} catch (Exception e) {
+			invokeCleaner = null;
+			try {
+				// Java 8 and earlier...
+				cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod(
+						"cleaner");
+				clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+			} catch (Exception e2) {
+				cleaner = null;
+				clean = null;
+			}
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+		CLEANER = cleaner;
+		CLEAN = clean;
+	}
+
+	/**
+	 * Frees the native memory of a direct buffer if the JVM allows it. This is
+	 * best effort, if it fails the memory is freed when the buffer is garbage
+	 * collected.
+	 */
+	static void free(ByteBuffer buffer) {
+		try {
+			if (INVOKE_CLEANER != null) {
+				INVOKE_CLEANER.invoke(UNSAFE, buffer);
+			} else if (CLEANER != null) {
+				Object cleaner = CLEANER.invoke(buffer);
+				if (cleaner != null) {
+					CLEAN.invoke(cleaner);
+				}
+			}
+		} catch (Exception e) {
+			// Leave it to the garbage collector...
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import org.apache.hadoop.fs.FileStatus;
+
+/**
+ * One batch of a directory listing, see
+ * {@link InMemoryFileSystem#listStatus(org.apache.hadoop.fs.Path, String, int)}.
+ * The entries are sorted by name. The next batch starts after the name of the
+ * last entry of this one.
+ */
+public final class DirectoryListing {
+
+	private final FileStatus[] entries;
+
+	private final boolean hasMore;
+
+	DirectoryListing(FileStatus[] entries, boolean hasMore) {
+		this.entries = entries;
+		this.hasMore = hasMore;
+	}
+
+	/**
+	 * @return the entries of this batch, sorted by name.
+	 */
+	public FileStatus[] getEntries() {
+		return entries;
+	}
+
+	/**
+	 * @return <code>true</code> if the directory has entries after this batch.
+	 */
+	public boolean hasMore() {
+		return hasMore;
+	}
+
+	/**
+	 * @return the name of the last entry of this batch, to be passed as the
+	 *         <code>startAfter</code> argument for the next batch, or
+	 *         <code>null</code> if the batch is empty.
+	 */
+	public String getLastName() {
+		return (entries.length == 0) ? null : entries[entries.length - 1]
+				.getPath().getName();
+	}
+}
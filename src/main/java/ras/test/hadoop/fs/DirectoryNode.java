@@ -15,33 +15,759 @@
  */
 package ras.test.hadoop.fs;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 
 
+/**
+ * A directory in the namespace, holding its children sorted by name. The
+ * children may only be changed while the lock of the directory is held for
+ * writing, see {@link Namespace#lock(boolean, Path...)}. Looking up a child
+ * takes no lock.
+ * <p>
+ * A directory also maintains aggregates over its sub-tree: the number of
+ * files, the number of directories and the committed bytes below it. They are
+ * updated incrementally by {@link Namespace#link(DirectoryNode, Node, String)},
+ * {@link Namespace#unlink(DirectoryNode, Node)} and
+ * {@link Namespace#commit(FileNode)}, so summaries of a sub-tree take
+ * constant time and quotas are checked without scanning the sub-tree.
+ * <p>
+ * Forked contexts share sub-trees copy-on-write, see
+ * {@link Namespace#fork(PrincipalDictionary)}. A directory may be a
+ * <i>shadow</i> of a frozen directory which no namespace changes any more: it
+ * has the metadata and aggregates of its source and reads through to its
+ * children. It only holds the entries which differ from its source: the
+ * children it added, markers for those it removed, and copies, as shadows of
+ * their own or as files sharing their content, of the children it is about
+ * to change. A child is copied when a thread holding the write lock looks it
+ * up, or when {@link Namespace#lock(boolean, Path...)} resolves a directory
+ * below it for writing. Only the children a directory owns, those it is the
+ * parent of, may be changed.
+ * <p>
+ * Freezing a shadow only freezes its entries, over the same source, so
+ * successive snapshots of a large directory share its unchanged children.
+ * Once the entries outnumber half of the source, the frozen directory gets
+ * all children instead and becomes the new source.
+ * <p>
+ * Each entry holds a reference on its child: a <i>claim</i> on a directory,
+ * or on the content of a file. A directory is also claimed by the shadows
+ * reading through to it, and a frozen source counts, for each child, the
+ * shadows which replaced or removed it. A child is released once nothing
+ * refers to it or no claim reads it any more, so a frozen sub-tree lives
+ * exactly as long as a fork or a snapshot needs it. The snapshots of a
+ * directory share its sub-tree the same way, see {@link Snapshots}.
+ */
 class DirectoryNode extends Node{
-	private Set<Path> subDirectories = new HashSet<Path>();
-	private Set<Path> files = new HashSet<Path>();
+	private final ConcurrentNavigableMap<String, Node> children = new ConcurrentSkipListMap<String, Node>();
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private static final AtomicLongFieldUpdater<DirectoryNode> FILE_COUNT = AtomicLongFieldUpdater
+			.newUpdater(DirectoryNode.class, "fileCount");
+	private static final AtomicLongFieldUpdater<DirectoryNode> DIRECTORY_COUNT = AtomicLongFieldUpdater
+			.newUpdater(DirectoryNode.class, "directoryCount");
+	private static final AtomicLongFieldUpdater<DirectoryNode> LENGTH = AtomicLongFieldUpdater
+			.newUpdater(DirectoryNode.class, "length");
+	private static final AtomicIntegerFieldUpdater<DirectoryNode> CLAIMS = AtomicIntegerFieldUpdater
+			.newUpdater(DirectoryNode.class, "claims");
+
+	private volatile long fileCount = 0;
+	private volatile long directoryCount = 0;
+	private volatile long length = 0;
+
+	/** The quotas of this directory, <code>null</code> if there are none. */
+	private volatile Quota quota = null;
+
+	/** Marks a child of the source which a shadow has removed. */
+	private static final Node REMOVED = new DirectoryNode("", null);
+
+	/**
+	 * The frozen directory holding the children which are not entries of this
+	 * directory, <code>null</code> unless a shadow. A source is never a shadow
+	 * itself.
+	 */
+	private volatile DirectoryNode source = null;
+
+	/**
+	 * The frozen directory returned by the last {@link #freeze()}, claimed
+	 * until this directory is changed.
+	 */
+	private volatile DirectoryNode frozen = null;
+
+	/**
+	 * The number of children, counted once this directory is the source of a
+	 * shadow and no longer changes.
+	 */
+	private volatile int count = -1;
+
+	/**
+	 * For each child of this frozen directory which shadows replaced or
+	 * removed, the number of those shadows, guarded by this.
+	 */
+	private Map<String, Integer> overrides = null;
+
+	/** The entries, parent, sources or shadows which hold this directory. */
+	private volatile int claims = 1;
+
+	/** The snapshots, <code>null</code> unless snapshottable. */
+	private volatile Snapshots snapshots = null;
+
+	DirectoryNode(String name, FsPermission permissions) {
+		super(name, permissions);
+	}
+
+	/**
+	 * @return the lock guarding the children of this directory.
+	 */
+	ReentrantReadWriteLock getLock() {
+		return lock;
+	}
+
+	/**
+	 * @return the child named <code>name</code> or <code>null</code>. If the
+	 *         calling thread holds the write lock, the child is copied first
+	 *         if this directory does not own it, see {@link #own(String)}.
+	 */
+	public Node getChild(String name) {
+		DirectoryNode from = source;
+		if (from != null && lock.isWriteLockedByCurrentThread()) {
+			return own(name);
+		}
+		Node child = children.get(name);
+		if (child == null && from != null) {
+			child = from.children.get(name);
+		}
+		return (child == REMOVED) ? null : child;
+	}
+
+	/**
+	 * @return the files and sub-directories of this directory, sorted by name.
+	 */
+	public Collection<Node> getChildren() {
+		return children(null, false);
+	}
+
+	/**
+	 * @return the children whose names sort after <code>startAfter</code>, or
+	 *         all children if <code>startAfter</code> is <code>null</code>.
+	 */
+	public Collection<Node> getChildren(String startAfter) {
+		return children(startAfter, false);
+	}
+
+	/**
+	 * @return the children whose names sort at or after <code>from</code>.
+	 */
+	public Collection<Node> getChildrenFrom(String from) {
+		return children(from, true);
+	}
+
+	/**
+	 * @return the children whose names sort after <code>from</code>, or at it
+	 *         if <code>inclusive</code>, or all children if <code>from</code>
+	 *         is <code>null</code>. If the calling thread holds the write lock,
+	 *         all children are copied first, see {@link #materialize()}.
+	 */
+	private Collection<Node> children(String from, boolean inclusive) {
+		DirectoryNode base = source;
+		if (base != null && lock.isWriteLockedByCurrentThread()) {
+			materialize();
+			base = null;
+		}
+		NavigableMap<String, Node> own = (from == null) ? children : children
+				.tailMap(from, inclusive);
+		if (base == null) {
+			return own.values();
+		}
+		return new Overlay(own, (from == null) ? base.children : base.children
+				.tailMap(from, inclusive));
+	}
+
+	/**
+	 * @return <code>true</code> if this directory has a sub-directory.
+	 */
+	public boolean hasSubDirectories() {
+		for (Node child : getChildren()) {
+			if (child instanceof DirectoryNode) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Links <code>child</code> into this directory under its current name.
+	 */
+	public void addChild(Node child) {
+		addChild(child, child.getName());
+	}
+
+	/**
+	 * Links <code>child</code> into this directory under <code>name</code>,
+	 * renaming it. The entry takes over the reference of the caller.
+	 */
+	public void addChild(Node child, String name) {
+		child.link(this, name);
+		Node replaced = children.put(name, child);
+		DirectoryNode from = source;
+		if (replaced == null && from != null) {
+			from.override(name);
+		}
+		changed();
+	}
+
+	/**
+	 * Removes the link to a child file or sub-directory, whose reference
+	 * passes to the caller. The child keeps its parent pointer, so its path
+	 * still reports where it was.
+	 */
+	public void removeChild(String name){
+		DirectoryNode from = source;
+		if (from != null && from.children.containsKey(name)) {
+			if (children.put(name, REMOVED) == null) {
+				from.override(name);
+			}
+		} else {
+			children.remove(name);
+		}
+		changed();
+	}
+
+	/**
+	 * @return the number of files below this directory.
+	 */
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * @return the number of directories below this directory, not counting
+	 *         the directory itself.
+	 */
+	public long getDirectoryCount() {
+		return directoryCount;
+	}
+
+	/**
+	 * @return the committed bytes of the files below this directory.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return the quotas of this directory or <code>null</code>.
+	 */
+	Quota getQuota() {
+		return quota;
+	}
+
+	void setQuota(Quota quota) {
+		this.quota = quota;
+	}
+
+	/**
+	 * @return the number of files and directories in the sub-tree, including
+	 *         this directory, as counted by a namespace quota.
+	 */
+	public long getNameCount() {
+		return fileCount + directoryCount + 1;
+	}
 
-	DirectoryNode(Path path, FsPermission permissions) {
-		super(path, permissions);
+	/**
+	 * Adjusts the aggregates of this directory. Concurrent updates from
+	 * different sub-trees are safe.
+	 */
+	void addAggregates(long files, long directories, long bytes) {
+		if (files != 0) {
+			FILE_COUNT.addAndGet(this, files);
+		}
+		if (directories != 0) {
+			DIRECTORY_COUNT.addAndGet(this, directories);
+		}
+		if (bytes != 0) {
+			LENGTH.addAndGet(this, bytes);
+		}
 	}
-	public Set<Path> getSubDirectories() {
-		return subDirectories;
+
+	/**
+	 * @return the snapshots of this directory, <code>null</code> unless it is
+	 *         snapshottable.
+	 */
+	Snapshots getSnapshots() {
+		return snapshots;
+	}
+
+	void setSnapshots(Snapshots snapshots) {
+		this.snapshots = snapshots;
+	}
+
+	//
+	// Copy-on-write...
+	//
+
+	/**
+	 * Looks up the child <code>name</code> to change it: if this directory
+	 * does not own the child, which then belongs to a frozen directory, the
+	 * child is replaced by a copy first. The caller must hold the lock of this
+	 * directory, for reading at least, so that it is not frozen concurrently.
+	 * 
+	 * @return the child, owned by this directory, or <code>null</code>.
+	 */
+	Node own(String name) {
+		Node child = children.get(name);
+		if (child == REMOVED) {
+			return null;
+		}
+		if (source == null || (child != null && child.getParent() == this)) {
+			// Not a shadow, or already copied...
+			return child;
+		}
+		synchronized (this) {
+			DirectoryNode from = source;
+			child = children.get(name);
+			boolean entry = (child != null);
+			if (!entry && from != null) {
+				child = from.children.get(name);
+			}
+			if (child == null || child == REMOVED) {
+				return null;
+			}
+			if (child.getParent() != this) {
+				Node copy = copy(child);
+				copy.link(this, name);
+				children.put(name, copy);
+				if (entry) {
+					release(child);
+				} else if (from != null) {
+					from.override(name);
+				}
+				changed();
+				child = copy;
+			}
+			return child;
+		}
+	}
+
+	/**
+	 * @return the number of children of this frozen directory.
+	 */
+	private int count() {
+		int counted = count;
+		if (counted < 0) {
+			counted = children.size();
+			count = counted;
+		}
+		return counted;
+	}
+
+	/**
+	 * @return a file sharing the content of <code>node</code>, or a shadow of
+	 *         <code>node</code> if it is a directory.
+	 */
+	private static Node copy(Node node) {
+		return (node instanceof FileNode) ? ((FileNode) node).share()
+				: ((DirectoryNode) node).shadow();
+	}
+
+	/**
+	 * Copies all children this directory does not own, so that it no longer
+	 * reads through to its source, whose claim is dropped afterwards. The
+	 * caller must hold the write lock of this directory.
+	 */
+	private synchronized void materialize() {
+		DirectoryNode from = source;
+		if (from == null) {
+			return;
+		}
+		for (String name : children.keySet()) {
+			from.restore(name);
+		}
+		for (Node child : new ArrayList<Node>(new Overlay(children,
+				from.children))) {
+			if (child.getParent() != this) {
+				String name = child.getName();
+				Node copy = copy(child);
+				copy.link(this, name);
+				if (children.put(name, copy) != null) {
+					release(child);
+				}
+			}
+		}
+		// All names are entries now, so lookups see no child of the source
+		// which has been removed...
+		source = null;
+		for (Iterator<Node> i = children.values().iterator(); i.hasNext();) {
+			if (i.next() == REMOVED) {
+				i.remove();
+			}
+		}
+		changed();
+		from.unclaim();
+	}
+
+	/**
+	 * @return a new shadow of this frozen directory, with its metadata,
+	 *         quotas, aggregates and snapshots, which claims the frozen
+	 *         directory it reads through to. If this directory is a shadow
+	 *         itself, the new shadow starts with the same entries over the
+	 *         same source.
+	 */
+	DirectoryNode shadow() {
+		DirectoryNode shadow = new DirectoryNode(getName(), null);
+		shadow.copyMetadata(this);
+		shadow.fileCount = fileCount;
+		shadow.directoryCount = directoryCount;
+		shadow.length = length;
+		Snapshots held = snapshots;
+		if (held != null) {
+			shadow.snapshots = held.copy(shadow);
+		}
+		DirectoryNode from = source;
+		if (from == null) {
+			CLAIMS.incrementAndGet(this);
+			shadow.source = this;
+		} else {
+			CLAIMS.incrementAndGet(from);
+			shadow.source = from;
+			shadow.refer(children);
+		}
+		return shadow;
+	}
+
+	/**
+	 * Freezes the current children of this directory in a new directory which
+	 * no namespace changes any more, and which the children owned by this
+	 * directory are moved to. If this directory is a shadow with few entries,
+	 * the frozen directory only gets the entries, over the same source.
+	 * Otherwise the frozen directory gets all children and this directory
+	 * becomes a shadow of it. If the directory has not changed since it was
+	 * last frozen, nothing is frozen again. The caller must hold the write
+	 * lock of this directory.
+	 * 
+	 * @return the frozen directory, from which forks and snapshots create
+	 *         their shadows.
+	 */
+	synchronized DirectoryNode freeze() {
+		DirectoryNode last = frozen;
+		if (last != null) {
+			return last;
+		}
+		DirectoryNode into = new DirectoryNode(getName(), null);
+		into.copyMetadata(this);
+		into.fileCount = fileCount;
+		into.directoryCount = directoryCount;
+		into.length = length;
+		DirectoryNode from = source;
+		if (from != null && 2 * children.size() <= from.count()) {
+			relink(children.values(), into);
+			CLAIMS.incrementAndGet(from);
+			into.source = from;
+			into.refer(children);
+		} else {
+			Collection<Node> all = (from == null) ? children.values()
+					: new Overlay(children, from.children);
+			relink(all, into);
+			for (Node child : all) {
+				retain(child);
+				into.children.put(child.getName(), child);
+			}
+			// Publish the source first, so readers read through to it once
+			// the entries are gone. It is claimed by this directory and as
+			// the frozen directory...
+			CLAIMS.incrementAndGet(into);
+			source = into;
+			forget(from);
+		}
+		frozen = into;
+		return into;
+	}
+
+	/**
+	 * Moves the children this directory owns among <code>nodes</code> to the
+	 * frozen directory <code>into</code>.
+	 */
+	private void relink(Collection<Node> nodes, DirectoryNode into) {
+		for (Node child : nodes) {
+			if (child.getParent() == this) {
+				child.link(into, child.getName());
+			}
+		}
+	}
+
+	/**
+	 * Adds <code>entries</code> to the entries of this new shadow, which
+	 * refers to their children and replaces or removes the same children of
+	 * its source.
+	 */
+	private void refer(Map<String, Node> entries) {
+		for (Map.Entry<String, Node> entry : entries.entrySet()) {
+			retain(entry.getValue());
+			children.put(entry.getKey(), entry.getValue());
+			source.override(entry.getKey());
+		}
+	}
+
+	/**
+	 * Releases the entries of this directory and, if it is not
+	 * <code>null</code>, drops the claim on <code>from</code>, the source
+	 * they replaced or removed children of.
+	 */
+	private void forget(DirectoryNode from) {
+		for (Map.Entry<String, Node> entry : children.entrySet()) {
+			if (from != null) {
+				from.restore(entry.getKey());
+			}
+			release(entry.getValue());
+		}
+		children.clear();
+		if (from != null) {
+			from.unclaim();
+		}
+	}
+
+	/**
+	 * Counts a shadow which replaced or removed the child <code>name</code> of
+	 * this frozen directory. Once no claim reads the child any more, it is
+	 * released.
+	 */
+	private synchronized void override(String name) {
+		if (!children.containsKey(name)) {
+			return;
+		}
+		if (overrides == null) {
+			overrides = new HashMap<String, Integer>();
+		}
+		Integer counted = overrides.get(name);
+		int shadows = (counted == null) ? 1 : counted + 1;
+		if (shadows < claims) {
+			overrides.put(name, shadows);
+		} else {
+			overrides.remove(name);
+			discard(name);
+		}
+	}
+
+	/**
+	 * Uncounts a shadow which replaced or removed the child <code>name</code>
+	 * of this frozen directory, see {@link #override(String)}.
+	 */
+	private synchronized void restore(String name) {
+		Integer counted = (overrides == null) ? null : overrides.get(name);
+		if (counted == null) {
+			return;
+		} else if (counted > 1) {
+			overrides.put(name, counted - 1);
+		} else {
+			overrides.remove(name);
+		}
+	}
+
+	/**
+	 * Releases the children of this frozen directory which all claims
+	 * replaced or removed.
+	 */
+	private synchronized void collect() {
+		if (overrides == null) {
+			return;
+		}
+		int held = claims;
+		for (Iterator<Map.Entry<String, Integer>> i = overrides.entrySet()
+				.iterator(); i.hasNext();) {
+			Map.Entry<String, Integer> entry = i.next();
+			if (entry.getValue() >= held) {
+				i.remove();
+				discard(entry.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Releases the child <code>name</code> of this frozen directory, which no
+	 * claim reads any more.
+	 */
+	private void discard(String name) {
+		Node child = children.remove(name);
+		if (child != null) {
+			release(child);
+		}
+		count = -1;
+	}
+
+	/**
+	 * Drops the claim on the last frozen directory once this directory is
+	 * changed.
+	 */
+	private void changed() {
+		DirectoryNode last = frozen;
+		if (last != null) {
+			frozen = null;
+			last.unclaim();
+		}
 	}
 
-	public Set<Path> getFiles(){
-		return files;
+	/**
+	 * Copies the permission, owner and group of <code>node</code>, and the
+	 * limits of its quotas if it is a directory.
+	 */
+	@Override
+	void copyMetadata(Node node) {
+		super.copyMetadata(node);
+		if (node instanceof DirectoryNode) {
+			Quota from = ((DirectoryNode) node).quota;
+			if (from == null) {
+				quota = null;
+			} else {
+				Quota copy = new Quota();
+				copy.namespace = from.namespace;
+				copy.space = from.space;
+				quota = copy;
+			}
+		}
 	}
-	
-	public void addSubDirectory(Path path){
-		subDirectories.add(path);
+
+	/**
+	 * Drops a claim on this directory. When the last claim is dropped nothing
+	 * refers to the directory any more: it drops the claims of its snapshots,
+	 * releases its entries and drops its claims on its source and on the
+	 * directory it last froze. The content of a file which is still open is
+	 * freed once its last stream is closed. If claims are left, the children
+	 * they all replaced or removed are released.
+	 */
+	void unclaim() {
+		if (CLAIMS.decrementAndGet(this) > 0) {
+			collect();
+			return;
+		}
+		Snapshots held = snapshots;
+		if (held != null) {
+			held.release();
+		}
+		DirectoryNode from = source;
+		source = null;
+		forget(from);
+		changed();
+	}
+
+	/**
+	 * Adds a reference to a child which another entry refers to.
+	 */
+	private static void retain(Node node) {
+		if (node instanceof DirectoryNode) {
+			if (node != REMOVED) {
+				CLAIMS.incrementAndGet((DirectoryNode) node);
+			}
+		} else {
+			((FileNode) node).getContent().share();
+		}
 	}
-	
-	public void addFile(Path path){
-		files.add(path);
+
+	/**
+	 * Drops the reference of an entry: releases the content of a file, or
+	 * drops the claim on a directory.
+	 */
+	private static void release(Node node) {
+		if (node instanceof DirectoryNode) {
+			if (node != REMOVED) {
+				((DirectoryNode) node).unclaim();
+			}
+		} else {
+			((FileNode) node).getContent().release();
+		}
+	}
+
+	/**
+	 * The children of a shadow sorted by name: its entries, except the
+	 * markers of removed children, merged with the children of its source
+	 * which have no entry.
+	 */
+	private static final class Overlay extends AbstractCollection<Node> {
+		private final NavigableMap<String, Node> entries;
+		private final NavigableMap<String, Node> inherited;
+
+		Overlay(NavigableMap<String, Node> entries,
+				NavigableMap<String, Node> inherited) {
+			this.entries = entries;
+			this.inherited = inherited;
+		}
+
+		@Override
+		public Iterator<Node> iterator() {
+			final Iterator<Map.Entry<String, Node>> own = entries.entrySet()
+					.iterator();
+			final Iterator<Map.Entry<String, Node>> from = inherited
+					.entrySet().iterator();
+			return new Iterator<Node>() {
+				private Map.Entry<String, Node> a = peek(own);
+				private Map.Entry<String, Node> b = peek(from);
+				private Node next = advance();
+
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				public Node next() {
+					if (next == null) {
+						throw new NoSuchElementException();
+					}
+					Node node = next;
+					next = advance();
+					return node;
+				}
+
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+
+				private Node advance() {
+					while (a != null || b != null) {
+						int order = (a == null) ? 1 : (b == null) ? -1 : a
+								.getKey().compareTo(b.getKey());
+						if (order > 0) {
+							Node node = b.getValue();
+							b = peek(from);
+							return node;
+						}
+						if (order == 0) {
+							// Replaced or removed by the entry...
+							b = peek(from);
+						}
+						Node node = a.getValue();
+						a = peek(own);
+						if (node != REMOVED) {
+							return node;
+						}
+					}
+					return null;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			int size = 0;
+			for (Iterator<Node> i = iterator(); i.hasNext(); i.next()) {
+				size++;
+			}
+			return size;
+		}
+
+		private static Map.Entry<String, Node> peek(
+				Iterator<Map.Entry<String, Node>> entries) {
+			return entries.hasNext() ? entries.next() : null;
+		}
 	}
 }
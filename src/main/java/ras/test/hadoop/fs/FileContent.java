@@ -0,0 +1,575 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * The content of a file, stored as a list of fixed size chunks.
+ * <p>
+ * Every chunk except the last one is exactly {@link #CHUNK_SIZE} bytes long.
+ * The last chunk starts small and is grown until it reaches
+ * {@link #CHUNK_SIZE}, after which a new chunk is started. Appending to a file
+ * therefore only ever touches the tail chunk, regardless of the file size.
+ * <p>
+ * The content distinguishes between the <i>committed</i> length, which is the
+ * length visible to readers and reported by the file status, and the
+ * <i>written</i> length, which includes bytes written by an output stream that
+ * has not been closed yet. Bytes below the committed length are never
+ * modified, so readers may safely access them while a writer appends.
+ * <p>
+ * Sub-classes decide where the chunks live, see {@link StorageBackend}. The
+ * memory they use is accounted for by the {@link ContentStore} of the context,
+ * which may spill the content to a scratch file while no stream is open on it.
+ * Content loaded from an image, see {@link ContextImage}, starts out spilled
+ * to its region of the image, which is read back when the content is first
+ * opened.
+ * <p>
+ * Content may be shared by the files of forked contexts, see
+ * {@link InMemoryFileSystem#fork(org.apache.hadoop.conf.Configuration)}. It
+ * is freed when the last file sharing it releases it, and a file copies it
+ * before appending to it.
+ * <p>
+ * This class is package private since it's only purpose is to support
+ * {@link InMemoryFileSystem}.
+ */
+abstract class FileContent {
+
+	/** The size of a full chunk, 64KB. */
+	static final int CHUNK_SIZE = 64 * 1024;
+
+	/** The initial size of the tail chunk of a small file. */
+	private static final int MIN_CHUNK_SIZE = 64;
+
+	/** The largest region of a spill file mapped at once, 1GB. */
+	private static final int MAP_SIZE = 16384 * CHUNK_SIZE;
+
+	private ContentStore store;
+
+	/** The number of open streams, guarded by the store. */
+	private int pins = 0;
+
+	/** The number of files sharing this content, guarded by the store. */
+	private int refs = 1;
+
+	/**
+	 * Whether the last file sharing this content released it while a stream
+	 * was open on it, it is freed when the last stream is closed. Guarded by
+	 * the store.
+	 */
+	private boolean orphaned = false;
+
+	/** The file holding the content while it is spilled, guarded by the store. */
+	private File spillFile = null;
+
+	/** The position of the content in the spill file, guarded by the store. */
+	private long spillOffset = 0;
+
+	/**
+	 * Whether the spill file belongs to this content and is deleted with it,
+	 * which is not the case for an image. Guarded by the store.
+	 */
+	private boolean spillOwned = false;
+
+	/** The number of chunks in use. */
+	private int chunkCount = 0;
+
+	/** The capacity of the tail chunk. */
+	private int tailCapacity = 0;
+
+	/** The length visible to readers. */
+	private volatile long length = 0;
+
+	/** The length including uncommitted bytes. */
+	private long written = 0;
+
+	/**
+	 * @return the committed length of the content.
+	 */
+	long length() {
+		return length;
+	}
+
+	/**
+	 * Reads a single byte of committed content.
+	 *
+	 * @param position
+	 *            The position of the byte, must be less than
+	 *            {@link #length()}.
+	 * @return the byte at <code>position</code>.
+	 */
+	int read(long position) {
+		return readChunk((int) (position / CHUNK_SIZE),
+				(int) (position % CHUNK_SIZE));
+	}
+
+	/**
+	 * Copies a range of committed content into a byte array. This method does
+	 * not modify any state and may be called concurrently.
+	 *
+	 * @param position
+	 *            The position of the first byte to be copied.
+	 * @param b
+	 *            The destination array.
+	 * @param off
+	 *            The offset in <code>b</code> at which the bytes are stored.
+	 * @param len
+	 *            The number of bytes to copy. The range must lie below
+	 *            {@link #length()}.
+	 */
+	void read(long position, byte[] b, int off, int len) {
+		while (len > 0) {
+			int offset = (int) (position % CHUNK_SIZE);
+			int count = Math.min(len, CHUNK_SIZE - offset);
+			readChunk((int) (position / CHUNK_SIZE), offset, b, off, count);
+			position += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Appends a single byte to the content. The byte is not visible to readers
+	 * until {@link #commit()} is called.
+	 *
+	 * @param b
+	 *            The byte to be appended.
+	 */
+	void write(int b) throws IOException {
+		ensureTail(1);
+		writeChunk((int) (written / CHUNK_SIZE), (int) (written % CHUNK_SIZE),
+				b);
+		written++;
+	}
+
+	/**
+	 * Appends a range of bytes to the content, copying directly into the tail
+	 * chunk(s). The bytes are not visible to readers until {@link #commit()}
+	 * is called.
+	 *
+	 * @param b
+	 *            The source array.
+	 * @param off
+	 *            The offset of the first byte in <code>b</code>.
+	 * @param len
+	 *            The number of bytes to be appended.
+	 */
+	void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			ensureTail(len);
+			int offset = (int) (written % CHUNK_SIZE);
+			int count = Math.min(len, tailCapacity - offset);
+			writeChunk((int) (written / CHUNK_SIZE), offset, b, off, count);
+			written += count;
+			off += count;
+			len -= count;
+		}
+	}
+
+	/**
+	 * Publishes all bytes written so far to readers.
+	 * 
+	 * @return the number of bytes published by this call.
+	 */
+	long commit() {
+		long committed = written - length;
+		length = written;
+		return committed;
+	}
+
+	/**
+	 * Frees the memory, or the spill file, held by this content once no other
+	 * file shares it. If a stream is still open on the content, for example a
+	 * reader of a file which was overwritten, it is freed when the last stream
+	 * is closed. The content must not be accessed after it has been released.
+	 */
+	void release() {
+		synchronized (store) {
+			if (--refs > 0) {
+				return;
+			}
+			if (pins > 0) {
+				orphaned = true;
+				return;
+			}
+			free();
+		}
+	}
+
+	/**
+	 * Frees the memory, or the spill file, held by this content. The caller
+	 * must hold the lock of the store.
+	 */
+	private void free() {
+		if (spillFile != null) {
+			if (spillOwned) {
+				spillFile.delete();
+			}
+			spillFile = null;
+		} else {
+			store.free(this, capacity());
+			freeChunks();
+		}
+		chunkCount = 0;
+		tailCapacity = 0;
+	}
+
+	void setStore(ContentStore store) {
+		this.store = store;
+	}
+
+	/**
+	 * Adds a file sharing this content, which must be released once more.
+	 */
+	void share() {
+		synchronized (store) {
+			refs++;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if more than one file shares this content.
+	 */
+	boolean isShared() {
+		synchronized (store) {
+			return refs > 1;
+		}
+	}
+
+	/**
+	 * @return new content of the same store holding a copy of the committed
+	 *         bytes of this content.
+	 */
+	FileContent copy() throws IOException {
+		FileContent copy = store.newContent();
+		openStream();
+		try {
+			copy.openStream();
+			try {
+				byte[] buffer = new byte[(int) Math.min(CHUNK_SIZE, length)];
+				for (long done = 0; done < length; done += buffer.length) {
+					int count = (int) Math.min(buffer.length, length - done);
+					read(done, buffer, 0, count);
+					copy.write(buffer, 0, count);
+				}
+				copy.commit();
+			} finally {
+				copy.closeStream();
+			}
+		} finally {
+			closeStream();
+		}
+		return copy;
+	}
+
+	/**
+	 * @return the number of bytes of memory held by the chunks.
+	 */
+	long capacity() {
+		return (chunkCount == 0) ? 0 : (long) (chunkCount - 1) * CHUNK_SIZE
+				+ tailCapacity;
+	}
+
+	/**
+	 * Must be called when a stream is opened on this content. The content is
+	 * faulted back into memory if it was spilled, and is not spilled again
+	 * until the stream is closed with {@link #closeStream()}.
+	 */
+	void openStream() throws IOException {
+		store.open(this);
+	}
+
+	void closeStream() {
+		store.close(this);
+	}
+
+	void pin() {
+		pins++;
+	}
+
+	/**
+	 * Called by the store when a stream is closed, frees the content if it
+	 * was released while the stream was open.
+	 */
+	void unpin() {
+		if (--pins == 0 && orphaned) {
+			orphaned = false;
+			free();
+		}
+	}
+
+	boolean isPinned() {
+		return pins > 0;
+	}
+
+	boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	/**
+	 * Writes the committed content to a memory-mapped scratch file and frees
+	 * the chunks. Must only be called by the store while no stream is open.
+	 */
+	void spill() throws IOException {
+		File file = store.newSpillFile();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+			FileChannel channel = raf.getChannel();
+			byte[] buffer = new byte[CHUNK_SIZE];
+			for (long start = 0; start < length; start += MAP_SIZE) {
+				int size = (int) Math.min(MAP_SIZE, length - start);
+				MappedByteBuffer map = channel.map(MapMode.READ_WRITE, start,
+						size);
+				for (int done = 0; done < size; done += CHUNK_SIZE) {
+					int count = Math.min(CHUNK_SIZE, size - done);
+					read(start + done, buffer, 0, count);
+					map.put(buffer, 0, count);
+				}
+				DirectFileContent.free(map);
+			}
+		} catch (IOException e) {
+			raf.close();
+			file.delete();
+			throw e;
+		}
+		raf.close();
+
+		store.free(this, capacity());
+		freeChunks();
+		chunkCount = 0;
+		tailCapacity = 0;
+		spillFile = file;
+		spillOffset = 0;
+		spillOwned = true;
+	}
+
+	/**
+	 * Makes new, empty content refer to a region of an image instead of
+	 * holding its bytes. The region is read when the content is first opened;
+	 * the image is never modified or deleted.
+	 * 
+	 * @param image
+	 *            The image file.
+	 * @param offset
+	 *            The position of the content in <code>image</code>.
+	 * @param length
+	 *            The committed length of the content.
+	 */
+	void mapImage(File image, long offset, long length) {
+		synchronized (store) {
+			this.spillFile = image;
+			this.spillOffset = offset;
+			this.spillOwned = false;
+			this.length = length;
+			this.written = length;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the content is still read from a region of
+	 *         <code>image</code>, see {@link #mapImage(File, long, long)}.
+	 */
+	boolean isMappedFrom(File image) throws IOException {
+		File file;
+		synchronized (store) {
+			if (spillFile == null || spillOwned) {
+				return false;
+			}
+			file = spillFile;
+		}
+		return file.getCanonicalFile().equals(image.getCanonicalFile());
+	}
+
+	/**
+	 * Appends the committed content to <code>out</code>. Spilled content is
+	 * transferred from its spill file without being read back into memory,
+	 * resident content is kept from being spilled while it is copied.
+	 * 
+	 * @return the number of bytes appended.
+	 */
+	long saveTo(FileChannel out) throws IOException {
+		long size;
+		synchronized (store) {
+			size = length;
+			if (spillFile != null) {
+				FileInputStream in = new FileInputStream(spillFile);
+				try {
+					FileChannel channel = in.getChannel();
+					for (long done = 0; done < size;) {
+						long count = channel.transferTo(spillOffset + done,
+								size - done, out);
+						if (count <= 0) {
+							throw new EOFException("'" + spillFile
+									+ "' is shorter than its content!");
+						}
+						done += count;
+					}
+				} finally {
+					in.close();
+				}
+				return size;
+			}
+			pins++;
+		}
+		try {
+			byte[] buffer = new byte[CHUNK_SIZE];
+			for (long done = 0; done < size;) {
+				int count = (int) Math.min(CHUNK_SIZE, size - done);
+				read(done, buffer, 0, count);
+				ByteBuffer src = ByteBuffer.wrap(buffer, 0, count);
+				while (src.hasRemaining()) {
+					out.write(src);
+				}
+				done += count;
+			}
+		} finally {
+			synchronized (store) {
+				pins--;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Reads spilled content back into memory and deletes the spill file, unless
+	 * it is an image. Must only be called by the store.
+	 */
+	void faultIn() throws IOException {
+		File file = spillFile;
+		long offset = spillOffset;
+		spillFile = null;
+		written = 0;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (length <= CHUNK_SIZE) {
+				// Mapping costs more than it saves for small content...
+				ByteBuffer dst = ByteBuffer.allocate((int) length);
+				while (dst.hasRemaining()) {
+					if (channel.read(dst, offset + dst.position()) < 0) {
+						throw new EOFException("'" + file + "' truncated!");
+					}
+				}
+				write(dst.array(), 0, dst.capacity());
+			} else {
+				byte[] buffer = new byte[CHUNK_SIZE];
+				for (long start = 0; start < length; start += MAP_SIZE) {
+					int size = (int) Math.min(MAP_SIZE, length - start);
+					MappedByteBuffer map = channel.map(MapMode.READ_ONLY,
+							offset + start, size);
+					for (int done = 0; done < size; done += CHUNK_SIZE) {
+						int count = Math.min(CHUNK_SIZE, size - done);
+						map.get(buffer, 0, count);
+						write(buffer, 0, count);
+					}
+					DirectFileContent.free(map);
+				}
+			}
+		} finally {
+			raf.close();
+		}
+		if (spillOwned) {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Makes sure the tail chunk can take the next byte(s), allocating a new
+	 * chunk or growing the tail chunk as needed.
+	 *
+	 * @param required
+	 *            The number of bytes the caller would like to write.
+	 */
+	private void ensureTail(int required) throws IOException {
+		required = Math.min(required, CHUNK_SIZE);
+		int index = (int) (written / CHUNK_SIZE);
+		int offset = (int) (written % CHUNK_SIZE);
+		if (index == chunkCount) {
+			// Start a new chunk, small files start with a small chunk...
+			int capacity = (index == 0) ? Math.min(
+					Math.max(MIN_CHUNK_SIZE, required), CHUNK_SIZE)
+					: CHUNK_SIZE;
+			store.allocate(this, capacity);
+			allocateChunk(index, capacity);
+			chunkCount++;
+			tailCapacity = capacity;
+		} else if (offset + required > tailCapacity
+				&& tailCapacity < CHUNK_SIZE) {
+			// Grow the tail chunk, never beyond a full chunk...
+			int capacity = Math.min(
+					Math.max(tailCapacity * 2, offset + required), CHUNK_SIZE);
+			store.allocate(this, capacity - tailCapacity);
+			resizeChunk(index, capacity, offset);
+			tailCapacity = capacity;
+		}
+	}
+
+	//
+	// Chunk storage, implemented by the storage backends...
+	//
+
+	/**
+	 * Frees all chunks.
+	 */
+	protected abstract void freeChunks();
+
+	/**
+	 * @return the byte at <code>offset</code> in chunk <code>index</code>.
+	 */
+	protected abstract int readChunk(int index, int offset);
+
+	/**
+	 * Copies <code>len</code> bytes from chunk <code>index</code> into
+	 * <code>b</code>. Must not modify any shared state.
+	 */
+	protected abstract void readChunk(int index, int offset, byte[] b,
+			int off, int len);
+
+	/**
+	 * Stores a single byte at <code>offset</code> in chunk <code>index</code>.
+	 */
+	protected abstract void writeChunk(int index, int offset, int b);
+
+	/**
+	 * Copies <code>len</code> bytes from <code>b</code> into chunk
+	 * <code>index</code>.
+	 */
+	protected abstract void writeChunk(int index, int offset, byte[] b,
+			int off, int len);
+
+	/**
+	 * Allocates a new tail chunk at <code>index</code>. The chunk must be
+	 * published by a volatile write, see {@link #resizeChunk}.
+	 */
+	protected abstract void allocateChunk(int index, int capacity);
+
+	/**
+	 * Replaces the tail chunk at <code>index</code> with a larger one, keeping
+	 * the first <code>used</code> bytes. Readers may still hold the old chunk,
+	 * so it must stay readable, and readers without a lock must see the grown
+	 * chunk fully copied, so it must be published by a volatile write.
+	 */
+	protected abstract void resizeChunk(int index, int capacity, int used);
+}
@@ -19,38 +19,178 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 
 
+/**
+ * A file in the namespace. Any number of input streams may be open on a file
+ * at the same time, but only one output stream; the output stream holds the
+ * write lease of the file. Readers see the content committed when they were
+ * opened, so reading and writing do not block each other.
+ * <p>
+ * The content may be shared with the files of forked contexts, in which case
+ * it is copied when the file is opened for appending.
+ */
 class FileNode extends Node{
-	private static final byte[] EMPTY_BYTES = new byte[0];
+	private volatile FileContent content;
+
+	/** The number of open input streams. */
+	private int readers = 0;
+
+	/** Whether an output stream holds the write lease. */
+	private boolean writing = false;
 
-	byte[] bytes = EMPTY_BYTES;
-	private boolean open = false;
+	private long blockSize = InMemoryFileSystem.DEFAULT_BLOCK_SIZE;
+	private short replication = InMemoryFileSystem.DEFAULT_REPLICATION;
 
-	FileNode(Path path, FsPermission permissions) {
-		super(path, permissions);
+	FileNode(String name, FsPermission permissions, FileContent content) {
+		super(name, permissions);
+		this.content = content;
 	}
 
-	public InputStream open() throws IOException {
-		setOpen(true);
-		return new MemoryInputStream(this);
+	/**
+	 * Opens an input stream on the committed content of the file.
+	 * 
+	 * @param statistics
+	 *            The statistics which count the bytes read.
+	 * @param trace
+	 *            The trace of the stream, <code>null</code> if the context
+	 *            is not traced.
+	 */
+	public InputStream open(StreamStatistics statistics, StreamTrace trace)
+			throws IOException {
+		synchronized (this) {
+			readers++;
+		}
+		// A copy on write append may replace the content concurrently...
+		FileContent content = this.content;
+		try {
+			content.openStream();
+		} catch (IOException e) {
+			closeReader();
+			throw e;
+		}
+		return new MemoryInputStream(this, content, statistics, trace);
 	}
 
-	public OutputStream append() throws IOException {
-		setOpen(true);
-		return new MemoryOutputStream(this);
+	/**
+	 * Acquires the write lease and opens an output stream which appends to
+	 * the file.
+	 * 
+	 * @param namespace
+	 *            The namespace of the file, which accounts for the bytes
+	 *            committed when the stream is closed.
+	 * @param statistics
+	 *            The statistics which count the bytes written.
+	 * @param trace
+	 *            The trace of the stream, <code>null</code> if the context
+	 *            is not traced.
+	 * 
+	 * @throws IOException
+	 *             If another output stream holds the write lease.
+	 */
+	public OutputStream append(Namespace namespace,
+			StreamStatistics statistics, StreamTrace trace) throws IOException {
+		synchronized (this) {
+			if (writing) {
+				throw new IOException("File already open: " + this.getPath());
+			}
+			writing = true;
+		}
+		try {
+			if (content.isShared()) {
+				// Copy on write, the other files keep the shared content...
+				FileContent copy = content.copy();
+				content.release();
+				content = copy;
+			}
+			content.openStream();
+		} catch (IOException e) {
+			closeWriter();
+			throw e;
+		}
+		namespace.openWriter(this);
+		return new MemoryOutputStream(this, namespace, statistics, trace);
 	}
 
-	public boolean isOpen() {
-		return open;
+	/**
+	 * @return a new file with the same name and metadata, sharing the
+	 *         content of this file.
+	 */
+	FileNode share() {
+		content.share();
+		FileNode copy = new FileNode(getName(), null, content);
+		copy.copyMetadata(this);
+		copy.blockSize = blockSize;
+		copy.replication = replication;
+		return copy;
 	}
 
-	public void setOpen(boolean open) throws IOException{
-		if(open && this.open){
-			throw new IOException("File already open: "+this.getPath());
-		}
-		this.open = open;
+	/**
+	 * @return the chunked content of this file.
+	 */
+	FileContent getContent() {
+		return content;
+	}
+
+	/**
+	 * @return the size of the blocks the file is split into, which only
+	 *         affects the reported block locations.
+	 */
+	public long getBlockSize() {
+		return blockSize;
+	}
+
+	public void setBlockSize(long blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @return the number of replicas of each block, which only affects the
+	 *         reported block locations.
+	 */
+	public short getReplication() {
+		return replication;
+	}
+
+	public void setReplication(short replication) {
+		this.replication = replication;
+	}
+
+	/**
+	 * @return the committed length of this file in bytes.
+	 */
+	public long getLength() {
+		return content.length();
+	}
+
+	/**
+	 * @return <code>true</code> if any input or output stream is open on this
+	 *         file.
+	 */
+	public synchronized boolean isOpen() {
+		return readers > 0 || writing;
+	}
+
+	/**
+	 * @return the number of open input streams.
+	 */
+	public synchronized int getReaders() {
+		return readers;
+	}
+
+	/**
+	 * @return <code>true</code> if an output stream holds the write lease.
+	 */
+	public synchronized boolean isWriting() {
+		return writing;
+	}
+
+	synchronized void closeReader() {
+		readers--;
+	}
+
+	synchronized void closeWriter() {
+		writing = false;
 	}
 }
@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The state of one in-memory file system context: a namespace for each file
+ * system URI sharing the context, the store holding their file content and the
+ * dictionary of their user and group names, the metrics of their
+ * operations, the synthetic cluster their blocks are placed on and, if
+ * enabled, the recorder of their trace.
+ * Resolving a namespace takes no locks.
+ * <p>
+ * A context may be forked, see {@link #fork(Configuration)}. A fork shares
+ * the content store of its parent.
+ */
+class FileSystemContext {
+
+	private final ConcurrentMap<URI, Namespace> namespaces = new ConcurrentHashMap<URI, Namespace>();
+
+	private final ContentStore contentStore;
+
+	private final PrincipalDictionary principals;
+
+	private final ContextMetrics metrics;
+
+	private final Topology topology;
+
+	private final String traceFile;
+
+	private volatile TraceRecorder trace = null;
+
+	private volatile boolean released = false;
+
+	FileSystemContext(Configuration conf) {
+		this.contentStore = new ContentStore(conf);
+		this.principals = new PrincipalDictionary();
+		this.metrics = new ContextMetrics(this, conf.getBoolean(
+				InMemoryFileSystem.METRICS_KEY, false));
+		this.topology = new Topology(conf.getInt(
+				InMemoryFileSystem.TOPOLOGY_RACKS_KEY, 1), conf.getInt(
+				InMemoryFileSystem.TOPOLOGY_HOSTS_KEY, 1));
+		this.traceFile = conf.get(InMemoryFileSystem.TRACE_KEY);
+	}
+
+	/**
+	 * Creates a fork, which is not traced since the trace file belongs to
+	 * the parent, and runs on the cluster of the parent.
+	 */
+	private FileSystemContext(Configuration conf, ContentStore contentStore,
+			PrincipalDictionary principals, Topology topology) {
+		this.contentStore = contentStore;
+		this.principals = principals;
+		this.metrics = new ContextMetrics(this, conf.getBoolean(
+				InMemoryFileSystem.METRICS_KEY, false));
+		this.topology = topology;
+		this.traceFile = null;
+	}
+
+	/**
+	 * Forks this context: the fork starts with the namespaces of this
+	 * context and shares their nodes and file content copy-on-write, see
+	 * {@link Namespace#fork(PrincipalDictionary)}. All namespaces are locked
+	 * while they are forked, so the fork is a consistent snapshot.
+	 * 
+	 * @param conf
+	 *            The configuration of the fork.
+	 * @throws IOException
+	 *             If a file is open for writing.
+	 */
+	FileSystemContext fork(Configuration conf) throws IOException {
+		Map<String, URI> names = new TreeMap<String, URI>();
+		for (URI name : namespaces.keySet()) {
+			names.put(name.toString(), name);
+		}
+		List<Namespace.Locks> locks = new ArrayList<Namespace.Locks>();
+		try {
+			for (URI name : names.values()) {
+				locks.add(getNamespace(name).lock(true, Namespace.ROOT_PATH));
+			}
+			for (URI name : names.values()) {
+				getNamespace(name).checkNoWriters("fork");
+			}
+			contentStore.retain();
+			FileSystemContext fork = new FileSystemContext(conf,
+					contentStore, principals.copy(), topology);
+			for (URI name : names.values()) {
+				fork.namespaces.put(name,
+						getNamespace(name).fork(fork.principals));
+			}
+			return fork;
+		} finally {
+			for (int i = locks.size() - 1; i >= 0; i--) {
+				locks.get(i).release();
+			}
+		}
+	}
+
+	/**
+	 * Starts recording the trace of the context if
+	 * {@link InMemoryFileSystem#TRACE_KEY} is set. Called once the context is
+	 * registered, so a context discarded by a race does not truncate the
+	 * trace of the winner.
+	 */
+	synchronized void startTrace() {
+		if (traceFile == null || trace != null || released) {
+			return;
+		}
+		try {
+			trace = new TraceRecorder(new File(traceFile));
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to create the trace "
+					+ traceFile, e);
+		}
+	}
+
+	/**
+	 * @return the namespace of the file system named <code>fsName</code>,
+	 *         created on first use.
+	 */
+	Namespace getNamespace(URI fsName) {
+		Namespace namespace = namespaces.get(fsName);
+		if (namespace == null) {
+			Namespace created = new Namespace(principals);
+			namespace = namespaces.putIfAbsent(fsName, created);
+			if (namespace == null) {
+				namespace = created;
+			}
+		}
+		return namespace;
+	}
+
+	/**
+	 * @return the names of the file systems whose namespaces have been
+	 *         created so far.
+	 */
+	Set<URI> getNamespaceNames() {
+		return namespaces.keySet();
+	}
+
+	/**
+	 * @return the dictionary of the user and group names of this context.
+	 */
+	PrincipalDictionary getPrincipals() {
+		return principals;
+	}
+
+	/**
+	 * @return the namespaces created so far.
+	 */
+	Collection<Namespace> getNamespaces() {
+		return namespaces.values();
+	}
+
+	/**
+	 * @return the metrics of this context.
+	 */
+	ContextMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * @return the synthetic cluster the blocks of files are placed on.
+	 */
+	Topology getTopology() {
+		return topology;
+	}
+
+	/**
+	 * @return the recorder of the trace of this context, <code>null</code>
+	 *         unless {@link InMemoryFileSystem#TRACE_KEY} is set.
+	 */
+	TraceRecorder getTrace() {
+		return trace;
+	}
+
+	/**
+	 * @return the store holding the file content of this context.
+	 */
+	ContentStore getContentStore() {
+		return contentStore;
+	}
+
+	/**
+	 * @return <code>true</code> once {@link #release()} has been called.
+	 */
+	boolean isReleased() {
+		return released;
+	}
+
+	/**
+	 * Releases the content of all files which are not open and deletes any
+	 * spill files. The content of open files is left to the garbage collector.
+	 * The trace, if any, is completed.
+	 */
+	void release() {
+		synchronized (this) {
+			released = true;
+			if (trace != null) {
+				trace.close();
+			}
+		}
+		metrics.unregister();
+		for (Namespace namespace : namespaces.values()) {
+			namespace.release();
+		}
+		namespaces.clear();
+		contentStore.close();
+	}
+}
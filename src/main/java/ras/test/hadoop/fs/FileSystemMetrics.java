@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the metrics of a file system context, see
+ * {@link InMemoryFileSystem#getMetrics()}. The gauges are always available,
+ * the operations are only recorded if {@link InMemoryFileSystem#METRICS_KEY}
+ * is enabled.
+ */
+public class FileSystemMetrics {
+
+	private final boolean enabled;
+	private final int openStreams;
+	private final long inodeCount;
+	private final long storedBytes;
+	private final long residentBytes;
+	private final Map<Operation, OperationMetrics> operations = new EnumMap<Operation, OperationMetrics>(
+			Operation.class);
+
+	FileSystemMetrics(ContextMetrics metrics) {
+		this.enabled = metrics.isEnabled();
+		this.openStreams = metrics.getOpenStreams();
+		this.inodeCount = metrics.getInodeCount();
+		this.storedBytes = metrics.getStoredBytes();
+		this.residentBytes = metrics.getResidentBytes();
+		for (OperationMetrics operation : metrics.getOperations()) {
+			operations.put(operation.getOperation(), operation);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the operations are recorded.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @see InMemoryFileSystemMXBean#getOpenStreams()
+	 */
+	public int getOpenStreams() {
+		return openStreams;
+	}
+
+	/**
+	 * @see InMemoryFileSystemMXBean#getInodeCount()
+	 */
+	public long getInodeCount() {
+		return inodeCount;
+	}
+
+	/**
+	 * @see InMemoryFileSystemMXBean#getStoredBytes()
+	 */
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * @see InMemoryFileSystemMXBean#getResidentBytes()
+	 */
+	public long getResidentBytes() {
+		return residentBytes;
+	}
+
+	/**
+	 * @return the calls and latencies of <code>operation</code>.
+	 */
+	public OperationMetrics getOperation(Operation operation) {
+		return operations.get(operation);
+	}
+
+	/**
+	 * @return the calls and latencies of all operations.
+	 */
+	public List<OperationMetrics> getOperations() {
+		return Collections.unmodifiableList(new ArrayList<OperationMetrics>(
+				operations.values()));
+	}
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled glob for one path component, using the glob syntax of
+ * {@link org.apache.hadoop.fs.FileSystem#globStatus(org.apache.hadoop.fs.Path)}
+ * : <code>?</code>, <code>*</code>, <code>[abc]</code>, <code>[a-c]</code>,
+ * <code>[^a]</code>, <code>{ab,cd}</code> and <code>\</code> to escape.
+ * <p>
+ * A component without wildcards is kept as a literal name, so it can be
+ * looked up directly instead of being matched against every child. The
+ * literal prefix of a pattern, up to its first wildcard, lets a sorted
+ * directory skip the children which cannot match.
+ */
+class GlobPattern {
+
+	/** The characters which must be escaped in a regular expression. */
+	private static final String REGEX_SPECIAL = ".$()|+^";
+
+	private final String literal;
+
+	private final String prefix;
+
+	private final Pattern pattern;
+
+	private GlobPattern(String literal, String prefix, Pattern pattern) {
+		this.literal = literal;
+		this.prefix = prefix;
+		this.pattern = pattern;
+	}
+
+	/**
+	 * Compiles a glob for a single path component.
+	 * 
+	 * @throws IOException
+	 *             If the glob is malformed.
+	 */
+	static GlobPattern compile(String glob) throws IOException {
+		StringBuilder regex = new StringBuilder(glob.length() * 2);
+		StringBuilder literal = new StringBuilder(glob.length());
+		boolean wildcard = false;
+		boolean inClass = false;
+		int braces = 0;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '\\') {
+				if (++i == glob.length()) {
+					throw illegal(glob, "dangling escape");
+				}
+				c = glob.charAt(i);
+				if (!Character.isLetterOrDigit(c)) {
+					regex.append('\\');
+				}
+				regex.append(c);
+				if (!wildcard) {
+					literal.append(c);
+				}
+				continue;
+			}
+			if (inClass) {
+				if (c == ']') {
+					inClass = false;
+				} else if (c == '[' || c == '&') {
+					regex.append('\\');
+				}
+				regex.append(c);
+				continue;
+			}
+			switch (c) {
+			case '*':
+				wildcard = true;
+				regex.append(".*");
+				break;
+			case '?':
+				wildcard = true;
+				regex.append('.');
+				break;
+			case '[':
+				wildcard = true;
+				inClass = true;
+				regex.append('[');
+				if (i + 1 < glob.length()
+						&& (glob.charAt(i + 1) == '^' || glob.charAt(i + 1) == '!')) {
+					regex.append('^');
+					i++;
+				}
+				break;
+			case '{':
+				wildcard = true;
+				braces++;
+				regex.append("(?:");
+				break;
+			case ',':
+				regex.append((braces > 0) ? "|" : ",");
+				break;
+			case '}':
+				if (braces > 0) {
+					braces--;
+					regex.append(')');
+				} else {
+					regex.append("\\}");
+				}
+				break;
+			default:
+				if (REGEX_SPECIAL.indexOf(c) >= 0) {
+					regex.append('\\');
+				}
+				regex.append(c);
+			}
+			if (!wildcard) {
+				literal.append(c);
+			}
+		}
+		if (inClass) {
+			throw illegal(glob, "unclosed character class");
+		}
+		if (braces > 0) {
+			throw illegal(glob, "unclosed group");
+		}
+
+		if (!wildcard) {
+			return new GlobPattern(literal.toString(), null, null);
+		}
+		try {
+			return new GlobPattern(null, literal.toString(), Pattern
+					.compile(regex.toString()));
+		} catch (PatternSyntaxException e) {
+			throw illegal(glob, e.getDescription());
+		}
+	}
+
+	/**
+	 * Expands the groups of a path glob which contain a path separator, such
+	 * as <code>/data/{2012/12,2013/01}/*</code>, into one glob per
+	 * alternative. Groups within a component are left to
+	 * {@link #compile(String)}.
+	 */
+	static List<String> expand(String glob) throws IOException {
+		int open = -1;
+		int depth = 0;
+		boolean separator = false;
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '{') {
+				if (depth++ == 0) {
+					open = i;
+					separator = false;
+				}
+			} else if (c == '/' && depth > 0) {
+				separator = true;
+			} else if (c == '}' && depth > 0 && --depth == 0 && separator) {
+				List<String> globs = new ArrayList<String>();
+				String prefix = glob.substring(0, open);
+				String suffix = glob.substring(i + 1);
+				for (String alternative : split(glob.substring(open + 1, i))) {
+					globs.addAll(expand(prefix + alternative + suffix));
+				}
+				return globs;
+			}
+		}
+		if (depth > 0) {
+			throw illegal(glob, "unclosed group");
+		}
+		return Collections.singletonList(glob);
+	}
+
+	/**
+	 * Splits the content of a group at its top level commas.
+	 */
+	private static List<String> split(String group) {
+		List<String> alternatives = new ArrayList<String>();
+		int depth = 0;
+		int start = 0;
+		for (int i = 0; i < group.length(); i++) {
+			char c = group.charAt(i);
+			if (c == '\\') {
+				i++;
+			} else if (c == '{') {
+				depth++;
+			} else if (c == '}') {
+				depth--;
+			} else if (c == ',' && depth == 0) {
+				alternatives.add(group.substring(start, i));
+				start = i + 1;
+			}
+		}
+		alternatives.add(group.substring(start));
+		return alternatives;
+	}
+
+	private static IOException illegal(String glob, String reason) {
+		return new IOException("Illegal file pattern: " + reason + " in '"
+				+ glob + "'");
+	}
+
+	/**
+	 * @return <code>true</code> if the component has no wildcards.
+	 */
+	boolean isLiteral() {
+		return literal != null;
+	}
+
+	/**
+	 * @return the name matched by a literal component.
+	 */
+	String getLiteral() {
+		return literal;
+	}
+
+	/**
+	 * @return the literal text before the first wildcard of a pattern, which
+	 *         every matching name starts with.
+	 */
+	String getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * @return <code>true</code> if <code>name</code> matches the component.
+	 */
+	boolean matches(String name) {
+		return isLiteral() ? literal.equals(name) : pattern.matcher(name)
+				.matches();
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+/**
+ * File content whose chunks are plain byte arrays on the Java heap. This is the
+ * default storage backend.
+ */
+class HeapFileContent extends FileContent {
+
+	private static final byte[][] NO_CHUNKS = new byte[0][];
+
+	private volatile byte[][] chunks = NO_CHUNKS;
+
+	@Override
+	protected void freeChunks() {
+		chunks = NO_CHUNKS;
+	}
+
+	@Override
+	protected int readChunk(int index, int offset) {
+		return chunks[index][offset] & 0xff;
+	}
+
+	@Override
+	protected void readChunk(int index, int offset, byte[] b, int off, int len) {
+		System.arraycopy(chunks[index], offset, b, off, len);
+	}
+
+	@Override
+	protected void writeChunk(int index, int offset, int b) {
+		chunks[index][offset] = (byte) b;
+	}
+
+	@Override
+	protected void writeChunk(int index, int offset, byte[] b, int off,
+			int len) {
+		System.arraycopy(b, off, chunks[index], offset, len);
+	}
+
+	@Override
+	protected void allocateChunk(int index, int capacity) {
+		byte[][] current = chunks;
+		if (index == current.length) {
+			byte[][] grown = new byte[Math.max(4, index * 2)][];
+			System.arraycopy(current, 0, grown, 0, index);
+			current = grown;
+		}
+		current[index] = new byte[capacity];
+		// Publish the chunk with a volatile write...
+		chunks = current;
+	}
+
+	/**
+	 * Copies the chunk array, so readers see either the old or the grown
+	 * chunk through the volatile reference, never a partly copied one.
+	 */
+	@Override
+	protected void resizeChunk(int index, int capacity, int used) {
+		byte[] grown = new byte[capacity];
+		System.arraycopy(chunks[index], 0, grown, 0, used);
+		byte[][] current = chunks.clone();
+		current[index] = grown;
+		chunks = current;
+	}
+}
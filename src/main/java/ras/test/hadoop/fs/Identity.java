@@ -0,0 +1,85 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.Set;
+
+/**
+ * The user of a file system and its groups, resolved to the ids of the
+ * {@link PrincipalDictionary} of one context. Permission checks compare the
+ * ids with those stored by a {@link Node} and mask its permission bits, so
+ * they neither create an <code>FsPermission</code> nor compare names.
+ * <p>
+ * The check follows {@link InMemoryFileSystem}: an action is permitted if the
+ * other bits allow it, or the group bits allow it and the user is a member
+ * of the group, or the owner bits allow it and the user is the owner.
+ */
+final class Identity {
+
+	/** The action bits, in the order of the <code>FsAction</code> ordinals. */
+	static final int EXECUTE = 1;
+	static final int WRITE = 2;
+	static final int READ = 4;
+
+	private final PrincipalDictionary principals;
+	private final int userId;
+	private final int[] groupIds;
+
+	Identity(PrincipalDictionary principals, String user, Set<String> groups) {
+		this.principals = principals;
+		this.userId = principals.getId(user);
+		this.groupIds = new int[groups.size()];
+		int i = 0;
+		for (String group : groups) {
+			groupIds[i++] = principals.getId(group);
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the ids were resolved by
+	 *         <code>principals</code>.
+	 */
+	boolean isResolvedBy(PrincipalDictionary principals) {
+		return this.principals == principals;
+	}
+
+	/**
+	 * @param action
+	 *            The requested action bits, <code>FsAction.ordinal()</code>.
+	 * @return <code>true</code> if this identity may perform
+	 *         <code>action</code> on <code>node</code>.
+	 */
+	boolean permits(Node node, int action) {
+		int permission = node.getPermission();
+		if ((permission & action) == action) {
+			return true;
+		}
+		if (((permission >> 3) & action) == action) {
+			return isMember(node.getGroupId());
+		}
+		return (((permission >> 6) & action) == action)
+				&& (node.getOwnerId() == userId);
+	}
+
+	private boolean isMember(int groupId) {
+		for (int id : groupIds) {
+			if (id == groupId) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
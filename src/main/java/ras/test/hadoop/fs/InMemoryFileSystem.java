@@ -15,30 +15,45 @@
  */
 package ras.test.hadoop.fs;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.lang.Validate;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.fs.permission.FsAction;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.util.Progressable;
 
+import ras.test.hadoop.fs.Namespace.Locks;
+
 /**
  * An in-memory implementation of a {@link FileSystem}. This class was written
  * to support testing of code developed for the Hadoop environment.
@@ -47,15 +62,21 @@ import org.apache.hadoop.util.Progressable;
  * {@link #configure(Configuration)} creates a new file system context in static
  * memory. A handle to file system context is stored in the supplied
  * configuration instance. File system instances which share this configuration
- * will share the same static file system state. A file system context is not
- * thread safe. In other words, sharing a configuration or file system instance
- * across threads is dangerous.
+ * will share the same static file system state. A context lives until
+ * {@link #resetFileSystemState(Configuration)} is called or until every
+ * configuration which used it has been garbage collected, whichever happens
+ * first; see {@link #getLiveContextCount()}. A file system context is
+ * thread safe: operations lock the directories along the paths they work on,
+ * reading directories in parallel and changing a directory exclusively, so
+ * threads working in different directories do not block each other. See
+ * {@link Namespace#lock(boolean, Path...)} for the details.
  * <p>
  * 
  * This file system supports the concepts of a user, user groups and
  * permissions. The default user is 'root', the default group is 'test' and the
  * default permission is '777'. There is no support for the application of a
- * 'umask'.
+ * 'umask'. As in HDFS, every directory looked into on the way to a path must
+ * grant the execute permission.
  * <p>
  * 
  * This file system does not support monitoring progress through the
@@ -89,13 +110,99 @@ public class InMemoryFileSystem extends FileSystem {
 	/** The configuration key for the in memory file system context. */
 	public static final String CONTEXT_KEY = "memory.fs.context";
 
-	private static int context_number = 0;
+	private static final AtomicInteger context_number = new AtomicInteger();
+
+	/**
+	 * The configuration key selecting where file content is stored, either
+	 * {@value #STORAGE_HEAP} (the default) or {@value #STORAGE_DIRECT}.
+	 */
+	public static final String STORAGE_KEY = "memory.fs.storage";
+
+	/** Store file content in byte arrays on the Java heap. */
+	public static final String STORAGE_HEAP = "heap";
+
+	/**
+	 * Store file content in direct byte buffers outside of the Java heap. The
+	 * memory is released when a file is deleted or the file system state is
+	 * reset.
+	 */
+	public static final String STORAGE_DIRECT = "direct";
+
+	/**
+	 * The configuration key for the number of bytes of file content a context
+	 * may keep in memory. When the budget is exceeded, the content of the least
+	 * recently used files which are not open is spilled to the scratch
+	 * directory and read back when they are opened again. There is no budget
+	 * if the value is not positive, which is the default.
+	 */
+	public static final String BUDGET_KEY = "memory.fs.budget";
+
+	/**
+	 * The configuration key for the local directory in which spill files are
+	 * created, defaults to the <code>java.io.tmpdir</code> system property.
+	 */
+	public static final String SPILL_DIR_KEY = "memory.fs.spill.dir";
+
+	/**
+	 * The configuration key enabling the latency metrics of the operations of
+	 * a context, <code>false</code> by default. When enabled, the metrics are
+	 * also exposed through JMX, see {@link InMemoryFileSystemMXBean}. The
+	 * gauges of {@link #getMetrics()} are available either way.
+	 */
+	public static final String METRICS_KEY = "memory.fs.metrics";
+
+	/**
+	 * The configuration key for a local file into which a context records a
+	 * trace of the operations of its file systems and streams, unset by
+	 * default. The trace is complete once the context is released and can be
+	 * replayed by {@link TraceReplayer}. Each context must use a file of its
+	 * own.
+	 */
+	public static final String TRACE_KEY = "memory.fs.trace";
+
+	/**
+	 * The configuration key for the number of racks of the synthetic cluster
+	 * reported by {@link #getFileBlockLocations(FileStatus, long, long)}, 1
+	 * by default.
+	 */
+	public static final String TOPOLOGY_RACKS_KEY = "memory.fs.topology.racks";
+
+	/**
+	 * The configuration key for the number of hosts in each rack of the
+	 * synthetic cluster, 1 by default. A cluster of one host is
+	 * <code>localhost</code>, like the default of {@link FileSystem}.
+	 */
+	public static final String TOPOLOGY_HOSTS_KEY = "memory.fs.topology.hosts";
+
+	/** The HDFS configuration key for the default block size. */
+	public static final String BLOCK_SIZE_KEY = "dfs.block.size";
+
+	/** The block size used when none is configured, 64 MB as in HDFS. */
+	public static final long DEFAULT_BLOCK_SIZE = 64L * 1024 * 1024;
+
+	/** The HDFS configuration key for the default replication. */
+	public static final String REPLICATION_KEY = "dfs.replication";
+
+	/** The replication used when none is configured, 1. */
+	public static final short DEFAULT_REPLICATION = 1;
 
 	/**
 	 * The {@link Configuration} key for this file systems implementation class.
 	 */
 	public static final String CONFIG_IMPL_CLASS_KEY = "fs." + SCHEME + ".impl";
 
+	/**
+	 * The number of entries fetched at a time by
+	 * {@link #listStatusIterator(Path)}.
+	 */
+	public static final int DEFAULT_LISTING_BATCH_SIZE = 1000;
+
+	/** Passed to {@link #setQuota} to leave a quota unchanged. */
+	public static final long QUOTA_DONT_SET = Long.MAX_VALUE;
+
+	/** Passed to {@link #setQuota} to remove a quota. */
+	public static final long QUOTA_RESET = -1L;
+
 	/** The permission used when none is specified, '777'. */
 	public static final short DEFAULT_PERMISSION = 0777;
 
@@ -110,20 +217,31 @@ public class InMemoryFileSystem extends FileSystem {
 			.unmodifiableSet(new HashSet<String>(Arrays.asList(DEFAULT_GROUP)));
 
 	/** The root directory path. */
-	private static final Path ROOT_PATH = new Path("/");
+	private static final Path ROOT_PATH = Namespace.ROOT_PATH;
 
 	/**
-	 * A mapping from a path to a node in the file system. This is static shared
+	 * A mapping from a context to its file system state. This is static shared
 	 * state between all instances of this file system. No instance methods
-	 * should access this variable directly.
+	 * should access this variable directly. It is a concurrent map so that
+	 * resolving a context never serializes threads on a JVM wide lock.
+	 */
+	private static final ConcurrentMap<String, FileSystemContext> fileSystemState = new ConcurrentHashMap<String, FileSystemContext>();
+
+	/**
+	 * Reclaims the contexts of configurations which have been garbage
+	 * collected without a call to {@link #resetFileSystemState(Configuration)}.
 	 */
-	private static Map<String, Map<URI, Map<String, Node>>> fileSystemState = null;
+	private static final ContextCleaner cleaner = new ContextCleaner(
+			fileSystemState);
 
 	/**
-	 * @return The file system state for the current thread.
+	 * @return The file system context associated with <code>conf</code>.
+	 * @throws IllegalStateException
+	 *             If the context of <code>conf</code> has been reclaimed,
+	 *             which happens to a copy of a configuration when the
+	 *             configurations using the context have been collected.
 	 */
-	private static synchronized Map<String, Node> getPathMap(
-			Configuration conf, URI fsName) {
+	static FileSystemContext getContext(Configuration conf) {
 		if (conf == null) {
 			throw new IllegalStateException(
 					"The file system configuration is not set!");
@@ -136,58 +254,158 @@ public class InMemoryFileSystem extends FileSystem {
 							+ "The configuration has no in-memory file system context.");
 		}
 
-		if (fileSystemState == null) {
-			fileSystemState = new HashMap<String, Map<URI, Map<String, Node>>>();
-		}
-
 		// Retrieve the file system context for the request...
-		Map<URI, Map<String, Node>> fileSystemContext = fileSystemState
-				.get(context);
+		FileSystemContext fileSystemContext = fileSystemState.get(context);
 		if (fileSystemContext == null) {
-			fileSystemContext = new HashMap<URI, Map<String, Node>>();
-			fileSystemState.put(context, fileSystemContext);
-		}
-
-		Map<String, Node> pathMap = fileSystemContext.get(fsName);
-		if (pathMap == null) {
-			pathMap = new HashMap<String, Node>();
-			pathMap.put(ROOT_PATH.toUri().getPath(), new DirectoryNode(
-					ROOT_PATH, new FsPermission(DEFAULT_PERMISSION)));
-			fileSystemContext.put(fsName, pathMap);
+			if (cleaner.isReclaimed(context)) {
+				throw new IllegalStateException("The file system context "
+						+ context + " has been reclaimed!");
+			}
+			FileSystemContext created = new FileSystemContext(conf);
+			fileSystemContext = fileSystemState.putIfAbsent(context, created);
+			if (fileSystemContext == null) {
+				fileSystemContext = created;
+				created.getMetrics().register(context);
+				created.startTrace();
+			}
 		}
-		return pathMap;
+		cleaner.register(conf, context);
+		return fileSystemContext;
 	}
 
-	private static Node getPathMapNode(Configuration conf, URI fsName, Path path) {
-		return getPathMap(conf, fsName).get(path.toUri().getPath());
-	}
-
-	private static void setPathMapNode(Configuration conf, URI fsName,
-			Path path, Node node) {
-		getPathMap(conf, fsName).put(path.toUri().getPath(), node);
+	/**
+	 * @return the number of file system contexts currently held in static
+	 *         memory.
+	 */
+	public static int getLiveContextCount() {
+		cleaner.expunge();
+		return fileSystemState.size();
 	}
 
-	private static boolean containsNode(Configuration conf, URI fsName,
-			Path path) {
-		return getPathMap(conf, fsName).containsKey(path.toUri().getPath());
+	/**
+	 * @return the number of contexts which were released automatically
+	 *         because their configurations were garbage collected.
+	 */
+	public static long getReclaimedContextCount() {
+		return cleaner.getReclaimedCount();
 	}
 
-	private static void removeNode(Configuration conf, URI fsName, Path path) {
-		getPathMap(conf, fsName).remove(path.toUri().getPath());
+	/**
+	 * @return the number of bytes of file content held in memory by all live
+	 *         contexts. Content spilled to disk is not included.
+	 */
+	public static long getRetainedBytes() {
+		cleaner.expunge();
+		long bytes = 0;
+		for (FileSystemContext context : fileSystemState.values()) {
+			bytes += context.getContentStore().getResidentBytes();
+		}
+		return bytes;
 	}
 
-	public static synchronized void resetFileSystemState(Configuration conf) {
+	/**
+	 * Releases the file system state associated with the context of
+	 * <code>conf</code>, including the memory held by the content of files
+	 * which are not open and any spill files. The content of open files is
+	 * left to the garbage collector.
+	 * 
+	 * @param conf
+	 *            A configuration initialized by
+	 *            {@link #configure(Configuration)}.
+	 */
+	public static void resetFileSystemState(Configuration conf) {
 		Validate.notNull(conf, "conf == null not allowed!");
 		String context = conf.get(CONTEXT_KEY);
 		if (context == null) {
 			throw new IllegalStateException(
 					"The configuration has no in-memory file system context.");
 		}
-		if (fileSystemState != null) {
-			fileSystemState.remove(context);
+		FileSystemContext fileSystemContext = fileSystemState.remove(context);
+		if (fileSystemContext != null) {
+			fileSystemContext.release();
+		}
+	}
+
+	/**
+	 * Saves the file systems of the context of <code>conf</code>, their
+	 * directories, files, metadata and committed content, to a binary image
+	 * on local disk. Each file system is locked while it is saved, so the
+	 * image is a consistent snapshot. The snapshots of directories, see
+	 * {@link #createSnapshot(Path, String)}, are not saved.
+	 * 
+	 * @param conf
+	 *            A configuration initialized by
+	 *            {@link #configure(Configuration)}.
+	 * @param image
+	 *            The local file to be written.
+	 */
+	public static void saveImage(Configuration conf, File image)
+			throws IOException {
+		Validate.notNull(conf, "conf == null not allowed!");
+		Validate.notNull(image, "image == null not allowed!");
+		ContextImage.save(getContext(conf), image);
+	}
+
+	/**
+	 * Replaces the state of the context of <code>conf</code> with an image
+	 * saved by {@link #saveImage(Configuration, File)}, configuring
+	 * <code>conf</code> first if needed. Only the metadata is read; the
+	 * content of a file is read from the image when the file is first
+	 * opened, so the image must not be changed or deleted while the context
+	 * lives.
+	 * 
+	 * @param conf
+	 *            The configuration whose context is replaced.
+	 * @param image
+	 *            The local image file.
+	 * @throws IOException
+	 *             If the image cannot be read or is not a valid image.
+	 */
+	public static void loadImage(Configuration conf, File image)
+			throws IOException {
+		Validate.notNull(conf, "conf == null not allowed!");
+		Validate.notNull(image, "image == null not allowed!");
+		configure(conf);
+		resetFileSystemState(conf);
+		try {
+			ContextImage.load(getContext(conf), image);
+		} catch (IOException e) {
+			resetFileSystemState(conf);
+			throw e;
 		}
 	}
 
+	/**
+	 * Forks the context of <code>conf</code> in constant time, e.g. to give
+	 * each test a pristine copy of a large fixture. The fork starts with the
+	 * directories, files and metadata of the context and shares them
+	 * copy-on-write: a directory is only duplicated when it is first accessed
+	 * by either side, a file's content only when it is appended to, so
+	 * changes to either context are not seen by the other. The fork shares
+	 * the memory budget and scratch directory of the context, and is not
+	 * traced.
+	 * 
+	 * @param conf
+	 *            A configuration initialized by
+	 *            {@link #configure(Configuration)}.
+	 * @return a copy of <code>conf</code> bound to the fork, which is
+	 *         released like any context.
+	 * @throws IOException
+	 *             If a file of the context is open for writing.
+	 */
+	public static Configuration fork(Configuration conf) throws IOException {
+		Validate.notNull(conf, "conf == null not allowed!");
+		FileSystemContext parent = getContext(conf);
+		Configuration forked = new Configuration(conf);
+		String context = Integer.toString(context_number.getAndIncrement());
+		forked.set(CONTEXT_KEY, context);
+		FileSystemContext fork = parent.fork(forked);
+		fileSystemState.put(context, fork);
+		fork.getMetrics().register(context);
+		cleaner.register(forked, context);
+		return forked;
+	}
+
 	/**
 	 * Sets up the <code>conf</code> argument to use this file system as the
 	 * default so that subsequent calls to methods such as
@@ -203,7 +421,7 @@ public class InMemoryFileSystem extends FileSystem {
 	 *            The configuration to be modified to use this file system as
 	 *            the default.
 	 */
-	public static synchronized void configure(final Configuration conf) {
+	public static void configure(final Configuration conf) {
 		Validate.notNull(conf, "conf == null not allowed!");
 
 		String context = conf.get(CONTEXT_KEY);
@@ -231,9 +449,8 @@ public class InMemoryFileSystem extends FileSystem {
 			disableFileSystemCaching(conf, LocalInMemoryFileSystem.SCHEME);
 
 			// Set the context for the file system(s)...
-			conf.set(CONTEXT_KEY, Integer.toString(context_number));
-
-			context_number++;
+			conf.set(CONTEXT_KEY,
+					Integer.toString(context_number.getAndIncrement()));
 		}
 	}
 
@@ -310,15 +527,51 @@ public class InMemoryFileSystem extends FileSystem {
 	 */
 	private Path workingDirectory = ROOT_PATH;
 
+	/**
+	 * The binding to the context of the configuration, resolved when the
+	 * configuration is set and re-resolved when it is swapped or the context
+	 * is reset.
+	 */
+	private volatile ContextHandle handle;
+
+	/** The user and groups resolved to ids, see {@link #getIdentity}. */
+	private volatile Identity identity;
+
+	/** The operation counters shared by the file systems of the scheme. */
+	private final OperationStatistics operations;
+
 	/**
 	 * Creates an instance of the in-memory file system.
 	 */
 	public InMemoryFileSystem() {
 		this.name = NAME;
+		this.operations = OperationStatistics.getStatistics(SCHEME);
 	}
 
 	public InMemoryFileSystem(String scheme) {
 		this.name = URI.create(scheme + ":///");
+		this.operations = OperationStatistics.getStatistics(scheme);
+	}
+
+	/**
+	 * Sets the configuration and binds the file system to its context. A
+	 * configuration which has not been set up by
+	 * {@link #configure(Configuration)} yet is bound on first use.
+	 */
+	@Override
+	public void setConf(Configuration conf) {
+		super.setConf(conf);
+		if ((conf != null) && (conf.get(CONTEXT_KEY) != null)) {
+			handle = new ContextHandle(getContext(conf), name);
+		} else {
+			handle = null;
+		}
+	}
+
+	@Override
+	public void initialize(URI name, Configuration conf) throws IOException {
+		super.initialize(name, conf);
+		setConf(conf);
 	}
 
 	/**
@@ -345,9 +598,10 @@ public class InMemoryFileSystem extends FileSystem {
 	 *             If <cod>mustExist == true</code> and no node is found mapped
 	 *             to <code>path</code>
 	 */
-	private Node getNode(Path path, boolean mustExist) throws IOException {
+	private Node getNode(Namespace ns, Path path, boolean mustExist)
+			throws IOException {
 		Validate.notNull(path, "path == null not allowed!");
-		Node node = getPathMapNode(getConf(), name, path);
+		Node node = ns.resolve(path, getIdentity(ns), false);
 		if (mustExist && (node == null)) {
 			throw new IOException("'" + path + "' not found!");
 		}
@@ -372,15 +626,179 @@ public class InMemoryFileSystem extends FileSystem {
 	 * @throws IOException
 	 *             If <code>path</code> maps to a directory node.
 	 */
-	private FileNode getFileNode(Path path, boolean mustExist)
+	private FileNode getFileNode(Namespace ns, Path path, boolean mustExist)
 			throws IOException {
-		Node node = getNode(path, mustExist);
+		Node node = getNode(ns, path, mustExist);
 		if ((node != null) && !(node instanceof FileNode)) {
 			throw new IOException("'" + path + "' is not a file!");
 		}
 		return (FileNode) node;
 	}
 
+	/**
+	 * @return the context handle of this file system, binding it if the
+	 *         context has not been resolved yet or was reset.
+	 */
+	private ContextHandle getHandle() {
+		ContextHandle bound = handle;
+		if ((bound == null) || bound.isStale()) {
+			bound = new ContextHandle(getContext(getConf()), name);
+			handle = bound;
+		}
+		return bound;
+	}
+
+	/**
+	 * @return the user and groups of this file system resolved to the ids of
+	 *         the principals of <code>ns</code>, which are cached until the
+	 *         user is changed or the file system is bound to another context.
+	 */
+	private Identity getIdentity(Namespace ns) {
+		Identity resolved = identity;
+		if ((resolved == null) || !resolved.isResolvedBy(ns.getPrincipals())) {
+			resolved = new Identity(ns.getPrincipals(), user, userGroups);
+			identity = resolved;
+		}
+		return resolved;
+	}
+
+	/**
+	 * @return the shared statistics of the scheme, registered by
+	 *         {@link #initialize(URI, Configuration)} or on first use by a
+	 *         file system which was only configured.
+	 */
+	private Statistics getIoStatistics() {
+		Statistics shared = statistics;
+		if (shared == null) {
+			shared = getStatistics(name.getScheme(), getClass());
+			statistics = shared;
+		}
+		return shared;
+	}
+
+	/**
+	 * @return the read, large read and write operation counters shared by the
+	 *         file systems of this scheme. The bytes read and written are
+	 *         counted by {@link FileSystem#getStatistics(String, Class)}.
+	 */
+	public OperationStatistics getOperationStatistics() {
+		return operations;
+	}
+
+	/**
+	 * @return the metrics of the context of this file system.
+	 */
+	private ContextMetrics getContextMetrics() {
+		return getHandle().getContext().getMetrics();
+	}
+
+	/**
+	 * @return the recorder of the trace of the context of this file system,
+	 *         <code>null</code> if it is not traced.
+	 */
+	private TraceRecorder getTrace() {
+		return getHandle().getContext().getTrace();
+	}
+
+	/**
+	 * Records an operation on <code>path</code> if the context is traced.
+	 */
+	private void trace(TraceRecord.Type type, Path path, boolean flag) {
+		TraceRecorder trace = getTrace();
+		if (trace != null) {
+			trace.record(type, path, flag);
+		}
+	}
+
+	/**
+	 * Records an operation on <code>path</code> with numeric arguments if the
+	 * context is traced.
+	 */
+	private void trace(TraceRecord.Type type, Path path, long position,
+			long length) {
+		TraceRecorder trace = getTrace();
+		if (trace != null) {
+			trace.record(type, path, position, length);
+		}
+	}
+
+	/**
+	 * Records an operation on <code>path</code> with name arguments if the
+	 * context is traced.
+	 */
+	private void trace(TraceRecord.Type type, Path path, String target,
+			String argument) {
+		TraceRecorder trace = getTrace();
+		if (trace != null) {
+			trace.record(type, path, target, argument);
+		}
+	}
+
+	/**
+	 * Records a batch operation as one operation per path.
+	 */
+	private void trace(TraceRecord.Type type, Path[] paths, boolean flag) {
+		TraceRecorder trace = getTrace();
+		if (trace != null) {
+			for (Path path : paths) {
+				trace.record(type, path, flag);
+			}
+		}
+	}
+
+	/**
+	 * Records the opening of a stream if the context is traced.
+	 * 
+	 * @return the trace of the stream, <code>null</code> if the context is
+	 *         not traced.
+	 */
+	private StreamTrace traceStream(TraceRecord.Type type, Path path,
+			boolean flag) {
+		TraceRecorder trace = getTrace();
+		return (trace == null) ? null : trace.recordStream(type, path, flag);
+	}
+
+	/**
+	 * @return a snapshot of the metrics of the context of this file system,
+	 *         see {@link #METRICS_KEY}.
+	 */
+	public FileSystemMetrics getMetrics() {
+		return new FileSystemMetrics(getContextMetrics());
+	}
+
+	/**
+	 * Resolves the namespace of this file system. Public operations call this
+	 * once and pass the namespace to the helpers they use.
+	 */
+	private Namespace getNamespace() {
+		return getHandle().getNamespace();
+	}
+
+	/**
+	 * Attempts to retrieve the directory node of the parent of a file system
+	 * resource, the caller must hold its lock.
+	 * 
+	 * @throws IOException
+	 *             If the directory was deleted concurrently or is a file.
+	 */
+	private DirectoryNode getDirectoryNode(Namespace ns, Path path)
+			throws IOException {
+		Node node = getNode(ns, path, true);
+		if (!(node instanceof DirectoryNode)) {
+			throw new IOException("'" + path + "' is not a directory!");
+		}
+		return (DirectoryNode) node;
+	}
+
+	/**
+	 * @return the directory whose lock guards the node at <code>path</code>:
+	 *         the parent directory, or the root itself.
+	 */
+	private static Path lockPath(Path path) {
+		Path parent = path.getParent();
+		return (parent == null) ? path : parent;
+	}
+
 	private Path makeAbsolute(Path path) {
 		Validate.notNull(path, "path == null not allowed!");
 
@@ -403,10 +821,26 @@ public class InMemoryFileSystem extends FileSystem {
 	 */
 	@Override
 	public FSDataInputStream open(Path path, int bufferSize) throws IOException {
-		path = makeAbsolute(path);
-		FileNode node = getFileNode(path, true);
-		checkPermission(node, FsAction.READ);
-		return new FSDataInputStream(node.open());
+		ContextMetrics metrics = getContextMetrics();
+		long start = metrics.start();
+		try {
+			path = makeAbsolute(path);
+			operations.incrementReadOps(1);
+			StreamTrace streamTrace = traceStream(TraceRecord.Type.OPEN, path,
+					false);
+			Namespace ns = getNamespace();
+			Locks locks = ns.lock(false, lockPath(path));
+			try {
+				FileNode node = getFileNode(ns, path, true);
+				checkPermission(ns, node, FsAction.READ);
+				return new FSDataInputStream(node.open(new StreamStatistics(
+						getIoStatistics(), true), streamTrace));
+			} finally {
+				locks.release();
+			}
+		} finally {
+			metrics.record(Operation.OPEN, start);
+		}
 	}
 
 	/**
@@ -427,9 +861,14 @@ public class InMemoryFileSystem extends FileSystem {
 	 * @param bufferSize
 	 *            Ignored.
 	 * @param replication
-	 *            Ignored.
+	 *            The number of replicas of each block, see
+	 *            {@link #getFileBlockLocations(FileStatus, long, long)}. The
+	 *            default replication if not positive. It does not change the
+	 *            space the file consumes, see
+	 *            {@link #setReplication(Path, short)}.
 	 * @param blockSize
-	 *            Ignored.
+	 *            The size of the blocks of the file. The default block size
+	 *            if not positive.
 	 * @param progress
 	 *            Ignored, may be <code>null</code>
 	 */
@@ -437,41 +876,84 @@ public class InMemoryFileSystem extends FileSystem {
 	public FSDataOutputStream create(Path path, FsPermission permission,
 			boolean overwrite, int bufferSize, short replication,
 			long blockSize, Progressable progress) throws IOException {
-		path = makeAbsolute(path);
-		String pathScheme = path.toUri().getScheme();
-		if (pathScheme != null) {
-			Validate.isTrue(
-					name.getScheme().equals(pathScheme),
-					"Wrong file system: " + pathScheme + ", expected: "
-							+ name.getScheme());
+		ContextMetrics metrics = getContextMetrics();
+		long start = metrics.start();
+		try {
+			path = makeAbsolute(path);
+			checkNotInSnapshot(path);
+			operations.incrementWriteOps(1);
+			String pathScheme = path.toUri().getScheme();
+			if (pathScheme != null) {
+				Validate.isTrue(
+						name.getScheme().equals(pathScheme),
+						"Wrong file system: " + pathScheme + ", expected: "
+								+ name.getScheme());
+			}
+			StreamTrace streamTrace = traceStream(TraceRecord.Type.CREATE,
+					path, overwrite);
+			ContextHandle bound = getHandle();
+			Namespace ns = bound.getNamespace();
+			checkParentDirWritePermission(ns, path);
+			checkOverwrite(getNode(ns, path, false), path, overwrite);
+
+			Path parentPath = path.getParent();
+			mkdirs(ns, parentPath, permission);
+
+			// Repeat the checks under the lock, another thread may have won...
+			OutputStream out;
+			Locks locks = ns.lock(true, parentPath);
+			try {
+				DirectoryNode dnode = getDirectoryNode(ns, parentPath);
+				Node node = getNode(ns, path, false);
+				checkOverwrite(node, path, overwrite);
+				if (node != null) {
+					ns.unlink(dnode, node);
+				}
+
+				FileNode fnode = new FileNode(path.getName(), permission, bound
+						.getContext().getContentStore().newContent());
+				fnode.setOwnerId(ns.getPrincipals().getId(user));
+				fnode.setBlockSize((blockSize > 0) ? blockSize
+						: getDefaultBlockSize());
+				fnode.setReplication((replication > 0) ? replication
+						: getDefaultReplication());
+				try {
+					ns.link(dnode, fnode, fnode.getName());
+				} catch (QuotaExceededException e) {
+					fnode.getContent().release();
+					if (node != null) {
+						ns.restore(dnode, node);
+					}
+					throw e;
+				}
+				if (node != null) {
+					// Freed once the streams still open on it are closed...
+					((FileNode) node).getContent().release();
+				}
+				out = fnode.append(ns, new StreamStatistics(getIoStatistics(),
+						false), streamTrace);
+			} finally {
+				locks.release();
+			}
+
+			// The stream counts the bytes written itself...
+			return new FSDataOutputStream(out, null);
+		} finally {
+			metrics.record(Operation.CREATE, start);
 		}
-		checkParentDirWritePermission(path);
-		Node node = getNode(path, false);
+	}
 
+	private void checkOverwrite(Node node, Path path, boolean overwrite)
+			throws IOException {
 		if (node != null) {
-			if (overwrite) {
-				if (node instanceof DirectoryNode) {
-					throw new IOException(
-							"Can't overwrite a directory with a file: " + path);
-				}
-			} else {
+			if (!overwrite) {
 				throw new IOException("File already exists: " + path);
 			}
+			if (node instanceof DirectoryNode) {
+				throw new IOException(
+						"Can't overwrite a directory with a file: " + path);
+			}
 		}
-
-		Path parentPath = path.getParent();
-		mkdirs(parentPath, permission);
-
-		FileNode fnode = new FileNode(path, permission);
-		fnode.setOwner(user);
-		setPathMapNode(getConf(), name, path, fnode);
-
-		DirectoryNode dnode = (DirectoryNode) getPathMapNode(getConf(), name,
-				parentPath);
-		dnode.addFile(path);
-
-		Statistics stats = new Statistics(workingDirectory.toUri().getScheme());
-		return new FSDataOutputStream(fnode.append(), stats);
 	}
 
 	/**
@@ -487,11 +969,30 @@ public class InMemoryFileSystem extends FileSystem {
 	@Override
 	public FSDataOutputStream append(Path path, int bufferSize,
 			Progressable progress) throws IOException {
-		path = makeAbsolute(path);
-		FileNode fnode = getFileNode(path, true);
-		checkPermission(fnode, FsAction.WRITE);
-		Statistics stats = new Statistics(workingDirectory.toUri().getScheme());
-		return new FSDataOutputStream(fnode.append(), stats);
+		ContextMetrics metrics = getContextMetrics();
+		long start = metrics.start();
+		try {
+			path = makeAbsolute(path);
+			checkNotInSnapshot(path);
+			operations.incrementWriteOps(1);
+			StreamTrace streamTrace = traceStream(TraceRecord.Type.APPEND,
+					path, false);
+			Namespace ns = getNamespace();
+			OutputStream out;
+			// Write locked, the file is changed if its content is shared...
+			Locks locks = ns.lock(true, lockPath(path));
+			try {
+				FileNode fnode = getFileNode(ns, path, true);
+				checkPermission(ns, fnode, FsAction.WRITE);
+				out = fnode.append(ns, new StreamStatistics(getIoStatistics(),
+						false), streamTrace);
+			} finally {
+				locks.release();
+			}
+			return new FSDataOutputStream(out, null);
+		} finally {
+			metrics.record(Operation.APPEND, start);
+		}
 	}
 
 	/**
@@ -504,31 +1005,59 @@ public class InMemoryFileSystem extends FileSystem {
 	 */
 	@Override
 	public boolean rename(Path src, Path dst) throws IOException {
-		Validate.notNull(src, "src == null not allowed!");
-		Validate.notNull(dst, "dst == null not allowed!");
-		src = makeAbsolute(src);
-		dst = makeAbsolute(dst);
+		ContextMetrics metrics = getContextMetrics();
+		long start = metrics.start();
+		try {
+			Validate.notNull(src, "src == null not allowed!");
+			Validate.notNull(dst, "dst == null not allowed!");
+			src = makeAbsolute(src);
+			dst = makeAbsolute(dst);
+			checkNotInSnapshot(src);
+			checkNotInSnapshot(dst);
+			operations.incrementWriteOps(1);
+			TraceRecorder trace = getTrace();
+			if (trace != null) {
+				trace.recordRename(src, dst);
+			}
 
-		if (getNode(dst, false) != null) {
-			throw new IOException("Rename failed, destination already exists: "
-					+ dst);
-		}
+			Namespace ns = getNamespace();
+			checkRename(ns, src, dst);
+			checkParentDirWritePermission(ns, dst);
+			if ((src.getParent() == null)
+					|| dst.toUri().getPath()
+							.startsWith(src.toUri().getPath() + "/")) {
+				throw new IOException(
+						"Rename failed, destination is inside the source: " + dst);
+			}
+			mkdirs(ns, dst.getParent(), FsPermission.getDefault());
+
+			// Repeat the checks under the locks, another thread may have won...
+			Locks locks = ns.lock(true, src.getParent(), dst.getParent());
+			try {
+				Node snode = checkRename(ns, src, dst);
+				DirectoryNode dstParent = getDirectoryNode(ns, dst.getParent());
 
-		Node snode = getNode(src, true);
-		checkPermission(snode, FsAction.WRITE);
-		checkParentDirWritePermission(dst);
+				ns.move(snode.getParent(), snode, dstParent, dst.getName());
+			} finally {
+				locks.release();
+			}
 
-		Path pathToDst = dst;
-		if (snode instanceof FileNode) {
-			pathToDst = dst.getParent();
+			return true;
+		} finally {
+			metrics.record(Operation.RENAME, start);
 		}
-		mkdirs(pathToDst);
+	}
 
-		snode.setPath(dst);
-		removeNode(getConf(), name, src);
-		setPathMapNode(getConf(), name, dst, snode);
+	private Node checkRename(Namespace ns, Path src, Path dst)
+			throws IOException {
+		if (getNode(ns, dst, false) != null) {
+			throw new IOException("Rename failed, destination already exists: "
+					+ dst);
+		}
 
-		return true;
+		Node snode = getNode(ns, src, true);
+		checkPermission(ns, snode, FsAction.WRITE);
+		return snode;
 	}
 
 	/*
@@ -550,11 +1079,8 @@ public class InMemoryFileSystem extends FileSystem {
 	 * will be deleted. If the resource is a file, then <code>recursive</code>
 	 * is ignored.
 	 * 
-	 * If an open file is encountered during the recursive deletion of a
-	 * directory, the delete will immediately terminate and throw an
-	 * IOException. Some files and sub-directories may have been successfully
-	 * deleted while other other may still remain. In other words, the file
-	 * system will be in an unknown state.
+	 * If an open file is encountered in the directory, the delete fails with
+	 * an IOException and nothing is deleted.
 	 * 
 	 * @param path
 	 *            The path to the resource which is to be deleted.
@@ -564,74 +1090,335 @@ public class InMemoryFileSystem extends FileSystem {
 	 */
 	@Override
 	public boolean delete(Path path, boolean recursive) throws IOException {
-		path = makeAbsolute(path);
-		Node node = getNode(path, true);
-		checkPermission(node, FsAction.WRITE);
-		if (node instanceof DirectoryNode) {
-			if (recursive) {
-				for (Path childDirPath : ((DirectoryNode) node)
-						.getSubDirectories()) {
-					delete(childDirPath, recursive);
-				}
+		ContextMetrics metrics = getContextMetrics();
+		long start = metrics.start();
+		try {
+			path = makeAbsolute(path);
+			checkNotInSnapshot(path);
+			operations.incrementWriteOps(1);
+			trace(TraceRecord.Type.DELETE, path, recursive);
+			Namespace ns = getNamespace();
+			Locks locks = ns.lock(true, lockPath(path));
+			try {
+				return delete(ns, path, recursive);
+			} finally {
+				locks.release();
+			}
+		} finally {
+			metrics.record(Operation.DELETE, start);
+		}
+	}
 
-				for (Path childFile : ((DirectoryNode) node).getFiles()) {
-					FileNode fnode = getFileNode(childFile, true);
-					if (fnode.isOpen()) {
-						throw new IOException(
-								"Delete failed, resource is in use: "
-										+ childFile);
-					}
-					removeNode(getConf(), name, childFile);
-				}
-			} else {
-				if (((DirectoryNode) node).getSubDirectories().size() > 0) {
-					throw new IOException("Directory '" + path
-							+ "' is not empty!");
-				}
+	/**
+	 * Deletes <code>path</code>, the caller must hold the write lock of its
+	 * parent directory which covers the whole sub-tree.
+	 */
+	private boolean delete(Namespace ns, Path path, boolean recursive)
+			throws IOException {
+		Node node = getNode(ns, path, true);
+		if (!recursive && (node instanceof DirectoryNode)
+				&& ((DirectoryNode) node).hasSubDirectories()) {
+			throw new IOException("Directory '" + path + "' is not empty!");
+		}
+
+		// Check the whole sub-tree before anything is unlinked...
+		List<Node> nodes = new ArrayList<Node>();
+		Namespace.collect(node, nodes);
+		for (Node n : nodes) {
+			checkPermission(ns, n, FsAction.WRITE);
+			if ((n instanceof FileNode) && ((FileNode) n).isOpen()) {
+				throw new IOException("Delete failed, resource is in use: "
+						+ n.getPath());
+			}
+		}
+		if (ns.hasSnapshots(nodes)) {
+			throw new IOException("Delete failed, '" + path
+					+ "' has snapshots!");
+		}
+
+		if (node.getParent() != null) {
+			ns.unlink(node.getParent(), node);
+			discard(node);
+		} else {
+			// Deleting the root empties it...
+			for (Node child : new ArrayList<Node>(ns.getRoot().getChildren())) {
+				ns.unlink(ns.getRoot(), child);
+				discard(child);
 			}
-		} else if (((FileNode) node).isOpen()) {
-			throw new IOException("Delete failed, resource is in use: " + path);
 		}
-		removeNode(getConf(), name, path);
 		return true;
 	}
 
+	/**
+	 * Releases what an unlinked node holds: the content of a file, or the
+	 * claim on a directory, which releases its sub-tree unless it is still
+	 * shared with a fork or a snapshot.
+	 */
+	private static void discard(Node node) {
+		if (node instanceof FileNode) {
+			((FileNode) node).getContent().release();
+		} else {
+			((DirectoryNode) node).unclaim();
+		}
+	}
+
 	/**
 	 * @param path
 	 *            the path to be processed.
 	 * 
 	 * @return the file status for <code>path</code> if it is a file, otherwise
 	 *         the list of file statuses for the files and directories under the
-	 *         specified <code>path</code>.
+	 *         specified <code>path</code>, sorted by name.
 	 */
 	@Override
 	public FileStatus[] listStatus(Path path) throws IOException {
-		path = makeAbsolute(path);
-		Node node = getNode(path, true);
-		checkPermission(node, FsAction.READ);
-		if (node instanceof FileNode) {
-			return new FileStatus[] { getFileStatus(path) };
-		}
-
-		DirectoryNode dnode = (DirectoryNode) node;
-		List<FileStatus> list = new ArrayList<FileStatus>();
-		addStatus(list, dnode.getSubDirectories());
-		addStatus(list, dnode.getFiles());
-		return list.toArray(new FileStatus[list.size()]);
+		return listStatus(path, null, Integer.MAX_VALUE).getEntries();
 	}
 
-	private void addStatus(List<FileStatus> list, Set<Path> paths)
-			throws IOException {
-		for (Path path : paths) {
-			list.add(getFileStatus(path));
+	/**
+	 * Lists a directory in batches, like the batched directory listings of
+	 * HDFS. Entries are returned in the order of their names, so the next
+	 * batch is requested with the name of the last entry of the previous one.
+	 * Entries created or deleted between batches may or may not be seen.
+	 * 
+	 * @param path
+	 *            the path to be listed.
+	 * @param startAfter
+	 *            the name after which the batch starts, <code>null</code> for
+	 *            the first batch.
+	 * @param batchSize
+	 *            the maximum number of entries in the batch, must be positive.
+	 * 
+	 * @return the batch. If <code>path</code> is a file the batch contains its
+	 *         file status only.
+	 */
+	public DirectoryListing listStatus(Path path, String startAfter,
+			int batchSize) throws IOException {
+		ContextMetrics metrics = getContextMetrics();
+		long start = metrics.start();
+		try {
+			Validate.isTrue(batchSize > 0, "batchSize < 1 not allowed!");
+			path = makeAbsolute(path);
+			if (startAfter == null) {
+				operations.incrementReadOps(1);
+				trace(TraceRecord.Type.LIST_STATUS, path, false);
+			} else {
+				operations.incrementLargeReadOps(1);
+			}
+			Namespace ns = getNamespace();
+			Locks locks = ns.lock(false, path);
+			try {
+				Node node = getNode(ns, path, true);
+				checkPermission(ns, node, FsAction.READ);
+				if (node instanceof FileNode) {
+					return new DirectoryListing(
+							new FileStatus[] { getFileStatus(ns, node, path) },
+							false);
+				}
+
+				List<FileStatus> list = new ArrayList<FileStatus>(Math.min(
+						batchSize, DEFAULT_LISTING_BATCH_SIZE));
+				Iterator<Node> children = ((DirectoryNode) node).getChildren(
+						startAfter).iterator();
+				while (children.hasNext() && list.size() < batchSize) {
+					Node child = children.next();
+					list.add(getFileStatus(ns, child, new Path(path, child
+							.getName())));
+				}
+				return new DirectoryListing(list.toArray(new FileStatus[list
+						.size()]), children.hasNext());
+			} finally {
+				locks.release();
+			}
+		} finally {
+			metrics.record(Operation.LIST_STATUS, start);
+		}
+	}
+
+	/**
+	 * Lists a directory lazily, fetching {@link #DEFAULT_LISTING_BATCH_SIZE}
+	 * entries at a time with {@link #listStatus(Path, String, int)}, so
+	 * huge directories can be streamed with bounded memory.
+	 * 
+	 * @param path
+	 *            the directory to be listed.
+	 * @return an iterator over the entries, sorted by name. If the directory
+	 *         is deleted or becomes inaccessible while iterating,
+	 *         <code>next()</code> throws a
+	 *         {@link ConcurrentModificationException}.
+	 * @throws IOException
+	 *             If the first batch cannot be listed.
+	 */
+	public Iterator<FileStatus> listStatusIterator(final Path path)
+			throws IOException {
+		final DirectoryListing first = listStatus(path, null,
+				DEFAULT_LISTING_BATCH_SIZE);
+		return new Iterator<FileStatus>() {
+			private DirectoryListing batch = first;
+			private int index = 0;
+
+			public boolean hasNext() {
+				if (index < batch.getEntries().length) {
+					return true;
+				}
+				if (!batch.hasMore()) {
+					return false;
+				}
+				try {
+					batch = listStatus(path, batch.getLastName(),
+							DEFAULT_LISTING_BATCH_SIZE);
+				} catch (IOException e) {
+					ConcurrentModificationException cme = new ConcurrentModificationException(
+							"Listing of '" + path + "' failed: "
+									+ e.getMessage());
+					cme.initCause(e);
+					throw cme;
+				}
+				index = 0;
+				return index < batch.getEntries().length;
+			}
+
+			public FileStatus next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return batch.getEntries()[index++];
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Returns the statuses of the paths matching a glob, with the results and
+	 * the glob syntax of {@link FileSystem#globStatus(Path, PathFilter)}, but
+	 * without listing every candidate directory through the public API. The
+	 * glob is compiled once and matched against the directory tree: literal
+	 * components are looked up directly, the children of a pattern component
+	 * are skipped up to the pattern's literal prefix, and file statuses are
+	 * only created for the final matches.
+	 * <p>
+	 * Like the generic implementation, the walk is not atomic: directories are
+	 * visited one at a time without locks, so changes made concurrently may or
+	 * may not be seen.
+	 * <p>
+	 * Like {@link #getFileStatus(Path)}, a literal <code>.snapshot</code>
+	 * component resolves the snapshots of a snapshottable directory, see
+	 * {@link #createSnapshot(Path, String)}. Like a listing of the directory,
+	 * a wildcard never matches it.
+	 * 
+	 * @param pathPattern
+	 *            the glob.
+	 * @param filter
+	 *            applied to the final matches.
+	 * @return the matching statuses sorted by path, an empty array if the glob
+	 *         has wildcards but nothing matched or <code>null</code> if a path
+	 *         without wildcards does not exist.
+	 */
+	@Override
+	public FileStatus[] globStatus(Path pathPattern, PathFilter filter)
+			throws IOException {
+		pathPattern = makeAbsolute(pathPattern);
+		operations.incrementLargeReadOps(1);
+		trace(TraceRecord.Type.GLOB_STATUS, pathPattern, false);
+		Namespace ns = getNamespace();
+		URI uri = pathPattern.toUri();
+		List<String> globs = GlobPattern.expand(uri.getPath());
+		boolean hasGlob = globs.size() > 1;
+		List<FileStatus> results = new ArrayList<FileStatus>();
+		for (String glob : globs) {
+			List<GlobPattern> components = new ArrayList<GlobPattern>();
+			for (String component : glob.split("/")) {
+				if (component.length() > 0) {
+					GlobPattern compiled = GlobPattern.compile(component);
+					hasGlob |= !compiled.isLiteral();
+					components.add(compiled);
+				}
+			}
+			if (components.isEmpty()) {
+				Path root = globPath(uri, ROOT_PATH.toString());
+				if (filter.accept(root)) {
+					results.add(getFileStatus(ns, ns.getRoot(), root));
+				}
+			} else {
+				glob(ns, ns.getRoot(), "", components, 0, uri, filter, results);
+			}
+		}
+
+		if (results.isEmpty()) {
+			return hasGlob ? new FileStatus[0] : null;
+		}
+		FileStatus[] statuses = results.toArray(new FileStatus[results.size()]);
+		Arrays.sort(statuses);
+		return statuses;
+	}
+
+	/**
+	 * Matches the children of <code>dir</code> against the component at
+	 * <code>level</code>, descending into matching directories until the last
+	 * component. Like {@link Namespace#resolve}, looking into a directory
+	 * requires its execute permission.
+	 */
+	private void glob(Namespace ns, DirectoryNode dir, String dirPath,
+			List<GlobPattern> components, int level, URI uri,
+			PathFilter filter, List<FileStatus> results) throws IOException {
+		checkPermission(ns, dir, FsAction.EXECUTE);
+		GlobPattern component = components.get(level);
+		if (component.isLiteral()) {
+			Node child = Namespace.child(dir, component.getLiteral());
+			if (child != null) {
+				globMatch(ns, child, dirPath, components, level, uri, filter,
+						results);
+			}
+			return;
+		}
+
+		checkPermission(ns, dir, FsAction.READ);
+		String prefix = component.getPrefix();
+		for (Node child : dir.getChildrenFrom(prefix)) {
+			if (!child.getName().startsWith(prefix)) {
+				// Sorted, so no later child can match...
+				break;
+			}
+			if (component.matches(child.getName())) {
+				globMatch(ns, child, dirPath, components, level, uri, filter,
+						results);
+			}
+		}
+	}
+
+	private void globMatch(Namespace ns, Node child, String dirPath,
+			List<GlobPattern> components, int level, URI uri,
+			PathFilter filter, List<FileStatus> results) throws IOException {
+		String childPath = dirPath + "/" + child.getName();
+		if (level == components.size() - 1) {
+			Path path = globPath(uri, childPath);
+			if (filter.accept(path)) {
+				results.add(getFileStatus(ns, child, path));
+			}
+		} else if (child instanceof DirectoryNode) {
+			glob(ns, (DirectoryNode) child, childPath, components, level + 1,
+					uri, filter, results);
 		}
 	}
 
+	/**
+	 * @return a path with the scheme and authority of the glob.
+	 */
+	private static Path globPath(URI uri, String path) {
+		return (uri.getScheme() == null) ? new Path(path) : new Path(
+				uri.getScheme(), uri.getAuthority(), path);
+	}
+
 	@Override
 	public void setWorkingDirectory(Path path) {
 		path = makeAbsolute(path);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(false, lockPath(path));
 		try {
-			Node node = getNode(path, true);
+			Node node = getNode(ns, path, true);
 			if (node instanceof FileNode) {
 				throw new IllegalArgumentException("'" + path
 						+ "' is not a directory!");
@@ -642,6 +1429,8 @@ public class InMemoryFileSystem extends FileSystem {
 			 * IOException which would be the consistent thing to do.
 			 */
 			throw new IllegalArgumentException("'" + path + "' not found!");
+		} finally {
+			locks.release();
 		}
 
 		this.workingDirectory = path;
@@ -657,53 +1446,33 @@ public class InMemoryFileSystem extends FileSystem {
 	}
 
 	/**
-	 * Climb the path back up until we encounter the first non-null parent
-	 * directory. This directory will determine the permission for the
-	 * operation. Note that this method assumes that the path has been made
-	 * absolute and is rooted. Otherwise, it's an infinite loop.
-	 * 
-	 * @param path
-	 * @return
-	 * @throws IOException
+	 * Checks the permission of the current user on a node, see
+	 * {@link Identity#permits(Node, int)}.
 	 */
-	private DirectoryNode findNonNullParentDirectory(Path path)
+	private void checkPermission(Namespace ns, Node node, FsAction action)
 			throws IOException {
-		DirectoryNode parentDir = null;
-		Path parentPath = path.getParent();
-		do {
-			parentDir = (DirectoryNode) getNode(parentPath, false);
-			parentPath = parentPath.getParent();
-		} while (parentDir == null);
-		return parentDir;
-	}
-
-	private void checkPermission(Node node, FsAction action) throws IOException {
-		boolean permissionDenied = false;
-		FsPermission parentPermissions = node.getPermissions();
-		// if world doesn't have permission...
-		if (!parentPermissions.getOtherAction().implies(action)) {
-			// if group doesn't have permission...
-			if (!parentPermissions.getGroupAction().implies(action)) {
-				// if the owner doesn't have permission or the user is
-				// not the owner...
-				if (!parentPermissions.getUserAction().implies(action)
-						|| !node.getOwner().equals(user)) {
-					permissionDenied = true;
-				}
-			} else if (!userGroups.contains(node.getGroup())) {
-				permissionDenied = true;
-			}
-		}
-		if (permissionDenied) {
+		if (!getIdentity(ns).permits(node, action.ordinal())) {
 			throw new IOException("Permission denied!");
 		}
 	}
 
-	private void checkParentDirWritePermission(Path path) throws IOException {
-		DirectoryNode parentDir = findNonNullParentDirectory(path);
-		if (parentDir != null) {
-			checkPermission(parentDir, FsAction.WRITE);
+	/**
+	 * Checks the write permission of the deepest existing directory above
+	 * <code>path</code>, which determines the permission for creating it. The
+	 * directories above are checked for traversal on the way down.
+	 */
+	private void checkParentDirWritePermission(Namespace ns, Path path)
+			throws IOException {
+		Path parentPath = path.getParent();
+		if (parentPath == null) {
+			return;
+		}
+		Node parentDir = ns.resolve(parentPath, getIdentity(ns), true);
+		if (!(parentDir instanceof DirectoryNode)) {
+			throw new IOException("'" + parentDir.getPath()
+					+ "' is not a directory!");
 		}
+		checkPermission(ns, parentDir, FsAction.WRITE);
 	}
 
 	/**
@@ -718,59 +1487,635 @@ public class InMemoryFileSystem extends FileSystem {
 	@Override
 	public boolean mkdirs(Path path, FsPermission permission)
 			throws IOException {
-		path = makeAbsolute(path);
-		if (containsNode(getConf(), name, path)) {
-			return true;
+		ContextMetrics metrics = getContextMetrics();
+		long start = metrics.start();
+		try {
+			path = makeAbsolute(path);
+			checkNotInSnapshot(path);
+			operations.incrementWriteOps(1);
+			trace(TraceRecord.Type.MKDIRS, path, false);
+			return mkdirs(getNamespace(), path, permission);
+		} finally {
+			metrics.record(Operation.MKDIRS, start);
 		}
-		checkParentDirWritePermission(path);
-		Path parentPath = path.getParent();
-
-		// Recursively climb backwards until we reach the root or we find an
-		// existing parent
+	}
 
-		// while we have not reached the root && we have not found a
-		// parent node...
-		while (parentPath != null && !containsNode(getConf(), name, parentPath)) {
-			mkdirs(parentPath, permission);
-			DirectoryNode pNode = (DirectoryNode) getPathMapNode(getConf(),
-					name, parentPath);
-			pNode.addSubDirectory(path);
+	private boolean mkdirs(Namespace ns, Path path, FsPermission permission)
+			throws IOException {
+		if (getNode(ns, path, false) != null) {
+			return true;
 		}
+		checkParentDirWritePermission(ns, path);
+		Path parentPath = path.getParent();
 
-		// if there is a parent...
-		if (parentPath != null) {
-			// get the parent node...
-			DirectoryNode pNode = (DirectoryNode) getPathMapNode(getConf(),
-					name, parentPath);
-			// create the link from the parent to the child...
-			pNode.addSubDirectory(path);
+		// Create the missing parents first, then this directory under the
+		// lock of its parent. A concurrent delete may remove the parent in
+		// between, in which case we start over...
+		while (true) {
+			mkdirs(ns, parentPath, permission);
+			Locks locks = ns.lock(true, parentPath);
+			try {
+				Node pNode = ns.get(parentPath);
+				if (pNode == null) {
+					continue;
+				}
+				if (!(pNode instanceof DirectoryNode)) {
+					throw new IOException("'" + parentPath
+							+ "' is not a directory!");
+				}
+				DirectoryNode parent = (DirectoryNode) pNode;
+				if (parent.getChild(path.getName()) != null) {
+					return true;
+				}
+				DirectoryNode dnode = new DirectoryNode(path.getName(),
+						permission);
+				dnode.setOwnerId(ns.getPrincipals().getId(user));
+				// create the link from the parent to the child...
+				ns.link(parent, dnode, dnode.getName());
+				return true;
+			} finally {
+				locks.release();
+			}
 		}
-
-		DirectoryNode dnode = new DirectoryNode(path, permission);
-		dnode.setOwner(user);
-		setPathMapNode(getConf(), name, path, dnode);
-		return true;
 	}
 
 	@Override
 	public FileStatus getFileStatus(Path path) throws IOException {
-		path = makeAbsolute(path);
-		Node node = getPathMapNode(getConf(), name, path);
+		ContextMetrics metrics = getContextMetrics();
+		long start = metrics.start();
+		try {
+			path = makeAbsolute(path);
+			operations.incrementReadOps(1);
+			trace(TraceRecord.Type.GET_FILE_STATUS, path, false);
+			Namespace ns = getNamespace();
+			Locks locks = ns.lock(false, lockPath(path));
+			try {
+				return getFileStatus(ns, path);
+			} finally {
+				locks.release();
+			}
+		} finally {
+			metrics.record(Operation.GET_FILE_STATUS, start);
+		}
+	}
+
+	private FileStatus getFileStatus(Namespace ns, Path path)
+			throws IOException {
+		Node node = ns.resolve(path, getIdentity(ns), false);
 		if (node == null) {
 			throw new FileNotFoundException("'" + path + "' not found!");
 		}
+		return getFileStatus(ns, node, path);
+	}
+
+	private FileStatus getFileStatus(Namespace ns, Node node, Path path) {
+		PrincipalDictionary principals = ns.getPrincipals();
 		long length = 0;
 		boolean isDir = true;
+		int replication = 0;
+		long blockSize = 0;
 		if (node instanceof FileNode) {
-			length = ((FileNode) node).bytes.length;
+			FileNode fnode = (FileNode) node;
+			length = fnode.getLength();
 			isDir = false;
+			replication = fnode.getReplication();
+			blockSize = fnode.getBlockSize();
 		}
 
-		FileStatus status = new FileStatus(length, isDir, 1, 0, 0, 0,
-				node.getPermissions(), node.getOwner(), node.getGroup(), path);
+		FileStatus status = new FileStatus(length, isDir, replication,
+				blockSize, 0, 0,
+				node.getPermissions(), principals.getName(node.getOwnerId()),
+				principals.getName(node.getGroupId()), path);
 		return status;
 	}
 
+	/**
+	 * @return the block size of new files, {@link #BLOCK_SIZE_KEY} or
+	 *         {@link #DEFAULT_BLOCK_SIZE}.
+	 */
+	@Override
+	public long getDefaultBlockSize() {
+		return getConf().getLong(BLOCK_SIZE_KEY, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @return the replication of new files, {@link #REPLICATION_KEY} or
+	 *         {@link #DEFAULT_REPLICATION}.
+	 */
+	@Override
+	public short getDefaultReplication() {
+		return (short) getConf().getInt(REPLICATION_KEY, DEFAULT_REPLICATION);
+	}
+
+	/**
+	 * Sets the replication of a file, which only changes the reported block
+	 * locations. Unlike HDFS, which charges every replica against the space
+	 * consumed and the space quota, the bytes of a file are counted once
+	 * whatever its replication, see {@link #setQuota(Path, long, long)}.
+	 * 
+	 * @return <code>true</code> if <code>path</code> is a file.
+	 */
+	@Override
+	public boolean setReplication(Path path, short replication)
+			throws IOException {
+		Validate.isTrue(replication > 0, "Invalid replication: " + replication);
+		path = makeAbsolute(path);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.SET_REPLICATION, path, replication, 0);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, lockPath(path));
+		try {
+			Node node = getNode(ns, path, true);
+			if (!(node instanceof FileNode)) {
+				return false;
+			}
+			checkPermission(ns, node, FsAction.WRITE);
+			((FileNode) node).setReplication(replication);
+			ns.modified(node);
+			return true;
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Reports where the blocks of a file between <code>start</code> and
+	 * <code>start + len</code> are, on the synthetic cluster configured by
+	 * {@link #TOPOLOGY_RACKS_KEY} and {@link #TOPOLOGY_HOSTS_KEY}. The file
+	 * is split by its block size and each block has as many replicas as the
+	 * replication of the file, up to the number of hosts, see
+	 * {@link Topology}.
+	 * <p>
+	 * The locations are computed from <code>file</code> alone, without a
+	 * lookup of the file, so this is cheap enough to plan the splits of
+	 * millions of blocks.
+	 */
+	@Override
+	public BlockLocation[] getFileBlockLocations(FileStatus file, long start,
+			long len) throws IOException {
+		if (file == null) {
+			return null;
+		}
+		if (start < 0 || len < 0) {
+			throw new IllegalArgumentException("Invalid start or len parameter");
+		}
+		// Saturate, start + len overflows for a len of Long.MAX_VALUE...
+		long end = (len > file.getLen() - start) ? file.getLen() : start + len;
+		long blockSize = file.getBlockSize();
+		if (file.isDir() || start >= end || blockSize <= 0) {
+			return new BlockLocation[0];
+		}
+
+		Topology topology = getHandle().getContext().getTopology();
+		int seed = makeAbsolute(file.getPath()).toUri().getPath().hashCode();
+		long first = start / blockSize;
+		long last = (end - 1) / blockSize;
+		BlockLocation[] locations = new BlockLocation[(int) (last - first + 1)];
+		for (long block = first; block <= last; block++) {
+			long offset = block * blockSize;
+			locations[(int) (block - first)] = topology.locate(seed, block,
+					file.getReplication(), offset,
+					Math.min(blockSize, file.getLen() - offset));
+		}
+		return locations;
+	}
+
+	//
+	// Batch operations...
+	//
+
+	/**
+	 * Creates many directories at once. The directories shared by the paths
+	 * are resolved and permission checked once, and the whole batch is
+	 * applied under a single acquisition of the locks it needs.
+	 * <p>
+	 * A batch is not atomic: if a directory cannot be created, the ones
+	 * created before it remain.
+	 * 
+	 * @param paths
+	 *            The directories to be created, with their missing parents.
+	 * @param permission
+	 *            The permission of each created directory.
+	 */
+	public void batchMkdirs(Path[] paths, FsPermission permission)
+			throws IOException {
+		Validate.notNull(paths, "paths == null not allowed!");
+		Path[] absolute = makeAbsolute(paths);
+		checkNotInSnapshot(absolute);
+		operations.incrementWriteOps(absolute.length);
+		trace(TraceRecord.Type.MKDIRS, absolute, false);
+		Namespace ns = getNamespace();
+		Locks locks = lockBatch(ns, absolute);
+		try {
+			Batch batch = new Batch(ns, permission);
+			for (Path path : absolute) {
+				batch.directory(path, true);
+			}
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Creates many small files at once, with the default permission. Missing
+	 * parent directories are created. The directories shared by the paths
+	 * are resolved and permission checked once, and the whole batch is
+	 * applied under a single acquisition of the locks it needs.
+	 * <p>
+	 * A batch is not atomic: if a file cannot be created, the ones created
+	 * before it remain.
+	 * 
+	 * @param files
+	 *            The paths of the files and their content, created in the
+	 *            iteration order of the map.
+	 * @param overwrite
+	 *            If <code>false</code>, an existing file fails the batch.
+	 */
+	public void batchCreate(Map<Path, byte[]> files, boolean overwrite)
+			throws IOException {
+		Validate.notNull(files, "files == null not allowed!");
+		Path[] paths = makeAbsolute(files.keySet().toArray(
+				new Path[files.size()]));
+		checkNotInSnapshot(paths);
+		Path[] parents = new Path[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			parents[i] = paths[i].getParent();
+			Validate.notNull(parents[i], "Cannot create the root directory!");
+		}
+		operations.incrementWriteOps(paths.length);
+		TraceRecorder trace = getTrace();
+		if (trace != null) {
+			int i = 0;
+			for (byte[] bytes : files.values()) {
+				StreamTrace streamTrace = trace.recordStream(
+						TraceRecord.Type.CREATE, paths[i++], overwrite);
+				if (bytes.length > 0) {
+					streamTrace.write(bytes.length);
+				}
+				streamTrace.close();
+			}
+		}
+
+		ContextHandle bound = getHandle();
+		Namespace ns = bound.getNamespace();
+		FsPermission permission = FsPermission.getDefault();
+		int ownerId = ns.getPrincipals().getId(user);
+		long blockSize = getDefaultBlockSize();
+		short replication = getDefaultReplication();
+		Locks locks = lockBatch(ns, parents);
+		try {
+			Batch batch = new Batch(ns, permission);
+			int i = 0;
+			for (byte[] bytes : files.values()) {
+				Path path = paths[i];
+				DirectoryNode dnode = batch.directory(parents[i++], true);
+				batch.checkTraversable(dnode);
+				batch.checkWritable(dnode);
+				Node node = dnode.getChild(path.getName());
+				checkOverwrite(node, path, overwrite);
+
+				FileNode fnode = new FileNode(path.getName(), permission,
+						bound.getContext().getContentStore().newContent());
+				fnode.setOwnerId(ownerId);
+				fnode.setBlockSize(blockSize);
+				fnode.setReplication(replication);
+				FileContent content = fnode.getContent();
+				content.openStream();
+				try {
+					content.write(bytes, 0, bytes.length);
+					content.commit();
+				} finally {
+					content.closeStream();
+				}
+
+				if (node != null) {
+					ns.unlink(dnode, node);
+				}
+				try {
+					ns.link(dnode, fnode, fnode.getName());
+				} catch (QuotaExceededException e) {
+					content.release();
+					if (node != null) {
+						ns.restore(dnode, node);
+					}
+					throw e;
+				}
+				if (node != null) {
+					((FileNode) node).getContent().release();
+				}
+			}
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Deletes many files and directories at once, under a single acquisition
+	 * of the locks of their parents. Paths below another path of a recursive
+	 * batch are deleted with it.
+	 * <p>
+	 * A batch is not atomic: if a path cannot be deleted, the ones deleted
+	 * before it remain deleted.
+	 * 
+	 * @param paths
+	 *            The files and directories to be deleted.
+	 * @param recursive
+	 *            See {@link #delete(Path, boolean)}.
+	 */
+	public void batchDelete(Path[] paths, boolean recursive) throws IOException {
+		Validate.notNull(paths, "paths == null not allowed!");
+		Path[] absolute = makeAbsolute(paths);
+		checkNotInSnapshot(absolute);
+		operations.incrementWriteOps(absolute.length);
+		trace(TraceRecord.Type.DELETE, absolute, recursive);
+		Arrays.sort(absolute);
+		Path[] parents = new Path[absolute.length];
+		for (int i = 0; i < absolute.length; i++) {
+			parents[i] = lockPath(absolute[i]);
+		}
+
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, parents);
+		try {
+			Set<Path> deleted = new HashSet<Path>();
+			for (Path path : absolute) {
+				if (recursive && isDeleted(path, deleted)) {
+					continue;
+				}
+				delete(ns, path, recursive);
+				deleted.add(path);
+			}
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if <code>path</code> or an ancestor is in
+	 *         <code>deleted</code>.
+	 */
+	private static boolean isDeleted(Path path, Set<Path> deleted) {
+		for (Path p = path; p != null; p = p.getParent()) {
+			if (deleted.contains(p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the status of many files and directories at once, under a
+	 * single acquisition of the locks of their parents. The parents shared
+	 * by the paths are resolved once.
+	 * 
+	 * @param paths
+	 *            The files and directories.
+	 * @return the statuses in the order of <code>paths</code>.
+	 * @throws FileNotFoundException
+	 *             If a path does not exist.
+	 */
+	public FileStatus[] batchGetFileStatus(Path[] paths) throws IOException {
+		Validate.notNull(paths, "paths == null not allowed!");
+		Path[] absolute = makeAbsolute(paths);
+		Path[] parents = new Path[absolute.length];
+		for (int i = 0; i < absolute.length; i++) {
+			parents[i] = lockPath(absolute[i]);
+		}
+
+		operations.incrementReadOps(absolute.length);
+		trace(TraceRecord.Type.GET_FILE_STATUS, absolute, false);
+		Namespace ns = getNamespace();
+		FileStatus[] statuses = new FileStatus[absolute.length];
+		Locks locks = ns.lock(false, parents);
+		try {
+			Batch batch = new Batch(ns, null);
+			for (int i = 0; i < absolute.length; i++) {
+				Path path = absolute[i];
+				Node node = null;
+				if (path.getParent() == null) {
+					node = ns.getRoot();
+				} else {
+					DirectoryNode dnode = batch.directory(path.getParent(),
+							false);
+					if (dnode != null) {
+						batch.checkTraversable(dnode);
+						node = dnode.getChild(path.getName());
+					}
+				}
+				if (node == null) {
+					throw new FileNotFoundException("'" + path + "' not found!");
+				}
+				statuses[i] = getFileStatus(ns, node, path);
+			}
+		} finally {
+			locks.release();
+		}
+		return statuses;
+	}
+
+	private Path[] makeAbsolute(Path[] paths) {
+		Path[] absolute = new Path[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			absolute[i] = makeAbsolute(paths[i]);
+		}
+		return absolute;
+	}
+
+	/**
+	 * Write locks the deepest existing directory on each of
+	 * <code>directories</code>, under which the missing directories of a batch
+	 * are created. The locks are acquired at once; if a locked directory has
+	 * been deleted in between, they are released and acquired again.
+	 */
+	private Locks lockBatch(Namespace ns, Path[] directories) {
+		while (true) {
+			Set<Path> existing = new HashSet<Path>();
+			for (Path directory : directories) {
+				Path ancestor = directory;
+				while (ancestor.getParent() != null
+						&& !(ns.get(ancestor) instanceof DirectoryNode)) {
+					ancestor = ancestor.getParent();
+				}
+				existing.add(ancestor);
+			}
+
+			Locks locks = ns.lock(true,
+					existing.toArray(new Path[existing.size()]));
+			boolean valid = true;
+			for (Path directory : existing) {
+				valid &= ns.get(directory) instanceof DirectoryNode;
+			}
+			if (valid) {
+				return locks;
+			}
+			locks.release();
+		}
+	}
+
+	/**
+	 * The directories resolved by a batch operation. Each directory is looked
+	 * up, created or permission checked at most once per batch.
+	 */
+	private final class Batch {
+		private final Namespace ns;
+		private final FsPermission permission;
+		private final Map<Path, DirectoryNode> directories = new HashMap<Path, DirectoryNode>();
+		private final Set<DirectoryNode> writable = new HashSet<DirectoryNode>();
+		private final Set<DirectoryNode> traversable = new HashSet<DirectoryNode>();
+
+		Batch(Namespace ns, FsPermission permission) {
+			this.ns = ns;
+			this.permission = permission;
+		}
+
+		/**
+		 * Resolves a directory, creating it and its missing parents if
+		 * <code>create</code> is <code>true</code>.
+		 * 
+		 * @return the directory or <code>null</code> if it does not exist and
+		 *         is not created.
+		 */
+		DirectoryNode directory(Path path, boolean create) throws IOException {
+			DirectoryNode dnode = directories.get(path);
+			if (dnode != null) {
+				return dnode;
+			}
+			if (path.getParent() == null) {
+				dnode = ns.getRoot();
+			} else {
+				DirectoryNode parent = directory(path.getParent(), create);
+				if (parent == null) {
+					return null;
+				}
+				checkTraversable(parent);
+				Node node = parent.getChild(path.getName());
+				if (node instanceof DirectoryNode) {
+					dnode = (DirectoryNode) node;
+				} else if (node != null) {
+					throw new IOException("'" + path + "' is not a directory!");
+				} else if (!create) {
+					return null;
+				} else {
+					checkWritable(parent);
+					dnode = new DirectoryNode(path.getName(), permission);
+					dnode.setOwnerId(ns.getPrincipals().getId(user));
+					ns.link(parent, dnode, dnode.getName());
+					writable.add(dnode);
+				}
+			}
+			directories.put(path, dnode);
+			return dnode;
+		}
+
+		/**
+		 * Checks the execute permission of a directory, once per batch.
+		 */
+		void checkTraversable(DirectoryNode dnode) throws IOException {
+			if (!traversable.contains(dnode)) {
+				if (!getIdentity(ns).permits(dnode, Identity.EXECUTE)) {
+					throw new IOException("Permission denied!");
+				}
+				traversable.add(dnode);
+			}
+		}
+
+		/**
+		 * Checks the write permission of a directory, once per batch.
+		 */
+		void checkWritable(DirectoryNode dnode) throws IOException {
+			if (!writable.contains(dnode)) {
+				checkPermission(ns, dnode, FsAction.WRITE);
+				writable.add(dnode);
+			}
+		}
+	}
+
+	/**
+	 * Returns the summary of a file or directory in constant time from the
+	 * aggregates maintained by the directories, rather than by listing the
+	 * whole sub-tree.
+	 * 
+	 * @param path
+	 *            the file or directory to be summarized.
+	 * @return the length, the number of files and the number of directories,
+	 *         including the directory itself, below <code>path</code>. The
+	 *         space consumed is the length, replicas are not counted.
+	 */
+	@Override
+	public ContentSummary getContentSummary(Path path) throws IOException {
+		path = makeAbsolute(path);
+		operations.incrementReadOps(1);
+		trace(TraceRecord.Type.GET_CONTENT_SUMMARY, path, false);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(false, lockPath(path));
+		try {
+			Node node = getNode(ns, path, true);
+			if (node instanceof FileNode) {
+				return new ContentSummary(((FileNode) node).getLength(), 1, 0);
+			}
+			DirectoryNode dnode = (DirectoryNode) node;
+			Quota quota = dnode.getQuota();
+			return new ContentSummary(dnode.getLength(),
+					dnode.getFileCount(), dnode.getDirectoryCount() + 1,
+					(quota == null) ? Quota.NONE : quota.namespace,
+					dnode.getLength(), (quota == null) ? Quota.NONE
+							: quota.space);
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * @return the committed bytes of all files in the file system, in
+	 *         constant time.
+	 */
+	@Override
+	public long getUsed() throws IOException {
+		return getNamespace().getRoot().getLength();
+	}
+
+	/**
+	 * Sets the quotas of a directory, like <code>dfsadmin -setQuota</code>
+	 * and <code>-setSpaceQuota</code>. The namespace quota limits the number
+	 * of files and directories below the directory, including the directory
+	 * itself. The space quota limits the committed and written bytes of the
+	 * files below the directory, counted once whatever the replication of the
+	 * files, unlike HDFS. Operations which would exceed a quota fail
+	 * with a {@link QuotaExceededException}.
+	 * 
+	 * @param path
+	 *            The directory.
+	 * @param namespaceQuota
+	 *            The namespace quota, {@link #QUOTA_DONT_SET} or
+	 *            {@link #QUOTA_RESET}.
+	 * @param spaceQuota
+	 *            The space quota in bytes, {@link #QUOTA_DONT_SET} or
+	 *            {@link #QUOTA_RESET}.
+	 */
+	public void setQuota(Path path, long namespaceQuota, long spaceQuota)
+			throws IOException {
+		Validate.isTrue(namespaceQuota > 0 || namespaceQuota == QUOTA_RESET,
+				"Invalid namespace quota: " + namespaceQuota);
+		Validate.isTrue(spaceQuota >= 0 || spaceQuota == QUOTA_RESET,
+				"Invalid space quota: " + spaceQuota);
+		path = makeAbsolute(path);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.SET_QUOTA, path, namespaceQuota, spaceQuota);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, lockPath(path));
+		try {
+			Node node = getNode(ns, path, true);
+			if (!(node instanceof DirectoryNode)) {
+				throw new IOException("'" + path + "' is not a directory!");
+			}
+			ns.setQuota((DirectoryNode) node, namespaceQuota, spaceQuota);
+		} finally {
+			locks.release();
+		}
+	}
+
 	/**
 	 * Set owner of a path (i.e. a file or a directory). The parameters username
 	 * and groupname cannot both be null.
@@ -787,9 +2132,256 @@ public class InMemoryFileSystem extends FileSystem {
 			throws IOException {
 		//TODO: Add argument checks for username and groupname
 		path = makeAbsolute(path);
-		Node node = getNode(path, true);
-		node.setOwner(username);
-		node.setGroup(groupname);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.SET_OWNER, path, username, groupname);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, lockPath(path));
+		try {
+			Node node = getNode(ns, path, true);
+			if (username != null) {
+				node.setOwnerId(ns.getPrincipals().getId(username));
+			}
+			if (groupname != null) {
+				node.setGroupId(ns.getPrincipals().getId(groupname));
+			}
+			ns.modified(node);
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Set permission of a path (i.e. a file or a directory).
+	 * 
+	 * @param path
+	 *            The path
+	 * @param permission
+	 *            The permission, defaults to {@link #DEFAULT_PERMISSION} if
+	 *            <code>null</code>.
+	 */
+	@Override
+	public void setPermission(Path path, FsPermission permission)
+			throws IOException {
+		path = makeAbsolute(path);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.SET_PERMISSION, path,
+				(permission == null) ? DEFAULT_PERMISSION : permission
+						.toShort(), 0);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, lockPath(path));
+		try {
+			Node node = getNode(ns, path, true);
+			node.setPermissions(permission);
+			ns.modified(node);
+		} finally {
+			locks.release();
+		}
+	}
+
+	//
+	// Snapshots...
+	//
+
+	/**
+	 * Allows snapshots of a directory, like
+	 * <code>hdfs dfsadmin -allowSnapshot</code>. Snapshottable directories
+	 * may not be nested.
+	 * 
+	 * @param path
+	 *            The directory.
+	 */
+	public void allowSnapshot(Path path) throws IOException {
+		path = makeAbsolute(path);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.ALLOW_SNAPSHOT, path, false);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, path);
+		try {
+			DirectoryNode dnode = getDirectoryNode(ns, path);
+			checkPermission(ns, dnode, FsAction.WRITE);
+			ns.allowSnapshot(dnode);
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Disallows snapshots of a directory whose snapshots have all been
+	 * deleted, like <code>hdfs dfsadmin -disallowSnapshot</code>.
+	 * 
+	 * @param path
+	 *            The directory.
+	 */
+	public void disallowSnapshot(Path path) throws IOException {
+		path = makeAbsolute(path);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.DISALLOW_SNAPSHOT, path, false);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, path);
+		try {
+			DirectoryNode dnode = getDirectoryNode(ns, path);
+			checkPermission(ns, dnode, FsAction.WRITE);
+			ns.disallowSnapshot(dnode);
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Creates a snapshot named after the current time, like HDFS.
+	 * 
+	 * @see #createSnapshot(Path, String)
+	 */
+	public Path createSnapshot(Path path) throws IOException {
+		return createSnapshot(path,
+				new SimpleDateFormat("'s'yyyyMMdd-HHmmss.SSS")
+						.format(new Date()));
+	}
+
+	/**
+	 * Creates a snapshot of a snapshottable directory, in constant time. The
+	 * snapshot is read-only and shares the files and directories which have
+	 * not changed since with the directory, see {@link Snapshots}. Unlike
+	 * HDFS, a snapshot cannot be created while a file is open for writing.
+	 * 
+	 * @param path
+	 *            The snapshottable directory.
+	 * @param snapshotName
+	 *            The name of the snapshot.
+	 * @return the path of the snapshot, <code>path/.snapshot/snapshotName</code>.
+	 */
+	public Path createSnapshot(Path path, String snapshotName)
+			throws IOException {
+		checkSnapshotName(snapshotName);
+		path = makeAbsolute(path);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.CREATE_SNAPSHOT, path, snapshotName, null);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, path);
+		try {
+			DirectoryNode dnode = getDirectoryNode(ns, path);
+			checkPermission(ns, dnode, FsAction.WRITE);
+			ns.createSnapshot(dnode, snapshotName);
+		} finally {
+			locks.release();
+		}
+		return new Path(new Path(path, Snapshots.DIRECTORY_NAME), snapshotName);
+	}
+
+	/**
+	 * Renames a snapshot of a snapshottable directory.
+	 */
+	public void renameSnapshot(Path path, String snapshotOldName,
+			String snapshotNewName) throws IOException {
+		checkSnapshotName(snapshotNewName);
+		path = makeAbsolute(path);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.RENAME_SNAPSHOT, path, snapshotOldName,
+				snapshotNewName);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, path);
+		try {
+			DirectoryNode dnode = getDirectoryNode(ns, path);
+			checkPermission(ns, dnode, FsAction.WRITE);
+			ns.renameSnapshot(dnode, snapshotOldName, snapshotNewName);
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Deletes a snapshot of a snapshottable directory. The files and
+	 * directories only the snapshot held are released.
+	 */
+	public void deleteSnapshot(Path path, String snapshotName)
+			throws IOException {
+		path = makeAbsolute(path);
+		checkNotInSnapshot(path);
+		operations.incrementWriteOps(1);
+		trace(TraceRecord.Type.DELETE_SNAPSHOT, path, snapshotName, null);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(true, path);
+		try {
+			DirectoryNode dnode = getDirectoryNode(ns, path);
+			checkPermission(ns, dnode, FsAction.WRITE);
+			ns.deleteSnapshot(dnode, snapshotName);
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Reports the differences between two snapshots of a snapshottable
+	 * directory, like <code>hdfs snapshotDiff</code>. The report is computed
+	 * from the changes recorded since the earlier snapshot, not by comparing
+	 * the trees, see {@link Snapshots}.
+	 * 
+	 * @param path
+	 *            The snapshottable directory.
+	 * @param fromSnapshot
+	 *            The earlier snapshot.
+	 * @param toSnapshot
+	 *            The later snapshot, <code>null</code> or the empty string
+	 *            for the current state of the directory.
+	 */
+	public SnapshotDiffReport getSnapshotDiffReport(Path path,
+			String fromSnapshot, String toSnapshot) throws IOException {
+		Validate.notNull(fromSnapshot, "fromSnapshot == null not allowed!");
+		if (toSnapshot != null && toSnapshot.length() == 0) {
+			toSnapshot = null;
+		}
+		path = makeAbsolute(path);
+		operations.incrementReadOps(1);
+		trace(TraceRecord.Type.SNAPSHOT_DIFF, path, fromSnapshot, toSnapshot);
+		Namespace ns = getNamespace();
+		Locks locks = ns.lock(false, path);
+		try {
+			DirectoryNode dnode = getDirectoryNode(ns, path);
+			checkPermission(ns, dnode, FsAction.READ);
+			return new SnapshotDiffReport(path, fromSnapshot, toSnapshot,
+					ns.diff(dnode, fromSnapshot, toSnapshot));
+		} finally {
+			locks.release();
+		}
+	}
+
+	private static void checkSnapshotName(String name) {
+		Validate.notEmpty(name, "snapshotName == null or empty not allowed!");
+		Validate.isTrue(
+				name.indexOf('/') < 0 && !name.equals(".")
+						&& !name.equals(".."), "Invalid snapshot name: "
+						+ name);
+	}
+
+	/**
+	 * @throws IOException
+	 *             If <code>path</code> is in a snapshot, which is read-only,
+	 *             or uses the name reserved for snapshots.
+	 */
+	private static void checkNotInSnapshot(Path path) throws IOException {
+		String name = path.toUri().getPath();
+		String reserved = "/" + Snapshots.DIRECTORY_NAME;
+		int index = name.indexOf(reserved);
+		while (index >= 0) {
+			int end = index + reserved.length();
+			if (end == name.length() || name.charAt(end) == '/') {
+				throw new IOException("'" + path
+						+ "' is in a read-only snapshot!");
+			}
+			index = name.indexOf(reserved, end);
+		}
+	}
+
+	private static void checkNotInSnapshot(Path[] paths) throws IOException {
+		for (Path path : paths) {
+			checkNotInSnapshot(path);
+		}
 	}
 
 	/**
@@ -825,5 +2417,6 @@ public class InMemoryFileSystem extends FileSystem {
 			}
 			this.userGroups = Collections.unmodifiableSet(set);
 		}
+		this.identity = null;
 	}
 }
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.List;
+
+/**
+ * The JMX interface of the metrics of one file system context, registered as
+ * <code>ras.test.hadoop.fs:type=InMemoryFileSystem,context=&lt;id&gt;</code>
+ * while the context lives if {@link InMemoryFileSystem#METRICS_KEY} is
+ * enabled.
+ */
+public interface InMemoryFileSystemMXBean {
+
+	/**
+	 * @return the number of input and output streams open on the files of
+	 *         the context.
+	 */
+	int getOpenStreams();
+
+	/**
+	 * @return the number of files and directories, including the roots, of
+	 *         all file systems of the context.
+	 */
+	long getInodeCount();
+
+	/**
+	 * @return the committed bytes of all files of the context.
+	 */
+	long getStoredBytes();
+
+	/**
+	 * @return the bytes of file content held in memory, which excludes
+	 *         spilled content and includes the unused capacity of chunks.
+	 */
+	long getResidentBytes();
+
+	/**
+	 * @return the calls and latencies of each operation.
+	 */
+	List<OperationMetrics> getOperations();
+}
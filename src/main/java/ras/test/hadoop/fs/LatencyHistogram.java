@@ -0,0 +1,61 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds with a bucket per power
+ * of two: bucket <code>i</code> counts the latencies in
+ * <code>[2<sup>i-1</sup>, 2<sup>i</sup>)</code>, bucket 0 counts zero. This
+ * is coarse, but recording takes a few atomic increments and the buckets
+ * cover every latency.
+ */
+final class LatencyHistogram {
+
+	static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	void record(long nanos) {
+		buckets.incrementAndGet(bucket(nanos));
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	/**
+	 * @return the counts recorded so far. The snapshot is not atomic, a
+	 *         latency recorded concurrently may be missing from some values.
+	 */
+	OperationMetrics snapshot(Operation operation) {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = buckets.get(i);
+		}
+		return new OperationMetrics(operation, counts, totalNanos.get(),
+				maxNanos.get());
+	}
+
+	static int bucket(long nanos) {
+		return (nanos <= 0) ? 0 : Long.SIZE - Long.numberOfLeadingZeros(nanos);
+	}
+}
@@ -15,37 +15,52 @@
  */
 package ras.test.hadoop.fs;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 
 import org.apache.hadoop.fs.FSInputStream;
 
 
 /**
- * An input stream which wraps {@link ByteArrayInputStream} and implements the
- * Hadoop file system input stream interface.
+ * An input stream which reads the chunked content of a {@link FileNode} and
+ * implements the Hadoop file system input stream interface.
+ * 
+ * The stream sees the content committed at the time it was opened. Bulk and
+ * positional reads copy directly from the content chunks. Positional reads do
+ * not touch the stream position and take no locks, so they may be issued
+ * concurrently on the same stream. The bytes read are counted by the
+ * {@link StreamStatistics} of the stream, and the reads are recorded by its
+ * {@link StreamTrace} if the context is traced.
  * 
  * This class is package private since it's only purpose is to support
  * {@link InMemoryFileSystem}.
  */
 class MemoryInputStream extends FSInputStream {
-	private final MyByteArrayInputStream bais;
+	private final FileContent content;
+	private final long length;
 	private final FileNode fileNode;
+	private final StreamStatistics statistics;
+	private final StreamTrace trace;
+	private long pos = 0;
+	private volatile boolean closed = false;
 
-	MemoryInputStream(FileNode fileNode) {
-		this.bais = new MyByteArrayInputStream(fileNode.bytes);
+	MemoryInputStream(FileNode fileNode, FileContent content,
+			StreamStatistics statistics, StreamTrace trace) {
+		this.content = content;
+		this.length = content.length();
 		this.fileNode = fileNode;
+		this.statistics = statistics;
+		this.trace = trace;
 	}
 
 	@Override
 	public void seek(long pos) throws IOException {
-		this.bais.reset();
-		this.bais.skip(pos);
+		this.pos = Math.min(Math.max(pos, 0), length);
 	}
 
 	@Override
 	public long getPos() throws IOException {
-		return this.bais.getPos();
+		return this.pos;
 	}
 
 	/**
@@ -61,28 +76,130 @@ class MemoryInputStream extends FSInputStream {
 
 	@Override
 	public int read() throws IOException {
-		if (!this.fileNode.isOpen()) {
-			throw new IOException("File is closed: " + this.fileNode.getPath());
+		checkOpen();
+		if (pos >= length) {
+			return -1;
+		}
+		this.statistics.add(1);
+		if (trace != null) {
+			trace.read(pos, 1);
 		}
-		return this.bais.read();
+		return this.content.read(pos++);
 	}
 
 	@Override
-	public void close() throws IOException {
-		this.fileNode.setOpen(false);
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		checkRange(b, off, len);
+		if (len == 0) {
+			return 0;
+		}
+		if (pos >= length) {
+			return -1;
+		}
+		int count = (int) Math.min(len, length - pos);
+		this.content.read(pos, b, off, count);
+		this.statistics.add(count);
+		if (trace != null) {
+			trace.read(pos, count);
+		}
+		pos += count;
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		checkOpen();
+		long count = Math.max(0, Math.min(n, length - pos));
+		pos += count;
+		return count;
+	}
+
+	/**
+	 * Reads up to <code>len</code> bytes starting at <code>position</code>
+	 * without changing the position of the stream.
+	 */
+	@Override
+	public int read(long position, byte[] b, int off, int len)
+			throws IOException {
+		checkOpen();
+		checkRange(b, off, len);
+		if (position < 0) {
+			throw new IOException("Negative position: " + position);
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (position >= length) {
+			return -1;
+		}
+		int count = (int) Math.min(len, length - position);
+		this.content.read(position, b, off, count);
+		this.statistics.addConcurrent(count);
+		if (trace != null) {
+			trace.positionalRead(position, count);
+		}
+		return count;
 	}
 
 	/**
-	 * Extend ByteArrayInputStream to get access to protected state.
+	 * Reads exactly <code>len</code> bytes starting at <code>position</code>
+	 * without changing the position of the stream.
+	 * 
+	 * @throws EOFException
+	 *             If the file ends before <code>len</code> bytes are read.
 	 */
-	private class MyByteArrayInputStream extends ByteArrayInputStream {
+	@Override
+	public void readFully(long position, byte[] b, int off, int len)
+			throws IOException {
+		checkOpen();
+		checkRange(b, off, len);
+		if (position < 0) {
+			throw new IOException("Negative position: " + position);
+		}
+		if (position + len > length) {
+			throw new EOFException("End of file reached before reading fully: "
+					+ this.fileNode.getPath());
+		}
+		this.content.read(position, b, off, len);
+		this.statistics.addConcurrent(len);
+		if (trace != null) {
+			trace.positionalRead(position, len);
+		}
+	}
 
-		public MyByteArrayInputStream(byte[] buf) {
-			super(buf);
+	@Override
+	public void readFully(long position, byte[] b) throws IOException {
+		readFully(position, b, 0, b.length);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, length - pos);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			this.statistics.flush();
+			if (trace != null) {
+				trace.close();
+			}
+			this.content.closeStream();
+			this.fileNode.closeReader();
 		}
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("File is closed: " + this.fileNode.getPath());
+		}
+	}
 
-		public int getPos() {
-			return pos;
+	private static void checkRange(byte[] b, int off, int len) {
+		if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+			throw new IndexOutOfBoundsException();
 		}
 	}
-}
\ No newline at end of file
+}
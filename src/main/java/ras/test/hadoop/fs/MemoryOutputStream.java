@@ -15,44 +15,81 @@
  */
 package ras.test.hadoop.fs;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 
 /**
- * Wraps a ByteArrayOutputStream as an OutputStream for the purpose of being
- * wrapped in a FSDataOutputStream
+ * An OutputStream which appends to the chunked content of a {@link FileNode}
+ * for the purpose of being wrapped in a FSDataOutputStream. The bytes written
+ * are published to readers when the stream is closed.
  */
 class MemoryOutputStream extends OutputStream {
-	private ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	private FileContent content;
 	private final FileNode fileNode;
+	private final Namespace namespace;
+	private final StreamStatistics statistics;
+	private final StreamTrace trace;
 
-	MemoryOutputStream(FileNode fileNode) {
+	/** The bytes reserved against space quotas, committed when closed. */
+	private final Map<Quota, Long> reserved = new HashMap<Quota, Long>();
+
+	MemoryOutputStream(FileNode fileNode, Namespace namespace,
+			StreamStatistics statistics, StreamTrace trace) {
 		this.fileNode = fileNode;
-		try {
-			baos.write(fileNode.bytes);
-		} catch (IOException e) {
-			// This should never happen
-			throw new RuntimeException("Unexpected error: "
-					+ e.getLocalizedMessage(), e);
-		}
+		this.namespace = namespace;
+		this.statistics = statistics;
+		this.trace = trace;
+		this.content = fileNode.getContent();
 	}
 
 	@Override
 	public void write(int b) throws IOException {
-		if (baos == null) {
+		if (content == null) {
+			throw new IOException("File closed!");
+		}
+		this.namespace.reserve(fileNode, 1, reserved);
+		this.content.write(b);
+		this.statistics.add(1);
+		if (trace != null) {
+			trace.write(1);
+		}
+	}
+
+	/**
+	 * Appends <code>len</code> bytes directly to the file content without
+	 * going through {@link #write(int)} for each byte.
+	 */
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (content == null) {
 			throw new IOException("File closed!");
 		}
-		this.baos.write(b);
+		if ((off | len | (off + len) | (b.length - (off + len))) < 0) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.namespace.reserve(fileNode, len, reserved);
+		this.content.write(b, off, len);
+		this.statistics.add(len);
+		if (trace != null) {
+			trace.write(len);
+		}
 	}
 
 	@Override
 	public void close() throws IOException {
-		if (baos != null) {
-			this.fileNode.bytes = baos.toByteArray();
-			this.fileNode.setOpen(false);
-			baos = null;
+		if (content != null) {
+			this.namespace.commit(fileNode, reserved);
+			this.namespace.closeWriter(fileNode);
+			this.statistics.flush();
+			if (trace != null) {
+				trace.close();
+			}
+			this.content.closeStream();
+			this.fileNode.closeWriter();
+			content = null;
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,905 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import ras.test.hadoop.fs.SnapshotDiffReport.DiffReportEntry;
+import ras.test.hadoop.fs.SnapshotDiffReport.DiffType;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * The namespace of one file system within a context: a tree of nodes rooted
+ * at the root directory. A path is resolved by walking the tree one name at a
+ * time, and a node's path is derived from its ancestors, so moving a directory
+ * is a constant time re-link regardless of the size of its sub-tree.
+ * <p>
+ * Lookups take no locks. Operations which need a consistent
+ * view of a directory use the read-write lock of its {@link DirectoryNode}
+ * through {@link #lock(boolean, Path...)}: every directory from the root down
+ * to the directories an operation works on is locked, the ancestors for
+ * reading and the directories themselves for reading or writing. Since the
+ * children of a directory only change while it is write locked, operations on
+ * disjoint subtrees proceed in parallel while an operation which changes a
+ * directory excludes all operations below it.
+ */
+class Namespace {
+
+	/** The root directory path. */
+	static final Path ROOT_PATH = new Path("/");
+
+	private final DirectoryNode root;
+
+	private final PrincipalDictionary principals;
+
+	/** The files of the namespace with an open output stream. */
+	private final Set<FileNode> writers = Collections
+			.newSetFromMap(new ConcurrentHashMap<FileNode, Boolean>());
+
+	/** Guards all quotas of the namespace. */
+	private final Object quotaLock = new Object();
+
+	/** The number of directories with a quota, guarded by the quota lock. */
+	private volatile int quotas = 0;
+
+	/** The number of snapshottable directories. */
+	private final AtomicInteger snapshottable = new AtomicInteger();
+
+	/**
+	 * @param principals
+	 *            The dictionary of user and group names of the context.
+	 */
+	Namespace(PrincipalDictionary principals) {
+		this(principals, new DirectoryNode("", new FsPermission(
+				InMemoryFileSystem.DEFAULT_PERMISSION)));
+	}
+
+	private Namespace(PrincipalDictionary principals, DirectoryNode root) {
+		this.principals = principals;
+		this.root = root;
+	}
+
+	/**
+	 * Forks this namespace in constant time: the current tree is frozen and
+	 * both this namespace and the fork continue with a shadow of it, see
+	 * {@link DirectoryNode}. Directories are copied when they are first
+	 * changed, and file content when it is appended to, so each side only
+	 * duplicates what it changes. The caller must hold the write lock of the
+	 * root.
+	 * 
+	 * @param principals
+	 *            The dictionary of the fork, a copy of the dictionary of this
+	 *            namespace so the ids of the nodes keep their names.
+	 */
+	Namespace fork(PrincipalDictionary principals) {
+		DirectoryNode forkRoot = root.freeze().shadow();
+		// The root may have changed since its source was frozen...
+		forkRoot.copyMetadata(root);
+		Snapshots snapshots = root.getSnapshots();
+		if (snapshots != null) {
+			forkRoot.setSnapshots(snapshots.copy(forkRoot));
+		}
+		Namespace fork = new Namespace(principals, forkRoot);
+		fork.quotas = quotas;
+		fork.snapshottable.set(snapshottable.get());
+		return fork;
+	}
+
+	/**
+	 * Releases the content of the files of the namespace which are not open.
+	 * Frozen sub-trees are only released once no fork needs them.
+	 */
+	void release() {
+		root.unclaim();
+	}
+
+	/**
+	 * @param operation
+	 *            The operation which freezes the namespace, for the message.
+	 * @throws IOException
+	 *             If a file of the namespace is open for writing, which
+	 *             prevents a fork or a snapshot.
+	 */
+	void checkNoWriters(String operation) throws IOException {
+		checkNoWriters(operation, null);
+	}
+
+	/**
+	 * @param operation
+	 *            The operation which freezes <code>dir</code>, for the
+	 *            message.
+	 * @param dir
+	 *            The directory which is frozen, <code>null</code> for the
+	 *            whole namespace.
+	 * @throws IOException
+	 *             If a file below <code>dir</code> is open for writing. The
+	 *             caller must hold the write lock of <code>dir</code>, so no
+	 *             file is moved below it meanwhile.
+	 */
+	void checkNoWriters(String operation, DirectoryNode dir)
+			throws IOException {
+		int open = 0;
+		for (FileNode writer : writers) {
+			if (dir == null || isBelow(writer, dir)) {
+				open++;
+			}
+		}
+		if (open > 0) {
+			throw new IOException("Cannot " + operation + " while " + open
+					+ " file(s) are open for writing!");
+		}
+	}
+
+	private static boolean isBelow(Node node, DirectoryNode dir) {
+		for (Node parent = node.getParent(); parent != null; parent = parent
+				.getParent()) {
+			if (parent == dir) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void openWriter(FileNode file) {
+		writers.add(file);
+	}
+
+	void closeWriter(FileNode file) {
+		writers.remove(file);
+	}
+
+	/**
+	 * @return the dictionary of the owner and group ids of the nodes.
+	 */
+	PrincipalDictionary getPrincipals() {
+		return principals;
+	}
+
+	/**
+	 * @return the root directory.
+	 */
+	DirectoryNode getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the node to which <code>path</code> maps or <code>null</code>.
+	 */
+	Node get(Path path) {
+		return get(path.toUri().getPath());
+	}
+
+	private Node get(String path) {
+		Node node = root;
+		int start = 1;
+		while (start < path.length()) {
+			if (!(node instanceof DirectoryNode)) {
+				return null;
+			}
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			node = child((DirectoryNode) node, path.substring(start, end));
+			if (node == null) {
+				return null;
+			}
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * Walks from the root to <code>path</code> like {@link #get(Path)}, and
+	 * checks that <code>identity</code> may traverse every directory it looks
+	 * into on the way, which is the execute permission.
+	 * 
+	 * @param deepest
+	 *            If <code>true</code>, returns the deepest existing node on
+	 *            <code>path</code> rather than <code>null</code> if
+	 *            <code>path</code> does not exist.
+	 * @return the node to which <code>path</code> maps, see
+	 *         <code>deepest</code>.
+	 * @throws IOException
+	 *             If a directory on the path may not be traversed.
+	 */
+	Node resolve(Path path, Identity identity, boolean deepest)
+			throws IOException {
+		String name = path.toUri().getPath();
+		Node node = root;
+		int start = 1;
+		while (start < name.length()) {
+			if (!(node instanceof DirectoryNode)) {
+				return deepest ? node : null;
+			}
+			if (!identity.permits(node, Identity.EXECUTE)) {
+				throw new IOException("Permission denied!");
+			}
+			int end = name.indexOf('/', start);
+			if (end < 0) {
+				end = name.length();
+			}
+			Node child = child((DirectoryNode) node, name.substring(start, end));
+			if (child == null) {
+				return deepest ? node : null;
+			}
+			node = child;
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * Resolves <code>path</code> like {@link #get(Path)}, but copies each node
+	 * on the path which its directory only refers to, see
+	 * {@link DirectoryNode}, so the node belongs to this namespace and may be
+	 * changed. The caller must hold the locks of the directories above
+	 * <code>path</code>.
+	 */
+	private Node own(String path) {
+		Node node = root;
+		int start = 1;
+		while (start < path.length()) {
+			if (!(node instanceof DirectoryNode)) {
+				return null;
+			}
+			DirectoryNode dir = (DirectoryNode) node;
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			String name = path.substring(start, end);
+			node = dir.own(name);
+			if (node == null) {
+				node = child(dir, name);
+			}
+			if (node == null) {
+				return null;
+			}
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * @return the child <code>name</code> of <code>dir</code>, or the
+	 *         directory of its snapshots, or <code>null</code>.
+	 */
+	static Node child(DirectoryNode dir, String name) {
+		Node child = dir.getChild(name);
+		if (child == null && Snapshots.DIRECTORY_NAME.equals(name)) {
+			Snapshots snapshots = dir.getSnapshots();
+			if (snapshots != null) {
+				return snapshots.getDirectory();
+			}
+		}
+		return child;
+	}
+
+	boolean contains(Path path) {
+		return get(path) != null;
+	}
+
+	/**
+	 * Locks the directories on the paths from the root to each of
+	 * <code>directories</code>. The given directories are write locked if
+	 * <code>write</code> is <code>true</code>, all other directories are read
+	 * locked. Directories that do not exist, or are files, are skipped.
+	 * <p>
+	 * When locking for writing, the directories are resolved with
+	 * {@link #own(String)}, so the directories locked belong to this
+	 * namespace. The write locked directories copy a child when it is looked
+	 * up, see {@link DirectoryNode}.
+	 * <p>
+	 * Locks are always acquired in the order of their path strings. A parent
+	 * path is a prefix of its child paths, so parents are locked before their
+	 * children and every operation follows the same global order, which rules
+	 * out deadlocks.
+	 * 
+	 * @return the locks, which must be released by the caller.
+	 */
+	Locks lock(boolean write, Path... directories) {
+		Map<String, Boolean> order = new TreeMap<String, Boolean>();
+		for (Path directory : directories) {
+			if (directory == null) {
+				continue;
+			}
+			order.put(directory.toUri().getPath(), write);
+			for (Path ancestor = directory.getParent(); ancestor != null; ancestor = ancestor
+					.getParent()) {
+				String key = ancestor.toUri().getPath();
+				if (!order.containsKey(key)) {
+					order.put(key, Boolean.FALSE);
+				}
+			}
+		}
+
+		Locks locks = new Locks();
+		for (Map.Entry<String, Boolean> entry : order.entrySet()) {
+			Node node = write ? own(entry.getKey()) : get(entry.getKey());
+			if (node instanceof DirectoryNode) {
+				DirectoryNode dnode = (DirectoryNode) node;
+				locks.acquire(entry.getValue() ? dnode.getLock().writeLock()
+						: dnode.getLock().readLock());
+			}
+		}
+		return locks;
+	}
+
+	/**
+	 * Links <code>node</code> into <code>parent</code> under
+	 * <code>name</code> and adds it to the aggregates of <code>parent</code>
+	 * and its ancestors. The caller must hold the write lock of
+	 * <code>parent</code>.
+	 * 
+	 * @throws QuotaExceededException
+	 *             If the node would exceed the quota of an ancestor, in which
+	 *             case it is not linked.
+	 */
+	void link(DirectoryNode parent, Node node, String name)
+			throws QuotaExceededException {
+		attach(parent, node, name);
+		record(DiffType.CREATE, parent, name);
+	}
+
+	private void attach(DirectoryNode parent, Node node, String name)
+			throws QuotaExceededException {
+		if (!hasQuota(parent)) {
+			parent.addChild(node, name);
+			propagate(parent, node, 1);
+			return;
+		}
+		synchronized (quotaLock) {
+			long names = (node instanceof FileNode) ? 1
+					: ((DirectoryNode) node).getNameCount();
+			long bytes = (node instanceof FileNode) ? ((FileNode) node)
+					.getLength() : ((DirectoryNode) node).getLength();
+			for (DirectoryNode dir = parent; dir != null; dir = dir.getParent()) {
+				checkQuota(dir, names, bytes);
+			}
+			parent.addChild(node, name);
+			propagate(parent, node, 1);
+		}
+	}
+
+	/**
+	 * Links <code>node</code> back into <code>parent</code> after the
+	 * operation which unlinked it has failed. Quotas are not checked since the
+	 * node was counted before, and the delete recorded for the snapshots is
+	 * dropped.
+	 */
+	void restore(DirectoryNode parent, Node node) {
+		parent.addChild(node);
+		propagate(parent, node, 1);
+		if (snapshottable.get() == 0) {
+			return;
+		}
+		DirectoryNode dir = snapshottableAncestor(parent);
+		if (dir != null) {
+			dir.getSnapshots().cancelDelete(
+					relativePath(dir, parent, node.getName()));
+		}
+	}
+
+	/**
+	 * Unlinks <code>node</code> from <code>parent</code> and removes it from
+	 * the aggregates of <code>parent</code> and its ancestors. The caller must
+	 * hold the write lock of <code>parent</code>.
+	 */
+	void unlink(DirectoryNode parent, Node node) {
+		record(DiffType.DELETE, parent, node.getName());
+		parent.removeChild(node.getName());
+		propagate(parent, node, -1);
+	}
+
+	/**
+	 * Moves <code>node</code> from <code>parent</code> to
+	 * <code>target</code> under <code>name</code>, a constant time re-link
+	 * which the paths of its descendants follow. A move within a
+	 * snapshottable directory is recorded as a rename by its snapshots. The
+	 * caller must hold the write locks of both directories.
+	 * 
+	 * @throws QuotaExceededException
+	 *             If the node would exceed the quota of an ancestor of
+	 *             <code>target</code>, in which case it is not moved.
+	 */
+	void move(DirectoryNode parent, Node node, DirectoryNode target,
+			String name) throws QuotaExceededException {
+		String from = node.getName();
+		parent.removeChild(from);
+		propagate(parent, node, -1);
+		try {
+			attach(target, node, name);
+		} catch (QuotaExceededException e) {
+			parent.addChild(node, from);
+			propagate(parent, node, 1);
+			throw e;
+		}
+		if (snapshottable.get() == 0) {
+			return;
+		}
+		DirectoryNode source = snapshottableAncestor(parent);
+		if (source != null && source == snapshottableAncestor(target)) {
+			source.getSnapshots().recordRename(relativePath(source, parent,
+					from), relativePath(source, target, name));
+		} else {
+			record(DiffType.DELETE, parent, from);
+			record(DiffType.CREATE, target, name);
+		}
+	}
+
+	private static void propagate(DirectoryNode parent, Node node, int sign) {
+		long files;
+		long directories;
+		long bytes;
+		if (node instanceof FileNode) {
+			files = 1;
+			directories = 0;
+			bytes = ((FileNode) node).getLength();
+		} else {
+			DirectoryNode dnode = (DirectoryNode) node;
+			files = dnode.getFileCount();
+			directories = dnode.getDirectoryCount() + 1;
+			bytes = dnode.getLength();
+		}
+		for (DirectoryNode dir = parent; dir != null; dir = dir.getParent()) {
+			dir.addAggregates(sign * files, sign * directories, sign * bytes);
+		}
+	}
+
+	//
+	// Quotas...
+	//
+
+	/**
+	 * Sets or clears the quotas of <code>dir</code>. A quota may be set below
+	 * the current usage, it only prevents further growth.
+	 */
+	void setQuota(DirectoryNode dir, long namespaceQuota, long spaceQuota) {
+		synchronized (quotaLock) {
+			Quota quota = dir.getQuota();
+			boolean had = (quota != null);
+			if (quota == null) {
+				quota = new Quota();
+			}
+			if (namespaceQuota != InMemoryFileSystem.QUOTA_DONT_SET) {
+				quota.namespace = (namespaceQuota == InMemoryFileSystem.QUOTA_RESET) ? Quota.NONE
+						: namespaceQuota;
+			}
+			if (spaceQuota != InMemoryFileSystem.QUOTA_DONT_SET) {
+				quota.space = (spaceQuota == InMemoryFileSystem.QUOTA_RESET) ? Quota.NONE
+						: spaceQuota;
+			}
+			if (quota.isSet() && !had) {
+				dir.setQuota(quota);
+				quotas++;
+			} else if (!quota.isSet() && had) {
+				dir.setQuota(null);
+				quotas--;
+			}
+		}
+	}
+
+	/**
+	 * Reserves <code>bytes</code> about to be written to <code>file</code>
+	 * against the space quotas of its ancestors. Writes are only checked when
+	 * some directory of the namespace has a quota.
+	 * 
+	 * @param charged
+	 *            The bytes reserved so far by the writer, per quota, to be
+	 *            returned by {@link #release(Map)} when the writer commits.
+	 * @throws QuotaExceededException
+	 *             If the bytes would exceed a space quota, in which case
+	 *             nothing is reserved.
+	 */
+	void reserve(FileNode file, long bytes, Map<Quota, Long> charged)
+			throws QuotaExceededException {
+		if (!hasQuota(file.getParent())) {
+			return;
+		}
+		synchronized (quotaLock) {
+			for (DirectoryNode dir = file.getParent(); dir != null; dir = dir
+					.getParent()) {
+				checkQuota(dir, 0, bytes);
+			}
+			for (DirectoryNode dir = file.getParent(); dir != null; dir = dir
+					.getParent()) {
+				Quota quota = dir.getQuota();
+				if (quota != null && quota.space != Quota.NONE) {
+					quota.reserved += bytes;
+					Long previous = charged.get(quota);
+					charged.put(quota, (previous == null) ? bytes : previous
+							+ bytes);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the bytes reserved by a writer. The caller must hold the quota
+	 * lock.
+	 */
+	private static void release(Map<Quota, Long> charged) {
+		for (Map.Entry<Quota, Long> entry : charged.entrySet()) {
+			entry.getKey().reserved -= entry.getValue();
+		}
+		charged.clear();
+	}
+
+	/**
+	 * @return <code>true</code> if <code>dir</code> or an ancestor has a
+	 *         quota. This is a single volatile read while no directory of the
+	 *         namespace has a quota.
+	 */
+	private boolean hasQuota(DirectoryNode dir) {
+		if (quotas == 0) {
+			return false;
+		}
+		for (; dir != null; dir = dir.getParent()) {
+			if (dir.getQuota() != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks that adding <code>names</code> and <code>bytes</code> below
+	 * <code>dir</code> stays within its quotas. The caller must hold the quota
+	 * lock.
+	 */
+	private static void checkQuota(DirectoryNode dir, long names, long bytes)
+			throws QuotaExceededException {
+		Quota quota = dir.getQuota();
+		if (quota == null) {
+			return;
+		}
+		if (names > 0 && quota.namespace != Quota.NONE) {
+			long count = dir.getNameCount() + names;
+			if (count > quota.namespace) {
+				throw new QuotaExceededException(
+						"The NameSpace quota (directories and files) of directory "
+								+ dir.getPath() + " is exceeded: quota="
+								+ quota.namespace + " file count=" + count);
+			}
+		}
+		if (bytes > 0 && quota.space != Quota.NONE) {
+			long consumed = dir.getLength() + quota.reserved + bytes;
+			if (consumed > quota.space) {
+				throw new QuotaExceededException("The DiskSpace quota of "
+						+ dir.getPath() + " is exceeded: quota=" + quota.space
+						+ " diskspace consumed=" + consumed);
+			}
+		}
+	}
+
+	/**
+	 * Publishes the bytes written to <code>file</code> and adds them to the
+	 * aggregates of its ancestors, returning the bytes the writer reserved
+	 * against space quotas, see {@link #reserve}. Both happen under the quota
+	 * lock, so the bytes are never counted twice by a quota check. The
+	 * ancestors are read locked so that the file cannot be moved while they
+	 * are updated. Nothing is added if the file has been replaced in the
+	 * meantime.
+	 */
+	void commit(FileNode file, Map<Quota, Long> charged) {
+		while (true) {
+			Path path = file.getPath();
+			Locks locks = lock(false, path.getParent());
+			try {
+				if (get(path) == file) {
+					if (charged.isEmpty()) {
+						addCommitted(file);
+					} else {
+						synchronized (quotaLock) {
+							addCommitted(file);
+							release(charged);
+						}
+					}
+					record(DiffType.MODIFY, file.getParent(), file.getName());
+					return;
+				}
+				if (path.equals(file.getPath())) {
+					file.getContent().commit();
+					if (!charged.isEmpty()) {
+						synchronized (quotaLock) {
+							release(charged);
+						}
+					}
+					return;
+				}
+				// Moved before the locks were acquired, try again...
+			} finally {
+				locks.release();
+			}
+		}
+	}
+
+	private static void addCommitted(FileNode file) {
+		long bytes = file.getContent().commit();
+		for (DirectoryNode dir = file.getParent(); dir != null; dir = dir
+				.getParent()) {
+			dir.addAggregates(0, 0, bytes);
+		}
+	}
+
+	//
+	// Snapshots...
+	//
+
+	/**
+	 * Makes <code>dir</code> snapshottable. Like HDFS, snapshottable
+	 * directories may not be nested. The caller must hold the write lock of
+	 * <code>dir</code>.
+	 * 
+	 * @throws IOException
+	 *             If an ancestor or a descendant of <code>dir</code> is
+	 *             snapshottable.
+	 */
+	void allowSnapshot(DirectoryNode dir) throws IOException {
+		if (dir.getSnapshots() != null) {
+			return;
+		}
+		for (DirectoryNode ancestor = dir.getParent(); ancestor != null; ancestor = ancestor
+				.getParent()) {
+			checkNotSnapshottable(dir, ancestor);
+		}
+		if (snapshottable.get() > 0) {
+			List<Node> nodes = new ArrayList<Node>();
+			collect(dir, nodes);
+			for (Node node : nodes) {
+				if (node instanceof DirectoryNode) {
+					checkNotSnapshottable(dir, (DirectoryNode) node);
+				}
+			}
+		}
+		dir.setSnapshots(new Snapshots(dir));
+		snapshottable.incrementAndGet();
+	}
+
+	private static void checkNotSnapshottable(DirectoryNode dir,
+			DirectoryNode other) throws IOException {
+		if (other.getSnapshots() != null) {
+			throw new IOException("Nested snapshottable directories not allowed: '"
+					+ dir.getPath() + "' and '" + other.getPath() + "'!");
+		}
+	}
+
+	/**
+	 * Makes <code>dir</code> an ordinary directory again. The caller must hold
+	 * the write lock of <code>dir</code>.
+	 * 
+	 * @throws IOException
+	 *             If <code>dir</code> still has snapshots.
+	 */
+	void disallowSnapshot(DirectoryNode dir) throws IOException {
+		Snapshots snapshots = dir.getSnapshots();
+		if (snapshots == null) {
+			return;
+		}
+		if (!snapshots.isEmpty()) {
+			throw new IOException("'" + dir.getPath()
+					+ "' has snapshots, delete them first!");
+		}
+		dir.setSnapshots(null);
+		snapshottable.decrementAndGet();
+	}
+
+	/**
+	 * Takes a snapshot of <code>dir</code> in constant time: the children are
+	 * frozen and the snapshot is a shadow of them, like a fork of the
+	 * directory. The caller must hold the write lock of <code>dir</code>.
+	 * 
+	 * @throws IOException
+	 *             If <code>dir</code> is not snapshottable, the snapshot
+	 *             exists or a file below it is open for writing.
+	 */
+	void createSnapshot(DirectoryNode dir, String name) throws IOException {
+		Snapshots snapshots = getSnapshots(dir);
+		if (snapshots.contains(name)) {
+			throw new IOException("Snapshot '" + name + "' of '"
+					+ dir.getPath() + "' already exists!");
+		}
+		checkNoWriters("create a snapshot", dir);
+		DirectoryNode root = dir.freeze().shadow();
+		// The directory may have changed since its source was frozen...
+		root.copyMetadata(dir);
+		snapshots.add(name, root);
+	}
+
+	/**
+	 * Deletes a snapshot. The caller must hold the write lock of
+	 * <code>dir</code>.
+	 */
+	void deleteSnapshot(DirectoryNode dir, String name) throws IOException {
+		Snapshots snapshots = getSnapshots(dir);
+		checkSnapshot(dir, snapshots, name);
+		snapshots.remove(name);
+	}
+
+	/**
+	 * Renames a snapshot. The caller must hold the write lock of
+	 * <code>dir</code>.
+	 */
+	void renameSnapshot(DirectoryNode dir, String from, String to)
+			throws IOException {
+		Snapshots snapshots = getSnapshots(dir);
+		checkSnapshot(dir, snapshots, from);
+		if (snapshots.contains(to)) {
+			throw new IOException("Snapshot '" + to + "' of '"
+					+ dir.getPath() + "' already exists!");
+		}
+		snapshots.rename(from, to);
+	}
+
+	/**
+	 * @return the differences between the snapshots <code>from</code> and
+	 *         <code>to</code> of <code>dir</code>, see
+	 *         {@link Snapshots#diff(String, String)}.
+	 */
+	List<DiffReportEntry> diff(DirectoryNode dir, String from, String to)
+			throws IOException {
+		return getSnapshots(dir).diff(from, to);
+	}
+
+	private static Snapshots getSnapshots(DirectoryNode dir) throws IOException {
+		Snapshots snapshots = dir.getSnapshots();
+		if (snapshots == null) {
+			throw new IOException("'" + dir.getPath()
+					+ "' is not a snapshottable directory!");
+		}
+		return snapshots;
+	}
+
+	private static void checkSnapshot(DirectoryNode dir, Snapshots snapshots,
+			String name) throws IOException {
+		if (!snapshots.contains(name)) {
+			throw new IOException("Snapshot '" + name + "' of '"
+					+ dir.getPath() + "' not found!");
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if a directory of <code>nodes</code> has
+	 *         snapshots, which prevents their deletion.
+	 */
+	boolean hasSnapshots(List<Node> nodes) {
+		if (snapshottable.get() == 0) {
+			return false;
+		}
+		for (Node node : nodes) {
+			if (node instanceof DirectoryNode) {
+				Snapshots snapshots = ((DirectoryNode) node).getSnapshots();
+				if (snapshots != null && !snapshots.isEmpty()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Records a change of the metadata of <code>node</code> for the
+	 * snapshots of the directory above it, or of the directory itself.
+	 */
+	void modified(Node node) {
+		if (snapshottable.get() == 0) {
+			return;
+		}
+		Snapshots snapshots = (node instanceof DirectoryNode) ? ((DirectoryNode) node)
+				.getSnapshots() : null;
+		if (snapshots != null) {
+			snapshots.record(DiffType.MODIFY, "");
+		} else {
+			record(DiffType.MODIFY, node.getParent(), node.getName());
+		}
+	}
+
+	/**
+	 * Records a change of the child <code>name</code> of <code>parent</code>
+	 * with the snapshottable directory above it, if any. This is a single
+	 * read while the namespace has no snapshottable directory.
+	 */
+	private void record(DiffType type, DirectoryNode parent, String name) {
+		if (snapshottable.get() == 0) {
+			return;
+		}
+		DirectoryNode dir = snapshottableAncestor(parent);
+		if (dir != null) {
+			dir.getSnapshots().record(type, relativePath(dir, parent, name));
+		}
+	}
+
+	/**
+	 * @return <code>dir</code> or its closest ancestor which is
+	 *         snapshottable, <code>null</code> if there is none.
+	 */
+	private static DirectoryNode snapshottableAncestor(DirectoryNode dir) {
+		for (; dir != null; dir = dir.getParent()) {
+			if (dir.getSnapshots() != null) {
+				return dir;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return the path of the child <code>name</code> of <code>parent</code>
+	 *         relative to its ancestor <code>dir</code>.
+	 */
+	private static String relativePath(DirectoryNode dir,
+			DirectoryNode parent, String name) {
+		StringBuilder path = new StringBuilder(name);
+		for (DirectoryNode p = parent; p != dir; p = p.getParent()) {
+			path.insert(0, '/').insert(0, p.getName());
+		}
+		return path.toString();
+	}
+
+	/**
+	 * @return all nodes of the namespace.
+	 */
+	List<Node> nodes() {
+		List<Node> nodes = new ArrayList<Node>();
+		collect(root, nodes);
+		return nodes;
+	}
+
+	/**
+	 * Adds <code>node</code> and all its descendants to <code>nodes</code>.
+	 */
+	static void collect(Node node, List<Node> nodes) {
+		nodes.add(node);
+		if (node instanceof DirectoryNode) {
+			for (Node child : ((DirectoryNode) node).getChildren()) {
+				collect(child, nodes);
+			}
+		}
+	}
+
+	/**
+	 * The locks held by one operation.
+	 */
+	static final class Locks {
+		private final List<Lock> held = new ArrayList<Lock>(8);
+
+		private void acquire(Lock lock) {
+			lock.lock();
+			held.add(lock);
+		}
+
+		/**
+		 * Releases the locks in the reverse order of their acquisition.
+		 */
+		void release() {
+			for (int i = held.size() - 1; i >= 0; i--) {
+				held.get(i).unlock();
+			}
+			held.clear();
+		}
+	}
+}
@@ -17,77 +17,149 @@ package ras.test.hadoop.fs;
 
 import static ras.test.hadoop.fs.InMemoryFileSystem.DEFAULT_PERMISSION;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.apache.commons.lang.Validate;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.permission.FsPermission;
 
+/**
+ * An inode of the namespace tree. A node knows its name and its parent
+ * directory; its path is derived from them, so moving a directory only
+ * changes the directory itself and never its descendants. The name and the
+ * parent are guarded by the lock of the parent directory.
+ * <p>
+ * The metadata is kept compact for namespaces of millions of nodes: the name
+ * is the same string instance the parent uses as the key of the child, the
+ * permission is stored as its <code>short</code> value and the owner and
+ * group are ids of the context's {@link PrincipalDictionary}.
+ */
 abstract class Node {
-	private Path path;
-	private FsPermission permissions;
-	private String owner = "root";
-	private String group = "test";
-
-	Node(Path path, FsPermission permissions) {
-		Validate.notNull(path, "path == null not allowed!");
-		this.path = path;
+	private String name;
+	private DirectoryNode parent;
+	private short permission;
+	private int owner = PrincipalDictionary.DEFAULT_USER_ID;
+	private int group = PrincipalDictionary.DEFAULT_GROUP_ID;
+
+	Node(String name, FsPermission permissions) {
+		Validate.notNull(name, "name == null not allowed!");
+		this.name = name;
 		this.setPermissions(permissions);
 	}
 
 	/**
-	 * @return the path to this node
+	 * @return the name of this node within its parent directory, the empty
+	 *         string for the root.
 	 */
-	public Path getPath() {
-		return path;
+	public String getName() {
+		return name;
 	}
 
-	public void setPath(Path path){
-		this.path = path;
+	/**
+	 * @return the parent directory, <code>null</code> for the root.
+	 */
+	public DirectoryNode getParent() {
+		return parent;
+	}
+
+	/**
+	 * Sets the name and parent of this node, see
+	 * {@link DirectoryNode#addChild(Node)}.
+	 */
+	void link(DirectoryNode parent, String name) {
+		this.parent = parent;
+		this.name = name;
+	}
+
+	/**
+	 * @return the path to this node, computed from the names of its
+	 *         ancestors. A deleted node keeps the path it was deleted at.
+	 */
+	public Path getPath() {
+		if (parent == null) {
+			return Namespace.ROOT_PATH;
+		}
+		List<String> names = new ArrayList<String>();
+		for (Node node = this; node.parent != null; node = node.parent) {
+			names.add(node.name);
+		}
+		StringBuilder path = new StringBuilder();
+		for (int i = names.size() - 1; i >= 0; i--) {
+			path.append('/').append(names.get(i));
+		}
+		return new Path(path.toString());
 	}
 	
 	/**
-	 * @return the permissions
+	 * @return the permissions, created from the stored value on each call.
 	 */
 	public FsPermission getPermissions() {
-		return permissions;
+		return new FsPermission(permission);
+	}
+
+	/**
+	 * @return the permission bits.
+	 */
+	public short getPermission() {
+		return permission;
 	}
 
 	/**
 	 * @param permissions
-	 *            the permissions to set
+	 *            the permissions to set, defaults to
+	 *            {@link InMemoryFileSystem#DEFAULT_PERMISSION} if
+	 *            <code>null</code>.
 	 */
 	public void setPermissions(FsPermission permissions) {
-		if (permissions == null) {
-			permissions = new FsPermission(DEFAULT_PERMISSION);
-		}
-		this.permissions = permissions;
+		this.permission = (permissions == null) ? DEFAULT_PERMISSION
+				: permissions.toShort();
+	}
+
+	/**
+	 * @param permission
+	 *            the permission bits to set.
+	 */
+	void setPermission(short permission) {
+		this.permission = permission;
+	}
+
+	/**
+	 * Copies the permission, owner and group of <code>node</code>.
+	 */
+	void copyMetadata(Node node) {
+		this.permission = node.permission;
+		this.owner = node.owner;
+		this.group = node.group;
 	}
 
 	/**
-	 * @return the owner
+	 * @return the id of the owner.
 	 */
-	public String getOwner() {
+	public int getOwnerId() {
 		return owner;
 	}
 
 	/**
-	 * @param owner the owner to set
+	 * @param owner
+	 *            the id of the owner to set
 	 */
-	public void setOwner(String owner) {
+	public void setOwnerId(int owner) {
 		this.owner = owner;
 	}
 
 	/**
-	 * @return the group
+	 * @return the id of the group.
 	 */
-	public String getGroup() {
+	public int getGroupId() {
 		return group;
 	}
 
 	/**
-	 * @param group the group to set
+	 * @param group
+	 *            the id of the group to set
 	 */
-	public void setGroup(String group) {
+	public void setGroupId(int group) {
 		this.group = group;
 	}
-
 }
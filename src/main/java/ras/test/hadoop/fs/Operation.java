@@ -0,0 +1,24 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+/**
+ * The operations of {@link InMemoryFileSystem} whose latencies are recorded
+ * when metrics are enabled, see {@link InMemoryFileSystem#METRICS_KEY}.
+ */
+public enum Operation {
+	OPEN, CREATE, APPEND, RENAME, DELETE, LIST_STATUS, MKDIRS, GET_FILE_STATUS
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+/**
+ * A snapshot of the calls of one {@link Operation} and their latencies, see
+ * {@link InMemoryFileSystem#getMetrics()}. Percentiles are estimated from a
+ * histogram with a bucket per power of two, so they are the upper bound of
+ * the bucket holding the percentile.
+ */
+public class OperationMetrics {
+
+	private final Operation operation;
+	private final long[] histogram;
+	private final long count;
+	private final long totalNanos;
+	private final long maxNanos;
+
+	OperationMetrics(Operation operation, long[] histogram, long totalNanos,
+			long maxNanos) {
+		this.operation = operation;
+		this.histogram = histogram;
+		long sum = 0;
+		for (long bucket : histogram) {
+			sum += bucket;
+		}
+		this.count = sum;
+		this.totalNanos = totalNanos;
+		this.maxNanos = maxNanos;
+	}
+
+	public Operation getOperation() {
+		return operation;
+	}
+
+	/**
+	 * @return the number of calls, including those which failed.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	public long getMeanNanos() {
+		return (count == 0) ? 0 : totalNanos / count;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	public long getMedianNanos() {
+		return getPercentileNanos(50);
+	}
+
+	public long getPercentile99Nanos() {
+		return getPercentileNanos(99);
+	}
+
+	/**
+	 * @param percentile
+	 *            The percentile, from 0 to 100.
+	 * @return the estimated latency below which <code>percentile</code>
+	 *         percent of the calls completed, 0 if there were no calls.
+	 */
+	public long getPercentileNanos(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank && seen > 0) {
+				long upper = (i == 0) ? 0 : (i == 63) ? Long.MAX_VALUE
+						: (1L << i) - 1;
+				return Math.min(upper, maxNanos);
+			}
+		}
+		return maxNanos;
+	}
+
+	/**
+	 * @return the number of calls per bucket, bucket <code>i</code> counting
+	 *         the latencies in <code>[2<sup>i-1</sup>, 2<sup>i</sup>)</code>
+	 *         nanoseconds.
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+
+	@Override
+	public String toString() {
+		return operation + ": " + count + " calls, mean " + getMeanNanos()
+				+ "ns, median " + getMedianNanos() + "ns, 99% "
+				+ getPercentile99Nanos() + "ns, max " + maxNanos + "ns";
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the read, large read and write operations of the file systems of a
+ * scheme, next to the bytes counted by <code>FileSystem.Statistics</code>,
+ * which has no operation counters in this Hadoop version. The operations are
+ * counted as HDFS counts them:
+ * <ul>
+ * <li>a read operation for each open, status, summary and first listing
+ * call,</li>
+ * <li>a large read operation for each further batch of a listing and for
+ * each glob, which may list many directories,</li>
+ * <li>a write operation for each create, append, mkdirs, rename, delete,
+ * owner and quota change.</li>
+ * </ul>
+ * Batch operations count one operation per path.
+ */
+public final class OperationStatistics {
+
+	private static final ConcurrentMap<String, OperationStatistics> table = new ConcurrentHashMap<String, OperationStatistics>();
+
+	private final String scheme;
+	private final AtomicLong readOps = new AtomicLong();
+	private final AtomicLong largeReadOps = new AtomicLong();
+	private final AtomicLong writeOps = new AtomicLong();
+
+	private OperationStatistics(String scheme) {
+		this.scheme = scheme;
+	}
+
+	/**
+	 * @return the shared operation counters of <code>scheme</code>.
+	 */
+	public static OperationStatistics getStatistics(String scheme) {
+		OperationStatistics statistics = table.get(scheme);
+		if (statistics == null) {
+			statistics = new OperationStatistics(scheme);
+			OperationStatistics existing = table.putIfAbsent(scheme,
+					statistics);
+			if (existing != null) {
+				statistics = existing;
+			}
+		}
+		return statistics;
+	}
+
+	void incrementReadOps(int count) {
+		readOps.addAndGet(count);
+	}
+
+	void incrementLargeReadOps(int count) {
+		largeReadOps.addAndGet(count);
+	}
+
+	void incrementWriteOps(int count) {
+		writeOps.addAndGet(count);
+	}
+
+	public long getReadOps() {
+		return readOps.get();
+	}
+
+	public long getLargeReadOps() {
+		return largeReadOps.get();
+	}
+
+	public long getWriteOps() {
+		return writeOps.get();
+	}
+
+	public String getScheme() {
+		return scheme;
+	}
+
+	/**
+	 * Resets all counters to zero.
+	 */
+	public void reset() {
+		readOps.set(0);
+		largeReadOps.set(0);
+		writeOps.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return readOps + " read ops, " + largeReadOps + " large read ops, "
+				+ writeOps + " write ops";
+	}
+}
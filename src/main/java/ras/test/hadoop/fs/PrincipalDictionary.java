@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns the user and group names of one context as small integer ids, so
+ * that a node stores two <code>int</code>s rather than two references to
+ * names. Ids are never reused; resolving a name or an id takes no lock.
+ */
+class PrincipalDictionary {
+
+	/** The id of {@link InMemoryFileSystem#DEFAULT_USER}. */
+	static final int DEFAULT_USER_ID = 0;
+
+	/** The id of {@link InMemoryFileSystem#DEFAULT_GROUP}. */
+	static final int DEFAULT_GROUP_ID = 1;
+
+	private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/** The names indexed by id, replaced whenever a name is added. */
+	private volatile String[] names = new String[0];
+
+	PrincipalDictionary() {
+		getId(InMemoryFileSystem.DEFAULT_USER);
+		getId(InMemoryFileSystem.DEFAULT_GROUP);
+	}
+
+	/**
+	 * @return the id of <code>name</code>, which is added to the dictionary
+	 *         if it is new.
+	 */
+	int getId(String name) {
+		Integer id = ids.get(name);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = ids.get(name);
+			if (id == null) {
+				String[] grown = Arrays.copyOf(names, names.length + 1);
+				id = names.length;
+				grown[id] = name;
+				// Publish the name before the id...
+				names = grown;
+				ids.put(name, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * @return a new dictionary with the same names and ids.
+	 */
+	PrincipalDictionary copy() {
+		PrincipalDictionary copy = new PrincipalDictionary();
+		String[] names = this.names;
+		for (int id = copy.size(); id < names.length; id++) {
+			copy.getId(names[id]);
+		}
+		return copy;
+	}
+
+	/**
+	 * @return the number of names, which are numbered from 0.
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * @return the name of the principal with the id <code>id</code>.
+	 */
+	String getName(int id) {
+		return names[id];
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+/**
+ * The quotas of a directory, see {@link InMemoryFileSystem#setQuota}. A
+ * directory without quotas has no <code>Quota</code> at all, so quotas cost
+ * nothing where they are not used.
+ * <p>
+ * The fields are guarded by the quota lock of the namespace.
+ */
+final class Quota {
+
+	/** The value of a quota which is not set. */
+	static final long NONE = -1;
+
+	/** The maximum number of files and directories, including the owner. */
+	long namespace = NONE;
+
+	/** The maximum number of bytes. */
+	long space = NONE;
+
+	/** Bytes written below the directory which have not been committed. */
+	long reserved = 0;
+
+	boolean isSet() {
+		return namespace != NONE || space != NONE;
+	}
+}
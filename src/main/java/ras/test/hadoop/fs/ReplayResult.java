@@ -0,0 +1,178 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The throughput and latencies of a trace replayed by {@link TraceReplayer},
+ * per {@link TraceRecord.Type}. The latency of a {@link TraceRecord.Type#READ}
+ * or {@link TraceRecord.Type#WRITE} covers all the calls of the record.
+ * Percentiles are estimated like those of {@link OperationMetrics}.
+ */
+public class ReplayResult {
+
+	private static final int TYPES = TraceRecord.Type.values().length;
+
+	private final LatencyHistogram[] histograms = new LatencyHistogram[TYPES];
+	private final AtomicLongArray calls = new AtomicLongArray(TYPES);
+	private final AtomicLongArray bytes = new AtomicLongArray(TYPES);
+	private final AtomicLongArray failures = new AtomicLongArray(TYPES);
+	private long elapsedNanos = 0;
+
+	ReplayResult() {
+		for (int i = 0; i < TYPES; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+	}
+
+	void record(TraceRecord record, long nanos, long transferred) {
+		int type = record.getType().ordinal();
+		histograms[type].record(nanos);
+		calls.addAndGet(type, record.getCalls());
+		bytes.addAndGet(type, transferred);
+	}
+
+	void fail(TraceRecord record) {
+		failures.incrementAndGet(record.getType().ordinal());
+	}
+
+	void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return the wall clock time of the replay.
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return the number of records of <code>type</code> which were
+	 *         replayed, including those which failed.
+	 */
+	public long getCount(TraceRecord.Type type) {
+		return histogram(type).getCount();
+	}
+
+	/**
+	 * @return the number of calls made for the records of
+	 *         <code>type</code>.
+	 */
+	public long getCalls(TraceRecord.Type type) {
+		return calls.get(type.ordinal());
+	}
+
+	/**
+	 * @return the number of records of <code>type</code> which failed.
+	 */
+	public long getFailures(TraceRecord.Type type) {
+		return failures.get(type.ordinal());
+	}
+
+	/**
+	 * @return the bytes transferred by the records of <code>type</code>.
+	 */
+	public long getBytes(TraceRecord.Type type) {
+		return bytes.get(type.ordinal());
+	}
+
+	public long getMeanNanos(TraceRecord.Type type) {
+		return histogram(type).getMeanNanos();
+	}
+
+	public long getMaxNanos(TraceRecord.Type type) {
+		return histogram(type).getMaxNanos();
+	}
+
+	/**
+	 * @see OperationMetrics#getPercentileNanos(double)
+	 */
+	public long getPercentileNanos(TraceRecord.Type type, double percentile) {
+		return histogram(type).getPercentileNanos(percentile);
+	}
+
+	/**
+	 * @return the number of records replayed.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (TraceRecord.Type type : TraceRecord.Type.values()) {
+			count += getCount(type);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes read and written.
+	 */
+	public long getBytes() {
+		long total = 0;
+		for (int i = 0; i < TYPES; i++) {
+			total += bytes.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @return the number of records which failed.
+	 */
+	public long getFailures() {
+		long total = 0;
+		for (int i = 0; i < TYPES; i++) {
+			total += failures.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @return the latencies of <code>type</code>, without an
+	 *         {@link Operation}.
+	 */
+	private OperationMetrics histogram(TraceRecord.Type type) {
+		return histograms[type.ordinal()].snapshot(null);
+	}
+
+	/**
+	 * @return a report with a line per replayed type and the totals.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-16s %9s %9s %9s %10s %10s %10s %10s%n",
+				"operation", "records", "failures", "MB", "mean ns",
+				"median ns", "99% ns", "max ns"));
+		for (TraceRecord.Type type : TraceRecord.Type.values()) {
+			OperationMetrics metrics = histogram(type);
+			if (metrics.getCount() == 0) {
+				continue;
+			}
+			sb.append(String.format(
+					"%-16s %9d %9d %9.1f %10d %10d %10d %10d%n", type,
+					metrics.getCount(), getFailures(type), getBytes(type)
+							/ (1024.0 * 1024.0), metrics.getMeanNanos(),
+					metrics.getMedianNanos(), metrics.getPercentile99Nanos(),
+					metrics.getMaxNanos()));
+		}
+		double seconds = elapsedNanos / 1e9;
+		sb.append(String.format(
+				"%d records in %.3f s: %.0f records/s, %.1f MB/s, %d failures",
+				getCount(), seconds, getCount() / seconds, getBytes()
+						/ (1024.0 * 1024.0) / seconds, getFailures()));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.Validate;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The differences between two snapshots of a snapshottable directory, or
+ * between a snapshot and the current state of the directory, see
+ * {@link InMemoryFileSystem#getSnapshotDiffReport(Path, String, String)}.
+ * It mirrors the report of HDFS: each entry is the path of a file or
+ * directory relative to the snapshottable directory, the empty string
+ * standing for the directory itself, and {@link #toString()} prints the
+ * format of <code>hdfs snapshotDiff</code>.
+ */
+public class SnapshotDiffReport {
+
+	/**
+	 * The kinds of differences.
+	 */
+	public enum DiffType {
+		CREATE("+"), MODIFY("M"), DELETE("-"), RENAME("R");
+
+		private final String label;
+
+		private DiffType(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * @return the label of the type in the printed report.
+		 */
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	/**
+	 * A file or directory which differs.
+	 */
+	public static class DiffReportEntry {
+		private final DiffType type;
+		private final String sourcePath;
+		private final String targetPath;
+
+		/**
+		 * @param type
+		 *            The kind of difference.
+		 * @param sourcePath
+		 *            The path relative to the snapshottable directory.
+		 * @param targetPath
+		 *            The path a {@link DiffType#RENAME} renamed to, otherwise
+		 *            <code>null</code>.
+		 */
+		public DiffReportEntry(DiffType type, String sourcePath,
+				String targetPath) {
+			Validate.notNull(type, "type == null not allowed!");
+			Validate.notNull(sourcePath, "sourcePath == null not allowed!");
+			this.type = type;
+			this.sourcePath = sourcePath;
+			this.targetPath = targetPath;
+		}
+
+		public DiffType getType() {
+			return type;
+		}
+
+		/**
+		 * @return the path relative to the snapshottable directory, the
+		 *         empty string for the directory itself.
+		 */
+		public String getSourcePath() {
+			return sourcePath;
+		}
+
+		/**
+		 * @return the path renamed to, <code>null</code> unless the type is
+		 *         {@link DiffType#RENAME}.
+		 */
+		public String getTargetPath() {
+			return targetPath;
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (!(other instanceof DiffReportEntry)) {
+				return false;
+			}
+			DiffReportEntry entry = (DiffReportEntry) other;
+			return type == entry.type
+					&& sourcePath.equals(entry.sourcePath)
+					&& ((targetPath == null) ? entry.targetPath == null
+							: targetPath.equals(entry.targetPath));
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + sourcePath.hashCode();
+		}
+
+		@Override
+		public String toString() {
+			String entry = type.getLabel() + "\t" + relative(sourcePath);
+			return (targetPath == null) ? entry : entry + " -> "
+					+ relative(targetPath);
+		}
+
+		private static String relative(String path) {
+			return path.length() == 0 ? "." : "./" + path;
+		}
+	}
+
+	private final Path snapshotRoot;
+	private final String fromSnapshot;
+	private final String toSnapshot;
+	private final List<DiffReportEntry> diffList;
+
+	/**
+	 * @param snapshotRoot
+	 *            The snapshottable directory.
+	 * @param fromSnapshot
+	 *            The earlier snapshot.
+	 * @param toSnapshot
+	 *            The later snapshot, <code>null</code> for the current state.
+	 * @param diffList
+	 *            The differences.
+	 */
+	public SnapshotDiffReport(Path snapshotRoot, String fromSnapshot,
+			String toSnapshot, List<DiffReportEntry> diffList) {
+		this.snapshotRoot = snapshotRoot;
+		this.fromSnapshot = fromSnapshot;
+		this.toSnapshot = toSnapshot;
+		this.diffList = Collections.unmodifiableList(diffList);
+	}
+
+	public Path getSnapshotRoot() {
+		return snapshotRoot;
+	}
+
+	public String getFromSnapshot() {
+		return fromSnapshot;
+	}
+
+	/**
+	 * @return the later snapshot, <code>null</code> for the current state.
+	 */
+	public String getLaterSnapshotName() {
+		return toSnapshot;
+	}
+
+	/**
+	 * @return the differences, sorted by path.
+	 */
+	public List<DiffReportEntry> getDiffList() {
+		return diffList;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder report = new StringBuilder();
+		report.append("Difference between ").append(describe(fromSnapshot))
+				.append(" and ").append(describe(toSnapshot))
+				.append(" under directory ").append(snapshotRoot).append(':');
+		for (DiffReportEntry entry : diffList) {
+			report.append('\n').append(entry);
+		}
+		return report.toString();
+	}
+
+	private static String describe(String snapshot) {
+		return (snapshot == null) ? "current directory" : "snapshot "
+				+ snapshot;
+	}
+}
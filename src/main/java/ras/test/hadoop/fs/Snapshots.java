@@ -0,0 +1,462 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import ras.test.hadoop.fs.SnapshotDiffReport.DiffReportEntry;
+import ras.test.hadoop.fs.SnapshotDiffReport.DiffType;
+
+/**
+ * The snapshots of a snapshottable directory and the changes below it since
+ * its oldest snapshot, see {@link Namespace#createSnapshot}.
+ * <p>
+ * A snapshot is a shadow of the frozen children of the directory, see
+ * {@link DirectoryNode}, so it is taken in constant time and only the
+ * directories and files the namespace changes afterwards are copied. The
+ * snapshots are the children of a <code>.snapshot</code> directory which is
+ * resolved by name but not linked into the snapshottable directory, so it is
+ * neither listed nor counted by the aggregates.
+ * <p>
+ * While the directory has a snapshot the namespace records each change below
+ * it, by its path relative to the directory, and a snapshot marks the
+ * position of the log when it was taken. A diff report replays the changes
+ * between two marks rather than comparing the trees. A rename within the
+ * directory is recorded as such, see {@link Namespace#move}.
+ * <p>
+ * This class is package private since it's only purpose is to support
+ * {@link InMemoryFileSystem}.
+ */
+final class Snapshots {
+
+	/** The name under which the snapshots of a directory are resolved. */
+	static final String DIRECTORY_NAME = ".snapshot";
+
+	private final DirectoryNode directory;
+
+	/** The position in the log of each snapshot. */
+	private final Map<String, Long> marks = new HashMap<String, Long>();
+
+	/** The changes since the oldest snapshot, guarded by this. */
+	private final List<Change> changes = new ArrayList<Change>();
+
+	/** The position of the first change in the log. */
+	private long base = 0;
+
+	/** The position of the latest snapshot. */
+	private long last = 0;
+
+	/**
+	 * @param dir
+	 *            The snapshottable directory.
+	 */
+	Snapshots(DirectoryNode dir) {
+		directory = new DirectoryNode(DIRECTORY_NAME, null);
+		directory.copyMetadata(dir);
+		directory.link(dir, DIRECTORY_NAME);
+	}
+
+	/**
+	 * @return the directory holding the snapshots.
+	 */
+	DirectoryNode getDirectory() {
+		return directory;
+	}
+
+	synchronized boolean isEmpty() {
+		return marks.isEmpty();
+	}
+
+	synchronized boolean contains(String name) {
+		return marks.containsKey(name);
+	}
+
+	/**
+	 * Adds the snapshot <code>root</code>, taken now, under <code>name</code>.
+	 */
+	synchronized void add(String name, DirectoryNode root) {
+		directory.copyMetadata(directory.getParent());
+		directory.addChild(root, name);
+		last = base + changes.size();
+		marks.put(name, last);
+	}
+
+	/**
+	 * Removes the snapshot <code>name</code>, releasing what only it holds.
+	 */
+	synchronized void remove(String name) {
+		DirectoryNode root = (DirectoryNode) directory.getChild(name);
+		directory.removeChild(name);
+		marks.remove(name);
+		long first = base + changes.size();
+		for (long mark : marks.values()) {
+			first = Math.min(first, mark);
+		}
+		changes.subList(0, (int) (first - base)).clear();
+		base = first;
+		root.unclaim();
+	}
+
+	synchronized void rename(String from, String to) {
+		Node root = directory.getChild(from);
+		directory.removeChild(from);
+		directory.addChild(root, to);
+		marks.put(to, marks.remove(from));
+	}
+
+	/**
+	 * Records a create, delete or modification below the directory, if it
+	 * has a snapshot.
+	 * 
+	 * @param path
+	 *            The path relative to the directory.
+	 */
+	synchronized void record(DiffType type, String path) {
+		if (marks.isEmpty()) {
+			return;
+		}
+		int size = changes.size();
+		if (type == DiffType.MODIFY && size > last - base) {
+			Change change = changes.get(size - 1);
+			if (change.type == DiffType.MODIFY && change.path.equals(path)) {
+				return;
+			}
+		}
+		changes.add(new Change(type, path, null));
+	}
+
+	/**
+	 * Drops the latest delete of <code>path</code>, which an operation that
+	 * failed has undone, see {@link Namespace#restore}.
+	 */
+	synchronized void cancelDelete(String path) {
+		for (int i = changes.size() - 1; i >= last - base; i--) {
+			Change change = changes.get(i);
+			if (change.type == DiffType.DELETE && change.path.equals(path)) {
+				changes.remove(i);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Records the rename of <code>from</code> to <code>to</code>, both
+	 * relative to the directory, if it has a snapshot.
+	 */
+	synchronized void recordRename(String from, String to) {
+		if (!marks.isEmpty()) {
+			changes.add(new Change(DiffType.RENAME, from, to));
+		}
+	}
+
+	/**
+	 * @param from
+	 *            A snapshot.
+	 * @param to
+	 *            A snapshot, or <code>null</code> for the current state.
+	 * @return the differences from <code>from</code> to <code>to</code>,
+	 *         sorted by path. If <code>to</code> was taken before
+	 *         <code>from</code> the differences are reversed.
+	 * @throws IOException
+	 *             If a snapshot does not exist.
+	 */
+	synchronized List<DiffReportEntry> diff(String from, String to)
+			throws IOException {
+		long start = mark(from);
+		long end = (to == null) ? base + changes.size() : mark(to);
+		if (start <= end) {
+			return replay(start, end);
+		}
+		List<DiffReportEntry> entries = new ArrayList<DiffReportEntry>();
+		for (DiffReportEntry entry : replay(end, start)) {
+			switch (entry.getType()) {
+			case CREATE:
+				entries.add(new DiffReportEntry(DiffType.DELETE, entry
+						.getSourcePath(), null));
+				break;
+			case DELETE:
+				entries.add(new DiffReportEntry(DiffType.CREATE, entry
+						.getSourcePath(), null));
+				break;
+			case RENAME:
+				entries.add(new DiffReportEntry(DiffType.RENAME, entry
+						.getTargetPath(), entry.getSourcePath()));
+				break;
+			default:
+				entries.add(entry);
+			}
+		}
+		Collections.sort(entries, ORDER);
+		return entries;
+	}
+
+	private long mark(String name) throws IOException {
+		Long mark = marks.get(name);
+		if (mark == null) {
+			throw new IOException("Snapshot '" + name + "' of '"
+					+ directory.getParent().getPath() + "' not found!");
+		}
+		return mark;
+	}
+
+	/**
+	 * Replays the changes between two positions of the log, tracking each
+	 * changed path back to its path at the start.
+	 */
+	private List<DiffReportEntry> replay(long start, long end) {
+		// The changed nodes by their current path...
+		TreeMap<String, State> current = new TreeMap<String, State>();
+		Set<String> deleted = new HashSet<String>();
+		for (Change change : changes.subList((int) (start - base),
+				(int) (end - base))) {
+			String path = change.path;
+			State state;
+			switch (change.type) {
+			case CREATE:
+				current.put(path, new State(null));
+				break;
+			case DELETE:
+				state = current.remove(path);
+				String origin = (state == null) ? origin(current, path)
+						: state.origin;
+				Map<String, State> below = below(current, path);
+				for (State moved : below.values()) {
+					// Moved in from elsewhere, its origin is deleted too...
+					if (moved.origin != null
+							&& (origin == null || !isBelow(moved.origin, origin))) {
+						deleted.add(moved.origin);
+					}
+				}
+				below.clear();
+				if (origin != null) {
+					deleted.add(origin);
+				}
+				break;
+			case RENAME:
+				if (path.equals(change.target)) {
+					break;
+				}
+				state = current.remove(path);
+				if (state == null) {
+					state = new State(origin(current, path));
+				}
+				state.renamed = true;
+				Map<String, State> moved = below(current, path);
+				Map<String, State> renamed = new HashMap<String, State>();
+				for (Map.Entry<String, State> entry : moved.entrySet()) {
+					renamed.put(change.target
+							+ entry.getKey().substring(path.length()),
+							entry.getValue());
+				}
+				moved.clear();
+				current.putAll(renamed);
+				current.put(change.target, state);
+				break;
+			default:
+				state = current.get(path);
+				if (state == null) {
+					state = new State(origin(current, path));
+					current.put(path, state);
+				}
+				state.modified = true;
+			}
+		}
+
+		List<DiffReportEntry> entries = new ArrayList<DiffReportEntry>();
+		Set<String> directories = new HashSet<String>();
+		Set<String> modified = new HashSet<String>();
+		for (Map.Entry<String, State> entry : current.entrySet()) {
+			String path = entry.getKey();
+			State state = entry.getValue();
+			if (state.origin == null) {
+				String parent = originOf(current, parent(path));
+				// Created with a created directory, or as part of one...
+				if (parent != null) {
+					entries.add(new DiffReportEntry(DiffType.CREATE, path, null));
+					directories.add(parent);
+				}
+			} else if (state.renamed && !state.origin.equals(path)) {
+				entries.add(new DiffReportEntry(DiffType.RENAME, state.origin,
+						path));
+				directories.add(parent(state.origin));
+				String parent = originOf(current, parent(path));
+				if (parent != null) {
+					directories.add(parent);
+				}
+				if (state.modified) {
+					entries.add(new DiffReportEntry(DiffType.MODIFY,
+							state.origin, null));
+					modified.add(state.origin);
+				}
+			} else if (state.modified) {
+				entries.add(new DiffReportEntry(DiffType.MODIFY, state.origin,
+						null));
+				modified.add(state.origin);
+			}
+		}
+		for (String path : deleted) {
+			if (!isDeleted(parent(path), deleted)) {
+				entries.add(new DiffReportEntry(DiffType.DELETE, path, null));
+				directories.add(parent(path));
+			}
+		}
+		// A directory whose children changed is modified...
+		for (String path : directories) {
+			if (!isDeleted(path, deleted) && !modified.contains(path)) {
+				entries.add(new DiffReportEntry(DiffType.MODIFY, path, null));
+			}
+		}
+		Collections.sort(entries, ORDER);
+		return entries;
+	}
+
+	/**
+	 * @return the path at the start of the replay of the unchanged node at
+	 *         <code>path</code>, which follows the renames of its ancestors,
+	 *         or <code>null</code> if an ancestor was created.
+	 */
+	private static String origin(TreeMap<String, State> current, String path) {
+		for (String ancestor = parent(path); ancestor != null; ancestor = parent(ancestor)) {
+			State state = current.get(ancestor);
+			if (state != null) {
+				if (state.origin == null) {
+					return null;
+				}
+				return (ancestor.length() == 0) ? path : state.origin
+						+ path.substring(ancestor.length());
+			}
+		}
+		return path;
+	}
+
+	private static String originOf(TreeMap<String, State> current, String path) {
+		State state = current.get(path);
+		return (state == null) ? origin(current, path) : state.origin;
+	}
+
+	/**
+	 * @return the live view of the changed nodes below <code>path</code>.
+	 */
+	private static Map<String, State> below(TreeMap<String, State> current,
+			String path) {
+		return current.subMap(path + "/", path + "0");
+	}
+
+	private static boolean isBelow(String path, String ancestor) {
+		return path.startsWith(ancestor + "/");
+	}
+
+	/**
+	 * @return <code>true</code> if <code>path</code> or an ancestor is
+	 *         deleted.
+	 */
+	private static boolean isDeleted(String path, Set<String> deleted) {
+		for (String p = path; p != null; p = parent(p)) {
+			if (deleted.contains(p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the parent of a relative path, the empty string for a child of
+	 *         the directory and <code>null</code> for the directory itself.
+	 */
+	private static String parent(String path) {
+		if (path.length() == 0) {
+			return null;
+		}
+		int slash = path.lastIndexOf('/');
+		return (slash < 0) ? "" : path.substring(0, slash);
+	}
+
+	/**
+	 * @return a copy for <code>dir</code>, a shadow of the directory of these
+	 *         snapshots, whose snapshots are shadows of these.
+	 */
+	synchronized Snapshots copy(DirectoryNode dir) {
+		Snapshots copy = new Snapshots(dir);
+		copy.directory.copyMetadata(directory);
+		for (Node root : directory.getChildren()) {
+			copy.directory.addChild(((DirectoryNode) root).shadow(),
+					root.getName());
+		}
+		copy.marks.putAll(marks);
+		copy.changes.addAll(changes);
+		copy.base = base;
+		copy.last = last;
+		return copy;
+	}
+
+	/**
+	 * Drops the claims of the snapshots, once the directory is released.
+	 */
+	synchronized void release() {
+		for (Node root : directory.getChildren()) {
+			((DirectoryNode) root).unclaim();
+		}
+	}
+
+	/** Sorts entries by path, the directory itself first. */
+	private static final Comparator<DiffReportEntry> ORDER = new Comparator<DiffReportEntry>() {
+		@Override
+		public int compare(DiffReportEntry a, DiffReportEntry b) {
+			int order = a.getSourcePath().compareTo(b.getSourcePath());
+			return (order != 0) ? order : a.getType().compareTo(b.getType());
+		}
+	};
+
+	/**
+	 * A recorded change.
+	 */
+	private static final class Change {
+		final DiffType type;
+		final String path;
+		final String target;
+
+		Change(DiffType type, String path, String target) {
+			this.type = type;
+			this.path = path;
+			this.target = target;
+		}
+	}
+
+	/**
+	 * A node changed during a replay.
+	 */
+	private static final class State {
+		/** The path at the start, <code>null</code> if created. */
+		final String origin;
+
+		/** Renamed itself, not only moved with a renamed ancestor. */
+		boolean renamed;
+		boolean modified;
+
+		State(String origin) {
+			this.origin = origin;
+		}
+	}
+}
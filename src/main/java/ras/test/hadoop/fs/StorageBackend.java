@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * The places in which file content can be stored, selected with the
+ * {@link InMemoryFileSystem#STORAGE_KEY} configuration key.
+ */
+enum StorageBackend {
+
+	/** Chunks are byte arrays on the Java heap. */
+	HEAP {
+		@Override
+		FileContent newContent() {
+			return new HeapFileContent();
+		}
+	},
+
+	/** Chunks are direct byte buffers outside of the Java heap. */
+	DIRECT {
+		@Override
+		FileContent newContent() {
+			return new DirectFileContent();
+		}
+	};
+
+	/**
+	 * @return new, empty file content stored by this backend.
+	 */
+	abstract FileContent newContent();
+
+	/**
+	 * @return the storage backend selected by <code>conf</code>, defaults to
+	 *         {@link #HEAP}.
+	 * @throws IllegalArgumentException
+	 *             If the configured backend is unknown.
+	 */
+	static StorageBackend get(Configuration conf) {
+		String name = conf.get(InMemoryFileSystem.STORAGE_KEY,
+				InMemoryFileSystem.STORAGE_HEAP);
+		for (StorageBackend backend : values()) {
+			if (backend.name().equalsIgnoreCase(name.trim())) {
+				return backend;
+			}
+		}
+		throw new IllegalArgumentException("Unknown storage backend: " + name);
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileSystem.Statistics;
+
+/**
+ * Counts the bytes transferred by one stream and publishes them to the shared
+ * <code>FileSystem.Statistics</code> of the scheme in batches, so streams of
+ * different threads do not contend on the shared counters for every call.
+ * <p>
+ * Sequential transfers are counted in a plain field by the thread using the
+ * stream. Positional reads, which may be issued concurrently on the same
+ * stream, are counted in an atomic field owned by the stream. The counts are
+ * published whenever {@link #PUBLISH_BYTES} have accumulated and when the
+ * stream is closed.
+ */
+final class StreamStatistics {
+
+	/** The number of bytes after which the counts are published, 1MB. */
+	static final long PUBLISH_BYTES = 1024 * 1024;
+
+	private final Statistics statistics;
+	private final boolean read;
+	private long bytes = 0;
+	private final AtomicLong concurrentBytes = new AtomicLong();
+
+	/**
+	 * @param statistics
+	 *            The shared statistics of the scheme.
+	 * @param read
+	 *            <code>true</code> to count bytes read, <code>false</code>
+	 *            to count bytes written.
+	 */
+	StreamStatistics(Statistics statistics, boolean read) {
+		this.statistics = statistics;
+		this.read = read;
+	}
+
+	/**
+	 * Counts bytes transferred by the thread using the stream.
+	 */
+	void add(long count) {
+		bytes += count;
+		if (bytes >= PUBLISH_BYTES) {
+			publish(bytes);
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * Counts bytes transferred by a positional read, from any thread.
+	 */
+	void addConcurrent(long count) {
+		if (concurrentBytes.addAndGet(count) >= PUBLISH_BYTES) {
+			publish(concurrentBytes.getAndSet(0));
+		}
+	}
+
+	/**
+	 * Publishes all bytes counted so far, called when the stream is closed.
+	 */
+	void flush() {
+		publish(bytes + concurrentBytes.getAndSet(0));
+		bytes = 0;
+	}
+
+	private void publish(long count) {
+		if (count == 0) {
+			return;
+		}
+		if (read) {
+			statistics.incrementBytesRead(count);
+		} else {
+			statistics.incrementBytesWritten(count);
+		}
+	}
+}
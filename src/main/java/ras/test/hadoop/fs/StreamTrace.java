@@ -0,0 +1,113 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+/**
+ * Records the calls of one stream to the {@link TraceRecorder} of its
+ * context. Consecutive sequential transfers of the same thread are
+ * accumulated into a run, which is recorded as a single
+ * {@link TraceRecord.Type#READ} or {@link TraceRecord.Type#WRITE} when it is
+ * interrupted by a seek, a positional read, another thread or the close of
+ * the stream, or when it reaches {@link #RUN_BYTES}.
+ */
+final class StreamTrace {
+
+	/** The number of bytes after which a run is recorded, 1MB. */
+	static final long RUN_BYTES = 1024 * 1024;
+
+	private final TraceRecorder recorder;
+	private final int stream;
+
+	private TraceRecord.Type runType = null;
+	private long runNanos;
+	private long runThread;
+	private long runPosition;
+	private long runLength;
+	private int runCalls;
+
+	/** The position of the next write, streams only write sequentially. */
+	private long written = 0;
+
+	StreamTrace(TraceRecorder recorder, int stream) {
+		this.recorder = recorder;
+		this.stream = stream;
+	}
+
+	/**
+	 * Records a sequential read of <code>count</code> bytes at
+	 * <code>position</code>.
+	 */
+	synchronized void read(long position, int count) {
+		transfer(TraceRecord.Type.READ, position, count);
+	}
+
+	/**
+	 * Records a sequential write of <code>count</code> bytes.
+	 */
+	synchronized void write(int count) {
+		transfer(TraceRecord.Type.WRITE, written, count);
+		written += count;
+	}
+
+	/**
+	 * Records a positional read of <code>count</code> bytes at
+	 * <code>position</code>, which may be issued concurrently with other
+	 * reads.
+	 */
+	synchronized void positionalRead(long position, int count) {
+		flush();
+		recorder.append(new TraceRecord(TraceRecord.Type.POSITIONAL_READ,
+				recorder.now(), Thread.currentThread().getId(), null, null,
+				stream, position, count, 1, false));
+	}
+
+	synchronized void close() {
+		flush();
+		recorder.append(new TraceRecord(TraceRecord.Type.CLOSE, recorder
+				.now(), Thread.currentThread().getId(), null, null, stream, 0,
+				0, 1, false));
+	}
+
+	private void transfer(TraceRecord.Type type, long position, int count) {
+		long thread = Thread.currentThread().getId();
+		if (runType != null
+				&& (runType != type || runThread != thread || runPosition
+						+ runLength != position)) {
+			flush();
+		}
+		if (runType == null) {
+			runType = type;
+			runNanos = recorder.now();
+			runThread = thread;
+			runPosition = position;
+			runLength = 0;
+			runCalls = 0;
+		}
+		runLength += count;
+		runCalls++;
+		if (runLength >= RUN_BYTES) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		if (runType != null) {
+			recorder.append(new TraceRecord(runType, runNanos, runThread, null,
+					null, stream, runPosition, runLength, runCalls, false));
+			runType = null;
+		}
+	}
+}
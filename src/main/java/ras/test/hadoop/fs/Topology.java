@@ -0,0 +1,184 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import org.apache.commons.lang.Validate;
+import org.apache.hadoop.fs.BlockLocation;
+
+/**
+ * A synthetic cluster of racks of hosts on which the blocks of files are
+ * placed, see {@link InMemoryFileSystem#getFileBlockLocations}. A cluster of
+ * one host is the <code>localhost</code> of
+ * {@link org.apache.hadoop.fs.FileSystem}.
+ * <p>
+ * Replicas are placed like the default policy of HDFS: the first on a host
+ * chosen by the file and the block, the second on a host of another rack,
+ * the third on another host of the second rack and the rest on any other
+ * host. The placement is a function of the hash of the path and the index of
+ * the block only, so it is reproducible and the cluster keeps no state per
+ * block. The names of the hosts are built once, and locating a block
+ * allocates little more than the location itself.
+ * <p>
+ * This class is package private since it's only purpose is to support
+ * {@link InMemoryFileSystem}.
+ */
+final class Topology {
+
+	/** The port of the synthetic data nodes, the default of HDFS. */
+	private static final int PORT = 50010;
+
+	private final int racks;
+	private final int hostsPerRack;
+
+	/** The <code>host:port</code> names, by host index. */
+	private final String[] names;
+	private final String[] hosts;
+
+	/** The network paths <code>/rack/host:port</code>, by host index. */
+	private final String[] paths;
+
+	/**
+	 * @param racks
+	 *            The number of racks.
+	 * @param hostsPerRack
+	 *            The number of hosts in each rack.
+	 */
+	Topology(int racks, int hostsPerRack) {
+		Validate.isTrue(racks > 0, "Invalid number of racks: " + racks);
+		Validate.isTrue(hostsPerRack > 0, "Invalid number of hosts per rack: "
+				+ hostsPerRack);
+		this.racks = racks;
+		this.hostsPerRack = hostsPerRack;
+		int count = racks * hostsPerRack;
+		names = new String[count];
+		hosts = new String[count];
+		paths = new String[count];
+		for (int host = 0; host < count; host++) {
+			if (count == 1) {
+				hosts[host] = "localhost";
+				paths[host] = "/default-rack/localhost:" + PORT;
+			} else {
+				hosts[host] = "host" + host;
+				paths[host] = "/rack" + (host / hostsPerRack) + "/host" + host
+						+ ":" + PORT;
+			}
+			names[host] = hosts[host] + ":" + PORT;
+		}
+	}
+
+	/**
+	 * @return the number of hosts.
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * @param seed
+	 *            The hash of the path of the file.
+	 * @param block
+	 *            The index of the block in the file.
+	 * @param replication
+	 *            The replication of the file, capped at the number of hosts.
+	 * @return the location of a block of <code>length</code> bytes at
+	 *         <code>offset</code>.
+	 */
+	BlockLocation locate(int seed, long block, short replication,
+			long offset, long length) {
+		int[] chosen = place(seed, block, Math.min(replication, names.length));
+		String[] blockNames = new String[chosen.length];
+		String[] blockHosts = new String[chosen.length];
+		String[] blockPaths = new String[chosen.length];
+		for (int i = 0; i < chosen.length; i++) {
+			blockNames[i] = names[chosen[i]];
+			blockHosts[i] = hosts[chosen[i]];
+			blockPaths[i] = paths[chosen[i]];
+		}
+		return new BlockLocation(blockNames, blockHosts, blockPaths, offset,
+				length);
+	}
+
+	/**
+	 * @return the indexes of the <code>count</code> distinct hosts holding
+	 *         the replicas of a block.
+	 */
+	int[] place(int seed, long block, int count) {
+		int[] chosen = new int[count];
+		if (count == 0) {
+			return chosen;
+		}
+		long hash = mix(seed * 0x9E3779B97F4A7C15L + block);
+		chosen[0] = index(hash, names.length);
+		for (int i = 1; i < count; i++) {
+			int host = -1;
+			if (i == 1) {
+				int rack = chosen[0] / hostsPerRack;
+				if (racks > 1) {
+					rack = (rack + 1 + index(hash >>> 20, racks - 1)) % racks;
+				}
+				host = pick(rack, hash >>> 40, chosen, i);
+			} else if (i == 2) {
+				host = pick(chosen[1] / hostsPerRack, hash >>> 10, chosen, i);
+			}
+			if (host < 0) {
+				// Any other host, in order from the first...
+				host = chosen[0];
+				do {
+					host = (host + 1) % names.length;
+				} while (contains(chosen, i, host));
+			}
+			chosen[i] = host;
+		}
+		return chosen;
+	}
+
+	/**
+	 * @return a host of <code>rack</code> which holds no replica yet, or -1.
+	 */
+	private int pick(int rack, long hash, int[] chosen, int count) {
+		int start = index(hash, hostsPerRack);
+		for (int i = 0; i < hostsPerRack; i++) {
+			int host = rack * hostsPerRack + (start + i) % hostsPerRack;
+			if (!contains(chosen, count, host)) {
+				return host;
+			}
+		}
+		return -1;
+	}
+
+	private static boolean contains(int[] chosen, int count, int host) {
+		for (int i = 0; i < count; i++) {
+			if (chosen[i] == host) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static int index(long hash, int bound) {
+		return (int) ((hash & Long.MAX_VALUE) % bound);
+	}
+
+	/** The finalizer of MurmurHash3, spreads the bits of <code>x</code>. */
+	private static long mix(long x) {
+		x ^= x >>> 33;
+		x *= 0xFF51AFD7ED558CCDL;
+		x ^= x >>> 33;
+		x *= 0xC4CEB9FE1A85EC53L;
+		x ^= x >>> 33;
+		return x;
+	}
+}
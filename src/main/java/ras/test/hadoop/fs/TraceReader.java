@@ -0,0 +1,116 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.lang.Validate;
+
+/**
+ * Reads a trace recorded by a context with
+ * {@link InMemoryFileSystem#TRACE_KEY} set. A trace is complete once its
+ * context has been released, e.g. by
+ * {@link InMemoryFileSystem#resetFileSystemState(org.apache.hadoop.conf.Configuration)}.
+ */
+public class TraceReader implements Closeable {
+
+	private final File file;
+	private final DataInputStream in;
+	private final long startMillis;
+	private final List<String> paths = new ArrayList<String>();
+	private boolean ended = false;
+
+	/**
+	 * @param file
+	 *            The trace file.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a trace.
+	 */
+	public TraceReader(File file) throws IOException {
+		Validate.notNull(file, "file == null not allowed!");
+		this.file = file;
+		this.in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file), 64 * 1024));
+		try {
+			if (in.readInt() != TraceRecorder.MAGIC) {
+				throw new IOException("Not an in-memory file system trace: "
+						+ file);
+			}
+			int version = in.readInt();
+			if (version < 1 || version > TraceRecorder.VERSION) {
+				throw new IOException("Unsupported trace version: " + version);
+			}
+			startMillis = in.readLong();
+		} catch (EOFException e) {
+			in.close();
+			throw new IOException("Not an in-memory file system trace: "
+					+ file);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the wall clock time at which the trace started, in
+	 *         milliseconds.
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return the next record, <code>null</code> at the end of the trace.
+	 * @throws EOFException
+	 *             If the trace is truncated, because its context has not been
+	 *             released yet or it could not be written completely.
+	 */
+	public TraceRecord next() throws IOException {
+		if (ended) {
+			return null;
+		}
+		try {
+			TraceRecord record = TraceRecord.read(in, paths);
+			ended = (record == null);
+			return record;
+		} catch (EOFException e) {
+			throw new EOFException("Trace truncated: " + file);
+		}
+	}
+
+	/**
+	 * Reads the remaining records.
+	 */
+	public List<TraceRecord> readAll() throws IOException {
+		List<TraceRecord> records = new ArrayList<TraceRecord>();
+		for (TraceRecord record = next(); record != null; record = next()) {
+			records.add(record);
+		}
+		return records;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
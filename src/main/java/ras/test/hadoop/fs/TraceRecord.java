@@ -0,0 +1,492 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One operation of a trace recorded by a context with
+ * {@link InMemoryFileSystem#TRACE_KEY} set, see {@link TraceReader} and
+ * {@link TraceReplayer}.
+ * <p>
+ * Consecutive sequential reads or writes of a stream are recorded as a single
+ * {@link Type#READ} or {@link Type#WRITE} record holding the number of calls
+ * and the bytes they transferred, so a stream written a few bytes at a time
+ * does not produce a record per call.
+ */
+public final class TraceRecord {
+
+	/** The kinds of recorded operations. */
+	public enum Type {
+		/** {@link #getPath()} opened as {@link #getStream()}. */
+		OPEN,
+		/**
+		 * {@link #getPath()} created as {@link #getStream()},
+		 * {@link #getFlag()} is the overwrite flag.
+		 */
+		CREATE,
+		/** {@link #getPath()} opened for appending as {@link #getStream()}. */
+		APPEND,
+		/** {@link #getPath()} renamed to {@link #getTarget()}. */
+		RENAME,
+		/** {@link #getPath()} deleted, {@link #getFlag()} is the recursive flag. */
+		DELETE,
+		/** {@link #getPath()} listed. */
+		LIST_STATUS,
+		/** {@link #getPath()} created as a directory. */
+		MKDIRS,
+		/** The status of {@link #getPath()} requested. */
+		GET_FILE_STATUS,
+		/**
+		 * {@link #getCalls()} sequential reads of {@link #getLength()} bytes
+		 * in total from {@link #getStream()}, starting at
+		 * {@link #getPosition()}.
+		 */
+		READ,
+		/**
+		 * A positional read of {@link #getLength()} bytes at
+		 * {@link #getPosition()} from {@link #getStream()}.
+		 */
+		POSITIONAL_READ,
+		/**
+		 * {@link #getCalls()} writes of {@link #getLength()} bytes in total to
+		 * {@link #getStream()}, starting at {@link #getPosition()}.
+		 */
+		WRITE,
+		/** {@link #getStream()} closed. */
+		CLOSE,
+		/** The permission of {@link #getPath()} set to {@link #getPosition()}. */
+		SET_PERMISSION,
+		/**
+		 * The owner of {@link #getPath()} set to {@link #getTarget()} and its
+		 * group to {@link #getArgument()}, either may be <code>null</code>.
+		 */
+		SET_OWNER,
+		/** The replication of {@link #getPath()} set to {@link #getPosition()}. */
+		SET_REPLICATION,
+		/**
+		 * The namespace quota of {@link #getPath()} set to
+		 * {@link #getPosition()} and its space quota to {@link #getLength()}.
+		 */
+		SET_QUOTA,
+		/** The content summary of {@link #getPath()} requested. */
+		GET_CONTENT_SUMMARY,
+		/** The statuses matching the glob {@link #getPath()} requested. */
+		GLOB_STATUS,
+		/** Snapshots of {@link #getPath()} allowed. */
+		ALLOW_SNAPSHOT,
+		/** Snapshots of {@link #getPath()} disallowed. */
+		DISALLOW_SNAPSHOT,
+		/** The snapshot {@link #getTarget()} of {@link #getPath()} created. */
+		CREATE_SNAPSHOT,
+		/**
+		 * The snapshot {@link #getTarget()} of {@link #getPath()} renamed to
+		 * {@link #getArgument()}.
+		 */
+		RENAME_SNAPSHOT,
+		/** The snapshot {@link #getTarget()} of {@link #getPath()} deleted. */
+		DELETE_SNAPSHOT,
+		/**
+		 * The differences between the snapshots {@link #getTarget()} and
+		 * {@link #getArgument()} of {@link #getPath()} requested, the latter
+		 * <code>null</code> for the current state.
+		 */
+		SNAPSHOT_DIFF
+	}
+
+	/** Marks the end of a complete trace. */
+	static final int END = 0xFF;
+
+	private final Type type;
+	private final long nanos;
+	private final long threadId;
+	private final String path;
+	private final String target;
+	private final String argument;
+	private final int stream;
+	private final long position;
+	private final long length;
+	private final int calls;
+	private final boolean flag;
+
+	TraceRecord(Type type, long nanos, long threadId, String path,
+			String target, int stream, long position, long length, int calls,
+			boolean flag) {
+		this(type, nanos, threadId, path, target, null, stream, position,
+				length, calls, flag);
+	}
+
+	TraceRecord(Type type, long nanos, long threadId, String path,
+			String target, String argument, int stream, long position,
+			long length, int calls, boolean flag) {
+		this.type = type;
+		this.nanos = nanos;
+		this.threadId = threadId;
+		this.path = path;
+		this.target = target;
+		this.argument = argument;
+		this.stream = stream;
+		this.position = position;
+		this.length = length;
+		this.calls = calls;
+		this.flag = flag;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the start of the operation in nanoseconds since the trace
+	 *         started.
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	/**
+	 * @return the id of the thread which called the operation.
+	 */
+	public long getThreadId() {
+		return threadId;
+	}
+
+	/**
+	 * @return the absolute path of a file system operation, without scheme
+	 *         and authority, <code>null</code> for a stream operation.
+	 */
+	public String getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the destination of a {@link Type#RENAME}, the snapshot of a
+	 *         snapshot operation or the owner of a {@link Type#SET_OWNER},
+	 *         <code>null</code> otherwise.
+	 */
+	public String getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the new name of a {@link Type#RENAME_SNAPSHOT}, the later
+	 *         snapshot of a {@link Type#SNAPSHOT_DIFF} or the group of a
+	 *         {@link Type#SET_OWNER}, <code>null</code> otherwise.
+	 */
+	public String getArgument() {
+		return argument;
+	}
+
+	/**
+	 * @return the number identifying a stream within the trace, 0 if the
+	 *         operation does not involve a stream.
+	 */
+	public int getStream() {
+		return stream;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public int getCalls() {
+		return calls;
+	}
+
+	public boolean getFlag() {
+		return flag;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(nanos).append(" [").append(threadId).append("] ")
+				.append(type);
+		if (path != null) {
+			sb.append(' ').append(path);
+		}
+		if (target != null) {
+			sb.append(" -> ").append(target);
+		}
+		if (argument != null) {
+			sb.append(' ').append(argument);
+		}
+		if (stream != 0) {
+			sb.append(" #").append(stream);
+		}
+		switch (type) {
+		case READ:
+		case WRITE:
+			sb.append(" @").append(position).append(' ').append(length)
+					.append(" bytes in ").append(calls).append(" calls");
+			break;
+		case POSITIONAL_READ:
+			sb.append(" @").append(position).append(' ').append(length)
+					.append(" bytes");
+			break;
+		case CREATE:
+		case DELETE:
+			sb.append(' ').append(flag);
+			break;
+		case SET_PERMISSION:
+			sb.append(' ').append(Long.toOctalString(position));
+			break;
+		case SET_REPLICATION:
+			sb.append(' ').append(position);
+			break;
+		case SET_QUOTA:
+			sb.append(' ').append(position).append(' ').append(length);
+			break;
+		default:
+			break;
+		}
+		return sb.toString();
+	}
+
+	//
+	// Encoding...
+	//
+
+	/**
+	 * Appends this record to a trace. Paths are written once and referred to
+	 * by their index in <code>paths</code> afterwards.
+	 */
+	void write(DataOutput out, Map<String, Integer> paths) throws IOException {
+		out.writeByte(type.ordinal());
+		writeVarLong(out, nanos);
+		writeVarLong(out, threadId);
+		switch (type) {
+		case OPEN:
+		case APPEND:
+			writePath(out, path, paths);
+			writeVarLong(out, stream);
+			break;
+		case CREATE:
+			writePath(out, path, paths);
+			writeVarLong(out, stream);
+			out.writeBoolean(flag);
+			break;
+		case RENAME:
+			writePath(out, path, paths);
+			writePath(out, target, paths);
+			break;
+		case DELETE:
+			writePath(out, path, paths);
+			out.writeBoolean(flag);
+			break;
+		case READ:
+		case WRITE:
+			writeVarLong(out, stream);
+			writeVarLong(out, position);
+			writeVarLong(out, length);
+			writeVarLong(out, calls);
+			break;
+		case POSITIONAL_READ:
+			writeVarLong(out, stream);
+			writeVarLong(out, position);
+			writeVarLong(out, length);
+			break;
+		case CLOSE:
+			writeVarLong(out, stream);
+			break;
+		case SET_PERMISSION:
+		case SET_REPLICATION:
+			writePath(out, path, paths);
+			writeVarLong(out, position);
+			break;
+		case SET_QUOTA:
+			writePath(out, path, paths);
+			writeVarLong(out, position);
+			writeVarLong(out, length);
+			break;
+		case CREATE_SNAPSHOT:
+		case DELETE_SNAPSHOT:
+			writePath(out, path, paths);
+			writeString(out, target);
+			break;
+		case SET_OWNER:
+		case RENAME_SNAPSHOT:
+		case SNAPSHOT_DIFF:
+			writePath(out, path, paths);
+			writeString(out, target);
+			writeString(out, argument);
+			break;
+		default:
+			writePath(out, path, paths);
+			break;
+		}
+	}
+
+	/**
+	 * Reads the next record of a trace.
+	 * 
+	 * @return the record, <code>null</code> at the end of the trace.
+	 */
+	static TraceRecord read(DataInput in, List<String> paths)
+			throws IOException {
+		int code = in.readUnsignedByte();
+		if (code == END) {
+			return null;
+		}
+		if (code >= Type.values().length) {
+			throw new IOException("Unknown trace record type: " + code);
+		}
+		Type type = Type.values()[code];
+		long nanos = readVarLong(in);
+		long threadId = readVarLong(in);
+		String path = null;
+		String target = null;
+		String argument = null;
+		int stream = 0;
+		long position = 0;
+		long length = 0;
+		int calls = 1;
+		boolean flag = false;
+		switch (type) {
+		case OPEN:
+		case APPEND:
+			path = readPath(in, paths);
+			stream = (int) readVarLong(in);
+			break;
+		case CREATE:
+			path = readPath(in, paths);
+			stream = (int) readVarLong(in);
+			flag = in.readBoolean();
+			break;
+		case RENAME:
+			path = readPath(in, paths);
+			target = readPath(in, paths);
+			break;
+		case DELETE:
+			path = readPath(in, paths);
+			flag = in.readBoolean();
+			break;
+		case READ:
+		case WRITE:
+			stream = (int) readVarLong(in);
+			position = readVarLong(in);
+			length = readVarLong(in);
+			calls = (int) readVarLong(in);
+			break;
+		case POSITIONAL_READ:
+			stream = (int) readVarLong(in);
+			position = readVarLong(in);
+			length = readVarLong(in);
+			break;
+		case CLOSE:
+			stream = (int) readVarLong(in);
+			break;
+		case SET_PERMISSION:
+		case SET_REPLICATION:
+			path = readPath(in, paths);
+			position = readVarLong(in);
+			break;
+		case SET_QUOTA:
+			path = readPath(in, paths);
+			position = readVarLong(in);
+			length = readVarLong(in);
+			break;
+		case CREATE_SNAPSHOT:
+		case DELETE_SNAPSHOT:
+			path = readPath(in, paths);
+			target = readString(in);
+			break;
+		case SET_OWNER:
+		case RENAME_SNAPSHOT:
+		case SNAPSHOT_DIFF:
+			path = readPath(in, paths);
+			target = readString(in);
+			argument = readString(in);
+			break;
+		default:
+			path = readPath(in, paths);
+			break;
+		}
+		return new TraceRecord(type, nanos, threadId, path, target, argument,
+				stream, position, length, calls, flag);
+	}
+
+	private static void writePath(DataOutput out, String path,
+			Map<String, Integer> paths) throws IOException {
+		Integer index = paths.get(path);
+		if (index != null) {
+			writeVarLong(out, index);
+		} else {
+			writeVarLong(out, paths.size());
+			out.writeUTF(path);
+			paths.put(path, paths.size());
+		}
+	}
+
+	private static String readPath(DataInput in, List<String> paths)
+			throws IOException {
+		long index = readVarLong(in);
+		if (index == paths.size()) {
+			paths.add(in.readUTF());
+		} else if (index > paths.size()) {
+			throw new IOException("Invalid path reference: " + index);
+		}
+		return paths.get((int) index);
+	}
+
+	/**
+	 * Writes a name which is not a path and may be <code>null</code>.
+	 */
+	private static void writeString(DataOutput out, String value)
+			throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * Writes a value in 7 bit groups, most values of a trace fit in one or two
+	 * bytes. A negative value, e.g. a reset quota, takes ten.
+	 */
+	private static void writeVarLong(DataOutput out, long value)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed trace record!");
+	}
+}
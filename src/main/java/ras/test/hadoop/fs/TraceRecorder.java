@@ -0,0 +1,161 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Records the operations of a context to an append-only trace file, see
+ * {@link InMemoryFileSystem#TRACE_KEY}. The format is read by
+ * {@link TraceReader}:
+ * 
+ * <pre>
+ * int magic, int version, long start time in milliseconds
+ * record*           see {@link TraceRecord#write}
+ * byte 0xFF         only present if the trace is complete
+ * </pre>
+ * 
+ * Records are buffered and appended under the lock of the recorder in the
+ * order they are submitted, their timestamps are taken before. If the trace
+ * cannot be written, recording stops and the trace is left without its end
+ * marker, so a reader reports it as truncated.
+ */
+final class TraceRecorder {
+
+	static final int MAGIC = 0x494D5452;
+	/** Version 2 adds the metadata and snapshot records, see TraceRecord. */
+	static final int VERSION = 2;
+
+	private final File file;
+	private final long startNanos = System.nanoTime();
+	private final AtomicInteger streams = new AtomicInteger();
+	private final Map<String, Integer> paths = new HashMap<String, Integer>();
+	private DataOutputStream out;
+
+	TraceRecorder(File file) throws IOException {
+		this.file = file;
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 64 * 1024));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(System.currentTimeMillis());
+		out.flush();
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the timestamp of an operation starting now.
+	 */
+	long now() {
+		return System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * Records an operation on <code>path</code>.
+	 */
+	void record(TraceRecord.Type type, Path path, boolean flag) {
+		append(new TraceRecord(type, now(), Thread.currentThread().getId(),
+				path(path), null, 0, 0, 0, 1, flag));
+	}
+
+	/**
+	 * Records an operation on <code>path</code> with numeric arguments.
+	 */
+	void record(TraceRecord.Type type, Path path, long position, long length) {
+		append(new TraceRecord(type, now(), Thread.currentThread().getId(),
+				path(path), null, 0, position, length, 1, false));
+	}
+
+	/**
+	 * Records an operation on <code>path</code> with name arguments, either
+	 * may be <code>null</code>.
+	 */
+	void record(TraceRecord.Type type, Path path, String target,
+			String argument) {
+		append(new TraceRecord(type, now(), Thread.currentThread().getId(),
+				path(path), target, argument, 0, 0, 0, 1, false));
+	}
+
+	void recordRename(Path src, Path dst) {
+		append(new TraceRecord(TraceRecord.Type.RENAME, now(), Thread
+				.currentThread().getId(), path(src), path(dst), 0, 0, 0, 1,
+				false));
+	}
+
+	/**
+	 * Records the opening of a stream on <code>path</code>.
+	 * 
+	 * @return the trace of the stream, to be passed to the stream.
+	 */
+	StreamTrace recordStream(TraceRecord.Type type, Path path, boolean flag) {
+		int stream = streams.incrementAndGet();
+		append(new TraceRecord(type, now(), Thread.currentThread().getId(),
+				path(path), null, stream, 0, 0, 1, flag));
+		return new StreamTrace(this, stream);
+	}
+
+	synchronized void append(TraceRecord record) {
+		if (out == null) {
+			return;
+		}
+		try {
+			record.write(out, paths);
+		} catch (IOException e) {
+			abort();
+		}
+	}
+
+	/**
+	 * Writes the end marker and closes the trace.
+	 */
+	synchronized void close() {
+		if (out == null) {
+			return;
+		}
+		try {
+			out.writeByte(TraceRecord.END);
+			out.close();
+		} catch (IOException e) {
+			// Left truncated...
+		}
+		out = null;
+	}
+
+	private void abort() {
+		try {
+			out.close();
+		} catch (IOException e) {
+			// Left truncated...
+		}
+		out = null;
+	}
+
+	private static String path(Path path) {
+		return path.toUri().getPath();
+	}
+}
@@ -0,0 +1,427 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang.Validate;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * Re-executes a trace recorded by a context with
+ * {@link InMemoryFileSystem#TRACE_KEY} set against any Hadoop
+ * {@link FileSystem}, and reports the throughput and latencies of the
+ * replayed operations.
+ * <p>
+ * The records of each thread of the trace are replayed in order by a thread
+ * of their own, either at the original pace, each record waiting until its
+ * time since the start of the trace has passed, or at maximum speed. Paths
+ * are resolved below a root directory of the target file system. Written
+ * content is zeros. A record which fails, e.g. because a thread replayed at
+ * maximum speed overtook the thread creating the file, is counted as a
+ * failure and the replay continues. Quota and snapshot records fail unless
+ * the target is an {@link InMemoryFileSystem}.
+ * <p>
+ * Run it with:
+ * 
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.TraceReplayer trace [uri [root]] [-max]
+ * </pre>
+ * 
+ * which replays <code>trace</code> against a new in-memory context, or the
+ * file system at <code>uri</code> below <code>root</code>.
+ */
+public class TraceReplayer {
+
+	private final FileSystem fs;
+	private final Path root;
+	private boolean maximumSpeed = false;
+
+	/**
+	 * @param fs
+	 *            The target file system.
+	 * @param root
+	 *            The directory of <code>fs</code> corresponding to the root
+	 *            of the traced file system.
+	 */
+	public TraceReplayer(FileSystem fs, Path root) {
+		Validate.notNull(fs, "fs == null not allowed!");
+		Validate.notNull(root, "root == null not allowed!");
+		this.fs = fs;
+		this.root = root;
+	}
+
+	/**
+	 * @param maximumSpeed
+	 *            <code>true</code> to replay each thread without waiting,
+	 *            <code>false</code> (the default) for the original pace.
+	 */
+	public void setMaximumSpeed(boolean maximumSpeed) {
+		this.maximumSpeed = maximumSpeed;
+	}
+
+	/**
+	 * Replays a complete trace file.
+	 */
+	public ReplayResult replay(File trace) throws IOException {
+		TraceReader reader = new TraceReader(trace);
+		try {
+			return replay(reader.readAll());
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Replays records read from a trace, and waits until all threads are
+	 * done. Streams left open by the records are closed.
+	 */
+	public ReplayResult replay(List<TraceRecord> records) throws IOException {
+		Map<Long, List<TraceRecord>> threads = new LinkedHashMap<Long, List<TraceRecord>>();
+		for (TraceRecord record : records) {
+			List<TraceRecord> list = threads.get(record.getThreadId());
+			if (list == null) {
+				list = new ArrayList<TraceRecord>();
+				threads.put(record.getThreadId(), list);
+			}
+			list.add(record);
+		}
+
+		ReplayResult result = new ReplayResult();
+		ConcurrentMap<Integer, Closeable> streams = new ConcurrentHashMap<Integer, Closeable>();
+		long start = System.nanoTime();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (Map.Entry<Long, List<TraceRecord>> thread : threads.entrySet()) {
+			Thread worker = new Thread(new Worker(thread.getValue(), streams,
+					result, start), "replay-" + thread.getKey());
+			worker.start();
+			workers.add(worker);
+		}
+		try {
+			for (Thread worker : workers) {
+				worker.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Replay interrupted!");
+		} finally {
+			result.setElapsedNanos(System.nanoTime() - start);
+			for (Closeable stream : streams.values()) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// Already failed...
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Replays the records of one thread of the trace.
+	 */
+	private class Worker implements Runnable {
+
+		private final List<TraceRecord> records;
+		private final ConcurrentMap<Integer, Closeable> streams;
+		private final ReplayResult result;
+		private final long start;
+		private byte[] buffer = new byte[4096];
+
+		Worker(List<TraceRecord> records,
+				ConcurrentMap<Integer, Closeable> streams, ReplayResult result,
+				long start) {
+			this.records = records;
+			this.streams = streams;
+			this.result = result;
+			this.start = start;
+		}
+
+		public void run() {
+			try {
+				for (TraceRecord record : records) {
+					if (!maximumSpeed) {
+						long delay = start + record.getNanos()
+								- System.nanoTime();
+						if (delay > 0) {
+							TimeUnit.NANOSECONDS.sleep(delay);
+						}
+					}
+					long begin = System.nanoTime();
+					try {
+						long transferred = execute(record);
+						result.record(record, System.nanoTime() - begin,
+								transferred);
+					} catch (IOException e) {
+						result.record(record, System.nanoTime() - begin, 0);
+						result.fail(record);
+					} catch (RuntimeException e) {
+						// E.g. an argument the target rejects...
+						result.record(record, System.nanoTime() - begin, 0);
+						result.fail(record);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Abandon the rest of the thread...
+			}
+		}
+
+		/**
+		 * @return the number of bytes transferred.
+		 */
+		private long execute(TraceRecord record) throws IOException {
+			int stream = record.getStream();
+			switch (record.getType()) {
+			case OPEN:
+				streams.put(stream, fs.open(path(record.getPath())));
+				return 0;
+			case CREATE:
+				streams.put(stream,
+						fs.create(path(record.getPath()), record.getFlag()));
+				return 0;
+			case APPEND:
+				streams.put(stream, fs.append(path(record.getPath())));
+				return 0;
+			case RENAME:
+				fs.rename(path(record.getPath()), path(record.getTarget()));
+				return 0;
+			case DELETE:
+				fs.delete(path(record.getPath()), record.getFlag());
+				return 0;
+			case LIST_STATUS:
+				fs.listStatus(path(record.getPath()));
+				return 0;
+			case MKDIRS:
+				fs.mkdirs(path(record.getPath()));
+				return 0;
+			case GET_FILE_STATUS:
+				fs.getFileStatus(path(record.getPath()));
+				return 0;
+			case READ:
+				return read(input(stream), record);
+			case POSITIONAL_READ:
+				int count = input(stream).read(record.getPosition(),
+						buffer(record.getLength()), 0,
+						(int) record.getLength());
+				return Math.max(count, 0);
+			case WRITE:
+				return write(output(stream), record);
+			case CLOSE:
+				Closeable closed = streams.remove(stream);
+				if (closed == null) {
+					throw new IOException("Stream #" + stream + " not open!");
+				}
+				closed.close();
+				return 0;
+			case SET_PERMISSION:
+				fs.setPermission(path(record.getPath()), new FsPermission(
+						(short) record.getPosition()));
+				return 0;
+			case SET_OWNER:
+				fs.setOwner(path(record.getPath()), record.getTarget(),
+						record.getArgument());
+				return 0;
+			case SET_REPLICATION:
+				fs.setReplication(path(record.getPath()),
+						(short) record.getPosition());
+				return 0;
+			case SET_QUOTA:
+				memory().setQuota(path(record.getPath()),
+						record.getPosition(), record.getLength());
+				return 0;
+			case GET_CONTENT_SUMMARY:
+				fs.getContentSummary(path(record.getPath()));
+				return 0;
+			case GLOB_STATUS:
+				fs.globStatus(path(record.getPath()));
+				return 0;
+			case ALLOW_SNAPSHOT:
+				memory().allowSnapshot(path(record.getPath()));
+				return 0;
+			case DISALLOW_SNAPSHOT:
+				memory().disallowSnapshot(path(record.getPath()));
+				return 0;
+			case CREATE_SNAPSHOT:
+				memory().createSnapshot(path(record.getPath()),
+						record.getTarget());
+				return 0;
+			case RENAME_SNAPSHOT:
+				memory().renameSnapshot(path(record.getPath()),
+						record.getTarget(), record.getArgument());
+				return 0;
+			case DELETE_SNAPSHOT:
+				memory().deleteSnapshot(path(record.getPath()),
+						record.getTarget());
+				return 0;
+			case SNAPSHOT_DIFF:
+				memory().getSnapshotDiffReport(path(record.getPath()),
+						record.getTarget(), record.getArgument());
+				return 0;
+			default:
+				throw new IllegalStateException("Unknown record type: "
+						+ record.getType());
+			}
+		}
+
+		/**
+		 * Reads the bytes of a run with as many calls as the original reads.
+		 */
+		private long read(FSDataInputStream in, TraceRecord record)
+				throws IOException {
+			if (in.getPos() != record.getPosition()) {
+				in.seek(record.getPosition());
+			}
+			long transferred = 0;
+			for (int i = 0; i < record.getCalls(); i++) {
+				int size = callSize(record, i);
+				if (size == 1) {
+					if (in.read() < 0) {
+						break;
+					}
+					transferred++;
+				} else {
+					int count = in.read(buffer(size), 0, size);
+					if (count < 0) {
+						break;
+					}
+					transferred += count;
+				}
+			}
+			return transferred;
+		}
+
+		/**
+		 * Writes the bytes of a run with as many calls as the original writes.
+		 */
+		private long write(FSDataOutputStream out, TraceRecord record)
+				throws IOException {
+			for (int i = 0; i < record.getCalls(); i++) {
+				int size = callSize(record, i);
+				if (size == 1) {
+					out.write(0);
+				} else {
+					out.write(buffer(size), 0, size);
+				}
+			}
+			return record.getLength();
+		}
+
+		/**
+		 * @return the size of call <code>i</code> of a run, the bytes being
+		 *         spread evenly over the calls.
+		 */
+		private int callSize(TraceRecord record, int i) {
+			long size = record.getLength() / record.getCalls();
+			if (i < record.getLength() % record.getCalls()) {
+				size++;
+			}
+			return (int) size;
+		}
+
+		private byte[] buffer(long size) {
+			if (buffer.length < size) {
+				buffer = new byte[(int) size];
+			}
+			return buffer;
+		}
+
+		private FSDataInputStream input(int stream) throws IOException {
+			Closeable in = streams.get(stream);
+			if (!(in instanceof FSDataInputStream)) {
+				throw new IOException("Stream #" + stream
+						+ " not open for reading!");
+			}
+			return (FSDataInputStream) in;
+		}
+
+		private FSDataOutputStream output(int stream) throws IOException {
+			Closeable out = streams.get(stream);
+			if (!(out instanceof FSDataOutputStream)) {
+				throw new IOException("Stream #" + stream
+						+ " not open for writing!");
+			}
+			return (FSDataOutputStream) out;
+		}
+	}
+
+	/**
+	 * @return the target, for the operations only an in-memory file system
+	 *         supports.
+	 */
+	private InMemoryFileSystem memory() throws IOException {
+		if (!(fs instanceof InMemoryFileSystem)) {
+			throw new IOException("Not supported by " + fs.getUri());
+		}
+		return (InMemoryFileSystem) fs;
+	}
+
+	/**
+	 * @return the target of a traced absolute path.
+	 */
+	private Path path(String path) {
+		return "/".equals(path) ? root : new Path(root, path.substring(1));
+	}
+
+	public static void main(String[] args) throws IOException {
+		List<String> arguments = new ArrayList<String>();
+		boolean maximumSpeed = false;
+		for (String arg : args) {
+			if ("-max".equals(arg)) {
+				maximumSpeed = true;
+			} else {
+				arguments.add(arg);
+			}
+		}
+		if (arguments.isEmpty() || arguments.size() > 3) {
+			System.err.println("Usage: TraceReplayer trace [uri [root]] [-max]");
+			System.exit(1);
+		}
+
+		Configuration conf = new Configuration();
+		FileSystem fs;
+		if (arguments.size() == 1) {
+			fs = InMemoryFileSystem.get(conf);
+		} else {
+			fs = FileSystem.get(URI.create(arguments.get(1)), conf);
+		}
+		Path root = new Path((arguments.size() == 3) ? arguments.get(2) : "/");
+		try {
+			TraceReplayer replayer = new TraceReplayer(fs, root);
+			replayer.setMaximumSpeed(maximumSpeed);
+			System.out.println(replayer.replay(new File(arguments.get(0))));
+		} finally {
+			if (fs instanceof InMemoryFileSystem) {
+				InMemoryFileSystem.resetFileSystemState(conf);
+			}
+		}
+	}
+}
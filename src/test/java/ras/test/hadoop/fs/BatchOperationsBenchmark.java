@@ -0,0 +1,105 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * Compares building a fixture of many directories and small files one call
+ * at a time with the batch operations of {@link InMemoryFileSystem}.
+ * <p>
+ * This is not a unit test, run it with:
+ *
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.BatchOperationsBenchmark [files]
+ * </pre>
+ */
+public class BatchOperationsBenchmark {
+
+	private static final int FILES_PER_DIRECTORY = 10;
+
+	public static void main(String[] args) throws IOException {
+		int files = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+		byte[] content = new byte[100];
+
+		// Warm up...
+		run(files / 10, content);
+		run(files / 10, content);
+
+		long[] nanos = run(files, content);
+		report("single calls", files, nanos[0]);
+		report("batch calls", files, nanos[1]);
+	}
+
+	private static long[] run(int files, byte[] content) throws IOException {
+		long[] nanos = new long[2];
+		Configuration conf = new Configuration();
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < files; i++) {
+				Path path = path("/single", i);
+				fs.mkdirs(path.getParent());
+				FSDataOutputStream out = fs.create(path, false);
+				out.write(content);
+				out.close();
+			}
+			for (int i = 0; i < files; i++) {
+				fs.getFileStatus(path("/single", i));
+			}
+			fs.delete(new Path("/single"), true);
+			nanos[0] = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			Path[] directories = new Path[files / FILES_PER_DIRECTORY + 1];
+			Map<Path, byte[]> batch = new LinkedHashMap<Path, byte[]>();
+			Path[] paths = new Path[files];
+			for (int i = 0; i < files; i++) {
+				paths[i] = path("/batch", i);
+				directories[i / FILES_PER_DIRECTORY] = paths[i].getParent();
+				batch.put(paths[i], content);
+			}
+			directories[directories.length - 1] = new Path("/batch");
+			fs.batchMkdirs(directories, FsPermission.getDefault());
+			fs.batchCreate(batch, false);
+			fs.batchGetFileStatus(paths);
+			fs.batchDelete(new Path[] { new Path("/batch") }, true);
+			nanos[1] = System.nanoTime() - start;
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+		return nanos;
+	}
+
+	private static Path path(String root, int i) {
+		int directory = i / FILES_PER_DIRECTORY;
+		return new Path(root + "/d" + (directory % 100) + "/d" + directory
+				+ "/file" + i);
+	}
+
+	private static void report(String name, int files, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-20s %10.0f files/s (%d files in %.3f s)%n",
+				name, files / seconds, files, seconds);
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.TextInputFormat;
+
+/**
+ * Measures locating blocks on a synthetic cluster, see
+ * {@link InMemoryFileSystem#getFileBlockLocations(FileStatus, long, long)}:
+ * the locations of a single file of a million blocks, and the splits
+ * {@link FileInputFormat} plans for many files of small blocks.
+ * <p>
+ * This is not a unit test, run it with:
+ *
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.BlockLocationBenchmark [files]
+ * </pre>
+ */
+public class BlockLocationBenchmark {
+
+	private static final int BLOCKS = 1000000;
+	private static final int BLOCK_SIZE = 512;
+	private static final int BLOCKS_PER_FILE = 20;
+
+	public static void main(String[] args) throws IOException {
+		int files = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+
+		// Warm up...
+		run(files / 10);
+		run(files / 10);
+
+		long[] nanos = run(files);
+		report("locate blocks", BLOCKS, nanos[0]);
+		report("plan splits", files * BLOCKS_PER_FILE, nanos[1]);
+	}
+
+	private static long[] run(int files) throws IOException {
+		long[] nanos = new long[2];
+		Configuration conf = new Configuration();
+		conf.setInt(InMemoryFileSystem.TOPOLOGY_RACKS_KEY, 20);
+		conf.setInt(InMemoryFileSystem.TOPOLOGY_HOSTS_KEY, 40);
+		try {
+			InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+
+			// Only the status matters, there is no need for the content...
+			FileStatus huge = new FileStatus((long) BLOCKS * BLOCK_SIZE,
+					false, 3, BLOCK_SIZE, 0, new Path("/huge"));
+			long start = System.nanoTime();
+			if (fs.getFileBlockLocations(huge, 0, huge.getLen()).length != BLOCKS) {
+				throw new IllegalStateException("Wrong number of blocks");
+			}
+			nanos[0] = System.nanoTime() - start;
+
+			byte[] content = new byte[BLOCKS_PER_FILE * BLOCK_SIZE];
+			for (int i = 0; i < files; i++) {
+				FSDataOutputStream out = fs.create(new Path("/input/file" + i),
+						null, true, 4096, (short) 3, BLOCK_SIZE, null);
+				out.write(content);
+				out.close();
+			}
+			JobConf job = new JobConf(conf);
+			job.setLong("mapred.min.split.size", 1);
+			FileInputFormat.setInputPaths(job, new Path("/input"));
+			TextInputFormat format = new TextInputFormat();
+			format.configure(job);
+			start = System.nanoTime();
+			InputSplit[] splits = format.getSplits(job, 1);
+			nanos[1] = System.nanoTime() - start;
+			if (splits.length != files * BLOCKS_PER_FILE) {
+				throw new IllegalStateException("Wrong number of splits: "
+						+ splits.length);
+			}
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+		return nanos;
+	}
+
+	private static void report(String name, int blocks, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-20s %10.0f blocks/s (%d blocks in %.3f s)%n",
+				name, blocks / seconds, blocks, seconds);
+	}
+}
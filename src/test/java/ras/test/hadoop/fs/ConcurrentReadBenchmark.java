@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Measures the aggregate throughput of several threads reading the same file,
+ * each through its own input stream, as a multi-threaded mapper reading a side
+ * input would.
+ * <p>
+ * This is not a unit test, run it with:
+ * 
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.ConcurrentReadBenchmark [megabytes] [max threads]
+ * </pre>
+ */
+public class ConcurrentReadBenchmark {
+
+	private static final int MB = 1024 * 1024;
+
+	public static void main(String[] args) throws Exception {
+		int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+		int maxThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+
+		Configuration conf = new Configuration();
+		final InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		final Path path = new Path("/bench/side-input");
+		try {
+			byte[] block = new byte[MB];
+			FSDataOutputStream out = fs.create(path);
+			for (int i = 0; i < megabytes; i++) {
+				out.write(block);
+			}
+			out.close();
+
+			// Warm up...
+			run(fs, path, 1);
+
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				long elapsed = run(fs, path, threads);
+				double seconds = elapsed / 1e9;
+				System.out.printf(
+						"%2d readers %10.1f MB/s aggregate (%d MB in %.3f s)%n",
+						threads, threads * megabytes / seconds, threads
+								* megabytes, seconds);
+			}
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	private static long run(final InMemoryFileSystem fs, final Path path,
+			int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Long>> readers = new ArrayList<Callable<Long>>();
+			for (int i = 0; i < threads; i++) {
+				readers.add(new Callable<Long>() {
+					public Long call() throws IOException {
+						byte[] buffer = new byte[64 * 1024];
+						long total = 0;
+						FSDataInputStream in = fs.open(path);
+						try {
+							int count;
+							while ((count = in.read(buffer)) > 0) {
+								total += count;
+							}
+						} finally {
+							in.close();
+						}
+						return total;
+					}
+				});
+			}
+			long start = System.nanoTime();
+			for (Future<Long> result : executor.invokeAll(readers)) {
+				result.get();
+			}
+			return System.nanoTime() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
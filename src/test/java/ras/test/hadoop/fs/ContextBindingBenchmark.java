@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Measures the per-operation cost of resolving the file system context from
+ * the configuration, which every operation paid before file systems bound a
+ * {@link ContextHandle}, next to the cost of cheap metadata operations which
+ * now use the bound handle.
+ * <p>
+ * This is not a unit test, run it with:
+ * 
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.ContextBindingBenchmark [operations]
+ * </pre>
+ */
+public class ContextBindingBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int operations = (args.length > 0) ? Integer.parseInt(args[0])
+				: 1000000;
+
+		Configuration conf = new Configuration();
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			Path dir = new Path("/user/test/data/2013/01/01");
+			Path file = new Path(dir, "part-00000");
+			InMemoryFileSystem.createFile(fs, file, "Hello World");
+
+			// Warm up...
+			for (int round = 0; round < 2; round++) {
+				report("context lookup from configuration",
+						lookup(conf, fs, operations), operations);
+				report("getFileStatus() with bound handle",
+						getFileStatus(fs, file, operations), operations);
+				report("mkdirs() of existing directory", mkdirs(fs, dir,
+						operations), operations);
+			}
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	/**
+	 * The work done per operation before binding: a configuration property
+	 * lookup followed by the context and namespace map lookups.
+	 */
+	private static long lookup(Configuration conf, InMemoryFileSystem fs,
+			int operations) {
+		long start = System.nanoTime();
+		int hash = 0;
+		for (int i = 0; i < operations; i++) {
+			hash += System.identityHashCode(InMemoryFileSystem
+					.getContext(conf).getNamespace(fs.getUri()));
+		}
+		long elapsed = System.nanoTime() - start;
+		if (hash == 42) {
+			System.out.println();
+		}
+		return elapsed;
+	}
+
+	private static long getFileStatus(InMemoryFileSystem fs, Path file,
+			int operations) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			fs.getFileStatus(file);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long mkdirs(InMemoryFileSystem fs, Path dir,
+			int operations) throws IOException {
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++) {
+			fs.mkdirs(dir);
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, long nanos, int operations) {
+		System.out.printf("%-40s %8.1f ns/op%n", name, (double) nanos
+				/ operations);
+	}
+}
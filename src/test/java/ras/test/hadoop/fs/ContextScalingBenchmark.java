@@ -0,0 +1,112 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Measures how metadata operations scale with the number of threads when each
+ * thread works in its own, independent file system context, as parallel test
+ * forks running in threads would.
+ * <p>
+ * This is not a unit test, run it with:
+ * 
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.ContextScalingBenchmark [iterations] [max threads]
+ * </pre>
+ */
+public class ContextScalingBenchmark {
+
+	/** The number of file system operations in one iteration. */
+	private static final int OPS_PER_ITERATION = 7;
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int maxThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+
+		// Warm up...
+		run(1, iterations);
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			long elapsed = run(threads, iterations);
+			double seconds = elapsed / 1e9;
+			long ops = (long) threads * iterations * OPS_PER_ITERATION;
+			System.out.printf(
+					"%2d threads %12.0f ops/s aggregate %10.0f ops/s per thread%n",
+					threads, ops / seconds, ops / seconds / threads);
+		}
+	}
+
+	private static long run(int threads, final int iterations)
+			throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+			for (int i = 0; i < threads; i++) {
+				workers.add(new Callable<Void>() {
+					public Void call() throws IOException {
+						Configuration conf = new Configuration();
+						InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+						try {
+							work(fs, iterations);
+						} finally {
+							InMemoryFileSystem.resetFileSystemState(conf);
+						}
+						return null;
+					}
+				});
+			}
+			long start = System.nanoTime();
+			for (Future<Void> result : executor.invokeAll(workers)) {
+				result.get();
+			}
+			return System.nanoTime() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void work(InMemoryFileSystem fs, int iterations)
+			throws IOException {
+		byte[] bytes = new byte[128];
+		for (int i = 0; i < iterations; i++) {
+			Path dir = new Path("/data/part-" + (i % 100));
+			Path file = new Path(dir, "file-" + i);
+			fs.mkdirs(dir);
+			FSDataOutputStream out = fs.create(file);
+			out.write(bytes);
+			out.close();
+			fs.getFileStatus(file);
+			fs.listStatus(dir);
+			FSDataInputStream in = fs.open(file);
+			in.readFully(0, bytes);
+			in.close();
+			fs.exists(file);
+			fs.delete(file, false);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * Compares building a fixture of many small files for each test with
+ * building it once and giving each test a fork of it, see
+ * {@link InMemoryFileSystem#fork(Configuration)}. A test is simulated by
+ * writing one new file and appending to one shared file.
+ * <p>
+ * This is not a unit test, run it with:
+ *
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.ForkBenchmark [files [tests]]
+ * </pre>
+ */
+public class ForkBenchmark {
+
+	private static final int FILES_PER_DIRECTORY = 10;
+
+	public static void main(String[] args) throws IOException {
+		int files = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int tests = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+
+		// Warm up...
+		run(files / 10, tests / 10);
+		run(files / 10, tests / 10);
+
+		long[] nanos = run(files, tests);
+		System.out.printf("%-20s %10.3f ms (%d files)%n", "build", nanos[0] / 1e6,
+				files);
+		System.out.printf("%-20s %10.3f ms per test (%d tests)%n",
+				"fork and test", nanos[1] / 1e6 / tests, tests);
+		System.out.printf("%-20s %10.0f x%n", "speedup", (double) nanos[0]
+				* tests / nanos[1]);
+	}
+
+	private static long[] run(int files, int tests) throws IOException {
+		long[] nanos = new long[2];
+		byte[] content = new byte[1000];
+		Configuration conf = new Configuration();
+		try {
+			long start = System.nanoTime();
+			build(InMemoryFileSystem.get(conf), files, content);
+			nanos[0] = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < tests; i++) {
+				Configuration forked = InMemoryFileSystem.fork(conf);
+				try {
+					InMemoryFileSystem fs = InMemoryFileSystem.get(forked);
+					int file = (i * 7919) % files;
+					FSDataOutputStream out = fs.create(new Path("/fixture/d"
+							+ (file / FILES_PER_DIRECTORY) + "/new"));
+					out.write(content);
+					out.close();
+					out = fs.append(new Path("/fixture/d"
+							+ (file / FILES_PER_DIRECTORY) + "/file" + file));
+					out.write(content);
+					out.close();
+				} finally {
+					InMemoryFileSystem.resetFileSystemState(forked);
+				}
+			}
+			nanos[1] = System.nanoTime() - start;
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+		return nanos;
+	}
+
+	private static void build(InMemoryFileSystem fs, int files, byte[] content)
+			throws IOException {
+		Path[] directories = new Path[files / FILES_PER_DIRECTORY + 1];
+		Map<Path, byte[]> batch = new LinkedHashMap<Path, byte[]>();
+		for (int i = 0; i < files; i++) {
+			Path path = new Path("/fixture/d" + (i / FILES_PER_DIRECTORY)
+					+ "/file" + i);
+			directories[i / FILES_PER_DIRECTORY] = path.getParent();
+			batch.put(path, content);
+		}
+		directories[directories.length - 1] = new Path("/fixture");
+		fs.batchMkdirs(directories, FsPermission.getDefault());
+		fs.batchCreate(batch, false);
+	}
+}
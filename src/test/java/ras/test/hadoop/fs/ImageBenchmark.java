@@ -0,0 +1,116 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * Compares building a fixture of many small files with loading the same
+ * fixture from an image saved by
+ * {@link InMemoryFileSystem#saveImage(Configuration, File)}, and the cost of
+ * reading all the content of a loaded image.
+ * <p>
+ * This is not a unit test, run it with:
+ *
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.ImageBenchmark [files]
+ * </pre>
+ */
+public class ImageBenchmark {
+
+	private static final int FILES_PER_DIRECTORY = 10;
+
+	public static void main(String[] args) throws IOException {
+		int files = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+		File image = File.createTempFile("fixture", ".image");
+		try {
+			// Warm up...
+			run(files / 10, image);
+			run(files / 10, image);
+
+			long[] nanos = run(files, image);
+			report("build", files, nanos[0]);
+			report("save image", files, nanos[1]);
+			report("load image", files, nanos[2]);
+			report("read loaded files", files, nanos[3]);
+			System.out.printf("image size: %d KB%n", image.length() / 1024);
+		} finally {
+			image.delete();
+		}
+	}
+
+	private static long[] run(int files, File image) throws IOException {
+		long[] nanos = new long[4];
+		byte[] content = new byte[1000];
+		Path[] paths = new Path[files];
+		Configuration conf = new Configuration();
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			long start = System.nanoTime();
+			Path[] directories = new Path[files / FILES_PER_DIRECTORY + 1];
+			Map<Path, byte[]> batch = new LinkedHashMap<Path, byte[]>();
+			for (int i = 0; i < files; i++) {
+				paths[i] = new Path("/fixture/d" + (i / FILES_PER_DIRECTORY)
+						+ "/file" + i);
+				directories[i / FILES_PER_DIRECTORY] = paths[i].getParent();
+				batch.put(paths[i], content);
+			}
+			directories[directories.length - 1] = new Path("/fixture");
+			fs.batchMkdirs(directories, FsPermission.getDefault());
+			fs.batchCreate(batch, false);
+			nanos[0] = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			InMemoryFileSystem.saveImage(conf, image);
+			nanos[1] = System.nanoTime() - start;
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+
+		conf = new Configuration();
+		try {
+			long start = System.nanoTime();
+			InMemoryFileSystem.loadImage(conf, image);
+			nanos[2] = System.nanoTime() - start;
+
+			fs = InMemoryFileSystem.get(conf);
+			start = System.nanoTime();
+			for (int i = 0; i < files; i++) {
+				FSDataInputStream in = fs.open(paths[i]);
+				in.readFully(content);
+				in.close();
+			}
+			nanos[3] = System.nanoTime() - start;
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+		return nanos;
+	}
+
+	private static void report(String name, int files, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-20s %10.0f files/s (%d files in %.3f s)%n",
+				name, files / seconds, files, seconds);
+	}
+}
@@ -19,35 +19,66 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ContentSummary;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileSystem.Statistics;
+import org.apache.hadoop.fs.FilterFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.fs.permission.FsPermission;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import ras.test.hadoop.fs.SnapshotDiffReport.DiffReportEntry;
+import ras.test.hadoop.fs.SnapshotDiffReport.DiffType;
 
 public class InMemoryFileSystemUnitTest {
 
 	@Rule
 	public ExpectedException thrown = ExpectedException.none();
 
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
 	Path path = new Path("/message.txt");
 	final String message = "Hello World!";
 
@@ -185,21 +216,71 @@ public class InMemoryFileSystemUnitTest {
 		out.writeBytes("Don't do it!");
 	}
 
+	@Test
+	public void testWriteByteRange() throws IOException {
+		byte[] bytes = new byte[2 * FileContent.CHUNK_SIZE + 10];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		FSDataOutputStream out = inMemoryFileSystem.create(path);
+		out.write(bytes, 5, bytes.length - 10);
+		out.close();
+
+		FSDataInputStream in = inMemoryFileSystem.open(path);
+		for (int i = 5; i < bytes.length - 5; i++) {
+			assertThat("Wrong byte at index " + i, in.read(),
+					is(equalTo(bytes[i] & 0xff)));
+		}
+		assertThat("Expected end of file", in.read(), is(equalTo(-1)));
+		in.close();
+	}
+
 	@Test
 	public void testOpenOnOpenFileFromCreate() throws IOException {
-		inMemoryFileSystem.create(path);
+		writeMessage(path);
+		FSDataOutputStream out = inMemoryFileSystem.append(path);
+		out.writeBytes(" Goodbye World!");
 
-		expectIOException("File already open: " + path);
-		inMemoryFileSystem.open(path);
+		// A reader sees the content committed before the writer opened...
+		assertThat("Wrong message", readMessage(path), is(equalTo(message)));
+		out.close();
 	}
 
 	@Test
 	public void testOpenOnOpenFileFromOpen() throws IOException {
 		writeMessage(path);
-		inMemoryFileSystem.open(path);
+		FSDataInputStream first = inMemoryFileSystem.open(path);
+		FSDataInputStream second = inMemoryFileSystem.open(path);
 
-		expectIOException("File already open: " + path);
-		inMemoryFileSystem.open(path);
+		assertThat("Wrong first byte", first.read(),
+				is(equalTo((int) message.charAt(0))));
+		first.close();
+		assertThat("Wrong first byte after other reader closed",
+				second.read(), is(equalTo((int) message.charAt(0))));
+		second.close();
+
+		assertTrue("Delete of closed file failed",
+				inMemoryFileSystem.delete(path, false));
+	}
+
+	@Test
+	public void testDeleteWithOpenReader() throws IOException {
+		writeMessage(path);
+		FSDataInputStream first = inMemoryFileSystem.open(path);
+		FSDataInputStream second = inMemoryFileSystem.open(path);
+		first.close();
+
+		try {
+			inMemoryFileSystem.delete(path, false);
+			fail("delete() of file with open reader succeeded!");
+		} catch (IOException expected) {
+			assertThat("Wrong exception message",
+					expected.getLocalizedMessage(),
+					is(equalTo("Delete failed, resource is in use: " + path)));
+		}
+		second.close();
+		assertTrue("Delete of closed file failed",
+				inMemoryFileSystem.delete(path, false));
 	}
 
 	//
@@ -235,6 +316,75 @@ public class InMemoryFileSystemUnitTest {
 		}
 	}
 
+	@Test
+	public void testInputStreamPositionalRead() throws IOException {
+		writeMessage(path);
+		byte[] bytesOut = message.getBytes();
+
+		FSDataInputStream in = inMemoryFileSystem.open(path);
+		in.seek(2);
+		byte[] bytesIn = new byte[5];
+		assertThat("Wrong byte count", in.read(6, bytesIn, 0, bytesIn.length),
+				is(equalTo(5)));
+		assertThat("Wrong bytes", new String(bytesIn),
+				is(equalTo(new String(bytesOut, 6, 5))));
+		assertThat("Positional read moved the stream", in.getPos(),
+				is(equalTo(2l)));
+		assertThat("Wrong byte count at end of file",
+				in.read(bytesOut.length - 1, bytesIn, 0, bytesIn.length),
+				is(equalTo(1)));
+		assertThat("Expected end of file",
+				in.read(bytesOut.length, bytesIn, 0, bytesIn.length),
+				is(equalTo(-1)));
+		in.close();
+	}
+
+	@Test
+	public void testInputStreamReadFullyPastEnd() throws IOException {
+		writeMessage(path);
+		FSDataInputStream in = inMemoryFileSystem.open(path);
+
+		thrown.expect(EOFException.class);
+		in.readFully(6, new byte[message.getBytes().length]);
+	}
+
+	@Test
+	public void testInputStreamConcurrentPositionalReads() throws Exception {
+		final byte[] bytes = new byte[3 * FileContent.CHUNK_SIZE + 17];
+		new Random(42).nextBytes(bytes);
+		FSDataOutputStream out = inMemoryFileSystem.create(path);
+		out.write(bytes);
+		out.close();
+
+		final FSDataInputStream in = inMemoryFileSystem.open(path);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < 4; t++) {
+			final Random random = new Random(t);
+			results.add(executor.submit(new Callable<Boolean>() {
+				public Boolean call() throws IOException {
+					byte[] buffer = new byte[1000];
+					for (int i = 0; i < 1000; i++) {
+						int position = random.nextInt(bytes.length
+								- buffer.length);
+						in.readFully(position, buffer);
+						for (int j = 0; j < buffer.length; j++) {
+							if (buffer[j] != bytes[position + j]) {
+								return false;
+							}
+						}
+					}
+					return true;
+				}
+			}));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue("Wrong bytes from concurrent read", result.get());
+		}
+		executor.shutdown();
+		in.close();
+	}
+
 	//
 	// create() Tests
 	//
@@ -260,6 +410,31 @@ public class InMemoryFileSystemUnitTest {
 				is(equalTo(secondMsg)));
 	}
 
+	@Test
+	public void testCreateOverwriteWhileReading() throws IOException {
+		ContentStore store = InMemoryFileSystem.getContext(configuration)
+				.getContentStore();
+		long resident = store.getResidentBytes();
+		byte[] bytes = new byte[16 * FileContent.CHUNK_SIZE];
+		new Random(5).nextBytes(bytes);
+		for (int i = 0; i < 5; i++) {
+			FSDataOutputStream out = inMemoryFileSystem.create(path, true);
+			out.write(bytes);
+			out.close();
+
+			// The overwritten content stays readable until the reader closes...
+			FSDataInputStream in = inMemoryFileSystem.open(path);
+			inMemoryFileSystem.create(path, true).close();
+			byte[] bytesIn = new byte[bytes.length];
+			in.readFully(0, bytesIn);
+			in.close();
+			assertTrue("Wrong content", Arrays.equals(bytes, bytesIn));
+		}
+		assertTrue("Delete failed", inMemoryFileSystem.delete(path, false));
+		assertThat("Overwritten content still resident", store
+				.getResidentBytes(), is(equalTo(resident)));
+	}
+
 	@Test
 	public void TestCreateFileWithExistingDirnameOverwrite() throws IOException {
 		Path dir = new Path("/message");
@@ -410,6 +585,14 @@ public class InMemoryFileSystemUnitTest {
 		assertThat("Wrong number of wrong number of childern",fstats.length, is(equalTo(1)));
 		assertThat("Wrong child",fstats[0].getPath(), is(equalTo(childDir)));
 	}
+
+	@Test
+	public void testMkdirsBelowFile() throws IOException {
+		writeMessage(path);
+
+		expectIOException("'" + path + "' is not a directory!");
+		inMemoryFileSystem.mkdirs(new Path(path, "dir/sub"));
+	}
 	
 	//
 	// Delete Tests
@@ -498,6 +681,18 @@ public class InMemoryFileSystemUnitTest {
 		inMemoryFileSystem.getFileStatus(filePath);
 	}
 
+	@Test
+	public void testDeleteFileRemovesItFromListing() throws IOException {
+		Path dir = new Path("/mydir");
+		Path file = new Path(dir, "message.txt");
+		writeMessage(file);
+
+		inMemoryFileSystem.delete(file, false);
+		assertThat("Deleted file still listed",
+				inMemoryFileSystem.listStatus(dir),
+				is(equalTo(new FileStatus[0])));
+	}
+
 	@Test
 	public void testDeleteOpenFile() throws IOException {
 		Path file = new Path("/myfile.txt");
@@ -555,6 +750,48 @@ public class InMemoryFileSystemUnitTest {
 		assertThat("Wrong message", readMessage(path), is(equalTo(twoMessage)));
 	}
 
+	@Test
+	public void testAppendAcrossChunkBoundaries() throws IOException {
+		byte[] record = new byte[1000];
+		for (int i = 0; i < record.length; i++) {
+			record[i] = (byte) i;
+		}
+		int appends = (3 * FileContent.CHUNK_SIZE) / record.length + 1;
+		inMemoryFileSystem.create(path).close();
+		for (int i = 0; i < appends; i++) {
+			FSDataOutputStream out = inMemoryFileSystem.append(path);
+			out.write(record);
+			out.close();
+		}
+
+		long expectedLength = (long) appends * record.length;
+		assertThat("Wrong file length", inMemoryFileSystem.getFileStatus(path)
+				.getLen(), is(equalTo(expectedLength)));
+
+		FSDataInputStream in = inMemoryFileSystem.open(path);
+		for (long i = 0; i < expectedLength; i++) {
+			assertThat("Wrong byte at index " + i, in.read(),
+					is(equalTo((int) (i % record.length) & 0xff)));
+		}
+		assertThat("Expected end of file", in.read(), is(equalTo(-1)));
+		in.close();
+	}
+
+	@Test
+	public void testAppendNotVisibleUntilClosed() throws IOException {
+		writeMessage(path);
+
+		FSDataOutputStream out = inMemoryFileSystem.append(path);
+		out.writeBytes(" Goodbye World!");
+		assertThat("Uncommitted bytes visible in file length",
+				inMemoryFileSystem.getFileStatus(path).getLen(),
+				is(equalTo((long) message.getBytes().length)));
+		out.close();
+		assertThat("Wrong file length after close", inMemoryFileSystem
+				.getFileStatus(path).getLen(), is(equalTo((long) (message
+				+ " Goodbye World!").getBytes().length)));
+	}
+
 	@Test
 	public void testAppendOnOpenFileFromCreate() throws IOException {
 		inMemoryFileSystem.create(path);
@@ -613,6 +850,217 @@ public class InMemoryFileSystemUnitTest {
 				is(equalTo(expectedStatus)));
 	}
 
+	@Test
+	public void testListStatusSortedByName() throws IOException {
+		Path dir = new Path("/sorted");
+		String[] names = { "part-00002", "b", "_SUCCESS", "part-00000", "a" };
+		for (String name : names) {
+			if (name.length() == 1) {
+				inMemoryFileSystem.mkdirs(new Path(dir, name));
+			} else {
+				inMemoryFileSystem.create(new Path(dir, name)).close();
+			}
+		}
+
+		FileStatus[] statuses = inMemoryFileSystem.listStatus(dir);
+		String[] sorted = names.clone();
+		Arrays.sort(sorted);
+		assertThat("Wrong number of entries", statuses.length,
+				is(equalTo(sorted.length)));
+		for (int i = 0; i < sorted.length; i++) {
+			assertThat("Wrong entry " + i, statuses[i].getPath(),
+					is(equalTo(new Path(dir, sorted[i]))));
+		}
+	}
+
+	@Test
+	public void testListStatusInBatches() throws IOException {
+		Path dir = new Path("/batches");
+		for (int i = 0; i < 25; i++) {
+			inMemoryFileSystem.create(
+					new Path(dir, String.format("part-%05d", i))).close();
+		}
+
+		List<FileStatus> all = new ArrayList<FileStatus>();
+		String startAfter = null;
+		int batches = 0;
+		DirectoryListing listing;
+		do {
+			listing = inMemoryFileSystem.listStatus(dir, startAfter, 10);
+			assertTrue("Batch too large", listing.getEntries().length <= 10);
+			all.addAll(Arrays.asList(listing.getEntries()));
+			startAfter = listing.getLastName();
+			batches++;
+		} while (listing.hasMore());
+
+		assertThat("Wrong number of batches", batches, is(equalTo(3)));
+		assertThat("Wrong listing", all, is(equalTo(Arrays
+				.asList(inMemoryFileSystem.listStatus(dir)))));
+		assertThat("Wrong entries after a name", inMemoryFileSystem
+				.listStatus(dir, "part-00023", 10).getEntries().length,
+				is(equalTo(1)));
+	}
+
+	@Test
+	public void testListStatusIterator() throws IOException {
+		Path dir = new Path("/huge");
+		int count = InMemoryFileSystem.DEFAULT_LISTING_BATCH_SIZE * 2 + 7;
+		for (int i = 0; i < count; i++) {
+			inMemoryFileSystem.create(
+					new Path(dir, String.format("part-%05d", i))).close();
+		}
+
+		Iterator<FileStatus> statuses = inMemoryFileSystem
+				.listStatusIterator(dir);
+		for (int i = 0; i < count; i++) {
+			assertTrue("Iterator ended early at " + i, statuses.hasNext());
+			assertThat("Wrong entry", statuses.next().getPath(),
+					is(equalTo(new Path(dir, String.format("part-%05d", i)))));
+		}
+		assertFalse("Iterator did not end", statuses.hasNext());
+	}
+
+	//
+	// GlobStatus Tests
+	//
+
+	@Test
+	public void testGlobStatusMatchesGenericImplementation()
+			throws IOException {
+		createPartitions();
+		FileSystem generic = new FilterFileSystem(inMemoryFileSystem);
+		String[] globs = { "/data/2026/*/*/part-*",
+				"/data/2026/0[12]/0?/part-0000{0,2}",
+				"/data/2026/01/01/part-00000", "/data/*", "/data/2026/{01,03}/*",
+				"/data/2026/*/0[^1]/_SUCCESS", "/data/2026/*/*/*1",
+				"/nosuch", "/" };
+		for (String glob : globs) {
+			assertThat("Wrong matches for " + glob,
+					paths(inMemoryFileSystem.globStatus(new Path(glob))),
+					is(equalTo(paths(generic.globStatus(new Path(glob))))));
+		}
+	}
+
+	@Test
+	public void testGlobStatusNoMatch() throws IOException {
+		createPartitions();
+		assertThat("Wildcard without matches not empty",
+				inMemoryFileSystem.globStatus(new Path("/nosuch/*")).length,
+				is(equalTo(0)));
+		assertNull("Missing path without wildcards not null",
+				inMemoryFileSystem.globStatus(new Path("/nosuch")));
+	}
+
+	@Test
+	public void testGlobStatusWithFilter() throws IOException {
+		createPartitions();
+		FileStatus[] statuses = inMemoryFileSystem.globStatus(new Path(
+				"/data/2026/02/*/*"), new PathFilter() {
+			public boolean accept(Path path) {
+				return !path.getName().startsWith("_");
+			}
+		});
+		assertThat("Wrong number of matches", statuses.length,
+				is(equalTo(5 * 3)));
+		for (FileStatus status : statuses) {
+			assertTrue("Filtered path matched: " + status.getPath(), status
+					.getPath().getName().startsWith("part-"));
+		}
+	}
+
+	@Test
+	public void testGlobStatusGroupWithSeparator() throws IOException {
+		createPartitions();
+		assertThat("Wrong matches", paths(inMemoryFileSystem
+				.globStatus(new Path("/data/{2026/01/01,2026/03/05}/part-00001"))),
+				is(equalTo(Arrays.asList(new Path(
+						"/data/2026/01/01/part-00001"), new Path(
+						"/data/2026/03/05/part-00001")))));
+	}
+
+	@Test
+	public void testGlobStatusIllegalPattern() throws IOException {
+		expectIOException("Illegal file pattern: unclosed character class in 'part-[01'");
+		inMemoryFileSystem.globStatus(new Path("/data/part-[01"));
+	}
+
+	private void createPartitions() throws IOException {
+		for (int month = 1; month <= 3; month++) {
+			for (int day = 1; day <= 5; day++) {
+				Path dir = new Path(String.format("/data/2026/%02d/%02d",
+						month, day));
+				for (int part = 0; part < 3; part++) {
+					inMemoryFileSystem.create(
+							new Path(dir, String.format("part-%05d", part)))
+							.close();
+				}
+				inMemoryFileSystem.create(new Path(dir, "_SUCCESS")).close();
+			}
+		}
+	}
+
+	private static List<Path> paths(FileStatus[] statuses) {
+		if (statuses == null) {
+			return null;
+		}
+		List<Path> paths = new ArrayList<Path>();
+		for (FileStatus status : statuses) {
+			paths.add(status.getPath());
+		}
+		return paths;
+	}
+
+	//
+	// ContentSummary Tests
+	//
+
+	@Test
+	public void testContentSummaryMatchesGenericImplementation()
+			throws IOException {
+		FileSystem generic = new FilterFileSystem(inMemoryFileSystem);
+		createPartitions();
+		for (int i = 0; i < 5; i++) {
+			writeMessage(new Path("/data/2026/01/0" + (i + 1), "part-00000"));
+		}
+		assertSameContentSummary(generic, "/data", "/data/2026/01",
+				"/data/2026/01/01/part-00000", "/");
+
+		// Append, overwrite, rename and delete...
+		FSDataOutputStream out = inMemoryFileSystem.append(new Path(
+				"/data/2026/01/01/part-00000"));
+		out.writeBytes(message);
+		assertSameContentSummary(generic, "/data/2026/01/01");
+		out.close();
+		inMemoryFileSystem.create(new Path("/data/2026/01/02/part-00000"),
+				true).close();
+		inMemoryFileSystem.rename(new Path("/data/2026/01"), new Path(
+				"/archive/2026/01"));
+		inMemoryFileSystem.delete(new Path("/data/2026/02/03"), true);
+		inMemoryFileSystem.delete(new Path("/data/2026/03/01/part-00001"),
+				false);
+		assertSameContentSummary(generic, "/data", "/archive",
+				"/archive/2026/01/01", "/");
+		assertThat("Wrong used bytes", inMemoryFileSystem.getUsed(),
+				is(equalTo(generic.getContentSummary(new Path("/"))
+						.getLength())));
+	}
+
+	private void assertSameContentSummary(FileSystem generic,
+			String... paths) throws IOException {
+		for (String path : paths) {
+			ContentSummary expected = generic.getContentSummary(new Path(path));
+			ContentSummary actual = inMemoryFileSystem
+					.getContentSummary(new Path(path));
+			assertThat("Wrong length of " + path, actual.getLength(),
+					is(equalTo(expected.getLength())));
+			assertThat("Wrong file count of " + path, actual.getFileCount(),
+					is(equalTo(expected.getFileCount())));
+			assertThat("Wrong directory count of " + path,
+					actual.getDirectoryCount(),
+					is(equalTo(expected.getDirectoryCount())));
+		}
+	}
+
 	//
 	// SetOwner Tests
 	//
@@ -747,7 +1195,7 @@ public class InMemoryFileSystemUnitTest {
 	@Test
 	public void testMkdirsNotOwnerInGroupWithWrite() throws IOException {
 		Path parentDir = new Path("/parentDir");
-		inMemoryFileSystem.mkdirs(parentDir, new FsPermission((short) 0660));
+		inMemoryFileSystem.mkdirs(parentDir, new FsPermission((short) 0770));
 		inMemoryFileSystem.setUser("bill"); // default user groups
 		inMemoryFileSystem.setWorkingDirectory(parentDir);
 
@@ -782,6 +1230,59 @@ public class InMemoryFileSystemUnitTest {
 		inMemoryFileSystem.mkdirs(subDir);
 	}
 
+	@Test
+	public void testTraverseNoExecute() throws IOException {
+		Path parentDir = new Path("/parentDir");
+		inMemoryFileSystem.mkdirs(parentDir, new FsPermission((short) 0766));
+		writeMessage(new Path(parentDir, "file"));
+		inMemoryFileSystem.setUser("bill", "underprivileged");
+
+		expectIOException("Permission denied!");
+		inMemoryFileSystem.getFileStatus(new Path(parentDir, "file"));
+	}
+
+	@Test
+	public void testGlobNoExecute() throws IOException {
+		Path parentDir = new Path("/parentDir");
+		inMemoryFileSystem.mkdirs(parentDir, new FsPermission((short) 0766));
+		writeMessage(new Path(parentDir, "file"));
+		inMemoryFileSystem.setUser("bill", "underprivileged");
+
+		expectIOException("Permission denied!");
+		inMemoryFileSystem.globStatus(new Path(parentDir, "fil?"));
+	}
+
+	@Test
+	public void testTraverseNoExecuteDeep() throws IOException {
+		Path parentDir = new Path("/parentDir");
+		inMemoryFileSystem.mkdirs(parentDir, new FsPermission((short) 0766));
+		inMemoryFileSystem.mkdirs(new Path(parentDir, "a/b"));
+		inMemoryFileSystem.setUser("bill", "underprivileged");
+
+		expectIOException("Permission denied!");
+		inMemoryFileSystem.mkdirs(new Path(parentDir, "a/b/c"));
+	}
+
+	@Test
+	public void testTraverseOwnerExecute() throws IOException {
+		Path parentDir = new Path("/parentDir");
+		inMemoryFileSystem.mkdirs(parentDir, new FsPermission((short) 0700));
+		Path file = new Path(parentDir, "file");
+		writeMessage(file);
+		assertThat(readMessage(file), is(equalTo(message)));
+
+		// The cached identity follows the user...
+		inMemoryFileSystem.setUser("bill", "underprivileged");
+		try {
+			inMemoryFileSystem.open(file);
+			fail("Expected permission denied");
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is(equalTo("Permission denied!")));
+		}
+		inMemoryFileSystem.setUser(InMemoryFileSystem.DEFAULT_USER);
+		assertThat(readMessage(file), is(equalTo(message)));
+	}
+
 	/*
 	 * We only need this one permission test for create because the permission
 	 * code is reused between mkdirs() and create(). The mkdirs() unit tests
@@ -948,6 +1449,105 @@ public class InMemoryFileSystemUnitTest {
 		assertFalse(fstatus.isDir());
 	}
 
+	@Test
+	public void testRenameFileUpdatesListings() throws IOException {
+		Path srcDir = new Path("/srcdir");
+		Path dstDir = new Path("/dstdir");
+		Path source = new Path(srcDir, "message.txt");
+		Path destination = new Path(dstDir, "message.txt");
+		writeMessage(source);
+		inMemoryFileSystem.mkdirs(dstDir);
+
+		inMemoryFileSystem.rename(source, destination);
+		assertThat("Renamed file still listed in source directory",
+				inMemoryFileSystem.listStatus(srcDir),
+				is(equalTo(new FileStatus[0])));
+		FileStatus[] listing = inMemoryFileSystem.listStatus(dstDir);
+		assertThat("Wrong number of files in destination directory",
+				listing.length, is(equalTo(1)));
+		assertThat("Wrong file in destination directory",
+				listing[0].getPath(), is(equalTo(destination)));
+	}
+
+	@Test
+	public void testRenameDeepDirectory() throws IOException {
+		Path deep = new Path("/job/_temporary");
+		for (int i = 0; i < 20; i++) {
+			deep = new Path(deep, "level" + i);
+			writeMessage(new Path(deep, "part-" + i));
+		}
+		Path source = new Path("/job/_temporary/level0");
+		Path destination = new Path("/output/committed");
+		inMemoryFileSystem.mkdirs(destination.getParent());
+
+		inMemoryFileSystem.rename(source, destination);
+		assertFalse("Source still exists", inMemoryFileSystem.exists(source));
+		Path moved = destination;
+		for (int i = 0; i < 20; i++) {
+			if (i > 0) {
+				moved = new Path(moved, "level" + i);
+			}
+			Path file = new Path(moved, "part-" + i);
+			assertThat("Wrong content in " + file, readMessage(file),
+					is(equalTo(message)));
+			assertThat("Wrong path in status", inMemoryFileSystem
+					.getFileStatus(file).getPath(), is(equalTo(file)));
+		}
+		FileStatus[] listing = inMemoryFileSystem.listStatus(moved);
+		assertThat("Wrong number of files in deepest directory",
+				listing.length, is(equalTo(1)));
+		assertThat("Wrong path in deepest directory", listing[0].getPath(),
+				is(equalTo(new Path(moved, "part-19"))));
+		assertThat("Source still listed",
+				inMemoryFileSystem.listStatus(new Path("/job/_temporary")),
+				is(equalTo(new FileStatus[0])));
+
+		// The moved tree can be renamed again and deleted...
+		inMemoryFileSystem.rename(destination, source);
+		assertThat("Wrong content after renaming back",
+				readMessage(new Path(source, "part-0")), is(equalTo(message)));
+		assertTrue("Delete failed", inMemoryFileSystem.delete(source, true));
+		assertFalse("Deleted tree still exists",
+				inMemoryFileSystem.exists(new Path(source, "level1")));
+	}
+
+	@Test
+	public void testRenameDirectoryWithOpenFile() throws IOException {
+		Path source = new Path("/source");
+		Path destination = new Path("/destination");
+		writeMessage(new Path(source, "nested/message.txt"));
+		FSDataInputStream in = inMemoryFileSystem.open(new Path(source,
+				"nested/message.txt"));
+
+		inMemoryFileSystem.rename(source, destination);
+		assertThat("Wrong first byte after rename", in.read(),
+				is(equalTo((int) message.charAt(0))));
+		Path moved = new Path(destination, "nested/message.txt");
+		try {
+			inMemoryFileSystem.delete(destination, true);
+			fail("delete() of directory with open file succeeded!");
+		} catch (IOException expected) {
+			assertThat("Wrong exception message",
+					expected.getLocalizedMessage(),
+					is(equalTo("Delete failed, resource is in use: " + moved)));
+		}
+		assertTrue("Failed delete removed the file",
+				inMemoryFileSystem.exists(moved));
+		in.close();
+		assertTrue("Delete failed", inMemoryFileSystem.delete(destination, true));
+	}
+
+	@Test
+	public void testRenameDirectoryIntoItself() throws IOException {
+		Path source = new Path("/source");
+		Path destination = new Path(source, "nested/destination");
+		inMemoryFileSystem.mkdirs(source);
+
+		expectIOException("Rename failed, destination is inside the source: "
+				+ destination);
+		inMemoryFileSystem.rename(source, destination);
+	}
+
 	@Test
 	public void testRenameNoWriteSource() throws IOException {
 		Path source = new Path("/source.txt");
@@ -1029,48 +1629,1734 @@ public class InMemoryFileSystemUnitTest {
 	
 	
 	//
-	// End of tests
+	// Storage backend tests
 	//
 
-	private void expectPathMustExistIOException(Path path) {
-		thrown.expect(IOException.class);
-		String absoluteChar = (path.isAbsolute()) ? "" : "/";
-		thrown.expectMessage(equalTo("'" + absoluteChar + path + "' not found!"));
+	@Test
+	public void testDirectStorage() throws IOException {
+		Configuration directConf = new Configuration();
+		directConf.set(InMemoryFileSystem.STORAGE_KEY,
+				InMemoryFileSystem.STORAGE_DIRECT);
+		InMemoryFileSystem directFs = InMemoryFileSystem.get(directConf);
+		try {
+			byte[] bytes = new byte[2 * FileContent.CHUNK_SIZE + 100];
+			new Random(7).nextBytes(bytes);
+			FSDataOutputStream out = directFs.create(path);
+			out.write(bytes, 0, 10);
+			out.close();
+			out = directFs.append(path);
+			out.write(bytes, 10, bytes.length - 10);
+			out.close();
+
+			byte[] bytesIn = new byte[bytes.length];
+			FSDataInputStream in = directFs.open(path);
+			in.readFully(0, bytesIn);
+			in.close();
+			assertTrue("Wrong content", Arrays.equals(bytes, bytesIn));
+
+			assertTrue("Delete failed", directFs.delete(path, false));
+			assertFalse("File still exists", directFs.exists(path));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(directConf);
+		}
 	}
 
-	private void expectNullArgumentException(String argName) {
-		thrown.expect(IllegalArgumentException.class);
-		thrown.expectMessage(equalTo(argName + " == null not allowed!"));
+	@Test
+	public void testUnknownStorage() throws IOException {
+		Configuration badConf = new Configuration();
+		badConf.set(InMemoryFileSystem.STORAGE_KEY, "tape");
+		try {
+			// The context is resolved when the configuration is bound...
+			expectIllegalArgumentException("Unknown storage backend: tape");
+			InMemoryFileSystem.get(badConf);
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(badConf);
+		}
 	}
 
-	private void expectIllegalArgumentException(String message) {
-		thrown.expect(IllegalArgumentException.class);
-		thrown.expectMessage(equalTo(message));
+	@Test
+	public void testSpillOverBudget() throws IOException {
+		File spillDir = temporaryFolder.newFolder("spill");
+		Configuration budgetConf = new Configuration();
+		budgetConf.setLong(InMemoryFileSystem.BUDGET_KEY,
+				4 * FileContent.CHUNK_SIZE);
+		budgetConf.set(InMemoryFileSystem.SPILL_DIR_KEY, spillDir.getPath());
+		InMemoryFileSystem budgetFs = InMemoryFileSystem.get(budgetConf);
+		try {
+			byte[][] contents = new byte[6][2 * FileContent.CHUNK_SIZE];
+			for (int i = 0; i < contents.length; i++) {
+				new Random(i).nextBytes(contents[i]);
+				FSDataOutputStream out = budgetFs.create(new Path("/file" + i));
+				out.write(contents[i]);
+				out.close();
+			}
+			ContentStore store = InMemoryFileSystem.getContext(budgetConf)
+					.getContentStore();
+			assertTrue("Budget exceeded: " + store.getResidentBytes(),
+					store.getResidentBytes() <= 4 * FileContent.CHUNK_SIZE);
+			assertThat("Wrong length of spilled file", budgetFs
+					.getFileStatus(new Path("/file0")).getLen(),
+					is(equalTo((long) contents[0].length)));
+
+			for (int i = 0; i < contents.length; i++) {
+				byte[] bytesIn = new byte[contents[i].length];
+				FSDataInputStream in = budgetFs.open(new Path("/file" + i));
+				in.readFully(0, bytesIn);
+				in.close();
+				assertTrue("Wrong content in file" + i,
+						Arrays.equals(contents[i], bytesIn));
+				assertTrue("Budget exceeded: " + store.getResidentBytes(),
+						store.getResidentBytes() <= 4 * FileContent.CHUNK_SIZE);
+			}
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(budgetConf);
+		}
+		assertThat("Spill files not deleted", spillDir.list().length,
+				is(equalTo(0)));
 	}
 
-	private void expectIOException(String message) {
-		thrown.expect(IOException.class);
-		thrown.expectMessage(equalTo(message));
-	}
+	//
+	// Context lifetime tests
+	//
 
-	private void writeMessage(Path path) throws IOException {
-		writeMessage(inMemoryFileSystem, path, message);
+	@Test
+	public void testAbandonedContextIsReclaimed() throws Exception {
+		long reclaimed = InMemoryFileSystem.getReclaimedContextCount();
+		FileSystemContext context = createAbandonedContext();
+		for (int i = 0; i < 100 && !context.isReleased(); i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertTrue("Abandoned context not released", context.isReleased());
+		assertTrue("Reclaimed count not incremented",
+				InMemoryFileSystem.getReclaimedContextCount() > reclaimed);
+		assertThat("Content of abandoned context still resident", context
+				.getContentStore().getResidentBytes(), is(equalTo(0L)));
 	}
 
-	static void writeMessage(FileSystem fs, Path path, String message)
-			throws IOException {
-		FSDataOutputStream out = fs.create(path);
-		out.writeBytes(message);
-		out.close();
+	@Test
+	public void testReachableContextIsNotReclaimed() throws Exception {
+		writeMessage(path);
+		Configuration copy = new Configuration(configuration);
+		InMemoryFileSystem copyFs = InMemoryFileSystem.get(copy);
+		copy = null;
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertThat("Context of live file system lost", readMessage(copyFs,
+				path), is(equalTo(message)));
+		assertTrue("Live context not counted",
+				InMemoryFileSystem.getLiveContextCount() > 0);
+		assertTrue("Retained bytes not counted",
+				InMemoryFileSystem.getRetainedBytes() >= message.length());
+	}
+
+	@Test
+	public void testCopyOfReclaimedConfigurationFails() throws Exception {
+		Configuration abandoned = new Configuration();
+		InMemoryFileSystem.get(abandoned);
+		FileSystemContext context = InMemoryFileSystem.getContext(abandoned);
+		// A copy which never resolves the context does not own it...
+		Configuration copy = new Configuration(abandoned);
+		abandoned = null;
+		for (int i = 0; i < 100 && !context.isReleased(); i++) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertTrue("Abandoned context not released", context.isReleased());
+
+		thrown.expect(IllegalStateException.class);
+		thrown.expectMessage("The file system context "
+				+ copy.get(InMemoryFileSystem.CONTEXT_KEY)
+				+ " has been reclaimed!");
+		InMemoryFileSystem.get(copy);
 	}
 
-	private String readMessage(Path path) throws IOException {
-		return readMessage(inMemoryFileSystem, path);
+	private FileSystemContext createAbandonedContext() throws IOException {
+		Configuration abandoned = new Configuration();
+		InMemoryFileSystem abandonedFs = InMemoryFileSystem.get(abandoned);
+		writeMessage(abandonedFs, path, message);
+		return InMemoryFileSystem.getContext(abandoned);
 	}
 
-	static String readMessage(FileSystem fs, Path path) throws IOException {
-		BufferedReader reader = new BufferedReader(new InputStreamReader(
+	//
+	// Concurrency tests
+	//
+
+	@Test
+	public void testConcurrentNamespaceOperations() throws Exception {
+		final Path shared = new Path("/shared");
+		final Path out = new Path(shared, "out");
+		final int threads = 4;
+		final int iterations = 50;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int t = 0; t < threads; t++) {
+			final Path home = new Path(shared, "t" + t);
+			results.add(executor.submit(new Callable<Void>() {
+				public Void call() throws IOException {
+					for (int i = 0; i < iterations; i++) {
+						Path dir = new Path(home, "d" + i);
+						Path file = new Path(dir, "file");
+						inMemoryFileSystem.mkdirs(dir);
+						writeMessage(file);
+						inMemoryFileSystem.rename(file, new Path(out,
+								home.getName() + "-" + i));
+						inMemoryFileSystem.listStatus(shared);
+						inMemoryFileSystem.listStatus(out);
+						inMemoryFileSystem.delete(dir, true);
+					}
+					return null;
+				}
+			}));
+		}
+		for (Future<Void> result : results) {
+			result.get();
+		}
+		executor.shutdown();
+
+		FileStatus[] statuses = inMemoryFileSystem.listStatus(out);
+		assertThat("Wrong number of renamed files", statuses.length,
+				is(equalTo(threads * iterations)));
+		for (FileStatus status : statuses) {
+			assertThat("Wrong content in " + status.getPath(),
+					readMessage(status.getPath()), is(equalTo(message)));
+		}
+		for (int t = 0; t < threads; t++) {
+			assertThat("Directories left behind", inMemoryFileSystem
+					.listStatus(new Path(shared, "t" + t)).length,
+					is(equalTo(0)));
+		}
+	}
+
+	//
+	// Quota tests
+	//
+
+	@Test
+	public void testNamespaceQuotaOnCreate() throws IOException {
+		Path dir = new Path("/quota");
+		inMemoryFileSystem.mkdirs(dir);
+		inMemoryFileSystem.setQuota(dir, 3, InMemoryFileSystem.QUOTA_DONT_SET);
+		writeMessage(new Path(dir, "a"));
+		writeMessage(new Path(dir, "b"));
+		// Overwriting does not add a name...
+		writeMessage(new Path(dir, "b"));
+
+		thrown.expect(QuotaExceededException.class);
+		thrown.expectMessage(equalTo("The NameSpace quota (directories and files) of directory "
+				+ "/quota is exceeded: quota=3 file count=4"));
+		writeMessage(new Path(dir, "c"));
+	}
+
+	@Test
+	public void testNamespaceQuotaOnMkdirs() throws IOException {
+		Path dir = new Path("/quota");
+		inMemoryFileSystem.mkdirs(dir);
+		inMemoryFileSystem.setQuota(dir, 2, InMemoryFileSystem.QUOTA_DONT_SET);
+		try {
+			inMemoryFileSystem.mkdirs(new Path(dir, "a/b"));
+			fail("Expected a QuotaExceededException");
+		} catch (QuotaExceededException e) {
+			// expected
+		}
+		assertTrue("Parent not created",
+				inMemoryFileSystem.exists(new Path(dir, "a")));
+		assertFalse("Directory created",
+				inMemoryFileSystem.exists(new Path(dir, "a/b")));
+	}
+
+	@Test
+	public void testSpaceQuotaOnWrite() throws IOException {
+		Path dir = new Path("/quota");
+		inMemoryFileSystem.mkdirs(dir);
+		inMemoryFileSystem.setQuota(new Path("/"),
+				InMemoryFileSystem.QUOTA_DONT_SET, 12);
+		FSDataOutputStream out = inMemoryFileSystem.create(new Path(dir,
+				"file"));
+		out.write(new byte[8]);
+		try {
+			out.write(new byte[8]);
+			fail("Expected a QuotaExceededException");
+		} catch (QuotaExceededException e) {
+			assertThat(e.getMessage(), is(equalTo("The DiskSpace quota of / "
+					+ "is exceeded: quota=12 diskspace consumed=16")));
+		}
+		out.write(new byte[4]);
+		out.close();
+
+		ContentSummary summary = inMemoryFileSystem.getContentSummary(dir
+				.getParent());
+		assertThat(summary.getLength(), is(equalTo(12L)));
+		assertThat(summary.getSpaceConsumed(), is(equalTo(12L)));
+		assertThat(summary.getSpaceQuota(), is(equalTo(12L)));
+		assertThat(summary.getQuota(), is(equalTo(-1L)));
+	}
+
+	@Test
+	public void testQuotaOnRename() throws IOException {
+		Path dir = new Path("/quota");
+		inMemoryFileSystem.mkdirs(dir);
+		inMemoryFileSystem.setQuota(dir, 2, InMemoryFileSystem.QUOTA_DONT_SET);
+		Path src = new Path("/src/data");
+		writeMessage(new Path(src, "file"));
+		try {
+			inMemoryFileSystem.rename(src, new Path(dir, "data"));
+			fail("Expected a QuotaExceededException");
+		} catch (QuotaExceededException e) {
+			// expected
+		}
+		assertThat("Source not restored", readMessage(new Path(src, "file")),
+				is(equalTo(message)));
+		assertThat(inMemoryFileSystem.getContentSummary(new Path("/"))
+				.getFileCount(), is(equalTo(1L)));
+		assertThat(inMemoryFileSystem.getContentSummary(dir)
+				.getDirectoryCount(), is(equalTo(1L)));
+	}
+
+	@Test
+	public void testResetQuota() throws IOException {
+		Path dir = new Path("/quota");
+		inMemoryFileSystem.mkdirs(dir);
+		inMemoryFileSystem.setQuota(dir, 1, 0);
+		assertThat(inMemoryFileSystem.getContentSummary(dir).getQuota(),
+				is(equalTo(1L)));
+		inMemoryFileSystem.setQuota(dir, InMemoryFileSystem.QUOTA_RESET,
+				InMemoryFileSystem.QUOTA_RESET);
+		writeMessage(new Path(dir, "file"));
+		ContentSummary summary = inMemoryFileSystem.getContentSummary(dir);
+		assertThat(summary.getQuota(), is(equalTo(-1L)));
+		assertThat(summary.getSpaceQuota(), is(equalTo(-1L)));
+	}
+
+	@Test
+	public void testSetQuotaInvalid() throws IOException {
+		expectIllegalArgumentException("Invalid namespace quota: 0");
+		inMemoryFileSystem.setQuota(new Path("/"), 0,
+				InMemoryFileSystem.QUOTA_DONT_SET);
+	}
+
+	//
+	// Batch operation tests
+	//
+
+	@Test
+	public void testBatchMkdirs() throws IOException {
+		inMemoryFileSystem.mkdirs(new Path("/batch/a"));
+		inMemoryFileSystem.batchMkdirs(new Path[] { new Path("/batch/a/b/c"),
+				new Path("/batch/a/b/d"), new Path("relative"),
+				new Path("/batch/a") }, FsPermission.getDefault());
+
+		assertTrue(inMemoryFileSystem.getFileStatus(new Path("/batch/a/b/c"))
+				.isDir());
+		assertTrue(inMemoryFileSystem.getFileStatus(new Path("/batch/a/b/d"))
+				.isDir());
+		assertTrue(inMemoryFileSystem.exists(new Path(inMemoryFileSystem
+				.getWorkingDirectory(), "relative")));
+		assertThat(inMemoryFileSystem.getContentSummary(new Path("/batch"))
+				.getDirectoryCount(), is(equalTo(5L)));
+	}
+
+	@Test
+	public void testBatchMkdirsPermissionDenied() throws IOException {
+		Path dir = new Path("/readonly");
+		inMemoryFileSystem.mkdirs(dir, new FsPermission((short) 0555));
+		inMemoryFileSystem.setUser("other", "other");
+
+		expectIOException("Permission denied!");
+		inMemoryFileSystem.batchMkdirs(new Path[] { new Path(dir, "a") },
+				FsPermission.getDefault());
+	}
+
+	@Test
+	public void testBatchCreate() throws IOException {
+		Map<Path, byte[]> files = new LinkedHashMap<Path, byte[]>();
+		for (int i = 0; i < 10; i++) {
+			files.put(new Path("/batch/" + (i % 3) + "/file" + i),
+					(message + i).getBytes());
+		}
+		inMemoryFileSystem.batchCreate(files, false);
+
+		for (int i = 0; i < 10; i++) {
+			assertThat(readMessage(new Path("/batch/" + (i % 3) + "/file" + i)),
+					is(equalTo(message + i)));
+		}
+		ContentSummary summary = inMemoryFileSystem
+				.getContentSummary(new Path("/batch"));
+		assertThat(summary.getFileCount(), is(equalTo(10L)));
+		assertThat(summary.getDirectoryCount(), is(equalTo(4L)));
+	}
+
+	@Test
+	public void testBatchCreateOverwrite() throws IOException {
+		writeMessage(path);
+		inMemoryFileSystem.batchCreate(
+				Collections.singletonMap(path, "replaced".getBytes()), true);
+		assertThat(readMessage(path), is(equalTo("replaced")));
+
+		expectIOException("File already exists: " + path);
+		inMemoryFileSystem.batchCreate(
+				Collections.singletonMap(path, "again".getBytes()), false);
+	}
+
+	@Test
+	public void testBatchDelete() throws IOException {
+		writeMessage(new Path("/batch/a/file"));
+		writeMessage(new Path("/batch/a-b/file"));
+		writeMessage(new Path("/batch/c"));
+		inMemoryFileSystem.batchDelete(new Path[] { new Path("/batch/a/file"),
+				new Path("/batch/a"), new Path("/batch/a-b"),
+				new Path("/batch/c") }, true);
+
+		assertThat(inMemoryFileSystem.listStatus(new Path("/batch")).length,
+				is(equalTo(0)));
+	}
+
+	@Test
+	public void testBatchDeleteNotFound() throws IOException {
+		Path missing = new Path("/batch/missing");
+		expectPathMustExistIOException(missing);
+		inMemoryFileSystem.batchDelete(new Path[] { missing }, true);
+	}
+
+	@Test
+	public void testBatchGetFileStatus() throws IOException {
+		writeMessage(new Path("/batch/a/file"));
+		Path[] paths = { new Path("/batch/a/file"), new Path("/batch/a"),
+				new Path("/") };
+		FileStatus[] statuses = inMemoryFileSystem.batchGetFileStatus(paths);
+
+		assertThat(statuses.length, is(equalTo(paths.length)));
+		for (int i = 0; i < paths.length; i++) {
+			FileStatus expected = inMemoryFileSystem.getFileStatus(paths[i]);
+			assertThat(statuses[i].getPath(), is(equalTo(expected.getPath())));
+			assertThat(statuses[i].getLen(), is(equalTo(expected.getLen())));
+			assertThat(statuses[i].isDir(), is(equalTo(expected.isDir())));
+		}
+	}
+
+	@Test
+	public void testBatchGetFileStatusNotFound() throws IOException {
+		Path missing = new Path("/batch/missing/file");
+		expectPathMustExistIOException(missing);
+		inMemoryFileSystem.batchGetFileStatus(new Path[] { new Path("/"), missing });
+	}
+
+	//
+	// Statistics tests
+	//
+
+	@Test
+	public void testStatisticsBytesWrittenAndRead() throws IOException {
+		Statistics statistics = FileSystem.getStatistics(
+				InMemoryFileSystem.SCHEME, InMemoryFileSystem.class);
+		long written = statistics.getBytesWritten();
+		long read = statistics.getBytesRead();
+
+		FSDataOutputStream out = inMemoryFileSystem.create(path);
+		out.writeBytes(message);
+		out.write(new byte[100], 0, 100);
+		assertThat("Counted before close", statistics.getBytesWritten(),
+				is(equalTo(written)));
+		out.close();
+		assertThat(statistics.getBytesWritten(), is(equalTo(written
+				+ message.length() + 100)));
+
+		FSDataInputStream in = inMemoryFileSystem.open(path);
+		in.read();
+		in.read(new byte[10], 0, 10);
+		in.readFully(20, new byte[5]);
+		in.close();
+		assertThat(statistics.getBytesRead(), is(equalTo(read + 16)));
+	}
+
+	@Test
+	public void testStatisticsPublishedWhileStreaming() throws IOException {
+		Statistics statistics = FileSystem.getStatistics(
+				InMemoryFileSystem.SCHEME, InMemoryFileSystem.class);
+		long written = statistics.getBytesWritten();
+
+		FSDataOutputStream out = inMemoryFileSystem.create(path);
+		byte[] block = new byte[(int) StreamStatistics.PUBLISH_BYTES];
+		out.write(block);
+		assertThat(statistics.getBytesWritten(), is(equalTo(written
+				+ block.length)));
+		out.close();
+	}
+
+	@Test
+	public void testOperationStatistics() throws IOException {
+		OperationStatistics operations = inMemoryFileSystem
+				.getOperationStatistics();
+		assertThat(operations, is(equalTo(OperationStatistics
+				.getStatistics(InMemoryFileSystem.SCHEME))));
+		Path dir = new Path("/stats");
+		inMemoryFileSystem.mkdirs(dir);
+		for (int i = 0; i < 3; i++) {
+			writeMessage(new Path(dir, "file" + i));
+		}
+		long readOps = operations.getReadOps();
+		long largeReadOps = operations.getLargeReadOps();
+		long writeOps = operations.getWriteOps();
+
+		inMemoryFileSystem.getFileStatus(dir);
+		Iterator<FileStatus> listing = inMemoryFileSystem
+				.listStatusIterator(dir);
+		inMemoryFileSystem.listStatus(dir, "file0", 1);
+		inMemoryFileSystem.delete(new Path(dir, "file0"), false);
+		inMemoryFileSystem.rename(new Path(dir, "file1"), new Path(dir,
+				"file3"));
+
+		assertTrue(listing.hasNext());
+		assertThat(operations.getReadOps(), is(equalTo(readOps + 2)));
+		assertThat(operations.getLargeReadOps(), is(equalTo(largeReadOps + 1)));
+		assertThat(operations.getWriteOps(), is(equalTo(writeOps + 2)));
+	}
+
+	//
+	// Metrics tests
+	//
+
+	@Test
+	public void testMetricsDisabledByDefault() throws IOException {
+		writeMessage(new Path("/metrics/file"));
+		FSDataOutputStream out = inMemoryFileSystem.create(new Path(
+				"/metrics/open"));
+
+		FileSystemMetrics metrics = inMemoryFileSystem.getMetrics();
+		out.close();
+		assertFalse(metrics.isEnabled());
+		assertThat(metrics.getOperation(Operation.CREATE).getCount(),
+				is(equalTo(0L)));
+		assertThat(metrics.getOpenStreams(), is(equalTo(1)));
+		assertThat(metrics.getInodeCount(), is(equalTo(inMemoryFileSystem
+				.getContentSummary(new Path("/")).getFileCount()
+				+ inMemoryFileSystem.getContentSummary(new Path("/"))
+						.getDirectoryCount())));
+		assertThat(metrics.getStoredBytes(),
+				is(equalTo((long) message.length())));
+	}
+
+	@Test
+	public void testMetricsEnabled() throws Exception {
+		Configuration conf = new Configuration();
+		conf.setBoolean(InMemoryFileSystem.METRICS_KEY, true);
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		ObjectName name = new ObjectName(
+				"ras.test.hadoop.fs:type=InMemoryFileSystem,context="
+						+ ObjectName.quote(conf
+								.get(InMemoryFileSystem.CONTEXT_KEY)));
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			Path file = new Path("/metrics/file");
+			writeMessage(fs, file, message);
+			readMessage(fs, file);
+			fs.getFileStatus(file);
+			fs.listStatus(file.getParent());
+			try {
+				fs.open(new Path("/metrics/missing"));
+				fail("Expected an IOException");
+			} catch (IOException e) {
+				// failed calls are counted too...
+			}
+
+			FileSystemMetrics metrics = fs.getMetrics();
+			assertTrue(metrics.isEnabled());
+			assertThat(metrics.getOperation(Operation.CREATE).getCount(),
+					is(equalTo(1L)));
+			OperationMetrics open = metrics.getOperation(Operation.OPEN);
+			assertThat(open.getCount(), is(equalTo(2L)));
+			assertTrue(open.getMaxNanos() > 0);
+			assertTrue(open.getMedianNanos() <= open.getMaxNanos());
+			assertThat(metrics.getOperation(Operation.GET_FILE_STATUS)
+					.getCount(), is(equalTo(1L)));
+			assertThat(metrics.getOperation(Operation.LIST_STATUS)
+					.getCount(), is(equalTo(1L)));
+			assertThat(metrics.getOperation(Operation.RENAME).getCount(),
+					is(equalTo(0L)));
+
+			assertTrue("Not registered", server.isRegistered(name));
+			assertThat(server.getAttribute(name, "StoredBytes"),
+					is(equalTo((Object) Long.valueOf(message.length()))));
+			assertThat(((CompositeData[]) server.getAttribute(name,
+					"Operations")).length,
+					is(equalTo(Operation.values().length)));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+		assertFalse("Still registered", server.isRegistered(name));
+	}
+
+	@Test
+	public void testOperationMetricsPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000);
+		}
+		OperationMetrics metrics = histogram.snapshot(Operation.OPEN);
+		assertThat(metrics.getCount(), is(equalTo(100L)));
+		assertThat(metrics.getMeanNanos(), is(equalTo(50500L)));
+		assertThat(metrics.getMaxNanos(), is(equalTo(100000L)));
+		// The median, 50000ns, lies in the bucket [32768, 65536)...
+		assertThat(metrics.getMedianNanos(), is(equalTo(65535L)));
+		assertThat(metrics.getPercentile99Nanos(), is(equalTo(100000L)));
+		assertThat(metrics.getPercentileNanos(0), is(equalTo(1023L)));
+	}
+
+	//
+	// Image tests
+	//
+
+	@Test
+	public void testSaveAndLoadImage() throws IOException {
+		Path dir = new Path("/image/dir");
+		inMemoryFileSystem.mkdirs(dir.getParent());
+		inMemoryFileSystem.mkdirs(dir, new FsPermission((short) 0750));
+		inMemoryFileSystem.setQuota(dir, 10, 1000);
+		writeMessage(new Path(dir, "file"));
+		inMemoryFileSystem.setOwner(dir, "bill", "staff");
+		byte[] large = new byte[3 * 64 * 1024 + 17];
+		new Random(42).nextBytes(large);
+		FSDataOutputStream out = inMemoryFileSystem.create(new Path(
+				"/image/large"));
+		out.write(large);
+		out.close();
+		inMemoryFileSystem.create(new Path("/image/empty")).close();
+		FileSystem local = FileSystem.getLocal(configuration);
+		writeMessage(local, new Path("/local/file"), "local");
+
+		File image = temporaryFolder.newFile("context.img");
+		InMemoryFileSystem.saveImage(configuration, image);
+
+		Configuration loaded = new Configuration();
+		InMemoryFileSystem.loadImage(loaded, image);
+		try {
+			InMemoryFileSystem fs = InMemoryFileSystem.get(loaded);
+			assertThat("Content loaded eagerly", fs.getMetrics()
+					.getResidentBytes(), is(equalTo(0L)));
+
+			FileStatus status = fs.getFileStatus(dir);
+			assertThat(status.getPermission(), is(equalTo(new FsPermission(
+					(short) 0750))));
+			assertThat(status.getOwner(), is(equalTo("bill")));
+			assertThat(status.getGroup(), is(equalTo("staff")));
+			ContentSummary summary = fs.getContentSummary(dir);
+			assertThat(summary.getQuota(), is(equalTo(10L)));
+			assertThat(summary.getSpaceQuota(), is(equalTo(1000L)));
+
+			fs.setUser("bill", "staff");
+			assertThat(readMessage(fs, new Path(dir, "file")),
+					is(equalTo(message)));
+			byte[] read = new byte[large.length];
+			FSDataInputStream in = fs.open(new Path("/image/large"));
+			in.readFully(0, read);
+			in.close();
+			assertTrue("Wrong content", Arrays.equals(large, read));
+			assertThat(fs.getFileStatus(new Path("/image/empty")).getLen(),
+					is(equalTo(0L)));
+			assertThat(readMessage(FileSystem.getLocal(loaded), new Path(
+					"/local/file")), is(equalTo("local")));
+			assertThat(fs.getContentSummary(new Path("/")).getLength(),
+					is(equalTo(inMemoryFileSystem.getContentSummary(
+							new Path("/")).getLength())));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(loaded);
+		}
+		assertTrue("Image deleted", image.exists());
+	}
+
+	@Test
+	public void testLoadedImageIsWritable() throws IOException {
+		writeMessage(path);
+		File image = temporaryFolder.newFile("context.img");
+		InMemoryFileSystem.saveImage(configuration, image);
+		long imageLength = image.length();
+
+		Configuration loaded = new Configuration();
+		InMemoryFileSystem.loadImage(loaded, image);
+		try {
+			InMemoryFileSystem fs = InMemoryFileSystem.get(loaded);
+			FSDataOutputStream out = fs.append(path);
+			out.writeBytes("!");
+			out.close();
+			assertThat(readMessage(fs, path), is(equalTo(message + "!")));
+			fs.delete(path, false);
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(loaded);
+		}
+		assertThat("Image changed", image.length(), is(equalTo(imageLength)));
+		assertThat(readMessage(path), is(equalTo(message)));
+	}
+
+	@Test
+	public void testLoadImageReplacesContext() throws IOException {
+		File image = temporaryFolder.newFile("context.img");
+		InMemoryFileSystem.saveImage(configuration, image);
+		writeMessage(path);
+
+		InMemoryFileSystem.loadImage(configuration, image);
+		assertFalse("Context not replaced", inMemoryFileSystem.exists(path));
+	}
+
+	@Test
+	public void testSaveOntoMappedImage() throws IOException {
+		writeMessage(path);
+		File image = temporaryFolder.newFile("context.img");
+		InMemoryFileSystem.saveImage(configuration, image);
+		InMemoryFileSystem.loadImage(configuration, image);
+
+		expectIOException("'" + image + "' is in use by the context!");
+		InMemoryFileSystem.saveImage(configuration, image);
+	}
+
+	@Test
+	public void testSaveOverImage() throws IOException {
+		writeMessage(path);
+		File image = temporaryFolder.newFile("context.img");
+		InMemoryFileSystem.saveImage(configuration, image);
+		InMemoryFileSystem.loadImage(configuration, image);
+		assertThat(readMessage(path), is(equalTo(message)));
+		inMemoryFileSystem.mkdirs(new Path("/saved"));
+		InMemoryFileSystem.saveImage(configuration, image);
+
+		Configuration loaded = new Configuration();
+		InMemoryFileSystem.loadImage(loaded, image);
+		try {
+			InMemoryFileSystem fs = InMemoryFileSystem.get(loaded);
+			assertThat(readMessage(fs, path), is(equalTo(message)));
+			assertTrue("Image not replaced", fs.exists(new Path("/saved")));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(loaded);
+		}
+		assertThat("Temporary file left", temporaryFolder.getRoot().list().length,
+				is(equalTo(1)));
+	}
+
+	@Test
+	public void testLoadInvalidImage() throws IOException {
+		File image = temporaryFolder.newFile("invalid.img");
+		writeMessage(FileSystem.getLocal(new Configuration()), new Path(
+				image.getPath()), "not an image, but long enough");
+
+		expectIOException("Not an in-memory file system image: " + image);
+		InMemoryFileSystem.loadImage(new Configuration(), image);
+	}
+
+	//
+	// Trace tests
+	//
+
+	@Test
+	public void testTraceRecordsOperations() throws IOException {
+		File traceFile = temporaryFolder.newFile("operations.trace");
+		Configuration conf = new Configuration();
+		conf.set(InMemoryFileSystem.TRACE_KEY, traceFile.getPath());
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		Path file = new Path("/trace/file");
+		try {
+			fs.mkdirs(file.getParent());
+			writeMessage(fs, file, message);
+			FSDataInputStream in = fs.open(file);
+			in.read(new byte[4]);
+			in.read(new byte[4]);
+			in.read(2, new byte[3], 0, 3);
+			in.close();
+			fs.getFileStatus(file);
+			fs.rename(file, new Path("/trace/renamed"));
+			fs.delete(file.getParent(), true);
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+
+		TraceReader reader = new TraceReader(traceFile);
+		List<TraceRecord> records;
+		try {
+			records = reader.readAll();
+		} finally {
+			reader.close();
+		}
+		List<TraceRecord.Type> types = new ArrayList<TraceRecord.Type>();
+		for (TraceRecord record : records) {
+			types.add(record.getType());
+		}
+		assertThat(types, is(equalTo(Arrays.asList(TraceRecord.Type.MKDIRS,
+				TraceRecord.Type.CREATE, TraceRecord.Type.WRITE,
+				TraceRecord.Type.CLOSE, TraceRecord.Type.OPEN,
+				TraceRecord.Type.READ, TraceRecord.Type.POSITIONAL_READ,
+				TraceRecord.Type.CLOSE, TraceRecord.Type.GET_FILE_STATUS,
+				TraceRecord.Type.RENAME, TraceRecord.Type.DELETE))));
+
+		TraceRecord create = records.get(1);
+		assertThat(create.getPath(), is(equalTo("/trace/file")));
+		assertTrue("Overwrite not recorded", create.getFlag());
+		TraceRecord write = records.get(2);
+		assertThat(write.getStream(), is(equalTo(create.getStream())));
+		assertThat(write.getLength(), is(equalTo((long) message.length())));
+		assertThat("Single byte writes not coalesced", write.getCalls(),
+				is(equalTo(message.length())));
+		TraceRecord read = records.get(5);
+		assertThat(read.getPosition(), is(equalTo(0L)));
+		assertThat(read.getLength(), is(equalTo(8L)));
+		assertThat(read.getCalls(), is(equalTo(2)));
+		TraceRecord pread = records.get(6);
+		assertThat(pread.getPosition(), is(equalTo(2L)));
+		assertThat(pread.getLength(), is(equalTo(3L)));
+		assertThat(records.get(9).getTarget(), is(equalTo("/trace/renamed")));
+		assertThat(records.get(9).getThreadId(), is(equalTo(Thread
+				.currentThread().getId())));
+	}
+
+	@Test
+	public void testTraceTruncatedWhileContextLives() throws IOException {
+		File traceFile = temporaryFolder.newFile("live.trace");
+		Configuration conf = new Configuration();
+		conf.set(InMemoryFileSystem.TRACE_KEY, traceFile.getPath());
+		InMemoryFileSystem.get(conf).mkdirs(new Path("/trace"));
+		try {
+			TraceReader reader = new TraceReader(traceFile);
+			try {
+				thrown.expect(EOFException.class);
+				thrown.expectMessage(equalTo("Trace truncated: " + traceFile));
+				reader.readAll();
+			} finally {
+				reader.close();
+			}
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	@Test
+	public void testReplayTrace() throws IOException {
+		File traceFile = temporaryFolder.newFile("replay.trace");
+		Configuration conf = new Configuration();
+		conf.set(InMemoryFileSystem.TRACE_KEY, traceFile.getPath());
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			writeMessage(fs, new Path("/replay/a"), message);
+			readMessage(fs, new Path("/replay/a"));
+			Map<Path, byte[]> batch = new LinkedHashMap<Path, byte[]>();
+			batch.put(new Path("/replay/b"), new byte[100]);
+			fs.batchCreate(batch, false);
+			fs.rename(new Path("/replay/b"), new Path("/replay/c"));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+
+		TraceReplayer replayer = new TraceReplayer(inMemoryFileSystem,
+				new Path("/target"));
+		replayer.setMaximumSpeed(true);
+		ReplayResult result = replayer.replay(traceFile);
+
+		assertThat(result.getFailures(), is(equalTo(0L)));
+		assertThat(result.getCount(TraceRecord.Type.CREATE), is(equalTo(2L)));
+		assertThat(result.getCalls(TraceRecord.Type.WRITE),
+				is(equalTo(message.length() + 1L)));
+		assertThat(result.getBytes(TraceRecord.Type.READ),
+				is(equalTo((long) message.length())));
+		assertThat(readMessage(new Path("/target/replay/a")).length(),
+				is(equalTo(message.length())));
+		assertThat(inMemoryFileSystem.getFileStatus(new Path("/target/replay/c"))
+				.getLen(), is(equalTo(100L)));
+		assertFalse(inMemoryFileSystem.exists(new Path("/target/replay/b")));
+	}
+
+	@Test
+	public void testReplayCountsFailures() throws IOException {
+		File traceFile = temporaryFolder.newFile("failures.trace");
+		Configuration conf = new Configuration();
+		conf.set(InMemoryFileSystem.TRACE_KEY, traceFile.getPath());
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			writeMessage(fs, new Path("/replay/a"), message);
+			readMessage(fs, new Path("/replay/a"));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+		TraceReader reader = new TraceReader(traceFile);
+		List<TraceRecord> records;
+		try {
+			records = reader.readAll();
+		} finally {
+			reader.close();
+		}
+
+		// Replay the reads only, the file does not exist in the target...
+		ReplayResult result = new TraceReplayer(inMemoryFileSystem, new Path(
+				"/")).replay(records.subList(3, records.size()));
+		assertThat(result.getFailures(TraceRecord.Type.OPEN), is(equalTo(1L)));
+		assertThat(result.getFailures(TraceRecord.Type.READ), is(equalTo(1L)));
+		assertThat(result.getFailures(TraceRecord.Type.CLOSE), is(equalTo(1L)));
+	}
+
+	@Test
+	public void testReplayMetadataAndSnapshotOperations() throws IOException {
+		File traceFile = temporaryFolder.newFile("metadata.trace");
+		Configuration conf = new Configuration();
+		conf.set(InMemoryFileSystem.TRACE_KEY, traceFile.getPath());
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		Path dir = new Path("/replay");
+		try {
+			writeMessage(fs, new Path(dir, "a"), message);
+			fs.setPermission(new Path(dir, "a"), new FsPermission((short) 0640));
+			fs.setOwner(dir, "bill", null);
+			fs.setReplication(new Path(dir, "a"), (short) 2);
+			fs.setQuota(dir, 10, InMemoryFileSystem.QUOTA_RESET);
+			fs.getContentSummary(dir);
+			fs.globStatus(new Path("/replay/*"));
+			fs.allowSnapshot(dir);
+			fs.createSnapshot(dir, "s1");
+			fs.renameSnapshot(dir, "s1", "s2");
+			fs.getSnapshotDiffReport(dir, "s2", null);
+			fs.createSnapshot(dir, "s3");
+			fs.deleteSnapshot(dir, "s3");
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+
+		TraceReplayer replayer = new TraceReplayer(inMemoryFileSystem,
+				new Path("/target"));
+		replayer.setMaximumSpeed(true);
+		ReplayResult result = replayer.replay(traceFile);
+
+		assertThat(result.getFailures(), is(equalTo(0L)));
+		assertThat(result.getCount(TraceRecord.Type.SNAPSHOT_DIFF),
+				is(equalTo(1L)));
+		Path target = new Path("/target/replay");
+		FileStatus status = inMemoryFileSystem.getFileStatus(new Path(target,
+				"a"));
+		assertThat(status.getPermission(), is(equalTo(new FsPermission(
+				(short) 0640))));
+		assertThat(status.getReplication(), is(equalTo((short) 2)));
+		assertThat(inMemoryFileSystem.getFileStatus(target).getOwner(),
+				is(equalTo("bill")));
+		assertThat(inMemoryFileSystem.getContentSummary(target).getQuota(),
+				is(equalTo(10L)));
+		assertTrue(inMemoryFileSystem.exists(new Path(target, ".snapshot/s2")));
+		assertFalse(inMemoryFileSystem.exists(new Path(target, ".snapshot/s3")));
+	}
+
+	@Test
+	public void testReplayCountsRuntimeFailures() throws IOException {
+		writeMessage(path);
+		TraceRecord record = new TraceRecord(
+				TraceRecord.Type.SET_REPLICATION, 0, 1, path.toUri().getPath(),
+				null, 0, 0, 0, 1, false);
+
+		ReplayResult result = new TraceReplayer(inMemoryFileSystem, new Path(
+				"/")).replay(Arrays.asList(record, record));
+		assertThat(result.getFailures(TraceRecord.Type.SET_REPLICATION),
+				is(equalTo(2L)));
+	}
+
+	//
+	// Fork tests
+	//
+
+	@Test
+	public void testForkSeesParentState() throws IOException {
+		Path dir = new Path("/fixture/dir");
+		inMemoryFileSystem.mkdirs(dir);
+		writeMessage(new Path(dir, "file"));
+		inMemoryFileSystem.setOwner(dir, "bill", "staff");
+		inMemoryFileSystem.setQuota(dir.getParent(), 4, InMemoryFileSystem.QUOTA_DONT_SET);
+
+		Configuration forked = InMemoryFileSystem.fork(configuration);
+		try {
+			InMemoryFileSystem fork = InMemoryFileSystem.get(forked);
+			assertThat(readMessage(fork, new Path(dir, "file")),
+					is(equalTo(message)));
+			FileStatus status = fork.getFileStatus(dir);
+			assertThat(status.getOwner(), is(equalTo("bill")));
+			assertThat(status.getGroup(), is(equalTo("staff")));
+			ContentSummary summary = fork.getContentSummary(dir.getParent());
+			assertThat(summary.getFileCount(), is(equalTo(1L)));
+			assertThat(summary.getLength(), is(equalTo((long) message
+					.length())));
+			assertThat(summary.getQuota(), is(equalTo(4L)));
+
+			fork.mkdirs(new Path(dir.getParent(), "second"));
+			thrown.expect(QuotaExceededException.class);
+			fork.mkdirs(new Path(dir.getParent(), "third"));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(forked);
+		}
+	}
+
+	@Test
+	public void testForkIsolatesChanges() throws IOException {
+		Path file = new Path("/fixture/file");
+		Path dir = new Path("/fixture/dir");
+		writeMessage(file);
+		writeMessage(new Path(dir, "file"));
+
+		Configuration forked = InMemoryFileSystem.fork(configuration);
+		try {
+			InMemoryFileSystem fork = InMemoryFileSystem.get(forked);
+			FSDataOutputStream out = fork.append(file);
+			out.writeBytes(message);
+			out.close();
+			fork.delete(dir, true);
+			fork.rename(file, new Path("/fixture/renamed"));
+			writeMessage(fork, new Path("/fixture/fork"), message);
+			writeMessage(new Path("/fixture/parent"));
+
+			assertThat(inMemoryFileSystem.getFileStatus(file).getLen(),
+					is(equalTo((long) message.length())));
+			assertTrue(inMemoryFileSystem.exists(new Path(dir, "file")));
+			assertFalse(inMemoryFileSystem.exists(new Path("/fixture/renamed")));
+			assertFalse(inMemoryFileSystem.exists(new Path("/fixture/fork")));
+
+			assertThat(fork.getFileStatus(new Path("/fixture/renamed"))
+					.getLen(), is(equalTo(2L * message.length())));
+			assertFalse(fork.exists(file));
+			assertFalse(fork.exists(dir));
+			assertFalse(fork.exists(new Path("/fixture/parent")));
+			assertThat(fork.getContentSummary(new Path("/")).getLength(),
+					is(equalTo(3L * message.length())));
+			assertThat(inMemoryFileSystem.getContentSummary(new Path("/"))
+					.getLength(), is(equalTo(3L * message.length())));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(forked);
+		}
+	}
+
+	@Test
+	public void testForkOfFork() throws IOException {
+		writeMessage(new Path("/fixture/a"));
+		Configuration first = InMemoryFileSystem.fork(configuration);
+		Configuration second = null;
+		Configuration third = null;
+		try {
+			writeMessage(InMemoryFileSystem.get(first), new Path("/fixture/b"),
+					message);
+			second = InMemoryFileSystem.fork(first);
+			writeMessage(new Path("/fixture/c"));
+			third = InMemoryFileSystem.fork(configuration);
+
+			InMemoryFileSystem fs = InMemoryFileSystem.get(second);
+			assertTrue(fs.exists(new Path("/fixture/a")));
+			assertTrue(fs.exists(new Path("/fixture/b")));
+			assertFalse(fs.exists(new Path("/fixture/c")));
+			fs = InMemoryFileSystem.get(third);
+			assertTrue(fs.exists(new Path("/fixture/a")));
+			assertFalse(fs.exists(new Path("/fixture/b")));
+			assertTrue(fs.exists(new Path("/fixture/c")));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(first);
+			if (second != null) {
+				InMemoryFileSystem.resetFileSystemState(second);
+			}
+			if (third != null) {
+				InMemoryFileSystem.resetFileSystemState(third);
+			}
+		}
+		assertThat(readMessage(new Path("/fixture/a")), is(equalTo(message)));
+	}
+
+	@Test
+	public void testForkSharesContentUntilReleased() throws IOException {
+		byte[] content = new byte[256 * 1024];
+		Path file = new Path("/fixture/large");
+		FSDataOutputStream out = inMemoryFileSystem.create(file);
+		out.write(content);
+		out.close();
+		long resident = inMemoryFileSystem.getMetrics().getResidentBytes();
+
+		Configuration forked = InMemoryFileSystem.fork(configuration);
+		try {
+			InMemoryFileSystem fork = InMemoryFileSystem.get(forked);
+			FSDataInputStream in = fork.open(file);
+			in.readFully(content);
+			in.close();
+			assertThat("Content copied by a read", inMemoryFileSystem
+					.getMetrics().getResidentBytes(), is(equalTo(resident)));
+
+			// The parent drops the content, the fork still holds it...
+			inMemoryFileSystem.delete(file, false);
+			assertThat(inMemoryFileSystem.getMetrics().getResidentBytes(),
+					is(equalTo(resident)));
+			in = fork.open(file);
+			in.readFully(content);
+			in.close();
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(forked);
+		}
+		assertThat(inMemoryFileSystem.getMetrics().getResidentBytes(),
+				is(equalTo(0L)));
+	}
+
+	@Test
+	public void testForkCopiesContentOnAppend() throws IOException {
+		writeMessage(new Path("/fixture/file"));
+		long resident = inMemoryFileSystem.getMetrics().getResidentBytes();
+
+		Configuration forked = InMemoryFileSystem.fork(configuration);
+		try {
+			InMemoryFileSystem fork = InMemoryFileSystem.get(forked);
+			FSDataOutputStream out = fork.append(new Path("/fixture/file"));
+			out.writeBytes("!");
+			out.close();
+			assertTrue(inMemoryFileSystem.getMetrics().getResidentBytes() > resident);
+			assertThat(readMessage(fork, new Path("/fixture/file")),
+					is(equalTo(message + "!")));
+			assertThat(readMessage(new Path("/fixture/file")),
+					is(equalTo(message)));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(forked);
+		}
+		assertThat(inMemoryFileSystem.getMetrics().getResidentBytes(),
+				is(equalTo(resident)));
+	}
+
+	@Test
+	public void testForkWithOpenWriter() throws IOException {
+		FSDataOutputStream out = inMemoryFileSystem.create(new Path(
+				"/fixture/open"));
+		try {
+			expectIOException("Cannot fork while 1 file(s) are open for writing!");
+			InMemoryFileSystem.fork(configuration);
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testForkReadsDoNotCopy() throws IOException {
+		Path dir = new Path("/fixture/dir");
+		for (int i = 0; i < 10; i++) {
+			writeMessage(new Path(dir, "file" + i));
+		}
+
+		Configuration forked = InMemoryFileSystem.fork(configuration);
+		try {
+			InMemoryFileSystem fork = InMemoryFileSystem.get(forked);
+			Namespace parentNs = InMemoryFileSystem.getContext(configuration)
+					.getNamespace(inMemoryFileSystem.getUri());
+			Namespace forkNs = InMemoryFileSystem.getContext(forked)
+					.getNamespace(fork.getUri());
+			assertThat(fork.listStatus(dir).length, is(equalTo(10)));
+			assertThat(inMemoryFileSystem.listStatus(dir).length,
+					is(equalTo(10)));
+			assertThat(readMessage(fork, new Path(dir, "file3")),
+					is(equalTo(message)));
+			assertThat(readMessage(new Path(dir, "file3")),
+					is(equalTo(message)));
+			Path fixture = new Path("/fixture");
+			assertTrue("Fork copied by a read", forkNs.get(fixture)
+					.getParent() != forkNs.getRoot());
+			assertTrue("Parent copied by a read", parentNs.get(fixture)
+					.getParent() != parentNs.getRoot());
+
+			// A change copies the directories above it on one side only...
+			fork.delete(new Path(dir, "file3"), false);
+			assertTrue("Fork not copied by a change", forkNs.get(fixture)
+					.getParent() == forkNs.getRoot());
+			assertTrue("Parent copied by a change of the fork", parentNs
+					.get(fixture).getParent() != parentNs.getRoot());
+			assertFalse(fork.exists(new Path(dir, "file3")));
+			assertThat(readMessage(new Path(dir, "file3")),
+					is(equalTo(message)));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(forked);
+		}
+	}
+
+	@Test
+	public void testForkReleasedWhileReading() throws IOException {
+		byte[] content = new byte[256 * 1024];
+		Path file = new Path("/fixture/large");
+		FSDataOutputStream out = inMemoryFileSystem.create(file);
+		out.write(content);
+		out.close();
+
+		Configuration forked = InMemoryFileSystem.fork(configuration);
+		FSDataInputStream in;
+		try {
+			in = InMemoryFileSystem.get(forked).open(file);
+			inMemoryFileSystem.delete(file, false);
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(forked);
+		}
+		// The shared content stays readable until the reader closes...
+		in.readFully(0, content);
+		in.close();
+		assertThat("Shared content still resident", inMemoryFileSystem
+				.getMetrics().getResidentBytes(), is(equalTo(0L)));
+	}
+
+	//
+	// Snapshot tests
+	//
+
+	@Test
+	public void testSnapshotPreservesState() throws IOException {
+		Path dir = new Path("/snap");
+		writeMessage(new Path(dir, "a"));
+		writeMessage(new Path(dir, "b/c"));
+		inMemoryFileSystem.allowSnapshot(dir);
+		Path snapshot = inMemoryFileSystem.createSnapshot(dir, "s1");
+		assertThat(snapshot, is(equalTo(new Path("/snap/.snapshot/s1"))));
+
+		FSDataOutputStream out = inMemoryFileSystem.append(new Path(dir, "a"));
+		out.writeBytes(message);
+		out.close();
+		inMemoryFileSystem.delete(new Path(dir, "b"), true);
+		writeMessage(new Path(dir, "d"));
+
+		assertThat(readMessage(new Path(snapshot, "a")), is(equalTo(message)));
+		assertThat(readMessage(new Path(snapshot, "b/c")), is(equalTo(message)));
+		assertFalse(inMemoryFileSystem.exists(new Path(snapshot, "d")));
+		assertThat(readMessage(new Path(dir, "a")), is(equalTo(message
+				+ message)));
+		assertFalse(inMemoryFileSystem.exists(new Path(dir, "b")));
+		assertThat(inMemoryFileSystem.listStatus(new Path(dir, ".snapshot")).length,
+				is(equalTo(1)));
+		assertThat(inMemoryFileSystem.getContentSummary(dir).getFileCount(),
+				is(equalTo(2L)));
+		assertThat(inMemoryFileSystem.getContentSummary(snapshot)
+				.getFileCount(), is(equalTo(2L)));
+	}
+
+	@Test
+	public void testSnapshotIsReadOnly() throws IOException {
+		Path dir = new Path("/snap");
+		writeMessage(new Path(dir, "a"));
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+
+		expectIOException("'/snap/.snapshot/s1/a' is in a read-only snapshot!");
+		inMemoryFileSystem.delete(new Path("/snap/.snapshot/s1/a"), false);
+	}
+
+	@Test
+	public void testSnapshotDiffReport() throws IOException {
+		Path dir = new Path("/snap");
+		writeMessage(new Path(dir, "a"));
+		writeMessage(new Path(dir, "b"));
+		writeMessage(new Path(dir, "c"));
+		writeMessage(new Path(dir, "dir/x"));
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+
+		writeMessage(new Path(dir, "f"));
+		FSDataOutputStream out = inMemoryFileSystem.append(new Path(dir, "a"));
+		out.writeBytes(message);
+		out.close();
+		inMemoryFileSystem.delete(new Path(dir, "b"), false);
+		inMemoryFileSystem.rename(new Path(dir, "c"), new Path(dir, "dir/e"));
+		writeMessage(new Path(dir, "n/g"));
+		inMemoryFileSystem.createSnapshot(dir, "s2");
+		inMemoryFileSystem.delete(new Path(dir, "f"), false);
+
+		assertThat(inMemoryFileSystem.getSnapshotDiffReport(dir, "s1", "s2")
+				.toString(), is(equalTo("Difference between snapshot s1 and "
+				+ "snapshot s2 under directory /snap:\n" + "M\t.\n"
+				+ "M\t./a\n" + "-\t./b\n" + "R\t./c -> ./dir/e\n"
+				+ "M\t./dir\n" + "+\t./f\n" + "+\t./n")));
+		assertThat(inMemoryFileSystem.getSnapshotDiffReport(dir, "s2", null)
+				.toString(), is(equalTo("Difference between snapshot s2 and "
+				+ "current directory under directory /snap:\n" + "M\t.\n"
+				+ "-\t./f")));
+
+		List<DiffReportEntry> entries = inMemoryFileSystem
+				.getSnapshotDiffReport(dir, "s1", "").getDiffList();
+		assertFalse(entries.contains(new DiffReportEntry(DiffType.CREATE, "f",
+				null)));
+		assertTrue(entries.contains(new DiffReportEntry(DiffType.RENAME, "c",
+				"dir/e")));
+		entries = inMemoryFileSystem.getSnapshotDiffReport(dir, "s2", "s1")
+				.getDiffList();
+		assertTrue(entries.contains(new DiffReportEntry(DiffType.CREATE, "b",
+				null)));
+		assertTrue(entries.contains(new DiffReportEntry(DiffType.RENAME,
+				"dir/e", "c")));
+		assertTrue(entries.contains(new DiffReportEntry(DiffType.DELETE, "n",
+				null)));
+	}
+
+	@Test
+	public void testSnapshotDiffFollowsRenamedDirectories() throws IOException {
+		Path dir = new Path("/snap");
+		writeMessage(new Path(dir, "a/x"));
+		writeMessage(new Path(dir, "a/y"));
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+
+		inMemoryFileSystem.rename(new Path(dir, "a"), new Path(dir, "b"));
+		FSDataOutputStream out = inMemoryFileSystem.append(new Path(dir, "b/x"));
+		out.writeBytes(message);
+		out.close();
+		inMemoryFileSystem.delete(new Path(dir, "b/y"), false);
+
+		assertThat(inMemoryFileSystem.getSnapshotDiffReport(dir, "s1", null)
+				.getDiffList(), is(equalTo(Arrays.asList(new DiffReportEntry(
+				DiffType.MODIFY, "", null), new DiffReportEntry(
+				DiffType.MODIFY, "a", null), new DiffReportEntry(
+				DiffType.RENAME, "a", "b"), new DiffReportEntry(
+				DiffType.MODIFY, "a/x", null), new DiffReportEntry(
+				DiffType.DELETE, "a/y", null)))));
+	}
+
+	@Test
+	public void testSnapshotDiffReportsRenamesOnly() throws IOException {
+		Path dir = new Path("/snap");
+		writeMessage(new Path(dir, "a"));
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+
+		// Replacing a file is no rename, renaming after many changes is...
+		inMemoryFileSystem.delete(new Path(dir, "a"), false);
+		for (int i = 0; i < 20; i++) {
+			writeMessage(new Path(dir, "t" + i));
+			inMemoryFileSystem.delete(new Path(dir, "t" + i), false);
+		}
+		writeMessage(new Path(dir, "a"));
+		inMemoryFileSystem.rename(new Path(dir, "a"), new Path(dir, "b"));
+
+		assertThat(inMemoryFileSystem.getSnapshotDiffReport(dir, "s1", null)
+				.getDiffList(), is(equalTo(Arrays.asList(new DiffReportEntry(
+				DiffType.MODIFY, "", null), new DiffReportEntry(
+				DiffType.DELETE, "a", null), new DiffReportEntry(
+				DiffType.CREATE, "b", null)))));
+
+		inMemoryFileSystem.createSnapshot(dir, "s2");
+		for (int i = 0; i < 20; i++) {
+			writeMessage(new Path(dir, "t" + i));
+		}
+		inMemoryFileSystem.rename(new Path(dir, "b"), new Path(dir, "c"));
+		assertTrue(inMemoryFileSystem.getSnapshotDiffReport(dir, "s2", null)
+				.getDiffList().contains(
+						new DiffReportEntry(DiffType.RENAME, "b", "c")));
+	}
+
+	@Test
+	public void testGlobResolvesSnapshots() throws IOException {
+		Path dir = new Path("/snap");
+		writeMessage(new Path(dir, "a"));
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+		inMemoryFileSystem.createSnapshot(dir, "s2");
+
+		FileStatus[] statuses = inMemoryFileSystem.globStatus(new Path(
+				"/snap/.snapshot/*/a"));
+		assertThat(statuses.length, is(equalTo(2)));
+		assertThat(statuses[0].getPath().toUri().getPath(),
+				is(equalTo("/snap/.snapshot/s1/a")));
+		assertThat(inMemoryFileSystem.globStatus(new Path("/snap/.snapshot"))
+				.length, is(equalTo(1)));
+		assertThat(inMemoryFileSystem.globStatus(new Path("/snap/.*")).length,
+				is(equalTo(0)));
+	}
+
+	@Test
+	public void testDeleteSnapshotReleasesContent() throws IOException {
+		Path dir = new Path("/snap");
+		Path file = new Path(dir, "large");
+		FSDataOutputStream out = inMemoryFileSystem.create(file);
+		out.write(new byte[256 * 1024]);
+		out.close();
+		long resident = inMemoryFileSystem.getMetrics().getResidentBytes();
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+		inMemoryFileSystem.renameSnapshot(dir, "s1", "renamed");
+
+		inMemoryFileSystem.delete(file, false);
+		assertThat(inMemoryFileSystem.getMetrics().getResidentBytes(),
+				is(equalTo(resident)));
+		assertThat(inMemoryFileSystem.getFileStatus(
+				new Path("/snap/.snapshot/renamed/large")).getLen(),
+				is(equalTo(256L * 1024)));
+
+		inMemoryFileSystem.deleteSnapshot(dir, "renamed");
+		assertThat(inMemoryFileSystem.getMetrics().getResidentBytes(),
+				is(equalTo(0L)));
+		assertFalse(inMemoryFileSystem.exists(new Path(
+				"/snap/.snapshot/renamed")));
+	}
+
+	@Test
+	public void testSnapshotsShareUnchangedChildren() throws IOException {
+		Path dir = new Path("/snap");
+		for (int i = 0; i < 10; i++) {
+			writeMessage(new Path(dir, "d" + i + "/file"));
+		}
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+		FSDataOutputStream out = inMemoryFileSystem.append(new Path(dir,
+				"d3/file"));
+		out.writeBytes("!");
+		out.close();
+		inMemoryFileSystem.createSnapshot(dir, "s2");
+
+		Namespace ns = InMemoryFileSystem.getContext(configuration)
+				.getNamespace(inMemoryFileSystem.getUri());
+		assertTrue("Unchanged child copied", ns.get(new Path(
+				"/snap/.snapshot/s1/d5")) == ns.get(new Path(
+				"/snap/.snapshot/s2/d5")));
+		assertThat(readMessage(new Path("/snap/.snapshot/s1/d3/file")),
+				is(equalTo(message)));
+		assertThat(readMessage(new Path("/snap/.snapshot/s2/d3/file")),
+				is(equalTo(message + "!")));
+		assertThat(readMessage(new Path(dir, "d3/file")),
+				is(equalTo(message + "!")));
+	}
+
+	@Test
+	public void testDeleteSnapshotsReleasesReplacedContent()
+			throws IOException {
+		Path dir = new Path("/snap");
+		Path file = new Path(dir, "d/large");
+		byte[] content = new byte[256 * 1024];
+		FSDataOutputStream out = inMemoryFileSystem.create(file);
+		out.write(content);
+		out.close();
+		long resident = inMemoryFileSystem.getMetrics().getResidentBytes();
+		inMemoryFileSystem.allowSnapshot(dir);
+		for (int i = 1; i <= 2; i++) {
+			inMemoryFileSystem.createSnapshot(dir, "s" + i);
+			out = inMemoryFileSystem.create(file, true);
+			out.write(content);
+			out.close();
+		}
+		assertThat(inMemoryFileSystem.getMetrics().getResidentBytes(),
+				is(equalTo(3 * resident)));
+
+		inMemoryFileSystem.deleteSnapshot(dir, "s1");
+		assertThat(inMemoryFileSystem.getMetrics().getResidentBytes(),
+				is(equalTo(2 * resident)));
+		inMemoryFileSystem.deleteSnapshot(dir, "s2");
+		assertThat(inMemoryFileSystem.getMetrics().getResidentBytes(),
+				is(equalTo(resident)));
+		assertThat(inMemoryFileSystem.getFileStatus(file).getLen(),
+				is(equalTo(256L * 1024)));
+	}
+
+	@Test
+	public void testDeleteDirectoryWithSnapshots() throws IOException {
+		Path dir = new Path("/parent/snap");
+		inMemoryFileSystem.mkdirs(dir);
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+		try {
+			inMemoryFileSystem.disallowSnapshot(dir);
+			fail("Disallowed with snapshots");
+		} catch (IOException e) {
+			assertThat(e.getMessage(),
+					is(equalTo("'/parent/snap' has snapshots, delete them first!")));
+		}
+		try {
+			inMemoryFileSystem.delete(new Path("/parent"), true);
+			fail("Deleted with snapshots");
+		} catch (IOException e) {
+			assertThat(e.getMessage(),
+					is(equalTo("Delete failed, '/parent' has snapshots!")));
+		}
+
+		inMemoryFileSystem.deleteSnapshot(dir, "s1");
+		inMemoryFileSystem.disallowSnapshot(dir);
+		assertTrue(inMemoryFileSystem.delete(new Path("/parent"), true));
+	}
+
+	@Test
+	public void testNestedSnapshottableDirectories() throws IOException {
+		inMemoryFileSystem.mkdirs(new Path("/snap/dir"));
+		inMemoryFileSystem.allowSnapshot(new Path("/snap/dir"));
+
+		expectIOException("Nested snapshottable directories not allowed: "
+				+ "'/snap' and '/snap/dir'!");
+		inMemoryFileSystem.allowSnapshot(new Path("/snap"));
+	}
+
+	@Test
+	public void testSnapshotErrors() throws IOException {
+		Path dir = new Path("/snap");
+		inMemoryFileSystem.mkdirs(dir);
+		try {
+			inMemoryFileSystem.createSnapshot(dir, "s1");
+			fail("Created a snapshot of an ordinary directory");
+		} catch (IOException e) {
+			assertThat(e.getMessage(),
+					is(equalTo("'/snap' is not a snapshottable directory!")));
+		}
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+		try {
+			inMemoryFileSystem.createSnapshot(dir, "s1");
+			fail("Created a snapshot twice");
+		} catch (IOException e) {
+			assertThat(e.getMessage(),
+					is(equalTo("Snapshot 's1' of '/snap' already exists!")));
+		}
+
+		FSDataOutputStream out = inMemoryFileSystem.create(new Path(dir, "open"));
+		try {
+			inMemoryFileSystem.createSnapshot(dir, "s2");
+			fail("Created a snapshot with an open file");
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is(equalTo("Cannot create a snapshot "
+					+ "while 1 file(s) are open for writing!")));
+		} finally {
+			out.close();
+		}
+
+		expectIOException("Snapshot 's2' of '/snap' not found!");
+		inMemoryFileSystem.getSnapshotDiffReport(dir, "s1", "s2");
+	}
+
+	@Test
+	public void testCreateSnapshotWithWriterOutsideDirectory()
+			throws IOException {
+		Path dir = new Path("/snap");
+		writeMessage(new Path(dir, "a"));
+		inMemoryFileSystem.allowSnapshot(dir);
+
+		FSDataOutputStream out = inMemoryFileSystem.create(new Path(
+				"/other/open"));
+		try {
+			inMemoryFileSystem.createSnapshot(dir, "s1");
+		} finally {
+			out.close();
+		}
+		assertTrue(inMemoryFileSystem.exists(new Path(dir, ".snapshot/s1/a")));
+
+		out = inMemoryFileSystem.create(new Path(dir, "sub/open"));
+		try {
+			inMemoryFileSystem.createSnapshot(dir, "s2");
+			fail("Created a snapshot with an open file below the directory");
+		} catch (IOException e) {
+			assertThat(e.getMessage(), is(equalTo("Cannot create a snapshot "
+					+ "while 1 file(s) are open for writing!")));
+		} finally {
+			out.close();
+		}
+	}
+
+	@Test
+	public void testForkKeepsSnapshots() throws IOException {
+		Path dir = new Path("/snap");
+		writeMessage(new Path(dir, "a"));
+		inMemoryFileSystem.allowSnapshot(dir);
+		inMemoryFileSystem.createSnapshot(dir, "s1");
+		inMemoryFileSystem.delete(new Path(dir, "a"), false);
+
+		Configuration forked = InMemoryFileSystem.fork(configuration);
+		try {
+			InMemoryFileSystem fork = InMemoryFileSystem.get(forked);
+			assertThat(readMessage(fork, new Path("/snap/.snapshot/s1/a")),
+					is(equalTo(message)));
+			assertThat(fork.getSnapshotDiffReport(dir, "s1", null)
+					.getDiffList().size(), is(equalTo(2)));
+			fork.deleteSnapshot(dir, "s1");
+			assertFalse(fork.exists(new Path("/snap/.snapshot/s1")));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(forked);
+		}
+		assertThat(readMessage(new Path("/snap/.snapshot/s1/a")),
+				is(equalTo(message)));
+	}
+
+	//
+	// Block location tests
+	//
+
+	@Test
+	public void testCreateKeepsBlockSizeAndReplication() throws IOException {
+		FSDataOutputStream out = inMemoryFileSystem.create(path, null, true,
+				4096, (short) 3, 1024, null);
+		out.write(new byte[2500]);
+		out.close();
+		FileStatus status = inMemoryFileSystem.getFileStatus(path);
+		assertThat(status.getBlockSize(), is(equalTo(1024L)));
+		assertThat(status.getReplication(), is(equalTo((short) 3)));
+
+		Path other = new Path("/other");
+		writeMessage(other);
+		status = inMemoryFileSystem.getFileStatus(other);
+		assertThat(status.getBlockSize(),
+				is(equalTo(InMemoryFileSystem.DEFAULT_BLOCK_SIZE)));
+		assertThat(status.getReplication(),
+				is(equalTo(InMemoryFileSystem.DEFAULT_REPLICATION)));
+		status = inMemoryFileSystem.getFileStatus(new Path("/"));
+		assertThat(status.getBlockSize(), is(equalTo(0L)));
+		assertThat(status.getReplication(), is(equalTo((short) 0)));
+
+		assertTrue(inMemoryFileSystem.setReplication(path, (short) 2));
+		assertThat(inMemoryFileSystem.getFileStatus(path).getReplication(),
+				is(equalTo((short) 2)));
+		assertFalse(inMemoryFileSystem.setReplication(new Path("/"),
+				(short) 2));
+	}
+
+	@Test
+	public void testDefaultBlockSizeAndReplication() throws IOException {
+		Configuration conf = new Configuration();
+		conf.setLong(InMemoryFileSystem.BLOCK_SIZE_KEY, 512);
+		conf.setInt(InMemoryFileSystem.REPLICATION_KEY, 2);
+		try {
+			InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+			writeMessage(fs, path, message);
+			FileStatus status = fs.getFileStatus(path);
+			assertThat(status.getBlockSize(), is(equalTo(512L)));
+			assertThat(status.getReplication(), is(equalTo((short) 2)));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	@Test
+	public void testFileBlockLocationsOnLocalhost() throws IOException {
+		FSDataOutputStream out = inMemoryFileSystem.create(path, null, true,
+				4096, (short) 3, 1024, null);
+		out.write(new byte[2500]);
+		out.close();
+		FileStatus status = inMemoryFileSystem.getFileStatus(path);
+
+		BlockLocation[] locations = inMemoryFileSystem.getFileBlockLocations(
+				status, 0, status.getLen());
+		assertThat(locations.length, is(equalTo(3)));
+		long[][] expected = { { 0, 1024 }, { 1024, 1024 }, { 2048, 452 } };
+		for (int i = 0; i < locations.length; i++) {
+			assertThat(locations[i].getOffset(), is(equalTo(expected[i][0])));
+			assertThat(locations[i].getLength(), is(equalTo(expected[i][1])));
+			assertThat(locations[i].getHosts(),
+					is(equalTo(new String[] { "localhost" })));
+			assertThat(locations[i].getNames(),
+					is(equalTo(new String[] { "localhost:50010" })));
+			assertThat(locations[i].getTopologyPaths(),
+					is(equalTo(new String[] { "/default-rack/localhost:50010" })));
+		}
+
+		locations = inMemoryFileSystem.getFileBlockLocations(status, 1500, 100);
+		assertThat(locations.length, is(equalTo(1)));
+		assertThat(locations[0].getOffset(), is(equalTo(1024L)));
+		assertThat(inMemoryFileSystem.getFileBlockLocations(status, 2500, 100).length,
+				is(equalTo(0)));
+		locations = inMemoryFileSystem.getFileBlockLocations(status, 10,
+				Long.MAX_VALUE);
+		assertThat(locations.length, is(equalTo(3)));
+		assertThat(locations[2].getOffset(), is(equalTo(2048L)));
+		assertThat(inMemoryFileSystem.getFileBlockLocations(status, 3000,
+				Long.MAX_VALUE).length, is(equalTo(0)));
+		assertThat(inMemoryFileSystem.getFileBlockLocations(
+				inMemoryFileSystem.getFileStatus(new Path("/")), 0, 100).length,
+				is(equalTo(0)));
+	}
+
+	@Test
+	public void testFileBlockLocationsOnRacks() throws IOException {
+		Configuration conf = new Configuration();
+		conf.setInt(InMemoryFileSystem.TOPOLOGY_RACKS_KEY, 3);
+		conf.setInt(InMemoryFileSystem.TOPOLOGY_HOSTS_KEY, 4);
+		try {
+			InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+			FSDataOutputStream out = fs.create(path, null, true, 4096,
+					(short) 3, 100, null);
+			out.write(new byte[10000]);
+			out.close();
+			FileStatus status = fs.getFileStatus(path);
+
+			BlockLocation[] locations = fs.getFileBlockLocations(status, 0,
+					status.getLen());
+			assertThat(locations.length, is(equalTo(100)));
+			Set<String> first = new HashSet<String>();
+			for (BlockLocation location : locations) {
+				String[] hosts = location.getHosts();
+				String[] racks = location.getTopologyPaths();
+				assertThat(new HashSet<String>(Arrays.asList(hosts)).size(),
+						is(equalTo(3)));
+				assertFalse("Second replica on the rack of the first",
+						rack(racks[0]).equals(rack(racks[1])));
+				assertThat("Third replica not on the rack of the second",
+						rack(racks[2]), is(equalTo(rack(racks[1]))));
+				first.add(hosts[0]);
+			}
+			assertTrue("First replicas not spread: " + first,
+					first.size() > 6);
+			assertThat(fs.getFileBlockLocations(status, 0, status.getLen())[42]
+					.getHosts(), is(equalTo(locations[42].getHosts())));
+
+			fs.setReplication(path, (short) 20);
+			locations = fs.getFileBlockLocations(fs.getFileStatus(path), 0, 1);
+			assertThat(new HashSet<String>(Arrays.asList(locations[0]
+					.getHosts())).size(), is(equalTo(12)));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	private static String rack(String topologyPath) {
+		return topologyPath.substring(0, topologyPath.lastIndexOf('/'));
+	}
+
+	@Test
+	public void testImageKeepsBlockSizeAndReplication() throws IOException {
+		FSDataOutputStream out = inMemoryFileSystem.create(path, null, true,
+				4096, (short) 3, 1024, null);
+		out.close();
+		File image = temporaryFolder.newFile("blocks.img");
+		InMemoryFileSystem.saveImage(configuration, image);
+
+		Configuration loaded = new Configuration();
+		InMemoryFileSystem.loadImage(loaded, image);
+		try {
+			FileStatus status = InMemoryFileSystem.get(loaded).getFileStatus(
+					path);
+			assertThat(status.getBlockSize(), is(equalTo(1024L)));
+			assertThat(status.getReplication(), is(equalTo((short) 3)));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(loaded);
+		}
+	}
+
+	//
+	// End of tests
+	//
+
+	private void expectPathMustExistIOException(Path path) {
+		thrown.expect(IOException.class);
+		String absoluteChar = (path.isAbsolute()) ? "" : "/";
+		thrown.expectMessage(equalTo("'" + absoluteChar + path + "' not found!"));
+	}
+
+	private void expectNullArgumentException(String argName) {
+		thrown.expect(IllegalArgumentException.class);
+		thrown.expectMessage(equalTo(argName + " == null not allowed!"));
+	}
+
+	private void expectIllegalArgumentException(String message) {
+		thrown.expect(IllegalArgumentException.class);
+		thrown.expectMessage(equalTo(message));
+	}
+
+	private void expectIOException(String message) {
+		thrown.expect(IOException.class);
+		thrown.expectMessage(equalTo(message));
+	}
+
+	private void writeMessage(Path path) throws IOException {
+		writeMessage(inMemoryFileSystem, path, message);
+	}
+
+	static void writeMessage(FileSystem fs, Path path, String message)
+			throws IOException {
+		FSDataOutputStream out = fs.create(path);
+		out.writeBytes(message);
+		out.close();
+	}
+
+	private String readMessage(Path path) throws IOException {
+		return readMessage(inMemoryFileSystem, path);
+	}
+
+	static String readMessage(FileSystem fs, Path path) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
 				fs.open(path)));
-		return reader.readLine();
+		try {
+			return reader.readLine();
+		} finally {
+			reader.close();
+		}
 	}
 }
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Reports the heap used per inode of a large namespace of empty files, to
+ * size namespaces for split planning tests.
+ * <p>
+ * This is not a unit test, run it with a heap large enough for the namespace:
+ * 
+ * <pre>
+ * java -Xmx2g -cp ... ras.test.hadoop.fs.InodeFootprintBenchmark [files] [files per directory]
+ * </pre>
+ */
+public class InodeFootprintBenchmark {
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException {
+		int files = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		int perDirectory = (args.length > 1) ? Integer.parseInt(args[1])
+				: 1000;
+
+		Configuration conf = new Configuration();
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			long before = usedHeap();
+			long start = System.nanoTime();
+			int directories = 0;
+			Path dir = null;
+			for (int i = 0; i < files; i++) {
+				if (i % perDirectory == 0) {
+					dir = new Path("/warehouse/table/part=" + directories++);
+				}
+				fs.create(new Path(dir, "file-" + i)).close();
+			}
+			long elapsed = System.nanoTime() - start;
+			long used = usedHeap() - before;
+
+			// The root, /warehouse and /warehouse/table...
+			long inodes = files + directories + 3;
+			System.out.printf("%d inodes (%d directories) in %.1f s%n",
+					inodes, directories, elapsed / 1e9);
+			System.out.printf("%.1f bytes per inode, %d MB in total%n",
+					(double) used / inodes, used / (1024 * 1024));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Measures the write throughput of {@link MemoryOutputStream} for small
+ * records (written with the {@link java.io.DataOutput} methods and short byte
+ * arrays) and for large blocks.
+ * <p>
+ * This is not a unit test, run it with:
+ *
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.MemoryOutputStreamBenchmark [megabytes]
+ * </pre>
+ */
+public class MemoryOutputStreamBenchmark {
+
+	private static final int MB = 1024 * 1024;
+
+	public static void main(String[] args) throws IOException {
+		int megabytes = (args.length > 0) ? Integer.parseInt(args[0]) : 256;
+
+		Configuration conf = new Configuration();
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			// Warm up...
+			writeRecords(fs, 16);
+			writeBlocks(fs, 16, MB);
+
+			report("small records (int+long+100 bytes)", megabytes,
+					writeRecords(fs, megabytes));
+			report("4KB blocks", megabytes, writeBlocks(fs, megabytes, 4096));
+			report("1MB blocks", megabytes, writeBlocks(fs, megabytes, MB));
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	private static long writeRecords(InMemoryFileSystem fs, int megabytes)
+			throws IOException {
+		Path path = new Path("/bench/records");
+		byte[] payload = new byte[100];
+		long total = (long) megabytes * MB;
+		long start = System.nanoTime();
+		FSDataOutputStream out = fs.create(path, true);
+		for (long written = 0; written < total; written += 112) {
+			out.writeInt((int) written);
+			out.writeLong(written);
+			out.write(payload, 0, payload.length);
+		}
+		out.close();
+		long elapsed = System.nanoTime() - start;
+		fs.delete(path, false);
+		return elapsed;
+	}
+
+	private static long writeBlocks(InMemoryFileSystem fs, int megabytes,
+			int blockSize) throws IOException {
+		Path path = new Path("/bench/blocks");
+		byte[] block = new byte[blockSize];
+		long total = (long) megabytes * MB;
+		long start = System.nanoTime();
+		FSDataOutputStream out = fs.create(path, true);
+		for (long written = 0; written < total; written += blockSize) {
+			out.write(block, 0, blockSize);
+		}
+		out.close();
+		long elapsed = System.nanoTime() - start;
+		fs.delete(path, false);
+		return elapsed;
+	}
+
+	private static void report(String name, int megabytes, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-40s %8.1f MB/s (%d MB in %.3f s)%n", name,
+				megabytes / seconds, megabytes, seconds);
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+
+/**
+ * Measures taking snapshots of a directory with many files, changing a few
+ * files between them and reporting the differences, see
+ * {@link InMemoryFileSystem#createSnapshot(Path, String)}. Neither should
+ * depend on the number of files below the directory.
+ * <p>
+ * This is not a unit test, run it with:
+ *
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.SnapshotBenchmark [files [snapshots]]
+ * </pre>
+ */
+public class SnapshotBenchmark {
+
+	private static final int FILES_PER_DIRECTORY = 10;
+	private static final int CHANGES = 10;
+
+	public static void main(String[] args) throws IOException {
+		int files = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		int snapshots = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+
+		// Warm up...
+		run(files / 10, snapshots);
+		run(files / 10, snapshots);
+
+		long[] nanos = run(files, snapshots);
+		System.out.printf("%-20s %10.3f ms (%d files)%n", "build", nanos[0] / 1e6,
+				files);
+		System.out.printf("%-20s %10.3f ms per snapshot (%d changes each)%n",
+				"change and snapshot", nanos[1] / 1e6 / snapshots, CHANGES);
+		System.out.printf("%-20s %10.3f ms per report%n", "diff report",
+				nanos[2] / 1e6 / snapshots);
+	}
+
+	private static long[] run(int files, int snapshots) throws IOException {
+		long[] nanos = new long[3];
+		byte[] content = new byte[1000];
+		Path root = new Path("/fixture");
+		Configuration conf = new Configuration();
+		try {
+			InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+			long start = System.nanoTime();
+			build(fs, files, content);
+			nanos[0] = System.nanoTime() - start;
+
+			fs.allowSnapshot(root);
+			fs.createSnapshot(root, "s0");
+			start = System.nanoTime();
+			for (int i = 1; i <= snapshots; i++) {
+				for (int j = 0; j < CHANGES; j++) {
+					int file = ((i * CHANGES + j) * 7919) % files;
+					FSDataOutputStream out = fs.append(path(file));
+					out.write(content);
+					out.close();
+				}
+				fs.createSnapshot(root, "s" + i);
+			}
+			nanos[1] = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 1; i <= snapshots; i++) {
+				fs.getSnapshotDiffReport(root, "s" + (i - 1), "s" + i);
+			}
+			nanos[2] = System.nanoTime() - start;
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+		return nanos;
+	}
+
+	private static Path path(int file) {
+		return new Path("/fixture/d" + (file / FILES_PER_DIRECTORY) + "/file"
+				+ file);
+	}
+
+	private static void build(InMemoryFileSystem fs, int files, byte[] content)
+			throws IOException {
+		Path[] directories = new Path[files / FILES_PER_DIRECTORY + 1];
+		Map<Path, byte[]> batch = new LinkedHashMap<Path, byte[]>();
+		for (int i = 0; i < files; i++) {
+			directories[i / FILES_PER_DIRECTORY] = path(i).getParent();
+			batch.put(path(i), content);
+		}
+		directories[directories.length - 1] = new Path("/fixture");
+		fs.batchMkdirs(directories, FsPermission.getDefault());
+		fs.batchCreate(batch, false);
+	}
+}
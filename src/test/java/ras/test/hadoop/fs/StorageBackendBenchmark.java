@@ -0,0 +1,110 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Compares the heap and direct storage backends. The benchmark fills a context
+ * with file content, measures write and read throughput, and then measures the
+ * time spent in full garbage collections while the content is live.
+ * <p>
+ * Run each backend in its own JVM so the collections of one run do not affect
+ * the other, and give the JVM enough heap or direct memory for the data:
+ * 
+ * <pre>
+ * java -Xmx6g -XX:MaxDirectMemorySize=6g -cp ... ras.test.hadoop.fs.StorageBackendBenchmark heap 4096
+ * java -Xmx6g -XX:MaxDirectMemorySize=6g -cp ... ras.test.hadoop.fs.StorageBackendBenchmark direct 4096
+ * </pre>
+ */
+public class StorageBackendBenchmark {
+
+	private static final int MB = 1024 * 1024;
+
+	private static final int FILE_MB = 16;
+
+	private static final int GC_ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		String backend = (args.length > 0) ? args[0]
+				: InMemoryFileSystem.STORAGE_HEAP;
+		int megabytes = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+		int files = Math.max(1, megabytes / FILE_MB);
+
+		Configuration conf = new Configuration();
+		conf.set(InMemoryFileSystem.STORAGE_KEY, backend);
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			byte[] block = new byte[MB];
+			long start = System.nanoTime();
+			for (int i = 0; i < files; i++) {
+				FSDataOutputStream out = fs.create(new Path("/bench/" + i));
+				for (int j = 0; j < FILE_MB; j++) {
+					out.write(block);
+				}
+				out.close();
+			}
+			report(backend + " write", files * FILE_MB, System.nanoTime()
+					- start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < files; i++) {
+				FSDataInputStream in = fs.open(new Path("/bench/" + i));
+				for (int j = 0; j < FILE_MB; j++) {
+					in.readFully(block);
+				}
+				in.close();
+			}
+			report(backend + " read", files * FILE_MB, System.nanoTime()
+					- start);
+
+			long gcTime = gcTime();
+			start = System.nanoTime();
+			for (int i = 0; i < GC_ROUNDS; i++) {
+				System.gc();
+			}
+			long elapsed = (System.nanoTime() - start) / 1000000;
+			System.out.printf(
+					"%-40s %8.1f ms per full GC (collector time %d ms)%n",
+					backend + " gc with " + (files * FILE_MB) + " MB live",
+					elapsed / (double) GC_ROUNDS, gcTime() - gcTime);
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	private static long gcTime() {
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+
+	private static void report(String name, int megabytes, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-40s %8.1f MB/s (%d MB in %.3f s)%n", name,
+				megabytes / seconds, megabytes, seconds);
+	}
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2013 Red Arch Solutions, Incorporated
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ras.test.hadoop.fs;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Measures the overhead of recording a trace, see
+ * {@link InMemoryFileSystem#TRACE_KEY}, on a workload of small files written
+ * and read a few bytes at a time, and replays the trace at maximum speed with
+ * {@link TraceReplayer}.
+ * <p>
+ * This is not a unit test, run it with:
+ *
+ * <pre>
+ * java -cp ... ras.test.hadoop.fs.TraceBenchmark [files]
+ * </pre>
+ */
+public class TraceBenchmark {
+
+	public static void main(String[] args) throws IOException {
+		int files = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		File trace = File.createTempFile("workload", ".trace");
+		try {
+			// Warm up...
+			run(files / 10, null);
+			run(files / 10, trace);
+
+			report("untraced", files, run(files, null));
+			report("traced", files, run(files, trace));
+			System.out.printf("trace size: %d KB%n", trace.length() / 1024);
+
+			Configuration conf = new Configuration();
+			try {
+				TraceReplayer replayer = new TraceReplayer(
+						InMemoryFileSystem.get(conf), new Path("/"));
+				replayer.setMaximumSpeed(true);
+				System.out.println(replayer.replay(trace));
+			} finally {
+				InMemoryFileSystem.resetFileSystemState(conf);
+			}
+		} finally {
+			trace.delete();
+		}
+	}
+
+	private static long run(int files, File trace) throws IOException {
+		Configuration conf = new Configuration();
+		if (trace != null) {
+			conf.set(InMemoryFileSystem.TRACE_KEY, trace.getPath());
+		}
+		InMemoryFileSystem fs = InMemoryFileSystem.get(conf);
+		try {
+			long start = System.nanoTime();
+			for (int i = 0; i < files; i++) {
+				Path path = new Path("/bench/d" + (i % 100) + "/file" + i);
+				FSDataOutputStream out = fs.create(path, false);
+				for (int j = 0; j < 10; j++) {
+					out.writeInt(j);
+					out.writeLong(i);
+				}
+				out.close();
+				fs.getFileStatus(path);
+				FSDataInputStream in = fs.open(path);
+				for (int j = 0; j < 10; j++) {
+					in.readInt();
+					in.readLong();
+				}
+				in.close();
+			}
+			fs.delete(new Path("/bench"), true);
+			return System.nanoTime() - start;
+		} finally {
+			InMemoryFileSystem.resetFileSystemState(conf);
+		}
+	}
+
+	private static void report(String name, int files, long nanos) {
+		double seconds = nanos / 1e9;
+		System.out.printf("%-20s %10.0f files/s (%d files in %.3f s)%n",
+				name, files / seconds, files, seconds);
+	}
+}